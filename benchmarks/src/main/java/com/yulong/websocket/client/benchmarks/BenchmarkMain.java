@@ -0,0 +1,26 @@
+package com.yulong.websocket.client.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks and writes the results as JSON so that they can be compared
+ * across releases. Any JMH option can be passed, e.g. a benchmark regex or "-rff out.json".
+ */
+public final class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+		if (!jmhArgs.contains("-rf")) {
+			jmhArgs.add("-rf");
+			jmhArgs.add("json");
+		}
+		if (!jmhArgs.contains("-rff")) {
+			jmhArgs.add("-rff");
+			jmhArgs.add("jmh-result.json");
+		}
+		org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[jmhArgs.size()]));
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.yulong.websocket.client.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yulong.websocket.client.frames.DataFrame;
+import com.yulong.websocket.client.frames.FramePool;
+import com.yulong.websocket.client.frames.PooledFrame;
+
+/**
+ * Outbound frame construction and encoding, and decoding of a complete raw frame,
+ * across payload sizes from an empty frame up to 16 MB. The pooled variants encode into a
+ * frame reused from a FramePool, as a connection does when frame logging is off.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataFrameBenchmark {
+
+	@Param({ "0", "125", "126", "4096", "65536", "1048576", "16777216" })
+	public int payloadSize;
+
+	private byte[] payload;
+	private String text;
+	private byte[] serverRawData;
+	private final FramePool pool = new FramePool(1);
+
+	@Setup
+	public void setup() {
+		payload = new byte[payloadSize];
+		new Random(42).nextBytes(payload);
+		char[] chars = new char[payloadSize];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) ('a' + i % 26);
+		}
+		text = new String(chars);
+		// Servers never mask their frames:
+		serverRawData = new DataFrame(true, 2, false, payload).getRawData();
+	}
+
+	@Benchmark
+	public byte[] binaryFrameRawData() {
+		return new DataFrame(true, 2, true, payload).getRawData();
+	}
+
+	@Benchmark
+	public byte[] textFrameRawData() {
+		return new DataFrame(true, 1, true, text).getRawData();
+	}
+
+	@Benchmark
+	public int binaryPooledFrame() {
+		PooledFrame frame = pool.acquire().setBinary(payload, 0, payload.length);
+		ByteBuffer encoded = frame.encode()[0];
+		int length = encoded.remaining();
+		frame.release();
+		return length;
+	}
+
+	@Benchmark
+	public int textPooledFrame() {
+		PooledFrame frame = pool.acquire().setText(text);
+		ByteBuffer encoded = frame.encode()[0];
+		int length = encoded.remaining();
+		frame.release();
+		return length;
+	}
+
+	@Benchmark
+	public DataFrame decodeRawData() {
+		return new DataFrame(serverRawData);
+	}
+
+}
@@ -0,0 +1,41 @@
+package com.yulong.websocket.client.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yulong.websocket.client.utils.WebSocketKey;
+
+/**
+ * Generation of the Sec-WebSocket-Key and its expected Sec-WebSocket-Accept value,
+ * single threaded and under contention as during a reconnect storm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeKeyBenchmark {
+
+	@Benchmark
+	public String generateKey() {
+		return new WebSocketKey().getAccept();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public String generateKeyContended() {
+		return new WebSocketKey().getAccept();
+	}
+
+}
@@ -0,0 +1,54 @@
+package com.yulong.websocket.client.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yulong.websocket.client.frames.DataFrame;
+
+/**
+ * Masking throughput. The masked and unmasked variants encode the same payload, so the
+ * difference between the two is the cost of applying the client mask.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaskingBenchmark {
+
+	@Param({ "1024", "65536", "1048576" })
+	public int payloadSize;
+
+	private byte[] payload;
+	private byte[] maskKey = new byte[] { 0x37, (byte) 0xfa, 0x21, 0x3d };
+
+	@Setup
+	public void setup() {
+		payload = new byte[payloadSize];
+		new Random(42).nextBytes(payload);
+	}
+
+	@Benchmark
+	public byte[] masked() {
+		return new DataFrame(true, 0, 2, true, maskKey, null, payload).getRawData();
+	}
+
+	@Benchmark
+	public byte[] unmasked() {
+		return new DataFrame(true, 0, 2, false, maskKey, null, payload).getRawData();
+	}
+
+}
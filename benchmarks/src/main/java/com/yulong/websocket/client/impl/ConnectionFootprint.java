@@ -0,0 +1,222 @@
+package com.yulong.websocket.client.impl;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.utils.Threads;
+import com.yulong.websocket.client.utils.WebSocketKey;
+
+/**
+ * Opens a number of idle NIO connections and reports the heap and the threads each of them
+ * takes, on a shared event loop or with a selector and a thread per connection:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.yulong.websocket.client.impl.ConnectionFootprint \
+ *   --connections 10000 --mode shared
+ * </pre>
+ *
+ * Without --host the connections go to an in-process server that only answers the opening
+ * handshake; its side of each socket is then counted in the heap too, so the figure is an upper
+ * bound of the client's. Raise the open files limit for large counts.
+ */
+public class ConnectionFootprint {
+
+  public static void main(String[] args) throws Exception {
+    String host = "localhost";
+    int port = -1;
+    String path = "/";
+    int connections = 1000;
+    boolean shared = true;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      String value = args[i + 1];
+      switch (args[i]) {
+      case "--host":
+        host = value;
+        break;
+      case "--port":
+        port = Integer.parseInt(value);
+        break;
+      case "--path":
+        path = value;
+        break;
+      case "--connections":
+        connections = Integer.parseInt(value);
+        break;
+      case "--mode":
+        shared = !"dedicated".equals(value);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown option: " + args[i]);
+      }
+    }
+
+    HandshakeServer server = null;
+    if (port < 0) {
+      server = new HandshakeServer();
+      host = "localhost";
+      port = server.getPort();
+    }
+    NioEventLoop loop = shared ? new NioEventLoop("FootprintLoop") : null;
+    WebSocketConfig config = WebSocketConfig.builder().eventLoop(loop).build();
+
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long heapBefore = usedHeap(memory);
+    int threadsBefore = Thread.activeCount();
+
+    List<WebSocketNio> webSockets = new ArrayList<WebSocketNio>(connections);
+    for (int i = 0; i < connections; i++) {
+      WebSocketNio webSocket = new WebSocketNio(host, port, path, false, config);
+      if (!shared) {
+        Threads.newDaemonThread(webSocket, "FootprintConnection-" + i).start();
+      }
+      webSockets.add(webSocket);
+    }
+    int open = awaitOpen(webSockets, 60000);
+
+    long heapAfter = usedHeap(memory);
+    int threadsAfter = Thread.activeCount();
+    System.out.printf("mode=%s connections=%d open=%d%n", shared ? "shared" : "dedicated", connections, open);
+    System.out.printf("heap per connection: %d bytes (budget %d)%n", (heapAfter - heapBefore) / Math.max(1, open),
+        WebSocketNio.IDLE_HEAP_BUDGET);
+    System.out.printf("threads: %d%n", threadsAfter - threadsBefore);
+
+    for (WebSocketNio webSocket : webSockets) {
+      webSocket.disconnect();
+    }
+    if (loop != null) {
+      loop.close();
+    }
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  private static int awaitOpen(List<WebSocketNio> webSockets, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    int open = 0;
+    for (WebSocketNio webSocket : webSockets) {
+      while (!webSocket.handshakeFinished() && webSocket.getState() != WebSocketState.CLOSED
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(1);
+      }
+      if (webSocket.getState() == WebSocketState.OPEN) {
+        open++;
+      }
+    }
+    return open;
+  }
+
+  private static long usedHeap(MemoryMXBean memory) throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  /**
+   * Answers opening handshakes and then keeps the sockets open without reading them.
+   */
+  private static class HandshakeServer implements Runnable {
+
+    private static final byte[] END_OF_HEADERS = { '\r', '\n', '\r', '\n' };
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private volatile boolean closed = false;
+
+    HandshakeServer() throws IOException {
+      selector = Selector.open();
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.bind(new InetSocketAddress("localhost", 0), 1024);
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      Threads.newDaemonThread(this, "FootprintServer").start();
+    }
+
+    int getPort() {
+      return serverChannel.socket().getLocalPort();
+    }
+
+    void close() {
+      closed = true;
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!closed) {
+          selector.select();
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            if (key.isAcceptable()) {
+              SocketChannel channel = serverChannel.accept();
+              if (channel != null) {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(1024));
+              }
+            } else if (key.isReadable()) {
+              handshake(key);
+            }
+          }
+        }
+        for (SelectionKey key : selector.keys()) {
+          key.channel().close();
+        }
+        selector.close();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+
+    private void handshake(SelectionKey key) throws Exception {
+      SocketChannel channel = (SocketChannel) key.channel();
+      ByteBuffer request = (ByteBuffer) key.attachment();
+      if (channel.read(request) < 0) {
+        key.cancel();
+        channel.close();
+        return;
+      }
+      String headers = new String(request.array(), 0, request.position(), StandardCharsets.ISO_8859_1);
+      if (!headers.endsWith(new String(END_OF_HEADERS, StandardCharsets.ISO_8859_1))) {
+        return;
+      }
+      String webSocketKey = null;
+      for (String line : headers.split("\r\n")) {
+        int colon = line.indexOf(':');
+        if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+          webSocketKey = line.substring(colon + 1).trim();
+        }
+      }
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      String accept = Base64.getEncoder().encodeToString(
+          sha1.digest((webSocketKey + WebSocketKey.GUID).getBytes(StandardCharsets.ISO_8859_1)));
+      String response = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+          + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+      channel.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+      // Idle from now on: forget the request buffer and stop reading.
+      key.attach(null);
+      key.interestOps(0);
+    }
+
+  }
+
+}
@@ -0,0 +1,125 @@
+package com.yulong.websocket.client.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yulong.websocket.client.ListenerDispatch;
+import com.yulong.websocket.client.ProtocolException;
+import com.yulong.websocket.client.WaitStrategy;
+import com.yulong.websocket.client.WebSocketListener;
+import com.yulong.websocket.client.frames.CloseFrame;
+import com.yulong.websocket.client.frames.DataFrame;
+import com.yulong.websocket.client.frames.PingFrame;
+import com.yulong.websocket.client.frames.PongFrame;
+
+/**
+ * The cost on the reading thread of handing a message over to the listeners for each
+ * dispatch mode. The average and highest handoff latencies seen by the listener thread are
+ * printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+  @Param({ "INLINE", "SERIAL", "VIRTUAL_THREAD", "RING_BUSY_SPIN", "RING_YIELD", "RING_PARK", "RING_BLOCKING" })
+  public String dispatch;
+
+  private StubWebSocket webSocket;
+
+  @Setup
+  public void setup() {
+    webSocket = new StubWebSocket();
+    webSocket.addListener(new CountingListener());
+    if (dispatch.startsWith("RING_")) {
+      WaitStrategy waitStrategy = WaitStrategy.valueOf(dispatch.substring("RING_".length()));
+      webSocket.setListenerDispatch(ListenerDispatch.ringBuffer(4096, waitStrategy));
+    } else if ("SERIAL".equals(dispatch)) {
+      webSocket.setListenerDispatch(ListenerDispatch.serial());
+    } else if ("VIRTUAL_THREAD".equals(dispatch)) {
+      webSocket.setListenerDispatch(ListenerDispatch.virtualThread());
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    webSocket.stopDispatching();
+    System.out.println(dispatch + ": " + webSocket.getMetrics());
+  }
+
+  @Benchmark
+  public void dispatchTextMessage() {
+    webSocket.fireMessage("message");
+  }
+
+  /**
+   * A WebSocket without a connection, only used to drive the dispatcher.
+   */
+  static final class StubWebSocket extends AbstractWebSocket {
+
+    @Override
+    public boolean hasClosedFromServer() {
+      return false;
+    }
+
+    @Override
+    protected boolean write(ByteBuffer buff) {
+      buff.position(buff.limit());
+      return true;
+    }
+
+    @Override
+    protected void disconnect() {
+    }
+
+    @Override
+    protected void onReadingChanged() {
+    }
+
+  }
+
+  static final class CountingListener implements WebSocketListener {
+
+    long count;
+
+    public void onDataFrame(DataFrame dataFrame) {
+    }
+
+    public void onMessage(String msg) {
+      count++;
+    }
+
+    public void onMessage(byte[] binaryData) {
+    }
+
+    public void onClose(CloseFrame closeFrame) {
+    }
+
+    public void onPing(PingFrame pingFrame) {
+    }
+
+    public void onPong(PongFrame pongFrame) {
+    }
+
+    public void onError(ProtocolException e) {
+    }
+
+  }
+
+}
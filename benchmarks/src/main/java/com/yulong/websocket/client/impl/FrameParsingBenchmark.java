@@ -0,0 +1,108 @@
+package com.yulong.websocket.client.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.yulong.websocket.client.frames.CloseFrame;
+import com.yulong.websocket.client.frames.DataFrame;
+import com.yulong.websocket.client.utils.Utils;
+
+/**
+ * Inbound parsing of a mixed stream of server frames (small and large text, binary,
+ * fragments, ping and close) delivered in socket sized chunks, with the DataFrameBuilder
+ * creating a DataFrame per frame and with the FrameDecoder WebSocketNio now decodes in place
+ * with.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameParsingBenchmark {
+
+  @Param({ "8192", "65536" })
+  public int readSize;
+
+  private List<byte[]> chunks = new ArrayList<byte[]>();
+  private ByteBuffer readerBuff;
+  private final FrameDecoder frameDecoder = new FrameDecoder();
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    byte[] binary = new byte[70000];
+    random.nextBytes(binary);
+    byte[] stream = Utils.combine(
+        serverFrame(true, 1, Utils.string2Bytes("hello")),
+        serverFrame(true, 1, Utils.string2Bytes(Utils.createLongMessage(300, "abcdefghij"))),
+        serverFrame(true, 2, binary),
+        serverFrame(false, 1, Utils.string2Bytes("frag-1 ")),
+        serverFrame(true, 9, Utils.string2Bytes("ping")),
+        serverFrame(false, 0, Utils.string2Bytes("frag-2 ")),
+        serverFrame(true, 0, Utils.string2Bytes("frag-3")),
+        serverFrame(true, 2, new byte[0]),
+        serverFrame(true, 8, new CloseFrame(1000, Utils.string2Bytes("bye")).getDataFrame().getApplicationData()));
+    for (int i = 0; i < stream.length; i += readSize) {
+      int length = Math.min(readSize, stream.length - i);
+      byte[] chunk = new byte[length];
+      System.arraycopy(stream, i, chunk, 0, length);
+      chunks.add(chunk);
+    }
+    readerBuff = ByteBuffer.allocate(stream.length);
+  }
+
+  @Benchmark
+  public void parseMixedStream(Blackhole blackhole) {
+    DataFrameBuilder dataFrameBuilder = new DataFrameBuilder();
+    for (byte[] chunk : chunks) {
+      ByteBuffer dataBuff = ByteBuffer.wrap(chunk);
+      while (dataBuff.hasRemaining()) {
+        DataFrame dataFrame = dataFrameBuilder.build(dataBuff);
+        if (dataFrame != null) {
+          blackhole.consume(dataFrame);
+          dataFrameBuilder = new DataFrameBuilder();
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public void decodeMixedStreamInPlace(Blackhole blackhole) throws Exception {
+    ByteBuffer view = readerBuff.asReadOnlyBuffer();
+    readerBuff.clear();
+    for (byte[] chunk : chunks) {
+      readerBuff.put(chunk);
+      readerBuff.flip();
+      while (frameDecoder.decode(readerBuff)) {
+        int start = readerBuff.position();
+        view.limit(frameDecoder.payloadEnd);
+        view.position(frameDecoder.payloadStart);
+        blackhole.consume(view);
+        readerBuff.position(start + frameDecoder.frameLength);
+      }
+      readerBuff.compact();
+    }
+  }
+
+  private static byte[] serverFrame(boolean fin, int opcode, byte[] payload) {
+    return new DataFrame(fin, opcode, false, payload).getRawData();
+  }
+
+}
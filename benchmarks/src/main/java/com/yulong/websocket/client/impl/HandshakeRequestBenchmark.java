@@ -0,0 +1,65 @@
+package com.yulong.websocket.client.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yulong.websocket.client.utils.Utils;
+import com.yulong.websocket.client.utils.WebSocketKey;
+
+/**
+ * The client side of an opening handshake: a key, its accept value and the request bytes,
+ * from the cached template and built by concatenation as before, single threaded and under
+ * contention as during a reconnect storm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeRequestBenchmark {
+
+  private final String host = "ws.example.com";
+  private final int port = 443;
+  private final String path = "/stream/v1/quotes";
+  private final String[] subProtocols = { "quotes.v1" };
+
+  @Benchmark
+  public byte[] templateRequest() {
+    WebSocketKey key = new WebSocketKey();
+    return HandshakeTemplate.get(host, port, path, "13", subProtocols, null, null).request(key.getKey());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] templateRequestContended() {
+    return templateRequest();
+  }
+
+  @Benchmark
+  public byte[] concatenatedRequest() {
+    WebSocketKey key = new WebSocketKey();
+    StringBuilder sb = new StringBuilder();
+    sb.append("GET " + path + " HTTP/1.1\r\n");
+    sb.append("Host: " + host + ":" + port + "\r\n");
+    sb.append("Upgrade: websocket\r\n");
+    sb.append("Connection: Upgrade\r\n");
+    sb.append("Origin: http://" + host + ":" + port + "\r\n");
+    sb.append("Sec-WebSocket-Key: " + key.getKey() + "\r\n");
+    sb.append("Sec-WebSocket-Version: 13\r\n");
+    sb.append("Sec-WebSocket-Protocol: " + Utils.array2String(subProtocols) + "\r\n");
+    sb.append("\r\n");
+    return Utils.string2Bytes(sb.toString());
+  }
+
+}
@@ -0,0 +1,82 @@
+package com.yulong.websocket.client.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yulong.websocket.client.frames.DataFrame;
+import com.yulong.websocket.client.utils.Utils;
+
+/**
+ * Reassembly of fragmented text (including UTF-8 decoding) and binary messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReassemblyBenchmark {
+
+  @Param({ "2", "16", "128" })
+  public int fragments;
+
+  @Param({ "1024" })
+  public int fragmentSize;
+
+  private List<DataFrame> textFragments;
+  private List<DataFrame> binaryFragments;
+
+  @Setup
+  public void setup() {
+    // Multi-byte characters so that the UTF-8 decoding cost is part of the measurement:
+    String text = Utils.createLongMessage(fragmentSize / 2, "été");
+    byte[] binary = new byte[fragmentSize];
+    new Random(42).nextBytes(binary);
+    textFragments = fragments(1, Utils.string2Bytes(text));
+    binaryFragments = fragments(2, binary);
+  }
+
+  @Benchmark
+  public String text() {
+    FragmentAssembler fragmentAssembler = new FragmentAssembler();
+    for (DataFrame dataFrame : textFragments) {
+      fragmentAssembler.add(dataFrame);
+    }
+    return fragmentAssembler.composeText();
+  }
+
+  @Benchmark
+  public byte[] binary() {
+    FragmentAssembler fragmentAssembler = new FragmentAssembler();
+    for (DataFrame dataFrame : binaryFragments) {
+      fragmentAssembler.add(dataFrame);
+    }
+    return fragmentAssembler.composeBinary();
+  }
+
+  private List<DataFrame> fragments(int opcode, byte[] payload) {
+    List<DataFrame> list = new ArrayList<DataFrame>();
+    for (int i = 0; i < fragments; i++) {
+      boolean fin = i == fragments - 1;
+      // Decode from the raw bytes as inbound frames are:
+      byte[] rawData = new DataFrame(fin, i == 0 ? opcode : 0, false, payload).getRawData();
+      list.add(new DataFrame(rawData));
+    }
+    return list;
+  }
+
+}
@@ -0,0 +1,310 @@
+package com.yulong.websocket.client;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Counters describing the activity of one WebSocket connection. The record methods are
+ * called by the WebSocket implementations.
+ */
+public class ConnectionMetrics {
+
+	// Field updaters rather than an AtomicLong each, to keep the connections small:
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> DISPATCHED_EVENTS = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "dispatchedEvents");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> HANDOFF_COUNT = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "handoffCount");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> HANDOFF_NANOS_TOTAL = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "handoffNanosTotal");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> HANDOFF_NANOS_MAX = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "handoffNanosMax");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> LISTENER_ERRORS = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "listenerErrors");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> QUEUED_BYTES = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "queuedBytes");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> WRITTEN_BYTES = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "writtenBytes");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> DROPPED_BYTES = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "droppedBytes");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> INBOUND_QUEUED_BYTES = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "inboundQueuedBytes");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> INBOUND_CONSUMED_BYTES = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "inboundConsumedBytes");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> READ_PAUSES = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "readPauses");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> READ_RESUMES = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "readResumes");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> READ_WAKEUPS = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "readWakeups");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> READS = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "reads");
+	private static final AtomicLongFieldUpdater<ConnectionMetrics> READ_BYTES = AtomicLongFieldUpdater.newUpdater(
+			ConnectionMetrics.class, "readBytes");
+
+	private volatile long dispatchedEvents;
+	private volatile long handoffCount;
+	private volatile long handoffNanosTotal;
+	private volatile long handoffNanosMax;
+	private volatile long listenerErrors;
+	private volatile long queuedBytes;
+	private volatile long writtenBytes;
+	private volatile long droppedBytes;
+	private volatile long inboundQueuedBytes;
+	private volatile long inboundConsumedBytes;
+	private volatile long readPauses;
+	private volatile long readResumes;
+	private volatile long readWakeups;
+	private volatile long reads;
+	private volatile long readBytes;
+
+	/**
+	 * Record that an event has been delivered to the listeners.
+	 */
+	public void recordDispatch() {
+		DISPATCHED_EVENTS.incrementAndGet(this);
+	}
+
+	/**
+	 * Record the time an event waited between being read and being delivered to the listeners
+	 * on another thread.
+	 * 
+	 * @param nanos
+	 */
+	public void recordHandoff(long nanos) {
+		HANDOFF_COUNT.incrementAndGet(this);
+		HANDOFF_NANOS_TOTAL.addAndGet(this, nanos);
+		long max = handoffNanosMax;
+		while (nanos > max && !HANDOFF_NANOS_MAX.compareAndSet(this, max, nanos)) {
+			max = handoffNanosMax;
+		}
+	}
+
+	/**
+	 * Record that a listener threw an exception.
+	 */
+	public void recordListenerError() {
+		LISTENER_ERRORS.incrementAndGet(this);
+	}
+
+	/**
+	 * Record that data has been queued to be sent.
+	 * 
+	 * @param bytes
+	 */
+	public void recordQueued(long bytes) {
+		QUEUED_BYTES.addAndGet(this, bytes);
+	}
+
+	/**
+	 * Record that queued data has been written to the connection.
+	 * 
+	 * @param bytes
+	 */
+	public void recordWritten(long bytes) {
+		WRITTEN_BYTES.addAndGet(this, bytes);
+	}
+
+	/**
+	 * Record that queued data has been dropped, the connection being closed before it could
+	 * be written.
+	 * 
+	 * @param bytes
+	 */
+	public void recordDropped(long bytes) {
+		DROPPED_BYTES.addAndGet(this, bytes);
+	}
+
+	/**
+	 * Record that a received message has been handed to the listeners.
+	 * 
+	 * @param bytes
+	 */
+	public void recordInboundQueued(long bytes) {
+		INBOUND_QUEUED_BYTES.addAndGet(this, bytes);
+	}
+
+	/**
+	 * Record that the listeners are done with a received message.
+	 * 
+	 * @param bytes
+	 */
+	public void recordInboundConsumed(long bytes) {
+		INBOUND_CONSUMED_BYTES.addAndGet(this, bytes);
+	}
+
+	/**
+	 * Record that reading has stopped at the high watermark.
+	 */
+	public void recordReadPaused() {
+		READ_PAUSES.incrementAndGet(this);
+	}
+
+	/**
+	 * Record that reading has started again at the low watermark.
+	 */
+	public void recordReadResumed() {
+		READ_RESUMES.incrementAndGet(this);
+	}
+
+	/**
+	 * Record the reads done each time the connection was found readable.
+	 * 
+	 * @param count
+	 * @param bytes
+	 */
+	public void recordReads(int count, long bytes) {
+		READ_WAKEUPS.incrementAndGet(this);
+		READS.addAndGet(this, count);
+		READ_BYTES.addAndGet(this, bytes);
+	}
+
+	/**
+	 * To get the number of events delivered to the listeners.
+	 * 
+	 * @return
+	 */
+	public long getDispatchedEvents() {
+		return dispatchedEvents;
+	}
+
+	/**
+	 * To get the number of events handed off to another thread for delivery.
+	 * 
+	 * @return
+	 */
+	public long getHandoffCount() {
+		return handoffCount;
+	}
+
+	/**
+	 * To get the average handoff latency in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getAverageHandoffNanos() {
+		long count = handoffCount;
+		return count == 0 ? 0 : handoffNanosTotal / count;
+	}
+
+	/**
+	 * To get the highest handoff latency in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getMaxHandoffNanos() {
+		return handoffNanosMax;
+	}
+
+	/**
+	 * To get the number of exceptions thrown by listeners.
+	 * 
+	 * @return
+	 */
+	public long getListenerErrors() {
+		return listenerErrors;
+	}
+
+	/**
+	 * To get the number of bytes written to the connection.
+	 * 
+	 * @return
+	 */
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+
+	/**
+	 * To get the number of queued bytes dropped because the connection was closed.
+	 * 
+	 * @return
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes;
+	}
+
+	/**
+	 * To get the number of bytes queued but neither written nor dropped yet.
+	 * 
+	 * @return
+	 */
+	public long getPendingBytes() {
+		// Read the written and dropped bytes first so that the result is never negative:
+		long done = writtenBytes + droppedBytes;
+		return queuedBytes - done;
+	}
+
+	/**
+	 * To get the number of received bytes the listeners are not done with yet.
+	 * 
+	 * @return
+	 */
+	public long getInboundPendingBytes() {
+		// Read the consumed bytes first so that the result is never negative:
+		long consumed = inboundConsumedBytes;
+		return inboundQueuedBytes - consumed;
+	}
+
+	/**
+	 * To get the number of times reading stopped at the high watermark.
+	 * 
+	 * @return
+	 */
+	public long getReadPauses() {
+		return readPauses;
+	}
+
+	/**
+	 * To get the number of times reading started again at the low watermark.
+	 * 
+	 * @return
+	 */
+	public long getReadResumes() {
+		return readResumes;
+	}
+
+	/**
+	 * To get the number of times the connection was found readable.
+	 * 
+	 * @return
+	 */
+	public long getReadWakeups() {
+		return readWakeups;
+	}
+
+	/**
+	 * To get the number of reads from the connection.
+	 * 
+	 * @return
+	 */
+	public long getReads() {
+		return reads;
+	}
+
+	/**
+	 * To get the number of bytes read from the connection.
+	 * 
+	 * @return
+	 */
+	public long getReadBytes() {
+		return readBytes;
+	}
+
+	/**
+	 * Check whether reading is stopped at the high watermark.
+	 * 
+	 * @return
+	 */
+	public boolean isReadPaused() {
+		return readPauses > readResumes;
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionMetrics[dispatchedEvents=" + getDispatchedEvents() + ", handoffCount=" + getHandoffCount()
+				+ ", averageHandoffNanos=" + getAverageHandoffNanos() + ", maxHandoffNanos=" + getMaxHandoffNanos()
+				+ ", listenerErrors=" + getListenerErrors() + ", writtenBytes=" + getWrittenBytes() + ", droppedBytes="
+				+ getDroppedBytes() + ", pendingBytes=" + getPendingBytes() + ", inboundPendingBytes="
+				+ getInboundPendingBytes() + ", readPauses=" + getReadPauses() + ", readResumes=" + getReadResumes() + ", readWakeups=" + getReadWakeups() + ", reads=" + getReads()
+				+ ", readBytes=" + getReadBytes() + "]";
+	}
+
+}
@@ -0,0 +1,23 @@
+package com.yulong.websocket.client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A low-level listener that sees each frame as it is decoded, before any frame or message
+ * object is created for it.
+ */
+public interface FrameListener {
+
+	/**
+	 * A listener method that is invoked on the thread reading the connection when a valid frame
+	 * arrives. The payload is a read-only view of the receive buffer and is only valid until
+	 * the method returns; copy what must be kept.
+	 *
+	 * @param opcode
+	 * @param fin
+	 * @param rsv
+	 * @param payload
+	 */
+	public void onFrame(int opcode, boolean fin, int rsv, ByteBuffer payload);
+
+}
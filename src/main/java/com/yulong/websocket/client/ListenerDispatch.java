@@ -0,0 +1,172 @@
+package com.yulong.websocket.client;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where the {@link WebSocketListener} methods of a connection are invoked.
+ * 
+ * Whatever the mode, the events of one connection are delivered one at a time and in the
+ * order they were read, and each event is delivered to the listeners in the order they were
+ * added.
+ */
+public final class ListenerDispatch {
+
+	/**
+	 * The dispatch modes.
+	 */
+	public enum Mode {
+		/** On the thread reading the socket; a slow listener delays the reading. */
+		INLINE,
+		/** On a shared pool, serially for each connection. */
+		SERIAL,
+		/** On a virtual thread per connection, or a platform thread before Java 21. */
+		VIRTUAL_THREAD,
+		/** On a dedicated thread per connection fed by a preallocated ring buffer. */
+		RING_BUFFER
+	}
+
+	private static final ListenerDispatch INLINE = new ListenerDispatch(Mode.INLINE, null, 0, null);
+	private static final ListenerDispatch VIRTUAL_THREAD = new ListenerDispatch(Mode.VIRTUAL_THREAD, null, 0, null);
+	private static volatile ExecutorService sharedPool = null;
+
+	private final Mode mode;
+	private final Executor executor;
+	private final int ringSize;
+	private final WaitStrategy waitStrategy;
+
+	private ListenerDispatch(Mode mode, Executor executor, int ringSize, WaitStrategy waitStrategy) {
+		this.mode = mode;
+		this.executor = executor;
+		this.ringSize = ringSize;
+		this.waitStrategy = waitStrategy;
+	}
+
+	/**
+	 * Invoke the listeners on the thread reading the socket. This is the default.
+	 * 
+	 * @return
+	 */
+	public static ListenerDispatch inline() {
+		return INLINE;
+	}
+
+	/**
+	 * Invoke the listeners on a pool shared by all connections, with one thread per processor.
+	 * 
+	 * @return
+	 */
+	public static ListenerDispatch serial() {
+		return new ListenerDispatch(Mode.SERIAL, getSharedPool(), 0, null);
+	}
+
+	/**
+	 * Invoke the listeners on the given pool, serially for each connection.
+	 * 
+	 * @param pool
+	 * @return
+	 */
+	public static ListenerDispatch serial(Executor pool) {
+		if (pool == null) {
+			throw new IllegalArgumentException("The pool must not be null");
+		}
+		return new ListenerDispatch(Mode.SERIAL, pool, 0, null);
+	}
+
+	/**
+	 * Invoke the listeners on a dedicated virtual thread for each connection.
+	 * 
+	 * @return
+	 */
+	public static ListenerDispatch virtualThread() {
+		return VIRTUAL_THREAD;
+	}
+
+	/**
+	 * Invoke the listeners on a dedicated thread for each connection, handing the events over
+	 * through a ring buffer of preallocated slots. The handoff allocates nothing, and when the
+	 * ring is full the reading thread waits for the listeners to catch up.
+	 * 
+	 * @param size the number of slots, rounded up to a power of two.
+	 * @param waitStrategy
+	 * @return
+	 */
+	public static ListenerDispatch ringBuffer(int size, WaitStrategy waitStrategy) {
+		if (size < 1 || size > (1 << 30)) {
+			throw new IllegalArgumentException("The ring size is out of range: " + size);
+		}
+		if (waitStrategy == null) {
+			throw new IllegalArgumentException("The wait strategy must not be null");
+		}
+		int ringSize = Integer.highestOneBit(size);
+		if (ringSize < size) {
+			ringSize <<= 1;
+		}
+		return new ListenerDispatch(Mode.RING_BUFFER, null, ringSize, waitStrategy);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * To get the pool used in SERIAL mode.
+	 * 
+	 * @return
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * To get the number of slots used in RING_BUFFER mode.
+	 * 
+	 * @return
+	 */
+	public int getRingSize() {
+		return ringSize;
+	}
+
+	/**
+	 * To get the wait strategy used in RING_BUFFER mode.
+	 * 
+	 * @return
+	 */
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	@Override
+	public String toString() {
+		if (mode == Mode.RING_BUFFER) {
+			return "ListenerDispatch[" + mode + ", size=" + ringSize + ", " + waitStrategy + "]";
+		}
+		return "ListenerDispatch[" + mode + "]";
+	}
+
+	private static ExecutorService getSharedPool() {
+		ExecutorService pool = sharedPool;
+		if (pool == null) {
+			synchronized (ListenerDispatch.class) {
+				pool = sharedPool;
+				if (pool == null) {
+					final AtomicInteger count = new AtomicInteger();
+					pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "WebSocketDispatch-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+					sharedPool = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+}
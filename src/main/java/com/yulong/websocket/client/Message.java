@@ -0,0 +1,68 @@
+package com.yulong.websocket.client;
+
+import com.yulong.websocket.client.utils.Utils;
+
+/**
+ * A complete text or binary WebSocket message.
+ */
+public final class Message {
+
+	private final String text;
+	private final byte[] binary;
+
+	private Message(String text, byte[] binary) {
+		this.text = text;
+		this.binary = binary;
+	}
+
+	/**
+	 * To create a text message.
+	 * 
+	 * @param text
+	 * @return
+	 */
+	public static Message text(String text) {
+		return new Message(text, null);
+	}
+
+	/**
+	 * To create a binary message.
+	 * 
+	 * @param binary
+	 * @return
+	 */
+	public static Message binary(byte[] binary) {
+		return new Message(null, binary);
+	}
+
+	public boolean isText() {
+		return text != null;
+	}
+
+	/**
+	 * To get the message as text. A binary message is decoded as UTF-8.
+	 * 
+	 * @return
+	 */
+	public String getText() {
+		return text != null ? text : Utils.bytes2String(binary);
+	}
+
+	/**
+	 * To get the message as binary data. A text message is encoded as UTF-8.
+	 * 
+	 * @return
+	 */
+	public byte[] getBinary() {
+		return binary != null ? binary : Utils.string2Bytes(text);
+	}
+
+	@Override
+	public String toString() {
+		if (isText()) {
+			return "[TEXT=" + Utils.showPartOfTextIfTooLong(text) + "]";
+		}
+		return "[BINARY=" + Utils.showPartOfTextIfTooLong(Utils.toHexString(binary)) + "]";
+	}
+
+}
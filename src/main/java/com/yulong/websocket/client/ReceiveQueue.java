@@ -0,0 +1,164 @@
+package com.yulong.websocket.client;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The bounded queue feeding the blocking receive methods of {@link WebSocketClient}. Its
+ * capacity can be changed while threads wait on it, as they all wait under the same lock.
+ * 
+ * A consumer can take the next message of one type only, leaving the messages of the other
+ * type queued, in order, for the other consumers.
+ */
+final class ReceiveQueue {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final ArrayDeque<Message> messages = new ArrayDeque<Message>();
+	// 0 while the queue is disabled:
+	private int capacity = 0;
+
+	/**
+	 * Change the capacity, keeping the queued messages even if there are more of them. With a
+	 * capacity of 0 the queue is disabled: the queued messages are discarded, a delivering
+	 * thread waiting for space gives up, and the consumers waiting fail.
+	 *
+	 * @param capacity
+	 */
+	void setCapacity(int capacity) {
+		lock.lock();
+		try {
+			this.capacity = capacity;
+			if (capacity == 0) {
+				messages.clear();
+				notEmpty.signalAll();
+			}
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queue a message, waiting for space if needed.
+	 *
+	 * @param message
+	 * @return false if the queue is disabled, in which case the message is not queued.
+	 * @throws InterruptedException
+	 */
+	boolean put(Message message) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (capacity > 0 && messages.size() >= capacity) {
+				notFull.await();
+			}
+			if (capacity == 0) {
+				return false;
+			}
+			messages.add(message);
+			// All of them, as the first one may be waiting for the other type:
+			notEmpty.signalAll();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take the next message, waiting up to the given time.
+	 *
+	 * @param nanos the time to wait, or a negative number to wait for as long as it takes.
+	 * @return the message, or null if none arrives in time.
+	 * @throws InterruptedException
+	 */
+	Message poll(long nanos) throws InterruptedException {
+		return poll(null, nanos);
+	}
+
+	/**
+	 * Take the next message of a type, waiting up to the given time. The messages of the other
+	 * type stay queued, so while they fill the queue no message of this type can arrive.
+	 *
+	 * @param text true for a text message, false for a binary one, null for either.
+	 * @param nanos the time to wait, or a negative number to wait for as long as it takes.
+	 * @return the message, or null if none arrives in time.
+	 * @throws InterruptedException
+	 */
+	Message poll(Boolean text, long nanos) throws InterruptedException {
+		boolean forever = nanos < 0;
+		lock.lockInterruptibly();
+		try {
+			while (true) {
+				checkEnabled();
+				Message message = remove(text);
+				if (message != null) {
+					return message;
+				}
+				if (forever) {
+					notEmpty.await();
+				} else if (nanos <= 0) {
+					return null;
+				} else {
+					nanos = notEmpty.awaitNanos(nanos);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take the next message if there is one, without waiting.
+	 *
+	 * @return
+	 */
+	Message poll() {
+		lock.lock();
+		try {
+			checkEnabled();
+			Message message = messages.poll();
+			if (message != null) {
+				notFull.signal();
+			}
+			return message;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take the next message, waiting up to the given time.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 * @throws InterruptedException
+	 */
+	Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return poll(Math.max(0, unit.toNanos(timeout)));
+	}
+
+	private Message remove(Boolean text) {
+		Iterator<Message> it = messages.iterator();
+		while (it.hasNext()) {
+			Message message = it.next();
+			if (text == null || text.booleanValue() == message.isText()) {
+				it.remove();
+				notFull.signal();
+				return message;
+			}
+		}
+		return null;
+	}
+
+	private void checkEnabled() {
+		if (capacity == 0) {
+			throw new IllegalStateException("The receive queue is not enabled, see setReceiveQueueCapacity(int)");
+		}
+	}
+
+}
@@ -0,0 +1,934 @@
+package com.yulong.websocket.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.yulong.websocket.client.frames.CloseFrame;
+import com.yulong.websocket.client.frames.DataFrame;
+import com.yulong.websocket.client.frames.FramePool;
+import com.yulong.websocket.client.frames.PingFrame;
+import com.yulong.websocket.client.frames.PongFrame;
+import com.yulong.websocket.client.frames.PooledFrame;
+import com.yulong.websocket.client.utils.Threads;
+
+/**
+ * A WebSocket that opens a new connection to the same endpoint whenever its connection is
+ * lost, until it is closed.
+ *
+ * The attempts are spaced by an exponential backoff, from the initial delay up to the maximum
+ * one, each shortened by a random part of up to the jitter, so that the clients of a server
+ * that went down do not all come back at the same instant. The {@link ConnectHook} is called
+ * on every new connection as soon as it takes over, e.g. to send the subscriptions again; it
+ * runs without holding any lock of this WebSocket, so what other threads send may come before
+ * it.
+ * With a standby, a second connection is kept open and takes over as soon as the first one is
+ * lost, without waiting for a handshake; a new standby is then opened in the background.
+ *
+ * The listeners are moved to each new connection. While there is none, sending fails with an
+ * IOException. A reconnecting WebSocket is created with a {@link Builder}:
+ *
+ * <pre>
+ * ReconnectingWebSocket webSocket = ReconnectingWebSocket.builder(host, port, "/feed").standby(true)
+ * 		.connectHook(resubscribe).build();
+ * </pre>
+ */
+public class ReconnectingWebSocket implements WebSocket {
+
+	private static ScheduledThreadPoolExecutor scheduler = null;
+
+	private final String host;
+	private final int port;
+	private final String path;
+	private final boolean secure;
+	private final WebSocketConfig config;
+	private final ConnectHook connectHook;
+	private final boolean standbyEnabled;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+	private final double backoffMultiplier;
+	private final double jitter;
+	private final int maxAttempts;
+
+	private final List<WebSocketListener> listeners = new CopyOnWriteArrayList<WebSocketListener>();
+	private final List<FrameListener> frameListeners = new CopyOnWriteArrayList<FrameListener>();
+	private final ConcurrentLinkedQueue<Runnable> closedTasks = new ConcurrentLinkedQueue<Runnable>();
+	private final FramePool framePool = new FramePool(64);
+	private final AtomicInteger readHolds = new AtomicInteger(0);
+
+	// The connections, guarded by this:
+	private volatile WebSocket active = null;
+	private WebSocket standby = null;
+	private int connecting = 0;
+	// The failed attempts in a row:
+	private int failures = 0;
+	private long lostAt = 0;
+	private volatile boolean closed = false;
+
+	private final LongAdder disconnects = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+	private final LongAdder failovers = new LongAdder();
+	private final LongAdder failedAttempts = new LongAdder();
+	private final LongAdder gapNanosTotal = new LongAdder();
+	private final AtomicLong gapNanosMax = new AtomicLong();
+	private volatile long lastGapNanos = 0;
+
+	private ReconnectingWebSocket(Builder builder) {
+		this.host = builder.host;
+		this.port = builder.port;
+		this.path = builder.path;
+		this.secure = builder.secure;
+		this.config = builder.config;
+		this.connectHook = builder.connectHook;
+		this.standbyEnabled = builder.standby;
+		this.initialBackoffMillis = builder.initialBackoffMillis;
+		this.maxBackoffMillis = builder.maxBackoffMillis;
+		this.backoffMultiplier = builder.backoffMultiplier;
+		this.jitter = builder.jitter;
+		this.maxAttempts = builder.maxAttempts;
+		this.listeners.addAll(builder.listeners);
+	}
+
+	/**
+	 * To get a builder for the given endpoint, with the default settings.
+	 *
+	 * @param host
+	 * @param port
+	 * @param path
+	 * @return
+	 */
+	public static Builder builder(String host, int port, String path) {
+		return new Builder(host, port, path);
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor getScheduler() {
+		if (scheduler == null) {
+			final AtomicInteger count = new AtomicInteger();
+			scheduler = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable task) {
+					return Threads.newDaemonThread(task, "WebSocketReconnect-" + count.incrementAndGet());
+				}
+			});
+			scheduler.setRemoveOnCancelPolicy(true);
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Open the first connection on the calling thread, and the standby in the background.
+	 */
+	private void start() {
+		synchronized (this) {
+			connecting++;
+		}
+		attempt();
+	}
+
+	/**
+	 * Open a connection, and make it the active one, or the standby, or retry later.
+	 */
+	private void attempt() {
+		WebSocket webSocket = null;
+		if (!closed) {
+			try {
+				webSocket = WebSocketFactory.getInstance(secure).openWebSocket(host, port, path, config);
+			} catch (RuntimeException e) {
+				log("Failed to connect due to " + e);
+			}
+		}
+		boolean opened = webSocket != null && webSocket.getState() == WebSocketState.OPEN;
+		boolean gaveUp = false;
+		boolean promoted = false;
+		boolean reconnect = false;
+		synchronized (this) {
+			connecting--;
+			if (opened && !closed) {
+				failures = 0;
+				if (active == null) {
+					reconnect = promote(webSocket);
+					promoted = true;
+					watch(webSocket);
+				} else if (standbyEnabled && standby == null) {
+					standby = webSocket;
+					watch(webSocket);
+					webSocket = null;
+				}
+			} else if (!closed) {
+				failures++;
+				failedAttempts.increment();
+				if (active == null && maxAttempts > 0 && failures >= maxAttempts) {
+					log("Giving up after " + failures + " attempts");
+					closed = true;
+					gaveUp = true;
+				}
+			}
+			if (!gaveUp) {
+				maintain();
+			}
+		}
+		if (promoted) {
+			runConnectHook(webSocket, reconnect);
+		} else if (opened && webSocket != null) {
+			// Not needed any more:
+			closeQuietly(webSocket);
+		}
+		if (gaveUp) {
+			closeStandby();
+			runClosedTasks();
+		}
+	}
+
+	/**
+	 * Make the connection the active one and hand it the listeners, the caller watching it for
+	 * its loss and running the connect hook once it has released the lock. Called holding the
+	 * lock.
+	 *
+	 * @return true if the connection replaces a lost one.
+	 */
+	private boolean promote(WebSocket webSocket) {
+		for (WebSocketListener listener : listeners) {
+			webSocket.addListener(listener);
+		}
+		for (FrameListener listener : frameListeners) {
+			webSocket.addFrameListener(listener);
+		}
+		for (int i = readHolds.get(); i > 0; i--) {
+			webSocket.pauseReading();
+		}
+		boolean reconnect = lostAt != 0;
+		active = webSocket;
+		if (reconnect) {
+			long gap = System.nanoTime() - lostAt;
+			lastGapNanos = gap;
+			gapNanosTotal.add(gap);
+			long max;
+			while (gap > (max = gapNanosMax.get()) && !gapNanosMax.compareAndSet(max, gap)) {
+				// retry
+			}
+			reconnects.increment();
+			lostAt = 0;
+		}
+		return reconnect;
+	}
+
+	/**
+	 * Call the connect hook on a new active connection, without holding the lock. If it fails,
+	 * the connection is closed and replaced as if it had been lost.
+	 */
+	private void runConnectHook(WebSocket webSocket, boolean reconnect) {
+		if (connectHook == null) {
+			return;
+		}
+		try {
+			connectHook.onConnect(webSocket, reconnect);
+		} catch (IOException e) {
+			log("The connect hook failed due to " + e);
+			synchronized (this) {
+				failures++;
+				failedAttempts.increment();
+			}
+			closeQuietly(webSocket);
+		}
+	}
+
+	/**
+	 * Schedule the attempts needed for an active connection, and a standby if enabled. Called
+	 * holding the lock.
+	 */
+	private void maintain() {
+		if (closed) {
+			return;
+		}
+		int needed = (active == null ? 1 : 0) + (standbyEnabled && standby == null ? 1 : 0) - connecting;
+		for (int i = 0; i < needed; i++) {
+			connecting++;
+			getScheduler().schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					attempt();
+				}
+			}, backoffMillis(failures), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * To get the delay before the next attempt after the given failures in a row: the initial
+	 * backoff times the multiplier to the power of the failures, up to the maximum backoff, less
+	 * a random part of up to the jitter.
+	 *
+	 * @param failures
+	 * @return
+	 */
+	long backoffMillis(int failures) {
+		double base = Math.min(maxBackoffMillis, initialBackoffMillis * Math.pow(backoffMultiplier, failures));
+		return (long) (base * (1 - jitter * ThreadLocalRandom.current().nextDouble()));
+	}
+
+	/**
+	 * Be told when the connection is lost: closed, or asked to close by the server.
+	 */
+	private void watch(final WebSocket webSocket) {
+		webSocket.addListener(new CloseWatcher(webSocket));
+		webSocket.whenClosed(new Runnable() {
+
+			@Override
+			public void run() {
+				lost(webSocket);
+			}
+		});
+	}
+
+	/**
+	 * Replace a lost connection with the standby, if any, or schedule a new one. Called on the
+	 * thread of the lost connection, so the standby's connect hook and the closing of a broken
+	 * standby are left to the scheduler.
+	 */
+	private void lost(WebSocket webSocket) {
+		WebSocket next = null;
+		boolean promoted = false;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			if (webSocket == standby) {
+				log("The standby connection is lost");
+				standby = null;
+			} else if (webSocket == active) {
+				log("The connection is lost");
+				active = null;
+				lostAt = System.nanoTime();
+				disconnects.increment();
+				next = standby;
+				standby = null;
+				if (next != null && next.getState() == WebSocketState.OPEN) {
+					promote(next);
+					failovers.increment();
+					promoted = true;
+				}
+			} else {
+				return;
+			}
+			maintain();
+		}
+		if (next != null) {
+			final WebSocket taken = next;
+			final boolean promotedNext = promoted;
+			getScheduler().execute(new Runnable() {
+
+				@Override
+				public void run() {
+					if (promotedNext) {
+						runConnectHook(taken, true);
+					} else {
+						closeQuietly(taken);
+					}
+				}
+			});
+		}
+	}
+
+	private void closeStandby() {
+		WebSocket webSocket;
+		synchronized (this) {
+			webSocket = standby;
+			standby = null;
+		}
+		if (webSocket != null) {
+			closeQuietly(webSocket);
+		}
+	}
+
+	private static void closeQuietly(WebSocket webSocket) {
+		if (webSocket.getState() == WebSocketState.OPEN && !webSocket.hasSentCloseHandshake()) {
+			try {
+				webSocket.close(1000, "");
+			} catch (IOException e) {
+				// closed already
+			}
+		}
+	}
+
+	private void runClosedTasks() {
+		Runnable task;
+		while ((task = closedTasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private WebSocket connected() throws IOException {
+		WebSocket webSocket = active;
+		if (webSocket == null) {
+			throw new IOException(closed ? "The WebSocket is closed" : "Not connected, reconnecting to " + host + ":"
+					+ port + path);
+		}
+		return webSocket;
+	}
+
+	private void log(String msg) {
+		System.out.println("~~~~~~ ReconnectingWebSocket[" + host + ":" + port + path + "]:" + msg);
+	}
+
+	/**
+	 * To get the connection in use, or null while reconnecting.
+	 *
+	 * @return
+	 */
+	public WebSocket getConnection() {
+		return active;
+	}
+
+	/**
+	 * To check if a standby connection is open.
+	 *
+	 * @return
+	 */
+	public synchronized boolean hasStandby() {
+		return standby != null;
+	}
+
+	/**
+	 * To get the number of times the connection was lost.
+	 *
+	 * @return
+	 */
+	public long getDisconnects() {
+		return disconnects.sum();
+	}
+
+	/**
+	 * To get the number of connections that replaced a lost one, standbys included.
+	 *
+	 * @return
+	 */
+	public long getReconnects() {
+		return reconnects.sum();
+	}
+
+	/**
+	 * To get the number of times a standby took over.
+	 *
+	 * @return
+	 */
+	public long getFailovers() {
+		return failovers.sum();
+	}
+
+	/**
+	 * To get the number of attempts to connect that failed.
+	 *
+	 * @return
+	 */
+	public long getFailedAttempts() {
+		return failedAttempts.sum();
+	}
+
+	/**
+	 * To get the time from the last connection lost to its replacement taking traffic.
+	 *
+	 * @return
+	 */
+	public long getLastGapNanos() {
+		return lastGapNanos;
+	}
+
+	/**
+	 * To get the average time from a connection lost to its replacement taking traffic.
+	 *
+	 * @return
+	 */
+	public long getAverageGapNanos() {
+		long count = reconnects.sum();
+		return count == 0 ? 0 : gapNanosTotal.sum() / count;
+	}
+
+	/**
+	 * To get the longest time from a connection lost to its replacement taking traffic.
+	 *
+	 * @return
+	 */
+	public long getMaxGapNanos() {
+		return gapNanosMax.get();
+	}
+
+	/******************** WebSocket **************************/
+	@Override
+	public boolean handshakeFinished() {
+		WebSocket webSocket = active;
+		return webSocket != null && webSocket.handshakeFinished();
+	}
+
+	/**
+	 * Add a listener, to the connection in use and to those that replace it.
+	 */
+	@Override
+	public void addListener(WebSocketListener listener) {
+		// Under the lock promote() holds, so that the connection it promotes gets the listener once:
+		synchronized (this) {
+			listeners.add(listener);
+			if (active != null) {
+				active.addListener(listener);
+			}
+		}
+	}
+
+	@Override
+	public void send(String textData) throws IOException {
+		connected().send(textData);
+	}
+
+	@Override
+	public void send(byte[] binaryData) throws IOException {
+		connected().send(binaryData);
+	}
+
+	@Override
+	public void send(String textData, int perSize) throws IOException {
+		connected().send(textData, perSize);
+	}
+
+	@Override
+	public void send(DataFrame dataFrame) throws IOException {
+		connected().send(dataFrame);
+	}
+
+	@Override
+	public void send(DataFrame dataFrame, int chopSize) throws IOException {
+		connected().send(dataFrame, chopSize);
+	}
+
+	/**
+	 * Get a reusable frame, from a pool of this WebSocket so that it can be sent on whichever
+	 * connection is in use.
+	 */
+	@Override
+	public PooledFrame acquireFrame() {
+		return framePool.acquire();
+	}
+
+	@Override
+	public void send(PooledFrame frame) throws IOException {
+		WebSocket webSocket = active;
+		if (webSocket == null) {
+			frame.release();
+			throw new IOException(closed ? "The WebSocket is closed" : "Not connected, reconnecting to " + host + ":"
+					+ port + path);
+		}
+		webSocket.send(frame);
+	}
+
+	@Override
+	public void sendArbitrary(byte[] rawData) throws IOException {
+		connected().sendArbitrary(rawData);
+	}
+
+	@Override
+	public void ping(String payloadData) throws IOException {
+		connected().ping(payloadData);
+	}
+
+	@Override
+	public void ping(byte[] payloadData) throws IOException {
+		connected().ping(payloadData);
+	}
+
+	@Override
+	public void pong(String payloadData) throws IOException {
+		connected().pong(payloadData);
+	}
+
+	@Override
+	public void pong(byte[] payloadData) throws IOException {
+		connected().pong(payloadData);
+	}
+
+	/**
+	 * Stop reconnecting and close the connections with the given code and reason.
+	 */
+	@Override
+	public void close(int code, String reason) throws IOException {
+		WebSocket webSocket = shutdown();
+		if (webSocket != null) {
+			webSocket.close(code, reason);
+		}
+	}
+
+	/**
+	 * Stop reconnecting and close the connections with the given code and reason.
+	 */
+	@Override
+	public void close(int code, byte[] reason) throws IOException {
+		WebSocket webSocket = shutdown();
+		if (webSocket != null) {
+			webSocket.close(code, reason);
+		}
+	}
+
+	/**
+	 * Stop reconnecting and close the connections, waiting for the server as
+	 * {@link WebSocket#close()} does.
+	 */
+	@Override
+	public void close() throws IOException {
+		WebSocket webSocket = shutdown();
+		if (webSocket != null) {
+			webSocket.close();
+		}
+	}
+
+	/**
+	 * Stop reconnecting and close the standby.
+	 *
+	 * @return the connection in use, to be closed by the caller.
+	 */
+	private WebSocket shutdown() {
+		synchronized (this) {
+			if (closed) {
+				return null;
+			}
+			closed = true;
+		}
+		closeStandby();
+		runClosedTasks();
+		return active;
+	}
+
+	@Override
+	public WebSocketState getState() {
+		WebSocket webSocket = active;
+		if (webSocket != null) {
+			return webSocket.getState();
+		}
+		return closed ? WebSocketState.CLOSED : WebSocketState.CONNECTING;
+	}
+
+	@Override
+	public int getResponsStatusCode() {
+		WebSocket webSocket = active;
+		return webSocket != null ? webSocket.getResponsStatusCode() : -1;
+	}
+
+	@Override
+	public Map<String, String> getResponseHeaders() {
+		WebSocket webSocket = active;
+		return webSocket != null ? webSocket.getResponseHeaders() : Collections.<String, String> emptyMap();
+	}
+
+	@Override
+	public boolean hasSentCloseHandshake() {
+		WebSocket webSocket = active;
+		return webSocket != null ? webSocket.hasSentCloseHandshake() : closed;
+	}
+
+	/**
+	 * Add a frame listener, to the connection in use and to those that replace it.
+	 */
+	@Override
+	public void addFrameListener(FrameListener listener) {
+		synchronized (this) {
+			frameListeners.add(listener);
+			if (active != null) {
+				active.addFrameListener(listener);
+			}
+		}
+	}
+
+	/**
+	 * Stop reading, on the connection in use and on those that replace it, until
+	 * {@link #resumeReading()} is called as many times.
+	 */
+	@Override
+	public void pauseReading() {
+		synchronized (this) {
+			readHolds.incrementAndGet();
+			if (active != null) {
+				active.pauseReading();
+			}
+		}
+	}
+
+	@Override
+	public void resumeReading() {
+		synchronized (this) {
+			if (readHolds.get() > 0) {
+				readHolds.decrementAndGet();
+				if (active != null) {
+					active.resumeReading();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run the task once the data queued on the connection in use has been written, or right
+	 * away if there is none.
+	 */
+	@Override
+	public void whenWritable(Runnable task) {
+		WebSocket webSocket = active;
+		if (webSocket != null) {
+			webSocket.whenWritable(task);
+		} else {
+			task.run();
+		}
+	}
+
+	/**
+	 * Run the task once this WebSocket is closed or has given up reconnecting, not when a
+	 * connection is lost.
+	 */
+	@Override
+	public void whenClosed(Runnable task) {
+		closedTasks.offer(task);
+		if (closed) {
+			runClosedTasks();
+		}
+	}
+
+	/**
+	 * Get the metrics of the connection in use.
+	 */
+	@Override
+	public ConnectionMetrics getMetrics() {
+		WebSocket webSocket = active;
+		return webSocket != null ? webSocket.getMetrics() : new ConnectionMetrics();
+	}
+
+	@Override
+	public boolean hasClosedFromServer() {
+		WebSocket webSocket = active;
+		return webSocket != null && webSocket.hasClosedFromServer();
+	}
+
+	@Override
+	public String toString() {
+		return "ReconnectingWebSocket[endpoint=" + host + ":" + port + path + ", state=" + getState() + ", disconnects="
+				+ getDisconnects() + ", reconnects=" + getReconnects() + ", failovers=" + getFailovers()
+				+ ", failedAttempts=" + getFailedAttempts() + ", lastGapNanos=" + getLastGapNanos() + ", maxGapNanos="
+				+ getMaxGapNanos() + "]";
+	}
+
+	/**
+	 * Called on every new connection as soon as it takes over, e.g. to send the subscriptions
+	 * again. The first connection is hooked on the thread building the WebSocket, the others on
+	 * a thread of the shared scheduler.
+	 */
+	public interface ConnectHook {
+
+		/**
+		 * @param webSocket the new connection.
+		 * @param reconnect false for the first connection.
+		 * @throws IOException to give the connection up, as if it had failed.
+		 */
+		public void onConnect(WebSocket webSocket, boolean reconnect) throws IOException;
+
+	}
+
+	/**
+	 * Answers a close frame from the server, so that the connection is closed and replaced
+	 * without waiting for the server to drop it, and takes it as lost right away.
+	 */
+	private class CloseWatcher implements WebSocketListener {
+
+		private final WebSocket webSocket;
+
+		CloseWatcher(WebSocket webSocket) {
+			this.webSocket = webSocket;
+		}
+
+		@Override
+		public void onClose(CloseFrame closeFrame) {
+			if (!webSocket.hasSentCloseHandshake()) {
+				try {
+					webSocket.close(closeFrame.getCode(), closeFrame.getReason());
+				} catch (IOException e) {
+					// lost anyway
+				}
+			}
+			lost(webSocket);
+		}
+
+		@Override
+		public void onDataFrame(DataFrame dataFrame) {
+		}
+
+		@Override
+		public void onMessage(String msg) {
+		}
+
+		@Override
+		public void onMessage(byte[] binaryData) {
+		}
+
+		@Override
+		public void onPing(PingFrame pingFrame) {
+		}
+
+		@Override
+		public void onPong(PongFrame pongFrame) {
+		}
+
+		@Override
+		public void onError(ProtocolException e) {
+		}
+
+	}
+
+	/**
+	 * A builder of {@link ReconnectingWebSocket}.
+	 */
+	public static final class Builder {
+
+		private final String host;
+		private final int port;
+		private final String path;
+		private boolean secure = false;
+		private WebSocketConfig config = WebSocketConfig.builder().build();
+		private ConnectHook connectHook = null;
+		private final List<WebSocketListener> listeners = new ArrayList<WebSocketListener>();
+		private boolean standby = false;
+		private long initialBackoffMillis = 100;
+		private long maxBackoffMillis = 30000;
+		private double backoffMultiplier = 2;
+		private double jitter = 0.5;
+		private int maxAttempts = 0;
+
+		private Builder(String host, int port, String path) {
+			this.host = host;
+			this.port = port;
+			this.path = path;
+		}
+
+		public Builder secure(boolean secure) {
+			this.secure = secure;
+			return this;
+		}
+
+		/**
+		 * Set the settings of the connections.
+		 *
+		 * @param config
+		 * @return
+		 */
+		public Builder config(WebSocketConfig config) {
+			if (config == null) {
+				throw new IllegalArgumentException("The config must not be null");
+			}
+			this.config = config;
+			return this;
+		}
+
+		/**
+		 * Add a listener from the first connection on, so that it misses nothing the connect hook
+		 * causes the server to send.
+		 *
+		 * @param listener
+		 * @return
+		 */
+		public Builder listener(WebSocketListener listener) {
+			this.listeners.add(listener);
+			return this;
+		}
+
+		/**
+		 * Set what is called on every new connection as soon as it takes over.
+		 *
+		 * @param connectHook
+		 * @return
+		 */
+		public Builder connectHook(ConnectHook connectHook) {
+			this.connectHook = connectHook;
+			return this;
+		}
+
+		/**
+		 * Set whether a second connection is kept open to take over at once when the first one is
+		 * lost, off by default.
+		 *
+		 * @param standby
+		 * @return
+		 */
+		public Builder standby(boolean standby) {
+			this.standby = standby;
+			return this;
+		}
+
+		/**
+		 * Set the backoff between the attempts: the initial delay, 100 ms by default, multiplied
+		 * by the multiplier, 2 by default, after each failure, up to the maximum delay, 30
+		 * seconds by default.
+		 *
+		 * @param initialMillis
+		 * @param maxMillis
+		 * @param multiplier
+		 * @return
+		 */
+		public Builder backoff(long initialMillis, long maxMillis, double multiplier) {
+			if (initialMillis < 0 || maxMillis < initialMillis || multiplier < 1) {
+				throw new IllegalArgumentException("The backoff must be 0 <= initial <= max and the multiplier at least 1: "
+						+ initialMillis + ", " + maxMillis + ", " + multiplier);
+			}
+			this.initialBackoffMillis = initialMillis;
+			this.maxBackoffMillis = maxMillis;
+			this.backoffMultiplier = multiplier;
+			return this;
+		}
+
+		/**
+		 * Set the largest part of a delay taken off at random, from 0 for none to 1 for a delay
+		 * anywhere between 0 and the backoff; 0.5 by default.
+		 *
+		 * @param jitter
+		 * @return
+		 */
+		public Builder jitter(double jitter) {
+			if (jitter < 0 || jitter > 1) {
+				throw new IllegalArgumentException("The jitter must be between 0 and 1: " + jitter);
+			}
+			this.jitter = jitter;
+			return this;
+		}
+
+		/**
+		 * Set the failed attempts in a row after which reconnecting stops and the WebSocket is
+		 * closed, 0, the default, to never stop.
+		 *
+		 * @param maxAttempts
+		 * @return
+		 */
+		public Builder maxAttempts(int maxAttempts) {
+			if (maxAttempts < 0) {
+				throw new IllegalArgumentException("The maximum attempts must not be negative: " + maxAttempts);
+			}
+			this.maxAttempts = maxAttempts;
+			return this;
+		}
+
+		/**
+		 * Open the first connection, and return once it is open or has failed; in the latter case
+		 * it is retried in the background.
+		 *
+		 * @return
+		 */
+		public ReconnectingWebSocket build() {
+			ReconnectingWebSocket webSocket = new ReconnectingWebSocket(this);
+			webSocket.start();
+			return webSocket;
+		}
+
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.yulong.websocket.client;
+
+/**
+ * How many received messages of one type a {@link WebSocketClient} keeps for later inspection.
+ */
+public final class Recording {
+
+	private static final Recording OFF = new Recording(0);
+	private static final Recording UNBOUNDED = new Recording(-1);
+
+	private final int capacity;
+
+	private Recording(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Do not keep any message.
+	 * 
+	 * @return
+	 */
+	public static Recording off() {
+		return OFF;
+	}
+
+	/**
+	 * Keep the last 'count' messages in a ring buffer, dropping the oldest ones.
+	 * 
+	 * @param count
+	 * @return
+	 */
+	public static Recording keepLast(int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("The count must not be negative: " + count);
+		}
+		return count == 0 ? OFF : new Recording(count);
+	}
+
+	/**
+	 * Keep every message. The memory grows with the number of messages received, so this is
+	 * only meant for short-lived test clients.
+	 * 
+	 * @return
+	 */
+	public static Recording unbounded() {
+		return UNBOUNDED;
+	}
+
+	public boolean isOff() {
+		return capacity == 0;
+	}
+
+	public boolean isUnbounded() {
+		return capacity < 0;
+	}
+
+	/**
+	 * To get the number of messages kept, or -1 if unbounded.
+	 * 
+	 * @return
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public String toString() {
+		if (isOff()) {
+			return "Recording[off]";
+		} else if (isUnbounded()) {
+			return "Recording[unbounded]";
+		}
+		return "Recording[keepLast=" + capacity + "]";
+	}
+
+}
@@ -0,0 +1,93 @@
+package com.yulong.websocket.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A thread-safe store of received messages that follows a {@link Recording} policy.
+ * Bounded policies use a ring buffer, so the memory stays constant however long the
+ * client runs.
+ */
+final class RecordingBuffer<T> {
+
+	private Recording recording;
+	private Object[] ring;
+	private List<T> unbounded;
+	private int head = 0;
+	private int size = 0;
+
+	RecordingBuffer(Recording recording) {
+		setRecording(recording);
+	}
+
+	/**
+	 * Change the policy, keeping the most recent messages that still fit.
+	 * 
+	 * @param recording
+	 */
+	synchronized void setRecording(Recording recording) {
+		List<T> kept = (ring == null && unbounded == null) ? null : snapshot();
+		this.recording = recording;
+		ring = null;
+		unbounded = null;
+		head = 0;
+		size = 0;
+		if (recording.isUnbounded()) {
+			unbounded = new ArrayList<T>();
+		} else if (!recording.isOff()) {
+			ring = new Object[recording.getCapacity()];
+		}
+		if (kept != null) {
+			for (T item : kept) {
+				add(item);
+			}
+		}
+	}
+
+	synchronized Recording getRecording() {
+		return recording;
+	}
+
+	synchronized void add(T item) {
+		if (unbounded != null) {
+			unbounded.add(item);
+		} else if (ring != null) {
+			ring[(head + size) % ring.length] = item;
+			if (size < ring.length) {
+				size++;
+			} else {
+				head = (head + 1) % ring.length;
+			}
+		}
+	}
+
+	/**
+	 * To get a copy of the kept messages, oldest first.
+	 * 
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized List<T> snapshot() {
+		if (unbounded != null) {
+			return new ArrayList<T>(unbounded);
+		}
+		List<T> list = new ArrayList<T>(size);
+		for (int i = 0; i < size; i++) {
+			list.add((T) ring[(head + i) % ring.length]);
+		}
+		return list;
+	}
+
+	synchronized void clear() {
+		if (unbounded != null) {
+			unbounded.clear();
+		} else if (ring != null) {
+			for (int i = 0; i < ring.length; i++) {
+				ring[i] = null;
+			}
+		}
+		head = 0;
+		size = 0;
+	}
+
+}
@@ -0,0 +1,221 @@
+package com.yulong.websocket.client;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * The TLS settings of the wss connections: an {@link SSLContext} and the cache of the sessions
+ * it has agreed with the servers. A connection to a host and port the context has talked to
+ * before offers the cached session, and a server that still knows it resumes it with an
+ * abbreviated handshake, without the key exchange and certificate checks of a full one. This
+ * makes reconnecting, e.g. a whole fleet failing over at once, much cheaper on CPU.
+ *
+ * A context is shared by any number of connections; the secure {@link WebSocketFactory} holds
+ * one, {@link #getDefault()} unless set, and a {@link WebSocketConfig} may carry its own. The
+ * handshakes are counted as full or resumed.
+ */
+public final class TlsContext {
+
+	// The default size of the JDK's session caches, for a cache without a limit:
+	private static final int DEFAULT_SEEN_SESSIONS = 20480;
+
+	private static TlsContext defaultContext = null;
+
+	private final SSLContext sslContext;
+	private final LongAdder fullHandshakes = new LongAdder();
+	private final LongAdder resumedHandshakes = new LongAdder();
+	private final LongAdder failedHandshakes = new LongAdder();
+	// The IDs of the sessions the handshakes of this context agreed or resumed, least recently
+	// used first, as many as the session cache holds:
+	private final Map<ByteBuffer, Boolean> seenSessionIds = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+			int limit = sslContext.getClientSessionContext().getSessionCacheSize();
+			return size() > (limit > 0 ? limit : DEFAULT_SEEN_SESSIONS);
+		}
+	};
+
+	/**
+	 * To create a context on the given SSLContext, with the session cache it is configured with.
+	 *
+	 * @param sslContext
+	 */
+	public TlsContext(SSLContext sslContext) {
+		if (sslContext == null) {
+			throw new IllegalArgumentException("The SSL context must not be null");
+		}
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * To create a context on the given SSLContext, setting its client session cache.
+	 *
+	 * @param sslContext
+	 * @param sessionCacheSize the most sessions cached, 0 for no limit.
+	 * @param sessionTimeoutSeconds how long a cached session is offered, 0 for no limit.
+	 */
+	public TlsContext(SSLContext sslContext, int sessionCacheSize, int sessionTimeoutSeconds) {
+		this(sslContext);
+		if (sessionCacheSize < 0 || sessionTimeoutSeconds < 0) {
+			throw new IllegalArgumentException("The session cache size and timeout must not be negative: "
+					+ sessionCacheSize + ", " + sessionTimeoutSeconds);
+		}
+		SSLSessionContext sessions = sslContext.getClientSessionContext();
+		sessions.setSessionCacheSize(sessionCacheSize);
+		sessions.setSessionTimeout(sessionTimeoutSeconds);
+	}
+
+	/**
+	 * To get the context used unless another is set, created on first use. It trusts what the
+	 * javax.net.ssl.trustStore system properties say; when they are not set and WL_HOME is, the
+	 * cacerts of that WebLogic installation are trusted instead, without setting the properties.
+	 *
+	 * @return
+	 * @throws IOException if the SSLContext can not be created.
+	 */
+	public static synchronized TlsContext getDefault() throws IOException {
+		if (defaultContext == null) {
+			try {
+				defaultContext = new TlsContext(createDefaultSSLContext());
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Can not create the default SSL context", e);
+			}
+		}
+		return defaultContext;
+	}
+
+	private static SSLContext createDefaultSSLContext() throws GeneralSecurityException, IOException {
+		String wlHome = System.getProperty("WL_HOME");
+		if (wlHome == null || System.getProperty("javax.net.ssl.trustStore") != null) {
+			return SSLContext.getDefault();
+		}
+		KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		InputStream in = new FileInputStream(wlHome + "/server/lib/cacerts");
+		try {
+			trustStore.load(in, "changeit".toCharArray());
+		} finally {
+			in.close();
+		}
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(trustStore);
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(null, trustManagers.getTrustManagers(), null);
+		return sslContext;
+	}
+
+	public SSLContext getSSLContext() {
+		return sslContext;
+	}
+
+	/**
+	 * To create an unconnected socket. Connected to a host name and port, it offers the session
+	 * cached for them.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public SSLSocket createSocket() throws IOException {
+		return (SSLSocket) sslContext.getSocketFactory().createSocket();
+	}
+
+	/**
+	 * Run the TLS handshake of a connected socket within the timeout, and count it.
+	 *
+	 * @param socket
+	 * @param timeoutMillis
+	 * @return whether a cached session was resumed.
+	 * @throws IOException if the handshake failed or timed out.
+	 */
+	public boolean handshake(SSLSocket socket, int timeoutMillis) throws IOException {
+		long start = System.currentTimeMillis();
+		int soTimeout = socket.getSoTimeout();
+		socket.setSoTimeout(timeoutMillis);
+		try {
+			socket.startHandshake();
+		} catch (IOException e) {
+			failedHandshakes.increment();
+			throw e;
+		} finally {
+			if (!socket.isClosed()) {
+				socket.setSoTimeout(soTimeout);
+			}
+		}
+		SSLSession session = socket.getSession();
+		byte[] id = session.getId();
+		// A resumed session was agreed by an earlier handshake. With TLS 1.3 the JDK gives it a
+		// new ID, but it keeps the creation time of the session it resumes:
+		boolean resumed = session.getCreationTime() < start;
+		if (id.length > 0) {
+			synchronized (seenSessionIds) {
+				resumed |= seenSessionIds.put(ByteBuffer.wrap(id), Boolean.TRUE) != null;
+			}
+		}
+		if (resumed) {
+			resumedHandshakes.increment();
+		} else {
+			fullHandshakes.increment();
+		}
+		return resumed;
+	}
+
+	/**
+	 * To get the number of handshakes that agreed a new session.
+	 *
+	 * @return
+	 */
+	public long getFullHandshakes() {
+		return fullHandshakes.sum();
+	}
+
+	/**
+	 * To get the number of handshakes that resumed a cached session.
+	 *
+	 * @return
+	 */
+	public long getResumedHandshakes() {
+		return resumedHandshakes.sum();
+	}
+
+	/**
+	 * To get the number of handshakes that failed or timed out.
+	 *
+	 * @return
+	 */
+	public long getFailedHandshakes() {
+		return failedHandshakes.sum();
+	}
+
+	/**
+	 * To get the number of sessions in the cache, some of which may have expired.
+	 *
+	 * @return
+	 */
+	public int getCachedSessions() {
+		return Collections.list(sslContext.getClientSessionContext().getIds()).size();
+	}
+
+	@Override
+	public String toString() {
+		return "TlsContext[protocol=" + sslContext.getProtocol() + ", fullHandshakes=" + getFullHandshakes()
+				+ ", resumedHandshakes=" + getResumedHandshakes() + ", failedHandshakes=" + getFailedHandshakes()
+				+ ", cachedSessions=" + getCachedSessions() + "]";
+	}
+
+}
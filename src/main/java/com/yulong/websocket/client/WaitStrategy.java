@@ -0,0 +1,21 @@
+package com.yulong.websocket.client;
+
+/**
+ * How the consumer of a ring buffer waits for events, and the producer for free slots.
+ * The strategies trade CPU for latency, from the lowest latency to the lowest CPU use.
+ */
+public enum WaitStrategy {
+
+	/** Spin on the sequence; the lowest latency but a busy core per connection. */
+	BUSY_SPIN,
+
+	/** Spin, yielding the processor between checks. */
+	YIELD,
+
+	/** Park for a short time between checks. */
+	PARK,
+
+	/** Wait on a condition signalled by the producer; the lowest CPU use. */
+	BLOCKING
+
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.Map;
 
 import com.yulong.websocket.client.frames.DataFrame;
+import com.yulong.websocket.client.frames.PooledFrame;
 
 /**
  * A WebSocket representing a connection to the remote host/port.
@@ -63,6 +64,22 @@ public interface WebSocket {
 	 */
 	public void send(DataFrame dataFrame, int chopSize) throws IOException;
 
+	/**
+	 * Get a reusable frame from the pool of the connection. It must be sent with
+	 * {@link #send(PooledFrame)} or released.
+	 * 
+	 * @return PooledFrame
+	 */
+	public PooledFrame acquireFrame();
+
+	/**
+	 * Send a pooled frame. The frame is released once written and must not be used afterwards.
+	 * 
+	 * @param frame
+	 * @throws IOException
+	 */
+	public void send(PooledFrame frame) throws IOException;
+
 	/**
 	 * Send sendArbitrary binary data.
 	 * 
@@ -156,6 +173,47 @@ public interface WebSocket {
 	 */
 	public boolean hasSentCloseHandshake();
 
+	/**
+	 * Add a low-level listener that sees each frame with a read-only view of its payload
+	 * before any object is created for it.
+	 * 
+	 * @param listener
+	 */
+	public void addFrameListener(FrameListener listener);
+
+	/**
+	 * Stop reading from the connection until {@link #resumeReading()} is called as many
+	 * times. The server is then held back by TCP flow control.
+	 */
+	public void pauseReading();
+
+	/**
+	 * Undo a call to {@link #pauseReading()}.
+	 */
+	public void resumeReading();
+
+	/**
+	 * Run the task once all the data queued to be sent has been written.
+	 * 
+	 * @param task
+	 */
+	public void whenWritable(Runnable task);
+
+	/**
+	 * Run the task once the connection is closed, whoever closed it, on the thread that closed
+	 * it or right away if it is closed already.
+	 * 
+	 * @param task
+	 */
+	public void whenClosed(Runnable task);
+
+	/**
+	 * Get the metrics of the connection.
+	 * 
+	 * @return ConnectionMetrics
+	 */
+	public ConnectionMetrics getMetrics();
+
 	/**
 	 * Get the underlying socket.
 	 * 
@@ -1,9 +1,10 @@
 package com.yulong.websocket.client;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.yulong.websocket.client.frames.CloseFrame;
 import com.yulong.websocket.client.frames.DataFrame;
@@ -17,18 +18,30 @@ import com.yulong.websocket.client.utils.Utils;
 public class WebSocketClient implements WebSocketListener {
 
 	// Listener related fields:
-	private DataFrame listenerDataFrame = null;
-	private PongFrame listenerPong = null;
-	private PingFrame listenerPing = null;
-	private CloseFrame listenerClose = null;
-	private String listenerTextMessage = null;
-	private byte[] listenerBinaryMessage = null;
-
-	private List<DataFrame> listenerDataFrameList = new ArrayList<DataFrame>();
-	private List<PongFrame> listenerPongList = new ArrayList<PongFrame>();
-	private List<PingFrame> listenerPingList = new ArrayList<PingFrame>();
-	private List<String> listenerTextMessageList = new ArrayList<String>();
-	private List<byte[]> listenerBinaryMessageList = new ArrayList<byte[]>();
+	private volatile DataFrame listenerDataFrame = null;
+	private volatile PongFrame listenerPong = null;
+	private volatile PingFrame listenerPing = null;
+	private volatile CloseFrame listenerClose = null;
+	private volatile String listenerTextMessage = null;
+	private volatile byte[] listenerBinaryMessage = null;
+
+	// The received messages are kept according to a recording policy, the last 100 of each
+	// type by default so that a long-running client uses constant memory:
+	public static final int DEFAULT_RECORDING_SIZE = 100;
+	private RecordingBuffer<DataFrame> listenerDataFrameList = new RecordingBuffer<DataFrame>(
+			Recording.keepLast(DEFAULT_RECORDING_SIZE));
+	private RecordingBuffer<PongFrame> listenerPongList = new RecordingBuffer<PongFrame>(
+			Recording.keepLast(DEFAULT_RECORDING_SIZE));
+	private RecordingBuffer<PingFrame> listenerPingList = new RecordingBuffer<PingFrame>(
+			Recording.keepLast(DEFAULT_RECORDING_SIZE));
+	private RecordingBuffer<String> listenerTextMessageList = new RecordingBuffer<String>(
+			Recording.keepLast(DEFAULT_RECORDING_SIZE));
+	private RecordingBuffer<byte[]> listenerBinaryMessageList = new RecordingBuffer<byte[]>(
+			Recording.keepLast(DEFAULT_RECORDING_SIZE));
+
+	// The queue feeding the blocking receive methods, disabled until given a capacity:
+	private final ReceiveQueue receiveQueue = new ReceiveQueue();
+	private final AtomicLong droppedMessages = new AtomicLong();
 
 	private WebSocket webSocket = null;
 	private String clientName = null;
@@ -74,6 +87,20 @@ public class WebSocketClient implements WebSocketListener {
 		webSocket.addListener(this);
 	}
 
+	/**
+	 * To create a WebSocket client with given host, port, path and settings.
+	 * 
+	 * @param host
+	 * @param port
+	 * @param path
+	 * @param secure
+	 * @param config
+	 */
+	public WebSocketClient(String host, int port, String path, boolean secure, WebSocketConfig config) {
+		webSocket = WebSocketFactory.getInstance(secure).openWebSocket(host, port, path, config);
+		webSocket.addListener(this);
+	}
+
 	/**
 	 * To get the WebSocket that is created on this client.
 	 * 
@@ -99,6 +126,180 @@ public class WebSocketClient implements WebSocketListener {
 		this.sentBackCloseOnReceiving = sentBackCloseOnReceiving;
 	}
 
+	/**
+	 * To set how many received messages of every type are kept.
+	 * 
+	 * @param recording
+	 */
+	public void setRecording(Recording recording) {
+		setDataFrameRecording(recording);
+		setTextMessageRecording(recording);
+		setBinaryMessageRecording(recording);
+		setPingRecording(recording);
+		setPongRecording(recording);
+	}
+
+	/**
+	 * To set how many received data frames are kept.
+	 * 
+	 * @param recording
+	 */
+	public void setDataFrameRecording(Recording recording) {
+		listenerDataFrameList.setRecording(recording);
+	}
+
+	/**
+	 * To set how many received text messages are kept.
+	 * 
+	 * @param recording
+	 */
+	public void setTextMessageRecording(Recording recording) {
+		listenerTextMessageList.setRecording(recording);
+	}
+
+	/**
+	 * To set how many received binary messages are kept.
+	 * 
+	 * @param recording
+	 */
+	public void setBinaryMessageRecording(Recording recording) {
+		listenerBinaryMessageList.setRecording(recording);
+	}
+
+	/**
+	 * To set how many received ping frames are kept.
+	 * 
+	 * @param recording
+	 */
+	public void setPingRecording(Recording recording) {
+		listenerPingList.setRecording(recording);
+	}
+
+	/**
+	 * To set how many received pong frames are kept.
+	 * 
+	 * @param recording
+	 */
+	public void setPongRecording(Recording recording) {
+		listenerPongList.setRecording(recording);
+	}
+
+	/**
+	 * To enable the blocking receive methods with a queue holding up to 'capacity' messages,
+	 * or to disable them with a capacity of 0. Messages received before the queue is enabled
+	 * are not queued.
+	 * 
+	 * When the queue is full, the thread delivering messages waits for a consumer to take one,
+	 * which stops reading from the socket and lets TCP flow control slow down the server.
+	 * 
+	 * The capacity can be changed at any time. The queued messages are kept, unless the queue
+	 * is disabled: then they are discarded, the delivering thread stops waiting, and the
+	 * threads waiting for a message get an IllegalStateException.
+	 * 
+	 * @param capacity
+	 */
+	public void setReceiveQueueCapacity(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("The capacity must not be negative: " + capacity);
+		}
+		receiveQueue.setCapacity(capacity);
+	}
+
+	/**
+	 * Wait for the next text message. Binary messages are left queued for
+	 * {@link #receiveBinary(long, TimeUnit)}, or for the other receive methods.
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return the message, or null if none arrives in time.
+	 * @throws InterruptedException
+	 */
+	public String receiveText(long timeout, TimeUnit unit) throws InterruptedException {
+		Message message = receiveQueue.poll(Boolean.TRUE, Math.max(0, unit.toNanos(timeout)));
+		return message == null ? null : message.getText();
+	}
+
+	/**
+	 * Wait for the next binary message. Text messages are left queued for
+	 * {@link #receiveText(long, TimeUnit)}, or for the other receive methods.
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return the message, or null if none arrives in time.
+	 * @throws InterruptedException
+	 */
+	public byte[] receiveBinary(long timeout, TimeUnit unit) throws InterruptedException {
+		Message message = receiveQueue.poll(Boolean.FALSE, Math.max(0, unit.toNanos(timeout)));
+		return message == null ? null : message.getBinary();
+	}
+
+	/**
+	 * Return the next message if there is one, without waiting.
+	 * 
+	 * @return the message, or null if there is none.
+	 */
+	public Message poll() {
+		return receiveQueue.poll();
+	}
+
+	/**
+	 * Wait for the next message.
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return the message, or null if none arrives in time.
+	 * @throws InterruptedException
+	 */
+	public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return receiveQueue.poll(timeout, unit);
+	}
+
+	/**
+	 * Wait for the next message for as long as it takes.
+	 * 
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Message take() throws InterruptedException {
+		return receiveQueue.poll(-1);
+	}
+
+	/**
+	 * To get the number of messages that could not be queued for the blocking receive methods
+	 * because the delivering thread was interrupted while waiting for space.
+	 * 
+	 * @return
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+
+	/**
+	 * Queue a received message for the blocking receive methods, waiting for space if needed.
+	 * 
+	 * @param message
+	 */
+	private void enqueue(Message message) {
+		try {
+			receiveQueue.put(message);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			droppedMessages.incrementAndGet();
+			log("[Message Dropped] interrupted while waiting for space in the receive queue: " + message);
+		}
+	}
+
+	/**
+	 * To discard all the recorded messages.
+	 */
+	public void clearRecordings() {
+		listenerDataFrameList.clear();
+		listenerTextMessageList.clear();
+		listenerBinaryMessageList.clear();
+		listenerPingList.clear();
+		listenerPongList.clear();
+	}
+
 	/**
 	 * A listener method this is invoked when a data frame arrives.
 	 */
@@ -115,6 +316,7 @@ public class WebSocketClient implements WebSocketListener {
 		log("[Text Message Received] " + Utils.showPartOfTextIfTooLong(msg));
 		listenerTextMessage = msg;
 		listenerTextMessageList.add(msg);
+		enqueue(Message.text(msg));
 	}
 
 	/**
@@ -125,6 +327,7 @@ public class WebSocketClient implements WebSocketListener {
 		log("[Binary Message Received] " + Utils.showPartOfTextIfTooLong(Utils.toHexString(binaryData)));
 		listenerBinaryMessage = binaryData;
 		listenerBinaryMessageList.add(binaryData);
+		enqueue(Message.binary(binaryData));
 	}
 
 	/**
@@ -197,12 +400,13 @@ public class WebSocketClient implements WebSocketListener {
 	}
 
 	/********************* Getter Methods *********************/
+	/* The list getters return a copy of the recorded messages, oldest first. */
 	public DataFrame getListenerDataFrame() {
 		return listenerDataFrame;
 	}
 
 	public List<DataFrame> getListenerDataFrameList() {
-		return listenerDataFrameList;
+		return listenerDataFrameList.snapshot();
 	}
 
 	public String getListenerTextMessage() {
@@ -210,7 +414,7 @@ public class WebSocketClient implements WebSocketListener {
 	}
 
 	public List<String> getListenerTextMessageList() {
-		return listenerTextMessageList;
+		return listenerTextMessageList.snapshot();
 	}
 
 	public byte[] getListenerBinaryMessage() {
@@ -218,7 +422,7 @@ public class WebSocketClient implements WebSocketListener {
 	}
 
 	public List<byte[]> getListenerBinaryMessageList() {
-		return listenerBinaryMessageList;
+		return listenerBinaryMessageList.snapshot();
 	}
 
 	public PongFrame getListenerPong() {
@@ -226,7 +430,7 @@ public class WebSocketClient implements WebSocketListener {
 	}
 
 	public List<PongFrame> getListenerPongList() {
-		return listenerPongList;
+		return listenerPongList.snapshot();
 	}
 
 	public PingFrame getListenerPing() {
@@ -234,7 +438,7 @@ public class WebSocketClient implements WebSocketListener {
 	}
 
 	public List<PingFrame> getListenerPingList() {
-		return listenerPingList;
+		return listenerPingList.snapshot();
 	}
 
 	public CloseFrame getListenerClose() {
@@ -0,0 +1,514 @@
+package com.yulong.websocket.client;
+
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.yulong.websocket.client.impl.Http2Connection;
+import com.yulong.websocket.client.impl.NioEventLoop;
+import com.yulong.websocket.client.impl.WebSocketAsync;
+
+/**
+ * The settings of one WebSocket connection: the engine, the socket options, the timeouts and
+ * the options of the opening handshake. A config is immutable and can be shared by any number
+ * of connections; it is created with a {@link Builder}:
+ *
+ * <pre>
+ * WebSocketConfig config = WebSocketConfig.builder().tcpNoDelay(true).connectTimeoutMillis(2000).build();
+ * WebSocket webSocket = WebSocketFactory.getInstance(false).openWebSocket(host, port, "/path", config);
+ * </pre>
+ */
+public final class WebSocketConfig {
+
+	/**
+	 * The implementations of a connection.
+	 */
+	public enum Engine {
+		/** A non-blocking channel read by a selector thread per connection. */
+		NIO,
+		/** A blocking socket read by a thread per connection. This is used for wss. */
+		BLOCKING,
+		/**
+		 * A blocking socket read by a virtual thread per connection, for ws and wss; a daemon
+		 * platform thread where virtual threads are not supported (before Java 21).
+		 */
+		VIRTUAL_THREAD,
+		/** An asynchronous channel completing its reads and writes on a shared channel group. */
+		ASYNC,
+		/**
+		 * A stream of a cleartext HTTP/2 connection, opened with the extended CONNECT of RFC 8441,
+		 * so that many connections share one socket. wss uses BLOCKING instead.
+		 */
+		HTTP2
+	}
+
+	private final Engine engine;
+	private final NioEventLoop eventLoop;
+	private final AsynchronousChannelGroup channelGroup;
+	private final Http2Connection http2Connection;
+	private final TlsContext tlsContext;
+	private final boolean tcpNoDelay;
+	private final int sendBufferSize;
+	private final int receiveBufferSize;
+	private final int readBufferSize;
+	private final int maxReadsPerWakeup;
+	private final int connectTimeoutMillis;
+	private final int handshakeTimeoutMillis;
+	private final String version;
+	private final String[] subProtocols;
+	private final String[] extensions;
+	private final Map<String, String[]> optionalHeaders;
+	private final ListenerDispatch listenerDispatch;
+	private final long readLowWatermark;
+	private final long readHighWatermark;
+
+	private WebSocketConfig(Builder builder) {
+		this.engine = builder.engine;
+		this.eventLoop = builder.eventLoop;
+		this.channelGroup = builder.channelGroup;
+		this.http2Connection = builder.http2Connection;
+		this.tlsContext = builder.tlsContext;
+		this.tcpNoDelay = builder.tcpNoDelay;
+		this.sendBufferSize = builder.sendBufferSize;
+		this.receiveBufferSize = builder.receiveBufferSize;
+		this.readBufferSize = builder.readBufferSize;
+		this.maxReadsPerWakeup = builder.maxReadsPerWakeup;
+		this.connectTimeoutMillis = builder.connectTimeoutMillis;
+		this.handshakeTimeoutMillis = builder.handshakeTimeoutMillis;
+		this.version = builder.version;
+		this.subProtocols = builder.subProtocols;
+		this.extensions = builder.extensions;
+		this.optionalHeaders = builder.optionalHeaders;
+		this.listenerDispatch = builder.listenerDispatch;
+		this.readLowWatermark = builder.readLowWatermark;
+		this.readHighWatermark = builder.readHighWatermark;
+	}
+
+	/**
+	 * To get a builder with the default settings.
+	 *
+	 * @return
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * To get a builder starting from the settings of this config.
+	 *
+	 * @return
+	 */
+	public Builder toBuilder() {
+		return new Builder(this);
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * To get the event loop the NIO connections are served by, or null if each has a selector
+	 * and a thread of its own.
+	 *
+	 * @return
+	 */
+	public NioEventLoop getEventLoop() {
+		return eventLoop;
+	}
+
+	/**
+	 * To get the channel group the ASYNC connections complete on, or null for the group shared
+	 * by default.
+	 *
+	 * @return
+	 */
+	public AsynchronousChannelGroup getChannelGroup() {
+		return channelGroup;
+	}
+
+	/**
+	 * To get the HTTP/2 connection the HTTP2 connections are opened on, or null if each has a
+	 * socket of its own.
+	 *
+	 * @return
+	 */
+	public Http2Connection getHttp2Connection() {
+		return http2Connection;
+	}
+
+	/**
+	 * To get the TLS context of the wss connections, or null for the one of the factory.
+	 *
+	 * @return
+	 */
+	public TlsContext getTlsContext() {
+		return tlsContext;
+	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * To get SO_SNDBUF, or 0 to leave the system default.
+	 *
+	 * @return
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * To get SO_RCVBUF, or 0 to leave the system default.
+	 *
+	 * @return
+	 */
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * To get the initial size of the buffer the received data is read into.
+	 *
+	 * @return
+	 */
+	public int getReadBufferSize() {
+		return readBufferSize;
+	}
+
+	/**
+	 * To get how many reads a connection may do each time it is found readable before letting
+	 * the others be served.
+	 *
+	 * @return
+	 */
+	public int getMaxReadsPerWakeup() {
+		return maxReadsPerWakeup;
+	}
+
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	public int getHandshakeTimeoutMillis() {
+		return handshakeTimeoutMillis;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public String[] getSubProtocols() {
+		return subProtocols == null ? null : subProtocols.clone();
+	}
+
+	public String[] getExtensions() {
+		return extensions == null ? null : extensions.clone();
+	}
+
+	/**
+	 * To get the extra headers of the opening handshake, in the order they are sent.
+	 *
+	 * @return an unmodifiable map, or null.
+	 */
+	public Map<String, String[]> getOptionalHeaders() {
+		return optionalHeaders;
+	}
+
+	public ListenerDispatch getListenerDispatch() {
+		return listenerDispatch;
+	}
+
+	public long getReadLowWatermark() {
+		return readLowWatermark;
+	}
+
+	public long getReadHighWatermark() {
+		return readHighWatermark;
+	}
+
+	@Override
+	public String toString() {
+		return "WebSocketConfig[engine=" + engine + ", sharedEventLoop=" + (eventLoop != null) + ", customChannelGroup=" + (channelGroup != null) + ", sharedHttp2Connection=" + (http2Connection != null) + ", customTlsContext=" + (tlsContext != null) + ", tcpNoDelay=" + tcpNoDelay + ", sendBufferSize=" + sendBufferSize
+				+ ", receiveBufferSize=" + receiveBufferSize + ", readBufferSize=" + readBufferSize + ", maxReadsPerWakeup="
+				+ maxReadsPerWakeup + ", connectTimeoutMillis=" + connectTimeoutMillis + ", handshakeTimeoutMillis=" + handshakeTimeoutMillis + ", version=" + version
+				+ ", listenerDispatch=" + listenerDispatch.getMode() + ", readWatermarks=" + readLowWatermark + "/"
+				+ readHighWatermark + "]";
+	}
+
+	/**
+	 * A builder of {@link WebSocketConfig}. The engine defaults to BLOCKING when the system
+	 * property ws.io.mode.block is true, and to NIO otherwise.
+	 */
+	public static final class Builder {
+
+		private Engine engine = Boolean.getBoolean("ws.io.mode.block") ? Engine.BLOCKING : Engine.NIO;
+		private NioEventLoop eventLoop = null;
+		private AsynchronousChannelGroup channelGroup = null;
+		private Http2Connection http2Connection = null;
+		private TlsContext tlsContext = null;
+		private boolean tcpNoDelay = true;
+		private int sendBufferSize = 0;
+		private int receiveBufferSize = 0;
+		private int readBufferSize = 8192;
+		private int maxReadsPerWakeup = 16;
+		private int connectTimeoutMillis = 5000;
+		private int handshakeTimeoutMillis = 5000;
+		private String version = "13";
+		private String[] subProtocols = null;
+		private String[] extensions = null;
+		private Map<String, String[]> optionalHeaders = null;
+		private ListenerDispatch listenerDispatch = ListenerDispatch.inline();
+		private long readLowWatermark = 0;
+		private long readHighWatermark = 0;
+
+		private Builder() {
+		}
+
+		private Builder(WebSocketConfig config) {
+			this.engine = config.engine;
+			this.eventLoop = config.eventLoop;
+			this.channelGroup = config.channelGroup;
+			this.http2Connection = config.http2Connection;
+			this.tlsContext = config.tlsContext;
+			this.tcpNoDelay = config.tcpNoDelay;
+			this.sendBufferSize = config.sendBufferSize;
+			this.receiveBufferSize = config.receiveBufferSize;
+			this.readBufferSize = config.readBufferSize;
+			this.maxReadsPerWakeup = config.maxReadsPerWakeup;
+			this.connectTimeoutMillis = config.connectTimeoutMillis;
+			this.handshakeTimeoutMillis = config.handshakeTimeoutMillis;
+			this.version = config.version;
+			this.subProtocols = config.subProtocols;
+			this.extensions = config.extensions;
+			this.optionalHeaders = config.optionalHeaders;
+			this.listenerDispatch = config.listenerDispatch;
+			this.readLowWatermark = config.readLowWatermark;
+			this.readHighWatermark = config.readHighWatermark;
+		}
+
+		public Builder engine(Engine engine) {
+			if (engine == null) {
+				throw new IllegalArgumentException("The engine must not be null");
+			}
+			this.engine = engine;
+			return this;
+		}
+
+		/**
+		 * Set the event loop serving the NIO connections, such as {@link NioEventLoop#getDefault()},
+		 * so that they share its selector and thread instead of having their own. Null, the
+		 * default, gives each connection its own.
+		 *
+		 * @param eventLoop
+		 * @return
+		 */
+		public Builder eventLoop(NioEventLoop eventLoop) {
+			this.eventLoop = eventLoop;
+			return this;
+		}
+
+		/**
+		 * Set the channel group the ASYNC connections complete their reads and writes on. Null,
+		 * the default, uses {@link WebSocketAsync#getDefaultGroup()}.
+		 *
+		 * @param channelGroup
+		 * @return
+		 */
+		public Builder channelGroup(AsynchronousChannelGroup channelGroup) {
+			this.channelGroup = channelGroup;
+			return this;
+		}
+
+		/**
+		 * Set the HTTP/2 connection the HTTP2 connections are opened on, each on a stream of its
+		 * own; the host and the port given when opening them are then not used. Null, the default,
+		 * gives each connection a socket of its own, closed with it.
+		 *
+		 * @param http2Connection
+		 * @return
+		 */
+		public Builder http2Connection(Http2Connection http2Connection) {
+			this.http2Connection = http2Connection;
+			return this;
+		}
+
+		/**
+		 * Set the TLS context of the wss connections, whose session cache lets reconnects to the
+		 * same host and port resume their sessions. Null, the default, uses the one of the
+		 * {@link WebSocketFactory}.
+		 *
+		 * @param tlsContext
+		 * @return
+		 */
+		public Builder tlsContext(TlsContext tlsContext) {
+			this.tlsContext = tlsContext;
+			return this;
+		}
+
+		/**
+		 * Set TCP_NODELAY, which is on by default so that small frames are not held back by
+		 * Nagle's algorithm.
+		 *
+		 * @param tcpNoDelay
+		 * @return
+		 */
+		public Builder tcpNoDelay(boolean tcpNoDelay) {
+			this.tcpNoDelay = tcpNoDelay;
+			return this;
+		}
+
+		/**
+		 * Set SO_SNDBUF, 0 leaves the system default.
+		 *
+		 * @param sendBufferSize
+		 * @return
+		 */
+		public Builder sendBufferSize(int sendBufferSize) {
+			this.sendBufferSize = checkNotNegative("send buffer size", sendBufferSize);
+			return this;
+		}
+
+		/**
+		 * Set SO_RCVBUF, 0 leaves the system default. It is set before connecting so that it can
+		 * take part in the TCP window scaling.
+		 *
+		 * @param receiveBufferSize
+		 * @return
+		 */
+		public Builder receiveBufferSize(int receiveBufferSize) {
+			this.receiveBufferSize = checkNotNegative("receive buffer size", receiveBufferSize);
+			return this;
+		}
+
+		/**
+		 * Set the initial size of the buffer the received data is read into. It then follows the
+		 * size of the reads.
+		 *
+		 * @param readBufferSize
+		 * @return
+		 */
+		public Builder readBufferSize(int readBufferSize) {
+			if (readBufferSize < 64) {
+				throw new IllegalArgumentException("The read buffer size must be at least 64: " + readBufferSize);
+			}
+			this.readBufferSize = readBufferSize;
+			return this;
+		}
+
+		/**
+		 * Set how many reads a connection may do each time it is found readable, as long as each
+		 * read fills the buffer, before letting the others be served. 16 by default.
+		 *
+		 * @param maxReadsPerWakeup
+		 * @return
+		 */
+		public Builder maxReadsPerWakeup(int maxReadsPerWakeup) {
+			this.maxReadsPerWakeup = checkPositive("maximum reads per wakeup", maxReadsPerWakeup);
+			return this;
+		}
+
+		public Builder connectTimeoutMillis(int connectTimeoutMillis) {
+			this.connectTimeoutMillis = checkPositive("connect timeout", connectTimeoutMillis);
+			return this;
+		}
+
+		/**
+		 * Set how long to wait for the response to the opening handshake once connected.
+		 *
+		 * @param handshakeTimeoutMillis
+		 * @return
+		 */
+		public Builder handshakeTimeoutMillis(int handshakeTimeoutMillis) {
+			this.handshakeTimeoutMillis = checkPositive("handshake timeout", handshakeTimeoutMillis);
+			return this;
+		}
+
+		/**
+		 * Set the Sec-WebSocket-Version, 13 by default.
+		 *
+		 * @param version
+		 * @return
+		 */
+		public Builder version(String version) {
+			this.version = version == null ? "13" : version;
+			return this;
+		}
+
+		public Builder subProtocols(String... subProtocols) {
+			this.subProtocols = subProtocols == null ? null : subProtocols.clone();
+			return this;
+		}
+
+		public Builder extensions(String... extensions) {
+			this.extensions = extensions == null ? null : extensions.clone();
+			return this;
+		}
+
+		/**
+		 * Set extra headers of the opening handshake.
+		 *
+		 * @param optionalHeaders
+		 * @return
+		 */
+		public Builder optionalHeaders(Map<String, String[]> optionalHeaders) {
+			if (optionalHeaders == null) {
+				this.optionalHeaders = null;
+			} else {
+				Map<String, String[]> copy = new LinkedHashMap<String, String[]>();
+				for (Map.Entry<String, String[]> entry : optionalHeaders.entrySet()) {
+					copy.put(entry.getKey(), entry.getValue() == null ? null : entry.getValue().clone());
+				}
+				this.optionalHeaders = Collections.unmodifiableMap(copy);
+			}
+			return this;
+		}
+
+		public Builder listenerDispatch(ListenerDispatch listenerDispatch) {
+			if (listenerDispatch == null) {
+				throw new IllegalArgumentException("The listener dispatch must not be null");
+			}
+			this.listenerDispatch = listenerDispatch;
+			return this;
+		}
+
+		/**
+		 * Set the watermarks on the received bytes not yet handled by the listeners. A high
+		 * watermark of 0, the default, means no limit.
+		 *
+		 * @param low
+		 * @param high
+		 * @return
+		 */
+		public Builder readWatermarks(long low, long high) {
+			if (high != 0 && (low < 0 || low >= high)) {
+				throw new IllegalArgumentException("The low watermark must be between 0 and the high watermark: " + low
+						+ ", " + high);
+			}
+			this.readLowWatermark = low;
+			this.readHighWatermark = high;
+			return this;
+		}
+
+		public WebSocketConfig build() {
+			return new WebSocketConfig(this);
+		}
+
+		private static int checkNotNegative(String name, int value) {
+			if (value < 0) {
+				throw new IllegalArgumentException("The " + name + " must not be negative: " + value);
+			}
+			return value;
+		}
+
+		private static int checkPositive(String name, int value) {
+			if (value <= 0) {
+				throw new IllegalArgumentException("The " + name + " must be positive: " + value);
+			}
+			return value;
+		}
+
+	}
+
+}
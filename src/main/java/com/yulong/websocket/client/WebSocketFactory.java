@@ -1,23 +1,30 @@
 package com.yulong.websocket.client;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.yulong.websocket.client.impl.WebSocketAsync;
 import com.yulong.websocket.client.impl.WebSocketBlocked;
+import com.yulong.websocket.client.impl.WebSocketHttp2;
 import com.yulong.websocket.client.impl.WebSocketNio;
+import com.yulong.websocket.client.utils.Threads;
+import com.yulong.websocket.client.utils.UnixDomainSockets;
 
 /**
  * A factory that creates a WebSocket instance.
  */
 public final class WebSocketFactory {
 
-	private boolean blockMode = false;
 	private boolean secure = false;
+	private volatile ListenerDispatch listenerDispatch = ListenerDispatch.inline();
+	private volatile long readLowWatermark = 0;
+	private volatile long readHighWatermark = 0;
+	private volatile TlsContext tlsContext = null;
 	private static Map<Boolean, WebSocketFactory> instances = new HashMap<Boolean, WebSocketFactory>();
 
 	private WebSocketFactory(boolean secure) {
 		this.secure = secure;
-		this.blockMode = Boolean.getBoolean("ws.io.mode.block");
 	}
 
 	public synchronized static WebSocketFactory getInstance(boolean secure) {
@@ -30,7 +37,62 @@ public final class WebSocketFactory {
 	}
 
 	/**
-	 * Open a WebSocket connection.
+	 * Set where the listeners of the WebSockets opened from now on are invoked.
+	 * 
+	 * @param listenerDispatch
+	 */
+	public void setListenerDispatch(ListenerDispatch listenerDispatch) {
+		if (listenerDispatch == null) {
+			throw new IllegalArgumentException("The listener dispatch must not be null");
+		}
+		this.listenerDispatch = listenerDispatch;
+	}
+
+	public ListenerDispatch getListenerDispatch() {
+		return listenerDispatch;
+	}
+
+	/**
+	 * Set the watermarks on the received bytes not yet handled by the listeners of the
+	 * WebSockets opened from now on. Reading stops at the high watermark and starts again at
+	 * the low one. A high watermark of 0, the default, means no limit.
+	 * 
+	 * @param low
+	 * @param high
+	 */
+	public void setReadWatermarks(long low, long high) {
+		if (high != 0 && (low < 0 || low >= high)) {
+			throw new IllegalArgumentException("The low watermark must be between 0 and the high watermark: " + low + ", "
+					+ high);
+		}
+		this.readLowWatermark = low;
+		this.readHighWatermark = high;
+	}
+
+	/**
+	 * Set the TLS context of the wss connections opened from now on whose config has none, so
+	 * that they share its session cache. Null, the default, uses {@link TlsContext#getDefault()}.
+	 * 
+	 * @param tlsContext
+	 */
+	public void setTlsContext(TlsContext tlsContext) {
+		this.tlsContext = tlsContext;
+	}
+
+	/**
+	 * To get the TLS context of the wss connections whose config has none.
+	 * 
+	 * @return
+	 * @throws IOException if the default context can not be created.
+	 */
+	public TlsContext getTlsContext() throws IOException {
+		TlsContext context = tlsContext;
+		return context != null ? context : TlsContext.getDefault();
+	}
+
+	/**
+	 * Open a WebSocket connection with the listener dispatch and read watermarks set on the
+	 * factory, and the default settings otherwise.
 	 * 
 	 * @param remoteHost
 	 * @param remotePort
@@ -42,43 +104,92 @@ public final class WebSocketFactory {
 	 */
 	public WebSocket openWebSocket(String remoteHost, int remotePort, String wsPath, String version,
 			String[] subProtocols, String[] extensions, Map<String, String[]> optionalHeaders) {
-		if (version == null) {
-			version = "13";
-		}
+		WebSocketConfig config = WebSocketConfig.builder().version(version).subProtocols(subProtocols)
+				.extensions(extensions).optionalHeaders(optionalHeaders).listenerDispatch(listenerDispatch)
+				.readWatermarks(readLowWatermark, readHighWatermark).build();
+		return openWebSocket(remoteHost, remotePort, wsPath, config);
+	}
 
-		if (blockMode || secure) {
+	/**
+	 * Open a WebSocket connection with the given settings. A secure connection always uses the
+	 * blocking engine, and the TLS context of the factory unless the config has one. A host of
+	 * the form "unix:/path/to/socket" connects to a Unix domain socket (Java 16 and later) on the
+	 * NIO engine whatever the config says, and the port is only used in the Host header; there is
+	 * no TLS over such a socket. The HTTP2 engine ignores the host and the port when the config
+	 * has a shared HTTP/2 connection.
+	 * 
+	 * @param remoteHost
+	 * @param remotePort
+	 * @param wsPath
+	 * @param config
+	 * @return
+	 * @throws IllegalArgumentException if the factory is secure and the host is a Unix domain
+	 *           socket.
+	 */
+	public WebSocket openWebSocket(String remoteHost, int remotePort, String wsPath, WebSocketConfig config) {
+		if (UnixDomainSockets.isUnixAddress(remoteHost) && secure) {
+			throw new IllegalArgumentException("A Unix domain socket cannot be opened with a secure factory: "
+					+ remoteHost);
+		}
+		if (UnixDomainSockets.isUnixAddress(remoteHost) && config.getEngine() != WebSocketConfig.Engine.NIO) {
+			// Only a SocketChannel reaches a Unix domain socket:
+			config = config.toBuilder().engine(WebSocketConfig.Engine.NIO).build();
+		}
+		if (secure && config.getTlsContext() == null && tlsContext != null) {
+			config = config.toBuilder().tlsContext(tlsContext).build();
+		}
+		if (config.getEngine() == WebSocketConfig.Engine.VIRTUAL_THREAD) {
+			// Block mode on a virtual thread:
+			WebSocketBlocked webSocket = new WebSocketBlocked(remoteHost, remotePort, wsPath, secure, config);
+			if (webSocket.getState() == WebSocketState.OPEN) {
+				Threads.newVirtualThread(webSocket, "WebSocketReader").start();
+			}
+			return webSocket;
+		} else if (config.getEngine() == WebSocketConfig.Engine.BLOCKING || secure) {
 			// Block mode:
-			WebSocketBlocked webSocket = new WebSocketBlocked(remoteHost, remotePort, wsPath, secure, version, subProtocols,
-					extensions, optionalHeaders);
+			WebSocketBlocked webSocket = new WebSocketBlocked(remoteHost, remotePort, wsPath, secure, config);
 			if (webSocket.getState() == WebSocketState.OPEN) {
 				Thread t = new Thread(webSocket);
 				t.setDaemon(true);
 				t.start();
 			}
 			return webSocket;
+		} else if (config.getEngine() == WebSocketConfig.Engine.ASYNC) {
+			// Asynchronous channel:
+			WebSocketAsync webSocket = new WebSocketAsync(remoteHost, remotePort, wsPath, secure, config);
+			waitHandshake(webSocket, config.getConnectTimeoutMillis() + config.getHandshakeTimeoutMillis());
+			return webSocket;
+		} else if (config.getEngine() == WebSocketConfig.Engine.HTTP2) {
+			// A stream of an HTTP/2 connection, shared if the config has one:
+			if (config.getHttp2Connection() != null) {
+				return new WebSocketHttp2(config.getHttp2Connection(), wsPath, config);
+			}
+			return new WebSocketHttp2(remoteHost, remotePort, wsPath, config);
 		} else {
 			// Non-block mode:
-			WebSocketNio webSocket = new WebSocketNio(remoteHost, remotePort, wsPath, secure, version, subProtocols,
-					extensions, optionalHeaders);
-			Thread t = new Thread(webSocket);
-			t.setDaemon(true);
-			t.start();
-			waitHandshake(webSocket);
+			WebSocketNio webSocket = new WebSocketNio(remoteHost, remotePort, wsPath, secure, config);
+			if (config.getEventLoop() == null) {
+				Thread t = new Thread(webSocket);
+				t.setDaemon(true);
+				t.start();
+			}
+			waitHandshake(webSocket, config.getConnectTimeoutMillis() + config.getHandshakeTimeoutMillis());
 			return webSocket;
 		}
 	}
 
 	/**
-	 * Wait until the handshake is complete.
+	 * Wait until the handshake is complete, the connection failed or the timeout expired.
 	 * 
 	 * @param webSocket
+	 * @param timeoutMillis
 	 */
-	private void waitHandshake(WebSocket webSocket) {
+	private void waitHandshake(WebSocket webSocket, long timeoutMillis) {
 		long start = System.currentTimeMillis();
 		try {
-			while (!webSocket.handshakeFinished()) {
-				Thread.sleep(500);
-				if ((System.currentTimeMillis() - start) / 1000 > 5) {
+			while (!webSocket.handshakeFinished() && webSocket.getState() != WebSocketState.CLOSED) {
+				Thread.sleep(10);
+				if (System.currentTimeMillis() - start > timeoutMillis) {
 					break;
 				}
 			}
@@ -0,0 +1,708 @@
+package com.yulong.websocket.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.yulong.websocket.client.utils.Threads;
+
+/**
+ * A pool of WebSocket connections to any number of endpoints, each a host, port and path.
+ *
+ * A connection is borrowed for sending and given back with {@link #release(WebSocket)}. The
+ * connections given back wait idle, the most recently used first, so that a burst finds one
+ * open instead of paying for a handshake; {@link #prewarm(String, int, String, int)} opens some
+ * ahead of time. Up to maxPerEndpoint connections are opened to an endpoint, after which
+ * borrowing waits for one to be given back. The connections found closed are dropped, and those
+ * idle for longer than the idle timeout are closed by a timer shared by all the pools, down to
+ * minIdlePerEndpoint.
+ *
+ * The messages received on the connections go to the listener of the pool, whoever has
+ * borrowed them. Borrowers must not add listeners, or frame listeners, to a connection: they
+ * would stay on it once it is given back and receive the messages of every later borrower.
+ *
+ * A pool is created with a {@link Builder}:
+ *
+ * <pre>
+ * WebSocketPool pool = WebSocketPool.builder().maxPerEndpoint(4).idleTimeoutMillis(60000).build();
+ * WebSocket webSocket = pool.borrow(host, port, "/path");
+ * try {
+ *   webSocket.send("hello");
+ * } finally {
+ *   pool.release(webSocket);
+ * }
+ * </pre>
+ */
+public final class WebSocketPool implements Closeable {
+
+	private static ScheduledThreadPoolExecutor timer = null;
+
+	private final WebSocketConfig config;
+	private final boolean secure;
+	private final WebSocketListener listener;
+	private final int maxPerEndpoint;
+	private final int minIdlePerEndpoint;
+	private final long idleTimeoutMillis;
+	private final long borrowTimeoutMillis;
+	private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+	// The borrowed connections and their endpoints:
+	private final Map<WebSocket, Endpoint> borrowed = new ConcurrentHashMap<WebSocket, Endpoint>();
+	private final ScheduledFuture<?> eviction;
+	private volatile boolean closed = false;
+
+	private final LongAdder created = new LongAdder();
+	private final LongAdder failedConnects = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder warmBorrows = new LongAdder();
+	private final LongAdder coldBorrows = new LongAdder();
+	private final LongAdder borrowTimeouts = new LongAdder();
+
+	private WebSocketPool(Builder builder) {
+		this.config = builder.config;
+		this.secure = builder.secure;
+		this.listener = builder.listener;
+		this.maxPerEndpoint = builder.maxPerEndpoint;
+		this.minIdlePerEndpoint = builder.minIdlePerEndpoint;
+		this.idleTimeoutMillis = builder.idleTimeoutMillis;
+		this.borrowTimeoutMillis = builder.borrowTimeoutMillis;
+		this.eviction = getTimer().scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				evict();
+			}
+		}, builder.evictionIntervalMillis, builder.evictionIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * To get a builder with the default settings.
+	 *
+	 * @return
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor getTimer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable task) {
+					return Threads.newDaemonThread(task, "WebSocketPoolEvictor");
+				}
+			});
+			timer.setRemoveOnCancelPolicy(true);
+		}
+		return timer;
+	}
+
+	/**
+	 * To borrow an open connection to the endpoint: an idle one if there is any, else a new one
+	 * if fewer than maxPerEndpoint are open, else the first one given back within the borrow
+	 * timeout. It must be given back with {@link #release(WebSocket)}, and no listener added to
+	 * it, see the class description.
+	 *
+	 * @param host
+	 * @param port
+	 * @param path
+	 * @return
+	 * @throws IOException if no connection could be opened or none was given back in time.
+	 */
+	public WebSocket borrow(String host, int port, String path) throws IOException {
+		Endpoint endpoint = getEndpoint(host, port, path);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+		endpoint.lock.lock();
+		try {
+			while (true) {
+				checkOpen();
+				WebSocket webSocket = endpoint.pollIdle();
+				if (webSocket != null) {
+					borrowed.put(webSocket, endpoint);
+					warmBorrows.increment();
+					return webSocket;
+				}
+				if (endpoint.open < maxPerEndpoint) {
+					endpoint.open++;
+					break;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					borrowTimeouts.increment();
+					throw new IOException("No connection to " + endpoint.key + " was given back in " + borrowTimeoutMillis
+							+ " ms");
+				}
+				try {
+					endpoint.released.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for a connection to " + endpoint.key);
+				}
+			}
+		} finally {
+			endpoint.lock.unlock();
+		}
+		// A slot is taken, connect outside the lock:
+		WebSocket webSocket = connect(endpoint);
+		borrowed.put(webSocket, endpoint);
+		coldBorrows.increment();
+		return webSocket;
+	}
+
+	/**
+	 * Give a borrowed connection back. It waits idle for the next borrower if it is still open,
+	 * and is dropped otherwise.
+	 *
+	 * @param webSocket
+	 */
+	public void release(WebSocket webSocket) {
+		Endpoint endpoint = borrowed.remove(webSocket);
+		if (endpoint == null) {
+			throw new IllegalArgumentException("The connection is not borrowed from this pool: " + webSocket);
+		}
+		boolean keep = false;
+		endpoint.lock.lock();
+		try {
+			if (!closed && isHealthy(webSocket)) {
+				endpoint.idle.addFirst(new Idle(webSocket, System.currentTimeMillis()));
+				keep = true;
+			} else {
+				endpoint.open--;
+			}
+			endpoint.released.signal();
+		} finally {
+			endpoint.lock.unlock();
+		}
+		if (!keep) {
+			if (!closed) {
+				dropped.increment();
+			}
+			closeQuietly(webSocket);
+		}
+	}
+
+	/**
+	 * Open connections to the endpoint until the given number are idle, or maxPerEndpoint are
+	 * open, so that the next borrowers find them ready.
+	 *
+	 * @param host
+	 * @param port
+	 * @param path
+	 * @param count
+	 * @return the number of idle connections to the endpoint.
+	 * @throws IOException if a connection could not be opened.
+	 */
+	public int prewarm(String host, int port, String path, int count) throws IOException {
+		Endpoint endpoint = getEndpoint(host, port, path);
+		while (true) {
+			endpoint.lock.lock();
+			try {
+				checkOpen();
+				if (endpoint.idle.size() >= count || endpoint.open >= maxPerEndpoint) {
+					return endpoint.idle.size();
+				}
+				endpoint.open++;
+			} finally {
+				endpoint.lock.unlock();
+			}
+			WebSocket webSocket = connect(endpoint);
+			endpoint.lock.lock();
+			try {
+				if (!closed) {
+					endpoint.idle.addFirst(new Idle(webSocket, System.currentTimeMillis()));
+					endpoint.released.signal();
+					continue;
+				}
+			} finally {
+				endpoint.lock.unlock();
+			}
+			// Closed meanwhile:
+			endpoint.giveBack();
+			closeQuietly(webSocket);
+			checkOpen();
+		}
+	}
+
+	/**
+	 * Open a connection in a slot already counted in the open ones of the endpoint, giving the
+	 * slot back if it fails.
+	 */
+	private WebSocket connect(Endpoint endpoint) throws IOException {
+		WebSocket webSocket;
+		try {
+			webSocket = WebSocketFactory.getInstance(secure).openWebSocket(endpoint.host, endpoint.port, endpoint.path,
+					config);
+		} catch (RuntimeException e) {
+			endpoint.giveBack();
+			failedConnects.increment();
+			throw e;
+		}
+		if (webSocket.getState() != WebSocketState.OPEN) {
+			endpoint.giveBack();
+			failedConnects.increment();
+			throw new IOException("Can not connect to " + endpoint.key + ", the response status code is "
+					+ webSocket.getResponsStatusCode());
+		}
+		created.increment();
+		if (listener != null) {
+			webSocket.addListener(listener);
+		}
+		return webSocket;
+	}
+
+	/**
+	 * Drop the idle connections found closed, and close those idle for too long beyond the
+	 * minimum to keep. Run by the shared timer.
+	 */
+	void evict() {
+		long now = System.currentTimeMillis();
+		List<WebSocket> toClose = new ArrayList<WebSocket>();
+		for (Endpoint endpoint : endpoints.values()) {
+			endpoint.lock.lock();
+			try {
+				// Oldest first, they are the ones to go:
+				Iterator<Idle> it = endpoint.idle.descendingIterator();
+				while (it.hasNext()) {
+					Idle idle = it.next();
+					if (!isHealthy(idle.webSocket)) {
+						dropped.increment();
+					} else if (now - idle.since >= idleTimeoutMillis && endpoint.idle.size() > minIdlePerEndpoint) {
+						evicted.increment();
+					} else {
+						continue;
+					}
+					it.remove();
+					endpoint.open--;
+					toClose.add(idle.webSocket);
+					endpoint.released.signal();
+				}
+			} finally {
+				endpoint.lock.unlock();
+			}
+		}
+		for (WebSocket webSocket : toClose) {
+			closeQuietly(webSocket);
+		}
+	}
+
+	/**
+	 * Close the idle connections and stop the eviction. The borrowed connections are closed when
+	 * given back.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		eviction.cancel(false);
+		for (Endpoint endpoint : endpoints.values()) {
+			List<WebSocket> toClose = new ArrayList<WebSocket>();
+			endpoint.lock.lock();
+			try {
+				for (Idle idle : endpoint.idle) {
+					toClose.add(idle.webSocket);
+				}
+				endpoint.open -= endpoint.idle.size();
+				endpoint.idle.clear();
+				endpoint.released.signalAll();
+			} finally {
+				endpoint.lock.unlock();
+			}
+			for (WebSocket webSocket : toClose) {
+				closeQuietly(webSocket);
+			}
+		}
+	}
+
+	private Endpoint getEndpoint(String host, int port, String path) {
+		String key = (secure ? "wss://" : "ws://") + host + ":" + port + path;
+		Endpoint endpoint = endpoints.get(key);
+		if (endpoint == null) {
+			Endpoint created = new Endpoint(key, host, port, path);
+			endpoint = endpoints.putIfAbsent(key, created);
+			if (endpoint == null) {
+				endpoint = created;
+			}
+		}
+		return endpoint;
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("The pool is closed");
+		}
+	}
+
+	private static boolean isHealthy(WebSocket webSocket) {
+		return webSocket.getState() == WebSocketState.OPEN && !webSocket.hasSentCloseHandshake();
+	}
+
+	private static void closeQuietly(WebSocket webSocket) {
+		if (webSocket.getState() == WebSocketState.OPEN && !webSocket.hasSentCloseHandshake()) {
+			try {
+				// Not close(), which waits for the server to answer:
+				webSocket.close(1000, "");
+			} catch (IOException e) {
+				// closed already
+			}
+		}
+	}
+
+	/**
+	 * To get the number of endpoints the pool has been asked for.
+	 *
+	 * @return
+	 */
+	public int getEndpoints() {
+		return endpoints.size();
+	}
+
+	/**
+	 * To get the number of connections open or being opened, idle or borrowed.
+	 *
+	 * @return
+	 */
+	public int getOpenConnections() {
+		int count = 0;
+		for (Endpoint endpoint : endpoints.values()) {
+			endpoint.lock.lock();
+			try {
+				count += endpoint.open;
+			} finally {
+				endpoint.lock.unlock();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * To get the number of idle connections.
+	 *
+	 * @return
+	 */
+	public int getIdleConnections() {
+		int count = 0;
+		for (Endpoint endpoint : endpoints.values()) {
+			endpoint.lock.lock();
+			try {
+				count += endpoint.idle.size();
+			} finally {
+				endpoint.lock.unlock();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * To get the number of idle connections to an endpoint.
+	 *
+	 * @param host
+	 * @param port
+	 * @param path
+	 * @return
+	 */
+	public int getIdleConnections(String host, int port, String path) {
+		Endpoint endpoint = getEndpoint(host, port, path);
+		endpoint.lock.lock();
+		try {
+			return endpoint.idle.size();
+		} finally {
+			endpoint.lock.unlock();
+		}
+	}
+
+	/**
+	 * To get the number of borrowed connections.
+	 *
+	 * @return
+	 */
+	public int getBorrowedConnections() {
+		return borrowed.size();
+	}
+
+	/**
+	 * To get the number of connections opened.
+	 *
+	 * @return
+	 */
+	public long getCreatedConnections() {
+		return created.sum();
+	}
+
+	/**
+	 * To get the number of connections that could not be opened.
+	 *
+	 * @return
+	 */
+	public long getFailedConnects() {
+		return failedConnects.sum();
+	}
+
+	/**
+	 * To get the number of connections closed for having been idle too long.
+	 *
+	 * @return
+	 */
+	public long getEvictedConnections() {
+		return evicted.sum();
+	}
+
+	/**
+	 * To get the number of connections dropped for having been closed.
+	 *
+	 * @return
+	 */
+	public long getDroppedConnections() {
+		return dropped.sum();
+	}
+
+	/**
+	 * To get the number of borrows served by an idle connection.
+	 *
+	 * @return
+	 */
+	public long getWarmBorrows() {
+		return warmBorrows.sum();
+	}
+
+	/**
+	 * To get the number of borrows that opened a connection.
+	 *
+	 * @return
+	 */
+	public long getColdBorrows() {
+		return coldBorrows.sum();
+	}
+
+	/**
+	 * To get the number of borrows that found no connection in time.
+	 *
+	 * @return
+	 */
+	public long getBorrowTimeouts() {
+		return borrowTimeouts.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "WebSocketPool[endpoints=" + getEndpoints() + ", open=" + getOpenConnections() + ", idle="
+				+ getIdleConnections() + ", borrowed=" + getBorrowedConnections() + ", created=" + getCreatedConnections()
+				+ ", failedConnects=" + getFailedConnects() + ", evicted=" + getEvictedConnections() + ", dropped="
+				+ getDroppedConnections() + ", warmBorrows=" + getWarmBorrows() + ", coldBorrows=" + getColdBorrows()
+				+ ", borrowTimeouts=" + getBorrowTimeouts() + "]";
+	}
+
+	/**
+	 * The connections to one endpoint, guarded by its lock.
+	 */
+	private final class Endpoint {
+
+		private final String key;
+		private final String host;
+		private final int port;
+		private final String path;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition released = lock.newCondition();
+		// The most recently used first:
+		private final ArrayDeque<Idle> idle = new ArrayDeque<Idle>();
+		// Idle, borrowed or being opened:
+		private int open = 0;
+
+		Endpoint(String key, String host, int port, String path) {
+			this.key = key;
+			this.host = host;
+			this.port = port;
+			this.path = path;
+		}
+
+		/**
+		 * Take the most recently used idle connection that is still open, dropping the others.
+		 * Called with the lock held.
+		 */
+		WebSocket pollIdle() {
+			Idle next;
+			while ((next = idle.pollFirst()) != null) {
+				if (isHealthy(next.webSocket)) {
+					return next.webSocket;
+				}
+				open--;
+				dropped.increment();
+			}
+			return null;
+		}
+
+		/**
+		 * Give back a slot counted in open, for a connection that is not kept.
+		 */
+		void giveBack() {
+			lock.lock();
+			try {
+				open--;
+				released.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	}
+
+	/**
+	 * An idle connection and since when.
+	 */
+	private static final class Idle {
+
+		private final WebSocket webSocket;
+		private final long since;
+
+		Idle(WebSocket webSocket, long since) {
+			this.webSocket = webSocket;
+			this.since = since;
+		}
+
+	}
+
+	/**
+	 * A builder of {@link WebSocketPool}.
+	 */
+	public static final class Builder {
+
+		private WebSocketConfig config = WebSocketConfig.builder().build();
+		private boolean secure = false;
+		private WebSocketListener listener = null;
+		private int maxPerEndpoint = 8;
+		private int minIdlePerEndpoint = 0;
+		private long idleTimeoutMillis = 60000;
+		private long evictionIntervalMillis = 5000;
+		private long borrowTimeoutMillis = 5000;
+
+		private Builder() {
+		}
+
+		/**
+		 * Set the settings of the connections opened.
+		 *
+		 * @param config
+		 * @return
+		 */
+		public Builder config(WebSocketConfig config) {
+			if (config == null) {
+				throw new IllegalArgumentException("The config must not be null");
+			}
+			this.config = config;
+			return this;
+		}
+
+		/**
+		 * Set whether the connections are wss.
+		 *
+		 * @param secure
+		 * @return
+		 */
+		public Builder secure(boolean secure) {
+			this.secure = secure;
+			return this;
+		}
+
+		/**
+		 * Set a listener added to every connection opened, for the messages received whoever has
+		 * borrowed it. It is the only listener of the connections.
+		 *
+		 * @param listener
+		 * @return
+		 */
+		public Builder listener(WebSocketListener listener) {
+			this.listener = listener;
+			return this;
+		}
+
+		/**
+		 * Set the most connections opened to one endpoint, 8 by default.
+		 *
+		 * @param maxPerEndpoint
+		 * @return
+		 */
+		public Builder maxPerEndpoint(int maxPerEndpoint) {
+			if (maxPerEndpoint <= 0) {
+				throw new IllegalArgumentException("The maximum per endpoint must be positive: " + maxPerEndpoint);
+			}
+			this.maxPerEndpoint = maxPerEndpoint;
+			return this;
+		}
+
+		/**
+		 * Set the idle connections to one endpoint that are not closed however long they have been
+		 * idle, 0 by default.
+		 *
+		 * @param minIdlePerEndpoint
+		 * @return
+		 */
+		public Builder minIdlePerEndpoint(int minIdlePerEndpoint) {
+			if (minIdlePerEndpoint < 0) {
+				throw new IllegalArgumentException("The minimum idle per endpoint must not be negative: "
+						+ minIdlePerEndpoint);
+			}
+			this.minIdlePerEndpoint = minIdlePerEndpoint;
+			return this;
+		}
+
+		/**
+		 * Set how long a connection stays idle before it is closed, 60 seconds by default.
+		 *
+		 * @param idleTimeoutMillis
+		 * @return
+		 */
+		public Builder idleTimeoutMillis(long idleTimeoutMillis) {
+			if (idleTimeoutMillis < 0) {
+				throw new IllegalArgumentException("The idle timeout must not be negative: " + idleTimeoutMillis);
+			}
+			this.idleTimeoutMillis = idleTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * Set how often the idle connections are checked, 5 seconds by default.
+		 *
+		 * @param evictionIntervalMillis
+		 * @return
+		 */
+		public Builder evictionIntervalMillis(long evictionIntervalMillis) {
+			if (evictionIntervalMillis <= 0) {
+				throw new IllegalArgumentException("The eviction interval must be positive: " + evictionIntervalMillis);
+			}
+			this.evictionIntervalMillis = evictionIntervalMillis;
+			return this;
+		}
+
+		/**
+		 * Set how long borrowing waits for a connection to be given back when maxPerEndpoint are
+		 * borrowed, 5 seconds by default.
+		 *
+		 * @param borrowTimeoutMillis
+		 * @return
+		 */
+		public Builder borrowTimeoutMillis(long borrowTimeoutMillis) {
+			if (borrowTimeoutMillis < 0) {
+				throw new IllegalArgumentException("The borrow timeout must not be negative: " + borrowTimeoutMillis);
+			}
+			this.borrowTimeoutMillis = borrowTimeoutMillis;
+			return this;
+		}
+
+		public WebSocketPool build() {
+			return new WebSocketPool(this);
+		}
+
+	}
+
+}
@@ -199,8 +199,10 @@ public class DataFrame {
 	 */
 	private void fromRawData() {
 
-		System.out.println(sdf.format(new Date()) + "Received Dataframe: ["
-				+ Utils.showPartOfTextIfTooLong(Utils.toHexString(rawData)) + "]");
+		if (Utils.isFrameLogging()) {
+			System.out.println(sdf.format(new Date()) + "Received Dataframe: ["
+					+ Utils.showPartOfTextIfTooLong(Utils.toHexString(rawData)) + "]");
+		}
 
 		ByteBuffer rawDataBuff = ByteBuffer.wrap(rawData);
 
@@ -0,0 +1,106 @@
+package com.yulong.websocket.client.frames;
+
+import com.yulong.websocket.client.utils.BufferPool;
+
+/**
+ * A small pool of reusable outbound frames, one per connection.
+ *
+ * Acquiring and releasing are guarded by the pool's monitor, which is uncontended in the
+ * common case where the sending thread also writes. When the pool is empty a new frame is
+ * created, and frames released to a full pool are left to the garbage collector.
+ */
+public final class FramePool {
+
+	private static final PooledFrame[] NONE = new PooledFrame[0];
+
+	private final int maxPooled;
+	// Grown as frames are released, up to maxPooled, so that an idle pool takes no room:
+	private PooledFrame[] frames = NONE;
+	private final BufferPool bufferPool;
+	private int size = 0;
+	private long created = 0;
+
+	/**
+	 * To create a pool keeping up to the given number of released frames, whose buffers come
+	 * from the default {@link BufferPool}.
+	 *
+	 * @param maxPooled
+	 */
+	public FramePool(int maxPooled) {
+		this(maxPooled, BufferPool.getDefault());
+	}
+
+	/**
+	 * To create a pool keeping up to the given number of released frames, whose buffers come
+	 * from the given buffer pool.
+	 *
+	 * @param maxPooled
+	 * @param bufferPool
+	 */
+	public FramePool(int maxPooled, BufferPool bufferPool) {
+		if (maxPooled < 0) {
+			throw new IllegalArgumentException("The pool size must not be negative: " + maxPooled);
+		}
+		this.maxPooled = maxPooled;
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * To get a frame from the pool, or a new one if the pool is empty. The frame must be sent
+	 * or released.
+	 *
+	 * @return
+	 */
+	public PooledFrame acquire() {
+		PooledFrame frame = null;
+		synchronized (this) {
+			if (size > 0) {
+				frame = frames[--size];
+				frames[size] = null;
+			} else {
+				created++;
+			}
+		}
+		if (frame == null) {
+			frame = new PooledFrame(this, bufferPool);
+		}
+		frame.acquired();
+		return frame;
+	}
+
+	/**
+	 * Give a frame back to the pool.
+	 *
+	 * @param frame
+	 */
+	synchronized void release(PooledFrame frame) {
+		if (size == frames.length) {
+			if (size == maxPooled) {
+				return;
+			}
+			PooledFrame[] larger = new PooledFrame[Math.min(maxPooled, Math.max(4, size * 2))];
+			System.arraycopy(frames, 0, larger, 0, size);
+			frames = larger;
+		}
+		frames[size++] = frame;
+	}
+
+	/**
+	 * To get the number of frames created by the pool.
+	 *
+	 * @return
+	 */
+	public synchronized long getCreated() {
+		return created;
+	}
+
+	/**
+	 * To get the number of released frames waiting in the pool.
+	 *
+	 * @return
+	 */
+	public synchronized int getPooled() {
+		return size;
+	}
+
+}
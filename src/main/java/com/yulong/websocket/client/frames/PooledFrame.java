@@ -0,0 +1,274 @@
+package com.yulong.websocket.client.frames;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.yulong.websocket.client.utils.BufferPool;
+
+/**
+ * A mutable outbound frame taken from a {@link FramePool} and reused once released.
+ *
+ * The payload is written straight into the frame's buffer behind room left for the largest
+ * header, and encoding writes the header in front of it and masks the payload in place, so
+ * sending a pooled frame copies the payload once and allocates no arrays. A frame belongs to
+ * its user from {@link FramePool#acquire()} until it is either handed to a WebSocket, which
+ * releases it once written, or released with {@link #release()}. It must not be touched after
+ * that.
+ *
+ * The buffer of a frame is a direct buffer taken from the {@link BufferPool} when the frame is
+ * acquired and given back when it is released, so the socket writes it without copying and an
+ * idle frame holds no memory.
+ */
+public final class PooledFrame {
+
+	// The largest header: 2 bytes, 8 bytes of extended length and 4 bytes of mask key.
+	private static final int HEADER_ROOM = 14;
+	private static final int INITIAL_CAPACITY = 256;
+
+	private final FramePool pool;
+	private final BufferPool bufferPool;
+	private final ByteBuffer[] buffers = new ByteBuffer[1];
+	private ByteBuffer buffer = null;
+
+	private boolean fin;
+	private int rsv;
+	private int opcode;
+	private boolean inUse = false;
+	private boolean encoded = false;
+
+	PooledFrame(FramePool pool, BufferPool bufferPool) {
+		this.pool = pool;
+		this.bufferPool = bufferPool;
+	}
+
+	void acquired() {
+		fin = true;
+		rsv = 0;
+		opcode = 1;
+		encoded = false;
+		buffer = bufferPool.acquire(HEADER_ROOM + INITIAL_CAPACITY);
+		buffer.position(HEADER_ROOM);
+		inUse = true;
+	}
+
+	public PooledFrame setFin(boolean fin) {
+		checkWritable();
+		this.fin = fin;
+		return this;
+	}
+
+	public PooledFrame setRsv(int rsv) {
+		checkWritable();
+		this.rsv = rsv;
+		return this;
+	}
+
+	public PooledFrame setOpcode(int opcode) {
+		checkWritable();
+		this.opcode = opcode;
+		return this;
+	}
+
+	public boolean isFin() {
+		return fin;
+	}
+
+	public int getRsv() {
+		return rsv;
+	}
+
+	public int getOpcode() {
+		return opcode;
+	}
+
+	/**
+	 * To get the length of the payload written so far.
+	 *
+	 * @return
+	 */
+	public int getPayloadLength() {
+		if (buffer == null) {
+			return 0;
+		}
+		return (encoded ? buffer.limit() : buffer.position()) - HEADER_ROOM;
+	}
+
+	/**
+	 * To make it a text frame with the given text as payload, encoded as UTF-8 without
+	 * intermediate arrays.
+	 *
+	 * @param text
+	 * @return
+	 */
+	public PooledFrame setText(CharSequence text) {
+		opcode = 1;
+		clearPayload();
+		return appendText(text);
+	}
+
+	/**
+	 * To make it a binary frame with the given bytes as payload.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public PooledFrame setBinary(byte[] data, int offset, int length) {
+		opcode = 2;
+		clearPayload();
+		return append(data, offset, length);
+	}
+
+	/**
+	 * To append bytes to the payload.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public PooledFrame append(byte[] data, int offset, int length) {
+		checkWritable();
+		ensureRemaining(length);
+		buffer.put(data, offset, length);
+		return this;
+	}
+
+	/**
+	 * To append the remaining bytes of the given buffer to the payload.
+	 *
+	 * @param data
+	 * @return
+	 */
+	public PooledFrame append(ByteBuffer data) {
+		checkWritable();
+		ensureRemaining(data.remaining());
+		buffer.put(data);
+		return this;
+	}
+
+	/**
+	 * To append text encoded as UTF-8 to the payload. Unpaired surrogates are encoded as '?'
+	 * like {@link String#getBytes(String)} does.
+	 *
+	 * @param text
+	 * @return
+	 */
+	public PooledFrame appendText(CharSequence text) {
+		checkWritable();
+		int length = text.length();
+		// At most 3 bytes per char, a surrogate pair takes 4 bytes for 2 chars:
+		ensureRemaining(length * 3);
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xc0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, text.charAt(++i));
+				buffer.put((byte) (0xf0 | (cp >> 18)));
+				buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+				buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (cp & 0x3f)));
+			} else if (Character.isSurrogate(c)) {
+				buffer.put((byte) '?');
+			} else {
+				buffer.put((byte) (0xe0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * To encode the frame with a fresh mask key, as a client must send it. This is called by
+	 * the WebSocket the frame is sent with; the frame can not be changed afterwards.
+	 *
+	 * @return the buffers holding the encoded frame, ready to be written.
+	 */
+	public ByteBuffer[] encode() {
+		checkWritable();
+		int payloadEnd = buffer.position();
+		int payloadLength = payloadEnd - HEADER_ROOM;
+		int headerLength = 2 + 4 + (payloadLength <= 125 ? 0 : payloadLength <= 65535 ? 2 : 8);
+		int start = HEADER_ROOM - headerLength;
+
+		int i = start;
+		byte b0 = (byte) (opcode & 0x0f);
+		b0 = (byte) ((rsv << 4) | b0);
+		buffer.put(i++, fin ? (byte) (b0 | 0x80) : b0);
+		if (payloadLength <= 125) {
+			buffer.put(i++, (byte) (0x80 | payloadLength));
+		} else if (payloadLength <= 65535) {
+			buffer.put(i++, (byte) (0x80 | 126));
+			buffer.putShort(i, (short) payloadLength);
+			i += 2;
+		} else {
+			buffer.put(i++, (byte) (0x80 | 127));
+			buffer.putLong(i, payloadLength);
+			i += 8;
+		}
+		int maskKey = ThreadLocalRandom.current().nextInt();
+		buffer.putInt(i, maskKey);
+
+		// Mask the payload in place, four bytes at a time where possible:
+		int p = HEADER_ROOM;
+		for (; p + 4 <= payloadEnd; p += 4) {
+			buffer.putInt(p, buffer.getInt(p) ^ maskKey);
+		}
+		for (int k = 0; p < payloadEnd; p++, k++) {
+			buffer.put(p, (byte) (buffer.get(p) ^ (maskKey >>> (24 - 8 * k))));
+		}
+
+		buffer.limit(payloadEnd);
+		buffer.position(start);
+		encoded = true;
+		buffers[0] = buffer;
+		return buffers;
+	}
+
+	/**
+	 * Give the frame back to its pool. A frame handed to a WebSocket is released by it.
+	 */
+	public void release() {
+		if (!inUse) {
+			throw new IllegalStateException("The frame has already been released");
+		}
+		inUse = false;
+		buffers[0] = null;
+		bufferPool.release(buffer);
+		buffer = null;
+		pool.release(this);
+	}
+
+	private void clearPayload() {
+		checkWritable();
+		buffer.clear();
+		buffer.position(HEADER_ROOM);
+	}
+
+	private void checkWritable() {
+		if (!inUse) {
+			throw new IllegalStateException("The frame has been released");
+		}
+		if (encoded) {
+			throw new IllegalStateException("The frame has been encoded already");
+		}
+	}
+
+	private void ensureRemaining(int length) {
+		if (buffer.remaining() < length) {
+			int required = buffer.position() + length;
+			ByteBuffer larger = bufferPool.acquire(Math.max(required, buffer.capacity() * 2));
+			buffer.flip();
+			larger.put(buffer);
+			bufferPool.release(buffer);
+			buffer = larger;
+		}
+	}
+
+}
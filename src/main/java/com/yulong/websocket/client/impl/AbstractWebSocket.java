@@ -1,38 +1,73 @@
 package com.yulong.websocket.client.impl;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import com.yulong.websocket.client.ConnectionMetrics;
+import com.yulong.websocket.client.FrameListener;
+import com.yulong.websocket.client.HandShakeException;
+import com.yulong.websocket.client.ListenerDispatch;
+import com.yulong.websocket.client.ProtocolException;
 import com.yulong.websocket.client.WebSocket;
 import com.yulong.websocket.client.WebSocketListener;
 import com.yulong.websocket.client.WebSocketState;
 import com.yulong.websocket.client.frames.CloseFrame;
 import com.yulong.websocket.client.frames.DataFrame;
+import com.yulong.websocket.client.frames.FramePool;
 import com.yulong.websocket.client.frames.PingFrame;
 import com.yulong.websocket.client.frames.PongFrame;
+import com.yulong.websocket.client.frames.PooledFrame;
 import com.yulong.websocket.client.utils.Utils;
+import com.yulong.websocket.client.utils.WebSocketKey;
 
 public abstract class AbstractWebSocket implements WebSocket {
 
   private static final SimpleDateFormat sdf = new SimpleDateFormat("~~~~~~ HH:mm:ss ");
+  private static final AtomicReferenceFieldUpdater<AbstractWebSocket, WebSocketState> STATE = AtomicReferenceFieldUpdater
+      .newUpdater(AbstractWebSocket.class, WebSocketState.class, "state");
   protected static int number = 0;
   protected int instanceId = number;
 
   // The connection state:
-  protected int responsStatusCode = -1;
+  protected volatile int responsStatusCode = -1;
   protected Map<String, String> responseHeaders = new HashMap<String, String>();
-  protected boolean hasSentCloseHandshake = false;
-  protected boolean hasReceivedCloseHandshake = false;
-  protected boolean handshakeFinished = false;
-
-  protected WebSocketState state = WebSocketState.CLOSED;
-  protected boolean stopped = false;
-  protected List<WebSocketListener> listeners = new LinkedList<WebSocketListener>();
+  protected final AtomicBoolean hasSentCloseHandshake = new AtomicBoolean(false);
+  protected volatile boolean hasReceivedCloseHandshake = false;
+  protected volatile boolean handshakeFinished = false;
+
+  // Only changed through setState and compareAndSetState:
+  protected volatile WebSocketState state = WebSocketState.CLOSED;
+  protected volatile boolean stopped = false;
+  protected List<WebSocketListener> listeners = new CopyOnWriteArrayList<WebSocketListener>();
+  // Copied on write, and iterated by index so that nothing is allocated per frame:
+  protected volatile FrameListener[] frameListeners = new FrameListener[0];
+
+  // The outbound data, written by one thread at a time:
+  private final MpscQueue<Outbound> outbound = new MpscQueue<Outbound>();
+  private final AtomicBoolean writing = new AtomicBoolean(false);
+  private final ConcurrentLinkedQueue<Runnable> writableTasks = new ConcurrentLinkedQueue<Runnable>();
+  private final ConcurrentLinkedQueue<Runnable> closedTasks = new ConcurrentLinkedQueue<Runnable>();
+  private final FramePool framePool = new FramePool(64);
+
+  // The read backpressure, no limit when the high watermark is 0:
+  private volatile long readLowWatermark = 0;
+  private volatile long readHighWatermark = 0;
+  private final AtomicBoolean pausedByWatermark = new AtomicBoolean(false);
+  private final AtomicInteger readHolds = new AtomicInteger(0);
+
+  // The listener dispatching:
+  protected final ConnectionMetrics metrics = new ConnectionMetrics();
+  private EventDispatcher eventDispatcher = new EventDispatcher.InlineDispatcher(this);
 
   /**
    * Add a listener to the WebSocket.
@@ -42,6 +77,54 @@ public abstract class AbstractWebSocket implements WebSocket {
     listeners.add(listener);
   }
 
+  /**
+   * Add a low-level listener invoked on the reading thread for each frame.
+   */
+  @Override
+  public synchronized void addFrameListener(FrameListener listener) {
+    FrameListener[] updated = new FrameListener[frameListeners.length + 1];
+    System.arraycopy(frameListeners, 0, updated, 0, frameListeners.length);
+    updated[frameListeners.length] = listener;
+    frameListeners = updated;
+  }
+
+  /**
+   * Set where the listeners are invoked. This must be called before the connection starts
+   * reading data.
+   * 
+   * @param listenerDispatch
+   */
+  public void setListenerDispatch(ListenerDispatch listenerDispatch) {
+    eventDispatcher = EventDispatcher.create(this, listenerDispatch);
+  }
+
+  /**
+   * Set the watermarks on the inbound bytes received but not yet handled by the listeners.
+   * Reading stops once the high watermark is reached and starts again once the pending bytes
+   * are back to the low watermark. A high watermark of 0 means no limit.
+   * 
+   * @param low
+   * @param high
+   */
+  public void setReadWatermarks(long low, long high) {
+    if (high != 0 && (low < 0 || low >= high)) {
+      throw new IllegalArgumentException("The low watermark must be between 0 and the high watermark: " + low + ", "
+          + high);
+    }
+    readLowWatermark = low;
+    readHighWatermark = high;
+  }
+
+  /**
+   * Get the metrics of the connection.
+   * 
+   * @return
+   */
+  @Override
+  public ConnectionMetrics getMetrics() {
+    return metrics;
+  }
+
   /**
    * Indicate that the opening handshake is complete.
    */
@@ -74,18 +157,22 @@ public abstract class AbstractWebSocket implements WebSocket {
     List<String> splits = Utils.split(textData, perSize);
     int size = splits.size();
 
-    if (size == 1) {
+    if (size == 1 && !Utils.isFrameLogging()) {
+      send(acquireFrame().setText(textData));
+    } else if (size == 1) {
       DataFrame dataFrame = new DataFrame(true, 1, true, textData);
       send(dataFrame);
     } else {
-      DataFrame dataFrame1 = new DataFrame(false, 1, true, splits.get(0));
-      send(dataFrame1);
-      for (int i = 1; i < size - 1; i++) {
-        DataFrame dataFrame2 = new DataFrame(false, 0, true, splits.get(i));
-        send(dataFrame2);
+      // The fragments are queued together so that no other data frame gets in between:
+      ByteBuffer[] fragments = new ByteBuffer[size];
+      for (int i = 0; i < size; i++) {
+        DataFrame fragment = new DataFrame(i == size - 1, i == 0 ? 1 : 0, true, splits.get(i));
+        if (Utils.isFrameLogging()) {
+          log(">>" + fragment);
+        }
+        fragments[i] = ByteBuffer.wrap(fragment.getRawData());
       }
-      DataFrame dataFrame3 = new DataFrame(true, 0, true, splits.get(size - 1));
-      send(dataFrame3);
+      enqueue(fragments);
     }
 
   }
@@ -97,6 +184,10 @@ public abstract class AbstractWebSocket implements WebSocket {
    * @throws IOException
    */
   public void send(byte[] binaryData) throws IOException {
+    if (!Utils.isFrameLogging()) {
+      send(acquireFrame().setBinary(binaryData, 0, binaryData.length));
+      return;
+    }
     DataFrame dataFrame = new DataFrame(true, 2, true, binaryData);
     send(dataFrame);
   }
@@ -120,24 +211,55 @@ public abstract class AbstractWebSocket implements WebSocket {
    */
   @Override
   public void send(DataFrame dataFrame, int chopSize) throws IOException {
-    log(">>" + dataFrame);
+    if (Utils.isFrameLogging()) {
+      log(">>" + dataFrame);
+    }
     byte[] rawData = dataFrame.getRawData();
     if (chopSize == -1 || chopSize >= rawData.length) {
       sendData(rawData);
     } else {
-      for (int i = 0; i < rawData.length;) {
-        int sentLengh = chopSize;
-        if (rawData.length - i < chopSize) {
-          sentLengh = rawData.length - i;
-        }
-        byte[] chop = new byte[sentLengh];
-        System.arraycopy(rawData, i, chop, 0, chop.length);
-        sendData(chop);
-        i += sentLengh;
+      // The chops are queued together and written one by one:
+      ByteBuffer[] chops = new ByteBuffer[(rawData.length + chopSize - 1) / chopSize];
+      for (int i = 0; i < chops.length; i++) {
+        int offset = i * chopSize;
+        chops[i] = ByteBuffer.wrap(rawData, offset, Math.min(chopSize, rawData.length - offset));
       }
+      enqueue(chops);
     }
   }
 
+  /**
+   * Get a reusable frame from the pool of the connection.
+   * 
+   * @return
+   */
+  @Override
+  public PooledFrame acquireFrame() {
+    return framePool.acquire();
+  }
+
+  /**
+   * Send a pooled frame, which is released once written.
+   * 
+   * @param frame
+   * @throws IOException
+   */
+  @Override
+  public void send(PooledFrame frame) throws IOException {
+    if (Utils.isFrameLogging()) {
+      log(">>pooled frame: fin=" + frame.isFin() + ", opcode=" + frame.getOpcode() + ", payload length="
+          + frame.getPayloadLength());
+    }
+    ByteBuffer[] buffers;
+    try {
+      buffers = frame.encode();
+    } catch (RuntimeException e) {
+      frame.release();
+      throw e;
+    }
+    enqueue(frame, buffers);
+  }
+
   /**
    * Send sendArbitrary binary data.
    * 
@@ -219,10 +341,14 @@ public abstract class AbstractWebSocket implements WebSocket {
    * @throws IOException
    */
   public void close(int code, byte[] reason) throws IOException {
+    // Only the first caller sends the close frame:
+    if (!hasSentCloseHandshake.compareAndSet(false, true)) {
+      log("The close frame has already been sent");
+      return;
+    }
     CloseFrame responseCloseWraper = new CloseFrame(code, reason);
     DataFrame dataFrame = responseCloseWraper.getDataFrame();
     send(dataFrame);
-    hasSentCloseHandshake = true;
   }
 
   /**
@@ -277,9 +403,532 @@ public abstract class AbstractWebSocket implements WebSocket {
    */
   @Override
   public boolean hasSentCloseHandshake() {
-    return hasSentCloseHandshake;
+    return hasSentCloseHandshake.get();
+  }
+
+  /**
+   * Change the connection state.
+   * 
+   * @param newState
+   */
+  protected void setState(WebSocketState newState) {
+    state = newState;
+    if (newState == WebSocketState.CLOSED) {
+      runClosedTasks();
+    }
+  }
+
+  /**
+   * Change the connection state only if it is the expected one.
+   * 
+   * @param expect
+   * @param update
+   * @return true if the state has been changed.
+   */
+  protected boolean compareAndSetState(WebSocketState expect, WebSocketState update) {
+    return STATE.compareAndSet(this, expect, update);
+  }
+
+  /******************** Outbound data ***********************/
+  /**
+   * Send raw data to server.
+   * 
+   * @param data
+   * @throws IOException
+   */
+  protected void sendData(byte[] data) throws IOException {
+    enqueue(ByteBuffer.wrap(data));
+  }
+
+  /**
+   * Queue buffers that must be written contiguously and write the queue unless another
+   * thread is already writing it, in which case that thread writes them too.
+   * 
+   * @param buffers
+   * @throws IOException
+   */
+  protected void enqueue(ByteBuffer... buffers) throws IOException {
+    enqueue(null, buffers);
+  }
+
+  /**
+   * Queue buffers as {@link #enqueue(ByteBuffer...)} does, releasing the pooled frame they
+   * belong to once written.
+   * 
+   * @param frame the frame to release, or null.
+   * @param buffers
+   * @throws IOException
+   */
+  private void enqueue(PooledFrame frame, ByteBuffer[] buffers) throws IOException {
+    if (stopped) {
+      if (frame != null) {
+        frame.release();
+      }
+      throw new IOException("The connection is closed");
+    }
+    int length = 0;
+    for (ByteBuffer buff : buffers) {
+      if (Utils.isFrameLogging()) {
+        log(">>" + Utils.showPartOfTextIfTooLong(Utils.toHexString(buff, buff.position(), buff.remaining())));
+      }
+      length += buff.remaining();
+    }
+    metrics.recordQueued(length);
+    outbound.offer(new Outbound(buffers, length, frame));
+    flush();
+  }
+
+  /**
+   * Write the queued data until the queue is empty or the transport cannot take more.
+   * 
+   * @throws IOException
+   */
+  protected void flush() throws IOException {
+    while (writing.compareAndSet(false, true)) {
+      boolean drained = false;
+      try {
+        drained = drain();
+      } finally {
+        writing.set(false);
+        // discardOutbound() leaves the queue to the writer, which was us:
+        if (stopped) {
+          discardOutbound();
+        }
+      }
+      if (stopped) {
+        return;
+      }
+      if (!drained) {
+        // Signalled after releasing the writer role so that whoever is notified can take it:
+        onWriteBlocked();
+        return;
+      }
+      if (!writableTasks.isEmpty() && metrics.getPendingBytes() == 0) {
+        runWritableTasks();
+      }
+      // Data queued by a thread that failed to take the writer role while we held it:
+      if (outbound.isEmpty()) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Run the task once all the queued data has been written, on the thread that wrote the
+   * last of it or right away if nothing is queued.
+   * 
+   * @param task
+   */
+  @Override
+  public void whenWritable(Runnable task) {
+    writableTasks.offer(task);
+    // Either this sees the data written or the writer sees the task:
+    if (metrics.getPendingBytes() == 0) {
+      runWritableTasks();
+    }
+  }
+
+  /**
+   * Run the task once the connection is closed, on the thread that closed it or right away if
+   * it is closed already.
+   * 
+   * @param task
+   */
+  @Override
+  public void whenClosed(Runnable task) {
+    closedTasks.offer(task);
+    // Either this sees the state or the closing thread sees the task:
+    if (state == WebSocketState.CLOSED) {
+      runClosedTasks();
+    }
+  }
+
+  private void runClosedTasks() {
+    Runnable task;
+    while ((task = closedTasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        log("A task run on close failed due to " + e);
+      }
+    }
+  }
+
+  private void runWritableTasks() {
+    Runnable task;
+    // Checked for each task, one may have been added after more data was queued:
+    while (metrics.getPendingBytes() == 0 && (task = writableTasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  /**
+   * Write the queued data, being the only writer.
+   * 
+   * @return false if the transport cannot take more for now.
+   * @throws IOException
+   */
+  private boolean drain() throws IOException {
+    Outbound entry;
+    while ((entry = outbound.peek()) != null) {
+      for (ByteBuffer buff : entry.buffers) {
+        if (buff.hasRemaining() && !write(buff)) {
+          return false;
+        }
+      }
+      outbound.poll();
+      // Back in the pool before the data counts as written, for whoever waits on that:
+      if (entry.frame != null) {
+        entry.frame.release();
+      }
+      metrics.recordWritten(entry.length);
+    }
+    return true;
+  }
+
+  /**
+   * Give the frames still queued back to their pool and count their data as dropped, once
+   * the connection is stopped. If another thread holds the writer role, it does this when it
+   * gives the role up.
+   */
+  protected void discardOutbound() {
+    if (!writing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      Outbound entry;
+      while ((entry = outbound.poll()) != null) {
+        if (entry.frame != null) {
+          entry.frame.release();
+        }
+        metrics.recordDropped(entry.length);
+      }
+    } finally {
+      writing.set(false);
+    }
+    // Nothing will be written any more, so these would wait forever:
+    if (!writableTasks.isEmpty() && metrics.getPendingBytes() == 0) {
+      runWritableTasks();
+    }
+  }
+
+  /**
+   * Called when the transport could not take all the queued data, so that the rest is
+   * written with {@link #flush()} once it can.
+   */
+  protected void onWriteBlocked() {
+  }
+
+  /**
+   * Data queued to be written contiguously.
+   */
+  private static final class Outbound {
+
+    final ByteBuffer[] buffers;
+    final int length;
+    final PooledFrame frame;
+
+    Outbound(ByteBuffer[] buffers, int length, PooledFrame frame) {
+      this.buffers = buffers;
+      this.length = length;
+      this.frame = frame;
+    }
+
+  }
+
+  /******************** Inbound data ***********************/
+  /**
+   * Check the response to the opening handshake, once its status code and headers are
+   * parsed, and mark the handshake finished.
+   * 
+   * @param webSocketKey the key sent with the request.
+   * @return false if the status code is not 101.
+   * @throws HandShakeException if the headers do not accept the upgrade.
+   */
+  protected boolean acceptHandshake(WebSocketKey webSocketKey) throws HandShakeException {
+
+    handshakeFinished = true;
+    if (responsStatusCode != 101) {
+      return false;
+    }
+
+    // Check the 'Upgrade' header:
+    String upgradeHeader = responseHeaders.get("upgrade");
+    if (upgradeHeader == null || !upgradeHeader.equalsIgnoreCase("websocket")) {
+      throw new HandShakeException("Lack the Upgrade header or the header value is not websocket: " + upgradeHeader);
+    }
+
+    // Check the 'Connection' header:
+    String connectionHeader = responseHeaders.get("connection");
+    if (connectionHeader == null || !connectionHeader.toLowerCase().contains("upgrade")) {
+      throw new HandShakeException("Lack the Connection header or the header value does not contain 'Upgrade': "
+          + connectionHeader);
+    }
+
+    // Check the 'Sec-WebSocket-Accept' header:
+    String acceptHeader = responseHeaders.get("Sec-WebSocket-Accept".toLowerCase());
+    if (acceptHeader == null || !acceptHeader.equals(webSocketKey.getAccept())) {
+      throw new HandShakeException("Lack the Sec-WebSocket-Accept header or the header value is not "
+          + webSocketKey.getAccept() + ": " + acceptHeader);
+    }
+    return true;
+
+  }
+
+  /**
+   * Process a frame decoded in a buffer: hand its payload to the frame listeners, then build
+   * the frame objects and the messages for the listeners, if there are any.
+   * 
+   * @param frame the decoder that found the frame.
+   * @param view a read-only view of the buffer holding the frame.
+   * @param start the position of the frame in the buffer.
+   * @param fragmentAssembler the fragments of the message in progress.
+   * @throws ProtocolException
+   */
+  protected void proceedFrame(FrameDecoder frame, ByteBuffer view, int start, FragmentAssembler fragmentAssembler)
+      throws ProtocolException {
+
+    int opcode = frame.opcode;
+
+    if (frameListeners.length > 0 && frame.isValid()) {
+      view.limit(frame.payloadEnd).position(frame.payloadStart);
+      fireFrame(opcode, frame.fin, frame.rsv, view);
+    }
+
+    if (listeners.isEmpty()) {
+      // Nobody needs the frame objects, only keep track of the closing handshake:
+      frame.validate();
+      if (opcode == 0x08) {
+        compareAndSetState(WebSocketState.OPEN, WebSocketState.CLOSING);
+        hasReceivedCloseHandshake = true;
+      }
+      return;
+    }
+
+    byte[] rawData = new byte[frame.frameLength];
+    view.limit(start + rawData.length).position(start);
+    view.get(rawData);
+    DataFrame dataFrame = new DataFrame(rawData);
+
+    if (Utils.isFrameLogging()) {
+      log("<<" + dataFrame);
+    }
+
+    fireDataFrame(dataFrame);
+
+    dataFrame.validate();
+
+    if (opcode == 0x08) {
+      // If close frame:
+      compareAndSetState(WebSocketState.OPEN, WebSocketState.CLOSING);
+      CloseFrame closeFrame = new CloseFrame(dataFrame);
+      hasReceivedCloseHandshake = true;
+      fireClose(closeFrame);
+    } else if (opcode == 0x09) {
+      // If ping frame:
+      PingFrame pingFrame = new PingFrame(dataFrame);
+      firePing(pingFrame);
+    } else if (opcode == 0x0A) {
+      // If pong frame:
+      PongFrame pongFrame = new PongFrame(dataFrame);
+      firePong(pongFrame);
+    } else if (opcode <= 0x02) {
+      // Text, binary or continuation frame:
+      if (fragmentAssembler.add(dataFrame)) {
+        if (fragmentAssembler.isText()) {
+          fireMessage(fragmentAssembler.composeText());
+        } else {
+          fireMessage(fragmentAssembler.composeBinary());
+        }
+      }
+    }
+
+  }
+
+  /******************** Listener events ***********************/
+  /**
+   * Invoke the frame listeners on the current thread.
+   * 
+   * @param opcode
+   * @param fin
+   * @param rsv
+   * @param payload a read-only view, only valid during the call.
+   */
+  protected void fireFrame(int opcode, boolean fin, int rsv, ByteBuffer payload) {
+    FrameListener[] current = frameListeners;
+    int position = payload.position();
+    for (int i = 0; i < current.length; i++) {
+      // Each listener sees the whole payload:
+      payload.position(position);
+      try {
+        current[i].onFrame(opcode, fin, rsv, payload);
+      } catch (RuntimeException e) {
+        metrics.recordListenerError();
+        log("A frame listener failed due to " + e);
+        e.printStackTrace();
+      }
+    }
+  }
+
+  protected void fireDataFrame(DataFrame dataFrame) {
+    eventDispatcher.dispatch(EventDispatcher.DATA_FRAME, dataFrame);
+  }
+
+  protected void fireMessage(String msg) {
+    inboundQueued(msg.length());
+    eventDispatcher.dispatch(EventDispatcher.TEXT_MESSAGE, msg);
+  }
+
+  protected void fireMessage(byte[] binaryData) {
+    inboundQueued(binaryData.length);
+    eventDispatcher.dispatch(EventDispatcher.BINARY_MESSAGE, binaryData);
+  }
+
+  protected void fireClose(CloseFrame closeFrame) {
+    eventDispatcher.dispatch(EventDispatcher.CLOSE, closeFrame);
+  }
+
+  protected void firePing(PingFrame pingFrame) {
+    eventDispatcher.dispatch(EventDispatcher.PING, pingFrame);
+  }
+
+  protected void firePong(PongFrame pongFrame) {
+    eventDispatcher.dispatch(EventDispatcher.PONG, pongFrame);
+  }
+
+  protected void fireError(ProtocolException e) {
+    eventDispatcher.dispatch(EventDispatcher.ERROR, e);
+  }
+
+  /**
+   * Stop dispatching once the pending events have been delivered.
+   */
+  protected void stopDispatching() {
+    eventDispatcher.shutdown();
+  }
+
+  /**
+   * Invoke the listeners for the given event.
+   * 
+   * @param event
+   * @param payload
+   */
+  void deliver(int event, Object payload) {
+    metrics.recordDispatch();
+    try {
+      deliverToListeners(event, payload);
+    } finally {
+      if (event == EventDispatcher.TEXT_MESSAGE) {
+        inboundConsumed(((String) payload).length());
+      } else if (event == EventDispatcher.BINARY_MESSAGE) {
+        inboundConsumed(((byte[]) payload).length);
+      }
+    }
+  }
+
+  private void deliverToListeners(int event, Object payload) {
+    for (WebSocketListener listener : listeners) {
+      switch (event) {
+      case EventDispatcher.DATA_FRAME:
+        listener.onDataFrame((DataFrame) payload);
+        break;
+      case EventDispatcher.TEXT_MESSAGE:
+        listener.onMessage((String) payload);
+        break;
+      case EventDispatcher.BINARY_MESSAGE:
+        listener.onMessage((byte[]) payload);
+        break;
+      case EventDispatcher.CLOSE:
+        listener.onClose((CloseFrame) payload);
+        break;
+      case EventDispatcher.PING:
+        listener.onPing((PingFrame) payload);
+        break;
+      case EventDispatcher.PONG:
+        listener.onPong((PongFrame) payload);
+        break;
+      case EventDispatcher.ERROR:
+        listener.onError((ProtocolException) payload);
+        break;
+      default:
+        break;
+      }
+    }
   }
 
+  /******************** Read backpressure ***********************/
+  /**
+   * Account for a message handed to the listeners, counting one byte per character for
+   * text, and stop reading at the high watermark.
+   * 
+   * @param bytes
+   */
+  private void inboundQueued(long bytes) {
+    metrics.recordInboundQueued(bytes);
+    long high = readHighWatermark;
+    if (high > 0 && metrics.getInboundPendingBytes() >= high && pausedByWatermark.compareAndSet(false, true)) {
+      metrics.recordReadPaused();
+      onReadingChanged();
+      // The listeners may have caught up before the flag was set and not seen it:
+      resumeIfBelowLowWatermark();
+    }
+  }
+
+  /**
+   * Account for a message handled by the listeners and read again at the low watermark.
+   * 
+   * @param bytes
+   */
+  private void inboundConsumed(long bytes) {
+    metrics.recordInboundConsumed(bytes);
+    if (pausedByWatermark.get()) {
+      resumeIfBelowLowWatermark();
+    }
+  }
+
+  private void resumeIfBelowLowWatermark() {
+    if (metrics.getInboundPendingBytes() <= readLowWatermark && pausedByWatermark.compareAndSet(true, false)) {
+      metrics.recordReadResumed();
+      onReadingChanged();
+    }
+  }
+
+  /**
+   * Stop reading until {@link #resumeReading()} is called as many times.
+   */
+  @Override
+  public void pauseReading() {
+    readHolds.incrementAndGet();
+    onReadingChanged();
+  }
+
+  /**
+   * Undo a call to {@link #pauseReading()}.
+   */
+  @Override
+  public void resumeReading() {
+    if (readHolds.decrementAndGet() < 0) {
+      readHolds.incrementAndGet();
+      throw new IllegalStateException("Reading is not paused");
+    }
+    onReadingChanged();
+  }
+
+  /**
+   * Check whether reading is stopped, by the watermark or by a pause.
+   * 
+   * @return
+   */
+  protected boolean isReadingHeld() {
+    return pausedByWatermark.get() || readHolds.get() > 0;
+  }
+
+  /**
+   * Called when reading is held or released; the implementation checks
+   * {@link #isReadingHeld()}, so the calls may arrive in any order.
+   */
+  protected abstract void onReadingChanged();
+
   /**
    * Utility log.
    * 
@@ -289,7 +938,15 @@ public abstract class AbstractWebSocket implements WebSocket {
     System.out.println(sdf.format(new Date()) + "WebSocket[" + instanceId + "]:" + msg);
   }
 
-  protected abstract void sendData(byte[] data) throws IOException;
+  /**
+   * Write as much of the buffer as the transport takes. This is only called by one thread
+   * at a time.
+   * 
+   * @param buff
+   * @return false if the rest of the buffer can not be written for now.
+   * @throws IOException
+   */
+  protected abstract boolean write(ByteBuffer buff) throws IOException;
 
   protected abstract void disconnect();
 
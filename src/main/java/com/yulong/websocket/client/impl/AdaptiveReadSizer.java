@@ -0,0 +1,74 @@
+package com.yulong.websocket.client.impl;
+
+/**
+ * Predicts how large the receive buffer should be from the size of the recent reads. The
+ * size doubles as soon as a read fills the space it was given, and halves after reads have
+ * used less than half of it several times in a row, between a minimum and a maximum.
+ */
+class AdaptiveReadSizer {
+
+  // How many small reads in a row before shrinking:
+  static final int SHRINK_AFTER = 4;
+
+  private final int minimum;
+  private final int maximum;
+  private int size;
+  private int smallReads = 0;
+
+  /**
+   * @param minimum
+   * @param initial
+   * @param maximum
+   */
+  AdaptiveReadSizer(int minimum, int initial, int maximum) {
+    if (minimum <= 0 || initial < minimum || maximum < initial) {
+      throw new IllegalArgumentException("Expecting 0 < minimum <= initial <= maximum: " + minimum + ", " + initial
+          + ", " + maximum);
+    }
+    this.minimum = minimum;
+    this.maximum = maximum;
+    this.size = initial;
+  }
+
+  /**
+   * Record the outcome of a read.
+   *
+   * @param bytesRead
+   * @param attempted the space the read was given.
+   */
+  void record(int bytesRead, int attempted) {
+    if (bytesRead >= attempted) {
+      smallReads = 0;
+      size = Math.min(maximum, Math.max(size, attempted) * 2);
+    } else if (bytesRead < size / 2) {
+      if (++smallReads >= SHRINK_AFTER) {
+        smallReads = 0;
+        size = Math.max(minimum, size / 2);
+      }
+    } else {
+      smallReads = 0;
+    }
+  }
+
+  /**
+   * To get the predicted size of the receive buffer.
+   *
+   * @return
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * To check whether the last read filled the space it was given, in which case more data is
+   * probably waiting in the socket.
+   *
+   * @param bytesRead
+   * @param attempted
+   * @return
+   */
+  static boolean mayHaveMore(int bytesRead, int attempted) {
+    return bytesRead > 0 && bytesRead >= attempted;
+  }
+
+}
@@ -0,0 +1,100 @@
+package com.yulong.websocket.client.impl;
+
+import java.nio.ByteBuffer;
+
+import com.yulong.websocket.client.frames.DataFrame;
+import com.yulong.websocket.client.utils.Utils;
+
+/**
+ * A builder to compose a data frame with the received data.
+ * 
+ * @author @author Yulong Shi(yu.long.shi@oracle.com)
+ * @since 4/20/2012 12c
+ *
+ */
+class DataFrameBuilder {
+
+  private boolean mask = false;
+  private int payloadLength = -1;
+
+  ByteBuffer basicBuff = ByteBuffer.allocate(14);
+  ByteBuffer rawDataBuff = null;
+  int rawDataLength = -1;
+
+  public DataFrame build(ByteBuffer dataBuff) {
+
+    DataFrame dataFrame = null;
+
+    while (dataBuff.hasRemaining()) {
+
+      byte b = dataBuff.get();
+      //log("processing byte: " + Utils.toHexString(b));
+
+      if (basicBuff.position() == 0) {
+        basicBuff.put(b);
+        continue;
+      }
+
+      if (basicBuff.position() == 1) {
+        basicBuff.put(b);
+        mask = ((b & 0x80) == 0x80);
+        payloadLength = (b & 0x7f);
+        if (payloadLength <= 125) {
+          basicBuff.limit(2);
+        } else if (payloadLength == 126) {
+          basicBuff.limit(2 + 2);
+        } else if (payloadLength == 127) {
+          basicBuff.limit(2 + 8);
+        }
+        if (mask) {
+          basicBuff.limit(basicBuff.limit() + 4);
+        }
+        if (payloadLength == 0 && !mask) {
+          byte[] rawData = new byte[2];
+          basicBuff.clear();
+          basicBuff.get(rawData);
+          return new DataFrame(rawData);
+        }
+        continue;
+      }
+
+      if (basicBuff.remaining() > 0) {
+        basicBuff.put(b);
+      }
+      if (basicBuff.remaining() == 0) {
+        if (rawDataLength == -1) {
+          // calculate the data length that needs to be read:
+          long dataLength = payloadLength;
+          if (payloadLength == 126) {
+            dataLength = Utils.toInt(basicBuff, 2, 2);
+          } else if (payloadLength == 127) {
+            dataLength = Utils.toLong(basicBuff, 2, 8);
+          }
+          if (dataLength < 0 || dataLength > Integer.MAX_VALUE) {
+            dataLength = 0;
+          }
+          rawDataLength = basicBuff.limit() + (int) dataLength;
+          rawDataBuff = ByteBuffer.allocate(rawDataLength);
+          basicBuff.position(0);
+          rawDataBuff.put(basicBuff);
+          basicBuff.position(basicBuff.limit());
+          if (dataLength != 0 && basicBuff.limit() > 2) {
+            // in this case, as we have read 'b' in basicBuff and we may need to read it again,
+            // set the new position to 'position-1':
+            rawDataBuff.position(rawDataBuff.position() - 1);
+          }
+        }
+        if (rawDataBuff.remaining() > 0) {
+          rawDataBuff.put(b);
+        }
+        if (rawDataBuff.remaining() == 0) {
+          dataFrame = new DataFrame(rawDataBuff.array());
+          break;
+        }
+      }
+    }
+
+    return dataFrame;
+
+  }
+}
@@ -0,0 +1,242 @@
+package com.yulong.websocket.client.impl;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.yulong.websocket.client.ListenerDispatch;
+import com.yulong.websocket.client.utils.Threads;
+
+/**
+ * Hands the events read from a connection over to its listeners according to the
+ * configured {@link ListenerDispatch}. The events of one connection are always delivered
+ * one at a time and in order.
+ */
+abstract class EventDispatcher {
+
+  // The event types:
+  static final int DATA_FRAME = 0;
+  static final int TEXT_MESSAGE = 1;
+  static final int BINARY_MESSAGE = 2;
+  static final int CLOSE = 3;
+  static final int PING = 4;
+  static final int PONG = 5;
+  static final int ERROR = 6;
+
+  protected final AbstractWebSocket webSocket;
+
+  EventDispatcher(AbstractWebSocket webSocket) {
+    this.webSocket = webSocket;
+  }
+
+  /**
+   * Create the dispatcher of a connection.
+   *
+   * @param webSocket
+   * @param listenerDispatch
+   * @return
+   */
+  static EventDispatcher create(AbstractWebSocket webSocket, ListenerDispatch listenerDispatch) {
+    switch (listenerDispatch.getMode()) {
+    case SERIAL:
+      return new SerialDispatcher(webSocket, listenerDispatch.getExecutor());
+    case VIRTUAL_THREAD:
+      return new ThreadDispatcher(webSocket);
+    case RING_BUFFER:
+      return new RingBufferDispatcher(webSocket, listenerDispatch.getRingSize(), listenerDispatch.getWaitStrategy());
+    default:
+      return new InlineDispatcher(webSocket);
+    }
+  }
+
+  /**
+   * Dispatch an event with its payload.
+   *
+   * @param event
+   * @param payload
+   */
+  abstract void dispatch(int event, Object payload);
+
+  /**
+   * Release the resources once the pending events have been delivered.
+   */
+  void shutdown() {
+  }
+
+  /**
+   * Deliver an event that has been handed off from the reading thread.
+   *
+   * @param event
+   */
+  protected void deliverHandedOff(Event event) {
+    deliverHandedOff(event.type, event.payload, event.enqueueNanos);
+  }
+
+  /**
+   * Deliver an event that has been handed off from the reading thread.
+   *
+   * @param type
+   * @param payload
+   * @param enqueueNanos
+   */
+  protected void deliverHandedOff(int type, Object payload, long enqueueNanos) {
+    webSocket.getMetrics().recordHandoff(System.nanoTime() - enqueueNanos);
+    try {
+      webSocket.deliver(type, payload);
+    } catch (RuntimeException e) {
+      webSocket.getMetrics().recordListenerError();
+      webSocket.log("A listener failed to handle the event " + type + " due to " + e);
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * An event waiting to be delivered.
+   */
+  static final class Event {
+
+    final int type;
+    final Object payload;
+    final long enqueueNanos;
+
+    Event(int type, Object payload) {
+      this.type = type;
+      this.payload = payload;
+      this.enqueueNanos = System.nanoTime();
+    }
+
+  }
+
+  /**
+   * Invoke the listeners on the reading thread.
+   */
+  static final class InlineDispatcher extends EventDispatcher {
+
+    InlineDispatcher(AbstractWebSocket webSocket) {
+      super(webSocket);
+    }
+
+    @Override
+    void dispatch(int event, Object payload) {
+      webSocket.deliver(event, payload);
+    }
+
+  }
+
+  /**
+   * Invoke the listeners on a shared pool. At most one task of a connection is submitted at a
+   * time, which keeps the events in order, and each task delivers a bounded batch so that a busy
+   * connection does not starve the others.
+   */
+  static final class SerialDispatcher extends EventDispatcher implements Runnable {
+
+    private static final int BATCH_SIZE = 64;
+
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<Event>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    SerialDispatcher(AbstractWebSocket webSocket, Executor executor) {
+      super(webSocket);
+      this.executor = executor;
+    }
+
+    @Override
+    void dispatch(int event, Object payload) {
+      queue.offer(new Event(event, payload));
+      schedule();
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < BATCH_SIZE; i++) {
+        Event event = queue.poll();
+        if (event == null) {
+          break;
+        }
+        deliverHandedOff(event);
+      }
+      scheduled.set(false);
+      if (!queue.isEmpty()) {
+        schedule();
+      }
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        try {
+          executor.execute(this);
+        } catch (RejectedExecutionException e) {
+          // The pool is shutting down, deliver on the current thread rather than lose the events:
+          run();
+        }
+      }
+    }
+
+  }
+
+  /**
+   * Invoke the listeners on a dedicated thread of the connection, a virtual thread where
+   * supported. The thread is started on demand and ends after being idle for a while.
+   */
+  static final class ThreadDispatcher extends EventDispatcher implements Runnable {
+
+    private static final long IDLE_SECONDS = 60;
+    private static final Event SHUTDOWN = new Event(-1, null);
+
+    private final BlockingQueue<Event> queue = new LinkedBlockingQueue<Event>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    ThreadDispatcher(AbstractWebSocket webSocket) {
+      super(webSocket);
+    }
+
+    @Override
+    void dispatch(int event, Object payload) {
+      queue.offer(new Event(event, payload));
+      start();
+    }
+
+    @Override
+    void shutdown() {
+      queue.offer(SHUTDOWN);
+      start();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          Event event = queue.poll(IDLE_SECONDS, TimeUnit.SECONDS);
+          if (event == SHUTDOWN) {
+            running.set(false);
+            return;
+          }
+          if (event == null) {
+            // Idle, end the thread unless an event has just arrived:
+            running.set(false);
+            if (queue.isEmpty() || !running.compareAndSet(false, true)) {
+              return;
+            }
+            continue;
+          }
+          deliverHandedOff(event);
+        }
+      } catch (InterruptedException e) {
+        running.set(false);
+      }
+    }
+
+    private void start() {
+      if (running.compareAndSet(false, true)) {
+        Threads.newVirtualThread(this, "WebSocketDispatch[" + webSocket.instanceId + "]").start();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,109 @@
+package com.yulong.websocket.client.impl;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import com.yulong.websocket.client.frames.DataFrame;
+import com.yulong.websocket.client.utils.Utils;
+
+/**
+ * Collects the fragments of a text or binary message until the final fragment arrives.
+ */
+class FragmentAssembler {
+
+  // A message in a single frame, which needs no list:
+  private DataFrame whole = null;
+  // The fragments of a message, the lists only exist while one is being assembled:
+  private List<DataFrame> textDataFrameList = null;
+  private List<DataFrame> binaryDataFrameList = null;
+
+  /**
+   * Add a text, binary or continuation frame to the message being assembled.
+   *
+   * @param dataFrame
+   * @return true if the frame completes a message.
+   */
+  public boolean add(DataFrame dataFrame) {
+    int opcode = dataFrame.getOpcode();
+    if (opcode == 0x01) {
+      if (textDataFrameList == null && dataFrame.isFin()) {
+        whole = dataFrame;
+        return true;
+      }
+      textDataFrameList = append(textDataFrameList, dataFrame);
+    } else if (opcode == 0x02) {
+      if (binaryDataFrameList == null && dataFrame.isFin()) {
+        whole = dataFrame;
+        return true;
+      }
+      binaryDataFrameList = append(binaryDataFrameList, dataFrame);
+    } else {
+      if (textDataFrameList != null) {
+        textDataFrameList.add(dataFrame);
+      } else if (binaryDataFrameList != null) {
+        binaryDataFrameList.add(dataFrame);
+      }
+    }
+    return dataFrame.isFin() && (textDataFrameList != null || binaryDataFrameList != null);
+  }
+
+  /**
+   * Check whether the message being assembled is a text message.
+   *
+   * @return
+   */
+  public boolean isText() {
+    if (whole != null) {
+      return whole.getOpcode() == 0x01;
+    }
+    return textDataFrameList != null;
+  }
+
+  /**
+   * Compose the text message and reset the assembler.
+   *
+   * @return
+   */
+  public String composeText() {
+    if (whole != null) {
+      String msg = whole.getTextMessage();
+      whole = null;
+      return msg;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (DataFrame dataFrame : textDataFrameList) {
+      sb.append(dataFrame.getTextMessage());
+    }
+    textDataFrameList = null;
+    return sb.toString();
+  }
+
+  /**
+   * Compose the binary message and reset the assembler.
+   *
+   * @return
+   */
+  public byte[] composeBinary() {
+    if (whole != null) {
+      // A copy, the frame may be handed to the frame listeners too:
+      byte[] composed = whole.getApplicationData().clone();
+      whole = null;
+      return composed;
+    }
+    byte[] composed = new byte[0];
+    for (DataFrame dataFrame : binaryDataFrameList) {
+      composed = Utils.combine(composed, dataFrame.getApplicationData());
+    }
+    binaryDataFrameList = null;
+    return composed;
+  }
+
+  private static List<DataFrame> append(List<DataFrame> list, DataFrame dataFrame) {
+    if (list == null) {
+      list = new LinkedList<DataFrame>();
+    }
+    list.add(dataFrame);
+    return list;
+  }
+
+}
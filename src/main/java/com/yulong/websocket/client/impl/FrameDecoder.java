@@ -0,0 +1,101 @@
+package com.yulong.websocket.client.impl;
+
+import java.nio.ByteBuffer;
+
+import com.yulong.websocket.client.ProtocolException;
+
+/**
+ * Decodes the frame header at the position of a receive buffer in place, without copying
+ * the payload or allocating. The fields describe the last decoded frame until the next call.
+ */
+class FrameDecoder {
+
+  boolean fin;
+  int rsv;
+  int opcode;
+  boolean masked;
+  // Absolute positions in the buffer:
+  int payloadStart;
+  int payloadEnd;
+  // The bytes needed for the whole frame, known once the header is complete:
+  int frameLength;
+
+  /**
+   * Decode the header of the frame at the position of the buffer, which is not moved.
+   *
+   * @param buff
+   * @return true if the whole frame is in the buffer, false if more data must be read. In the
+   *         latter case frameLength is the size of the frame if already known, or 0.
+   * @throws ProtocolException if the payload length can not be handled.
+   */
+  boolean decode(ByteBuffer buff) throws ProtocolException {
+    frameLength = 0;
+    int start = buff.position();
+    int available = buff.limit() - start;
+    if (available < 2) {
+      return false;
+    }
+    byte b0 = buff.get(start);
+    byte b1 = buff.get(start + 1);
+    int length7 = b1 & 0x7f;
+    int headerLength = 2;
+    if (length7 == 126) {
+      headerLength += 2;
+    } else if (length7 == 127) {
+      headerLength += 8;
+    }
+    masked = (b1 & 0x80) == 0x80;
+    if (masked) {
+      headerLength += 4;
+    }
+    if (available < headerLength) {
+      return false;
+    }
+
+    long payloadLength = length7;
+    if (length7 == 126) {
+      payloadLength = buff.getShort(start + 2) & 0xffff;
+    } else if (length7 == 127) {
+      payloadLength = buff.getLong(start + 2);
+    }
+    if (payloadLength < 0 || payloadLength > Integer.MAX_VALUE - headerLength) {
+      throw new ProtocolException("The payload length is not correct: " + payloadLength);
+    }
+
+    fin = (b0 & 0x80) == 0x80;
+    rsv = (b0 & 0x70) >> 4;
+    opcode = b0 & 0x0f;
+    payloadStart = start + headerLength;
+    payloadEnd = payloadStart + (int) payloadLength;
+    frameLength = headerLength + (int) payloadLength;
+    return available >= frameLength;
+  }
+
+  /**
+   * Check the last decoded frame the way {@link com.yulong.websocket.client.frames.DataFrame#validate()}
+   * does.
+   *
+   * @return
+   */
+  boolean isValid() {
+    return rsv == 0 && !masked && (opcode <= 2 || (opcode >= 8 && opcode <= 10));
+  }
+
+  /**
+   * Throw the error of the last decoded frame if it is not valid.
+   *
+   * @throws ProtocolException
+   */
+  void validate() throws ProtocolException {
+    if (rsv != 0) {
+      throw new ProtocolException("The rsv value is not 0: " + rsv);
+    }
+    if ((opcode > 2 && opcode < 8) || opcode > 10) {
+      throw new ProtocolException(String.format("The opcode[%s] is undefined.", opcode));
+    }
+    if (masked) {
+      throw new ProtocolException("A server MUST NOT mask any frames that it sends to the client");
+    }
+  }
+
+}
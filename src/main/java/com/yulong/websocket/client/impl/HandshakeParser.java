@@ -0,0 +1,182 @@
+package com.yulong.websocket.client.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.yulong.websocket.client.HandShakeException;
+
+/**
+ * Parses the response to the opening handshake incrementally from the bytes as they are read.
+ * The bytes are accumulated until the empty line ending the headers, and nothing after it is
+ * consumed, so that frames sent right behind the response stay in the buffer for the frame
+ * decoder. The status line and the headers are parsed from the bytes without creating a
+ * String per line.
+ */
+class HandshakeParser {
+
+  // A response with larger headers is refused:
+  static final int MAX_HEADER_SIZE = 64 * 1024;
+
+  private byte[] bytes = new byte[512];
+  private int length = 0;
+  // The last four bytes, to find CRLFCRLF:
+  private int tail = 0;
+  private boolean complete = false;
+
+  private final Map<String, String> headers;
+  private int statusCode = -1;
+
+  /**
+   * To create a parser putting the headers, with lower case names, into the given map.
+   *
+   * @param headers
+   */
+  HandshakeParser(Map<String, String> headers) {
+    this.headers = headers;
+  }
+
+  /**
+   * Consume bytes from the position of the buffer up to the end of the headers.
+   *
+   * @param buff
+   * @return true once the headers are complete; the position of the buffer is then right
+   *         after them.
+   * @throws HandShakeException if the response is malformed or too large.
+   */
+  boolean parse(ByteBuffer buff) throws HandShakeException {
+    while (!complete && buff.hasRemaining()) {
+      update(buff.get());
+    }
+    return complete;
+  }
+
+  /**
+   * Consume one byte of the response.
+   *
+   * @param b
+   * @return true once the headers are complete.
+   * @throws HandShakeException if the response is malformed or too large.
+   */
+  boolean update(byte b) throws HandShakeException {
+    if (complete) {
+      return true;
+    }
+    if (length == bytes.length) {
+      if (length >= MAX_HEADER_SIZE) {
+        throw new HandShakeException("The response headers exceed " + MAX_HEADER_SIZE + " bytes");
+      }
+      byte[] larger = new byte[Math.min(length * 2, MAX_HEADER_SIZE)];
+      System.arraycopy(bytes, 0, larger, 0, length);
+      bytes = larger;
+    }
+    bytes[length++] = b;
+    tail = (tail << 8) | (b & 0xff);
+    if (tail == 0x0d0a0d0a) {
+      complete = true;
+      parseHeaders();
+    }
+    return complete;
+  }
+
+  boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * To get the status code of the response, or -1 before the headers are complete.
+   *
+   * @return
+   */
+  int getStatusCode() {
+    return statusCode;
+  }
+
+  /**
+   * To get the response headers as text, for logging.
+   */
+  @Override
+  public String toString() {
+    return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+  }
+
+  private void parseHeaders() throws HandShakeException {
+    int lineEnd = indexOfCrlf(0);
+    statusCode = parseStatusCode(lineEnd);
+    int start = lineEnd + 2;
+    // The last line is the empty one:
+    while (start < length - 2) {
+      lineEnd = indexOfCrlf(start);
+      parseHeader(start, lineEnd);
+      start = lineEnd + 2;
+    }
+  }
+
+  /**
+   * Get the code from a status line such as "HTTP/1.1 101 Switching Protocols".
+   */
+  private int parseStatusCode(int lineEnd) throws HandShakeException {
+    int i = 0;
+    while (i < lineEnd && bytes[i] != ' ') {
+      i++;
+    }
+    while (i < lineEnd && bytes[i] == ' ') {
+      i++;
+    }
+    int code = 0;
+    int digits = 0;
+    for (; i < lineEnd && bytes[i] >= '0' && bytes[i] <= '9'; i++, digits++) {
+      code = code * 10 + (bytes[i] - '0');
+    }
+    if (digits != 3 || (i < lineEnd && bytes[i] != ' ')) {
+      throw new HandShakeException("Can not get the response status line: " + text(0, lineEnd));
+    }
+    return code;
+  }
+
+  private void parseHeader(int start, int end) throws HandShakeException {
+    int colon = start;
+    while (colon < end && bytes[colon] != ':') {
+      colon++;
+    }
+    if (colon == end || colon == start) {
+      throw new HandShakeException("Malformed response header: " + text(start, end));
+    }
+    int nameEnd = trimEnd(start, colon);
+    char[] name = new char[nameEnd - start];
+    for (int i = start; i < nameEnd; i++) {
+      byte b = bytes[i];
+      name[i - start] = (char) (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xff);
+    }
+    int valueStart = colon + 1;
+    while (valueStart < end && isWhitespace(bytes[valueStart])) {
+      valueStart++;
+    }
+    headers.put(new String(name), text(valueStart, trimEnd(valueStart, end)));
+  }
+
+  private int indexOfCrlf(int from) {
+    for (int i = from; i + 1 < length; i++) {
+      if (bytes[i] == '\r' && bytes[i + 1] == '\n') {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  private int trimEnd(int start, int end) {
+    while (end > start && isWhitespace(bytes[end - 1])) {
+      end--;
+    }
+    return end;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t';
+  }
+
+  private String text(int start, int end) {
+    return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+  }
+
+}
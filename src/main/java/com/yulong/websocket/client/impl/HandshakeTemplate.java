@@ -0,0 +1,175 @@
+package com.yulong.websocket.client.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.yulong.websocket.client.utils.Utils;
+
+/**
+ * The request of the opening handshake to one endpoint, encoded once, with only the
+ * Sec-WebSocket-Key left to splice in. Templates are cached per endpoint so that reconnecting
+ * clients do not build the request again. The optional headers, which may carry credentials,
+ * are never cached: they are appended to the cached part for each request.
+ */
+final class HandshakeTemplate {
+
+  // The endpoints beyond this are not cached, their templates are built each time:
+  static final int MAX_CACHED = 1024;
+  private static final ConcurrentHashMap<Endpoint, HandshakeTemplate> cache = new ConcurrentHashMap<Endpoint, HandshakeTemplate>();
+
+  private final byte[] prefix;
+  private final byte[] suffix;
+
+  private HandshakeTemplate(byte[] prefix, byte[] suffix) {
+    this.prefix = prefix;
+    this.suffix = suffix;
+  }
+
+  private HandshakeTemplate(String host, int port, String path, String version, String[] subProtocols,
+      String[] extensions) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("GET ").append(path).append(" HTTP/1.1\r\n");
+    sb.append("Host: ").append(host).append(':').append(port).append("\r\n");
+    sb.append("Upgrade: websocket\r\n");
+    sb.append("Connection: Upgrade\r\n");
+    sb.append("Origin: http://").append(host).append(':').append(port).append("\r\n");
+    sb.append("Sec-WebSocket-Key: ");
+    prefix = Utils.string2Bytes(sb.toString());
+
+    sb.setLength(0);
+    sb.append("\r\n");
+    if (version != null) {
+      sb.append("Sec-WebSocket-Version: ").append(version).append("\r\n");
+    }
+    if (subProtocols != null) {
+      sb.append("Sec-WebSocket-Protocol: ").append(Utils.array2String(subProtocols)).append("\r\n");
+    }
+    if (extensions != null) {
+      sb.append("Sec-WebSocket-Extensions: ").append(Utils.array2String(extensions)).append("\r\n");
+    }
+    sb.append("\r\n");
+    suffix = Utils.string2Bytes(sb.toString());
+  }
+
+  /**
+   * To get a template sending the given headers after those of this one, not cached.
+   *
+   * @param optionalHeaders
+   * @return
+   */
+  private HandshakeTemplate withHeaders(Map<String, String[]> optionalHeaders) {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, String[]> optionalHeaderEntry : optionalHeaders.entrySet()) {
+      sb.append(optionalHeaderEntry.getKey()).append(": ").append(Utils.array2String(optionalHeaderEntry.getValue()))
+          .append("\r\n");
+    }
+    sb.append("\r\n");
+    byte[] headers = Utils.string2Bytes(sb.toString());
+    // In place of the blank line ending the cached part:
+    byte[] extended = Arrays.copyOf(suffix, suffix.length - 2 + headers.length);
+    System.arraycopy(headers, 0, extended, suffix.length - 2, headers.length);
+    return new HandshakeTemplate(prefix, extended);
+  }
+
+  /**
+   * To get the template for the endpoint, from the cache if it has been built before, with the
+   * optional headers appended if there are any.
+   *
+   * @return
+   */
+  static HandshakeTemplate get(String host, int port, String path, String version, String[] subProtocols,
+      String[] extensions, Map<String, String[]> optionalHeaders) {
+    Endpoint endpoint = new Endpoint(host, port, path, version, subProtocols, extensions);
+    HandshakeTemplate template = cache.get(endpoint);
+    if (template == null) {
+      template = new HandshakeTemplate(host, port, path, version, subProtocols, extensions);
+      if (cache.size() < MAX_CACHED) {
+        HandshakeTemplate existing = cache.putIfAbsent(endpoint, template);
+        if (existing != null) {
+          template = existing;
+        }
+      }
+    }
+    if (optionalHeaders != null && !optionalHeaders.isEmpty()) {
+      return template.withHeaders(optionalHeaders);
+    }
+    return template;
+  }
+
+  /**
+   * To get the request bytes with the given key spliced in.
+   *
+   * @param key the base-64 encoded key, which is ASCII.
+   * @return
+   */
+  byte[] request(String key) {
+    int keyLength = key.length();
+    byte[] request = new byte[prefix.length + keyLength + suffix.length];
+    System.arraycopy(prefix, 0, request, 0, prefix.length);
+    for (int i = 0; i < keyLength; i++) {
+      request[prefix.length + i] = (byte) key.charAt(i);
+    }
+    System.arraycopy(suffix, 0, request, prefix.length + keyLength, suffix.length);
+    return request;
+  }
+
+  /**
+   * To get the request with the given key as text, for logging.
+   *
+   * @param key
+   * @return
+   */
+  String toString(String key) {
+    return new String(request(key), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * What the request depends on. The arrays are copied since the caller may change them.
+   */
+  private static final class Endpoint {
+
+    private final String host;
+    private final int port;
+    private final String path;
+    private final String version;
+    private final String[] subProtocols;
+    private final String[] extensions;
+    private final int hash;
+
+    Endpoint(String host, int port, String path, String version, String[] subProtocols, String[] extensions) {
+      this.host = host;
+      this.port = port;
+      this.path = path;
+      this.version = version;
+      this.subProtocols = subProtocols == null ? null : subProtocols.clone();
+      this.extensions = extensions == null ? null : extensions.clone();
+      int h = Arrays.hashCode(new Object[] { host, port, path, version });
+      h = 31 * h + Arrays.hashCode(this.subProtocols);
+      this.hash = 31 * h + Arrays.hashCode(this.extensions);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Endpoint)) {
+        return false;
+      }
+      Endpoint other = (Endpoint) obj;
+      return hash == other.hash && port == other.port && eq(host, other.host) && eq(path, other.path)
+          && eq(version, other.version) && Arrays.equals(subProtocols, other.subProtocols)
+          && Arrays.equals(extensions, other.extensions);
+    }
+
+    private static boolean eq(Object a, Object b) {
+      return a == null ? b == null : a.equals(b);
+    }
+
+  }
+
+}
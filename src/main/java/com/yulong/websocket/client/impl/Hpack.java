@@ -0,0 +1,426 @@
+package com.yulong.websocket.client.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK (RFC 7541), the header compression of HTTP/2, as far as the opening handshake of a
+ * WebSocket over HTTP/2 needs it.
+ *
+ * The encoder never adds to the dynamic table: each field is either indexed in the static table
+ * or a literal not indexed, its name indexed if the static table has it, and the strings are
+ * Huffman coded when that is shorter. So it keeps no state but the table size update it has to
+ * send at the start of the first block. The decoder is complete, since the peer's encoder
+ * decides what it uses; it is only called by the reader of the connection.
+ */
+final class Hpack {
+
+  /** The size of the dynamic table a decoder starts with, until the settings say otherwise. */
+  static final int DEFAULT_TABLE_SIZE = 4096;
+
+  // RFC 7541 Appendix A, 1-based:
+  private static final String[][] STATIC_TABLE = {
+      { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+      { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+      { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+      { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" },
+      { "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" },
+      { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" }, { "authorization", "" },
+      { "cache-control", "" }, { "content-disposition", "" }, { "content-encoding", "" },
+      { "content-language", "" }, { "content-length", "" }, { "content-location", "" },
+      { "content-range", "" }, { "content-type", "" }, { "cookie", "" }, { "date", "" }, { "etag", "" },
+      { "expect", "" }, { "expires", "" }, { "from", "" }, { "host", "" }, { "if-match", "" },
+      { "if-modified-since", "" }, { "if-none-match", "" }, { "if-range", "" },
+      { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" }, { "location", "" },
+      { "max-forwards", "" }, { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+      { "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+      { "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" },
+      { "vary", "" }, { "via", "" }, { "www-authenticate", "" } };
+
+  // RFC 7541 Appendix B, the code and its length in bits of each octet and of EOS (256):
+  private static final int[] HUFFMAN_CODES = {
+      0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+      0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+      0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee,
+      0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+      0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9,
+      0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa,
+      0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb,
+      0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+      0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b,
+      0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+      0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21,
+      0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+      0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+      0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+      0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73,
+      0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+      0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5,
+      0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+      0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76,
+      0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+      0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+      0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+      0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+      0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+      0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1,
+      0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+      0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd,
+      0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+      0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf,
+      0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2,
+      0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+      0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+      0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2,
+      0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+      0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+      0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+      0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3,
+      0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+      0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb,
+      0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+      0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8,
+      0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+      0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+      0x3fffffff };
+
+  private static final byte[] HUFFMAN_LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+      28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+      6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+      5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+      13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+      15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+      6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+      20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+      24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+      22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+      21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+      26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+      19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+      20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+      26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+      30 };
+
+  // The decoding tree of the Huffman code: the children of node n are at 2n and 2n + 1, a
+  // positive entry is the index of a node and a negative one -1 - the symbol of a leaf:
+  private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+  private Hpack() {
+  }
+
+  private static int[] buildHuffmanTree() {
+    int[] tree = new int[2 * HUFFMAN_CODES.length];
+    int nodes = 1;
+    for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+      int node = 0;
+      for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+        int slot = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+        if (bit == 0) {
+          tree[slot] = -1 - symbol;
+        } else {
+          if (tree[slot] == 0) {
+            tree[slot] = nodes++;
+          }
+          node = tree[slot];
+        }
+      }
+    }
+    return tree;
+  }
+
+  /**
+   * The encoder of the header blocks sent on one connection. The blocks must be sent in the
+   * order they are encoded.
+   */
+  static final class Encoder {
+
+    private boolean tableSizeSent = false;
+
+    /**
+     * Encode a header block.
+     *
+     * @param fields the names, in lower case, and the values.
+     * @return
+     */
+    byte[] encode(List<String[]> fields) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+      if (!tableSizeSent) {
+        // Tell the decoder the dynamic table is not used, whatever the settings allow:
+        encodeInteger(out, 0x20, 5, 0);
+        tableSizeSent = true;
+      }
+      for (String[] field : fields) {
+        encodeField(out, field[0], field[1]);
+      }
+      return out.toByteArray();
+    }
+
+    private void encodeField(ByteArrayOutputStream out, String name, String value) {
+      int nameIndex = 0;
+      for (int i = 0; i < STATIC_TABLE.length; i++) {
+        if (STATIC_TABLE[i][0].equals(name)) {
+          if (STATIC_TABLE[i][1].equals(value)) {
+            encodeInteger(out, 0x80, 7, i + 1);
+            return;
+          }
+          if (nameIndex == 0) {
+            nameIndex = i + 1;
+          }
+        }
+      }
+      // A literal without indexing:
+      encodeInteger(out, 0x00, 4, nameIndex);
+      if (nameIndex == 0) {
+        encodeString(out, name);
+      }
+      encodeString(out, value);
+    }
+
+  }
+
+  /**
+   * The decoder of the header blocks received on one connection, with its dynamic table.
+   */
+  static final class Decoder {
+
+    // The most recent entry first:
+    private final List<String[]> dynamicTable = new ArrayList<String[]>();
+    private int tableSize = 0;
+    private int maxTableSize;
+    // The largest size the encoder may set, as announced in the settings:
+    private final int settingsTableSize;
+
+    Decoder(int settingsTableSize) {
+      this.settingsTableSize = settingsTableSize;
+      this.maxTableSize = settingsTableSize;
+    }
+
+    /**
+     * Decode a whole header block, putting the fields into the map. The values of a name that
+     * occurs more than once are joined with commas.
+     *
+     * @param block
+     * @param headers
+     * @throws IOException if the block is malformed, which is a COMPRESSION_ERROR.
+     */
+    void decode(ByteBuffer block, Map<String, String> headers) throws IOException {
+      boolean first = true;
+      while (block.hasRemaining()) {
+        int b = block.get(block.position()) & 0xff;
+        if ((b & 0x80) != 0) {
+          String[] field = field(decodeInteger(block, 7));
+          add(headers, field[0], field[1]);
+        } else if ((b & 0xe0) == 0x20) {
+          if (!first) {
+            throw new IOException("A dynamic table size update after a header field");
+          }
+          int size = decodeInteger(block, 5);
+          if (size > settingsTableSize) {
+            throw new IOException("The dynamic table size " + size + " is over " + settingsTableSize);
+          }
+          maxTableSize = size;
+          evict(0);
+          continue;
+        } else {
+          boolean indexing = (b & 0xc0) == 0x40;
+          int nameIndex = decodeInteger(block, indexing ? 6 : 4);
+          String name = nameIndex == 0 ? decodeString(block) : field(nameIndex)[0];
+          String value = decodeString(block);
+          if (indexing) {
+            insert(name, value);
+          }
+          add(headers, name, value);
+        }
+        first = false;
+      }
+    }
+
+    /**
+     * To get the size of the dynamic table as RFC 7541 counts it, for tests.
+     *
+     * @return
+     */
+    int getTableSize() {
+      return tableSize;
+    }
+
+    private String[] field(int index) throws IOException {
+      if (index >= 1 && index <= STATIC_TABLE.length) {
+        return STATIC_TABLE[index - 1];
+      }
+      int dynamic = index - STATIC_TABLE.length - 1;
+      if (index < 1 || dynamic >= dynamicTable.size()) {
+        throw new IOException("No header field at index " + index);
+      }
+      return dynamicTable.get(dynamic);
+    }
+
+    private void insert(String name, String value) {
+      int size = entrySize(name, value);
+      evict(size);
+      // An entry larger than the table empties it and is not added:
+      if (size <= maxTableSize) {
+        dynamicTable.add(0, new String[] { name, value });
+        tableSize += size;
+      }
+    }
+
+    /**
+     * Evict the oldest entries until the given room is left.
+     */
+    private void evict(int room) {
+      while (!dynamicTable.isEmpty() && tableSize + room > maxTableSize) {
+        String[] oldest = dynamicTable.remove(dynamicTable.size() - 1);
+        tableSize -= entrySize(oldest[0], oldest[1]);
+      }
+    }
+
+    private static int entrySize(String name, String value) {
+      // The strings are ISO-8859-1, one octet per character:
+      return name.length() + value.length() + 32;
+    }
+
+    private static void add(Map<String, String> headers, String name, String value) {
+      String previous = headers.get(name);
+      headers.put(name, previous == null ? value : previous + ", " + value);
+    }
+
+  }
+
+  /**
+   * Encode an integer with an N-bit prefix, RFC 7541 section 5.1.
+   *
+   * @param out
+   * @param flags the bits of the first octet above the prefix.
+   * @param prefixBits
+   * @param value
+   */
+  static void encodeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+    int max = (1 << prefixBits) - 1;
+    if (value < max) {
+      out.write(flags | value);
+      return;
+    }
+    out.write(flags | max);
+    value -= max;
+    while (value >= 0x80) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  static int decodeInteger(ByteBuffer in, int prefixBits) throws IOException {
+    int max = (1 << prefixBits) - 1;
+    int value = in.get() & max;
+    if (value < max) {
+      return value;
+    }
+    for (int shift = 0;; shift += 7) {
+      if (!in.hasRemaining()) {
+        throw new IOException("The integer is cut short");
+      }
+      int b = in.get() & 0xff;
+      if (shift > 28 || (shift == 28 && (b & 0x7f) > 0x7)) {
+        throw new IOException("The integer overflows");
+      }
+      value += (b & 0x7f) << shift;
+      if (value < 0) {
+        throw new IOException("The integer overflows");
+      }
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * Encode a string literal, Huffman coded if that is shorter.
+   *
+   * @param out
+   * @param text
+   */
+  static void encodeString(ByteArrayOutputStream out, String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+    long bits = 0;
+    for (byte b : bytes) {
+      bits += HUFFMAN_LENGTHS[b & 0xff];
+    }
+    int huffmanLength = (int) ((bits + 7) / 8);
+    if (huffmanLength >= bytes.length) {
+      encodeInteger(out, 0x00, 7, bytes.length);
+      out.write(bytes, 0, bytes.length);
+      return;
+    }
+    encodeInteger(out, 0x80, 7, huffmanLength);
+    long pending = 0;
+    int pendingBits = 0;
+    for (byte b : bytes) {
+      int symbol = b & 0xff;
+      pending = (pending << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+      pendingBits += HUFFMAN_LENGTHS[symbol];
+      while (pendingBits >= 8) {
+        pendingBits -= 8;
+        out.write((int) (pending >>> pendingBits));
+      }
+    }
+    if (pendingBits > 0) {
+      // Padded with the most significant bits of EOS, that is ones:
+      out.write((int) ((pending << (8 - pendingBits)) | (0xff >>> pendingBits)));
+    }
+  }
+
+  static String decodeString(ByteBuffer in) throws IOException {
+    if (!in.hasRemaining()) {
+      throw new IOException("The string is missing");
+    }
+    boolean huffman = (in.get(in.position()) & 0x80) != 0;
+    int length = decodeInteger(in, 7);
+    if (length > in.remaining()) {
+      throw new IOException("The string is cut short: " + length + " octets, " + in.remaining() + " left");
+    }
+    if (!huffman) {
+      byte[] bytes = new byte[length];
+      in.get(bytes);
+      return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+    StringBuilder sb = new StringBuilder(length * 8 / 5);
+    int node = 0;
+    // The bits read since the last symbol, which must be at most 7 ones at the end:
+    int tailBits = 0;
+    boolean tailOnes = true;
+    for (int i = 0; i < length; i++) {
+      int b = in.get() & 0xff;
+      for (int bit = 7; bit >= 0; bit--) {
+        int one = (b >>> bit) & 1;
+        int next = HUFFMAN_TREE[2 * node + one];
+        tailBits++;
+        tailOnes &= one == 1;
+        if (next < 0) {
+          int symbol = -1 - next;
+          if (symbol == 256) {
+            throw new IOException("EOS in a Huffman coded string");
+          }
+          sb.append((char) symbol);
+          node = 0;
+          tailBits = 0;
+          tailOnes = true;
+        } else {
+          node = next;
+        }
+      }
+    }
+    if (tailBits > 7 || !tailOnes) {
+      throw new IOException("Invalid padding of a Huffman coded string");
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,769 @@
+package com.yulong.websocket.client.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.utils.Threads;
+
+/**
+ * One HTTP/2 connection carrying any number of WebSockets, each on a stream of its own opened
+ * with the extended CONNECT of RFC 8441. The connection is cleartext HTTP/2 with prior
+ * knowledge (h2c): there is no TLS, hence no ALPN, and no HTTP/1.1 upgrade.
+ *
+ * A daemon thread reads the connection and hands the DATA of each stream to its WebSocket, so
+ * the listeners of the inline dispatch are called on it and a slow listener holds back all the
+ * streams; give them another dispatch unless they are quick. The writers share a lock, and a
+ * DATA frame never gets between the frames of a header block.
+ *
+ * Both directions are flow controlled per stream and per connection. The receive window of a
+ * stream is only given back while its reading is not held, so that pausing one WebSocket stops
+ * its server without stopping the others; the window of the connection is given back as soon as
+ * the data arrives.
+ */
+public final class Http2Connection implements Closeable {
+
+  private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+  // The frame types:
+  static final int DATA = 0x0;
+  static final int HEADERS = 0x1;
+  static final int RST_STREAM = 0x3;
+  static final int SETTINGS = 0x4;
+  static final int PUSH_PROMISE = 0x5;
+  static final int PING = 0x6;
+  static final int GOAWAY = 0x7;
+  static final int WINDOW_UPDATE = 0x8;
+  static final int CONTINUATION = 0x9;
+
+  // The flags:
+  static final int FLAG_END_STREAM = 0x1;
+  static final int FLAG_ACK = 0x1;
+  static final int FLAG_END_HEADERS = 0x4;
+  static final int FLAG_PADDED = 0x8;
+  static final int FLAG_PRIORITY = 0x20;
+
+  // The settings:
+  static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+  static final int SETTINGS_ENABLE_PUSH = 0x2;
+  static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+  static final int SETTINGS_ENABLE_CONNECT_PROTOCOL = 0x8;
+
+  // The error codes:
+  static final int NO_ERROR = 0x0;
+  static final int PROTOCOL_ERROR = 0x1;
+  static final int FLOW_CONTROL_ERROR = 0x3;
+  static final int FRAME_SIZE_ERROR = 0x6;
+  static final int CANCEL = 0x8;
+  static final int COMPRESSION_ERROR = 0x9;
+
+  /** The initial window of a stream and of a connection, and the largest frame, until set. */
+  static final int DEFAULT_WINDOW = 65535;
+  static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+  /** The receive window of the connection, so that the streams do not hold each other back. */
+  static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+  private static final int MAX_WINDOW = Integer.MAX_VALUE;
+  private static final int FRAME_HEADER_LENGTH = 9;
+
+  private final String host;
+  private final int port;
+  private final SocketChannel channel;
+  private final ConcurrentHashMap<Integer, WebSocketHttp2> streams = new ConcurrentHashMap<Integer, WebSocketHttp2>();
+  private final CountDownLatch settingsReceived = new CountDownLatch(1);
+  private volatile boolean closed = false;
+  private volatile boolean connectProtocolEnabled = false;
+  private volatile int maxConcurrentStreams = Integer.MAX_VALUE;
+  // The streams above this one are refused once the server has sent GOAWAY:
+  private volatile int lastStreamId = Integer.MAX_VALUE;
+
+  // Held by whoever writes, and guarding the send side:
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_LENGTH);
+  private final Hpack.Encoder encoder = new Hpack.Encoder();
+  private int nextStreamId = 1;
+  private int sendWindow = DEFAULT_WINDOW;
+  private int initialSendWindow = DEFAULT_WINDOW;
+  private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+  // The streams waiting for window to write:
+  private final List<WebSocketHttp2> blocked = new ArrayList<WebSocketHttp2>();
+
+  // Only used by the reader thread:
+  private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+  private int receivedUncredited = 0;
+  // The header block in progress, continued by CONTINUATION frames:
+  private ByteArrayOutputStream headerBlock = null;
+  private int headerBlockStream = 0;
+  private boolean headerBlockEndsStream = false;
+
+  private Http2Connection(String host, int port, WebSocketConfig config) throws IOException {
+    this.host = host;
+    this.port = port;
+    this.channel = SocketChannel.open();
+    try {
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, config.isTcpNoDelay());
+      if (config.getSendBufferSize() > 0) {
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
+      }
+      if (config.getReceiveBufferSize() > 0) {
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+      }
+      channel.socket().connect(new InetSocketAddress(host, port), config.getConnectTimeoutMillis());
+      writeLock.lock();
+      try {
+        channel.write(ByteBuffer.wrap(PREFACE));
+        ByteBuffer settings = ByteBuffer.allocate(6);
+        settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0).flip();
+        writeFrame(SETTINGS, 0, 0, settings);
+        writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+      } finally {
+        writeLock.unlock();
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    Threads.newDaemonThread(new Runnable() {
+      @Override
+      public void run() {
+        read();
+      }
+    }, "Http2Reader-" + host + ":" + port).start();
+  }
+
+  /**
+   * To connect to an HTTP/2 server and wait for its settings.
+   *
+   * @param host
+   * @param port
+   * @param config the socket options and the timeouts.
+   * @return
+   * @throws IOException if the connection fails or the server does not send its settings
+   *           within the handshake timeout.
+   */
+  public static Http2Connection open(String host, int port, WebSocketConfig config) throws IOException {
+    Http2Connection connection = new Http2Connection(host, port, config);
+    boolean received = false;
+    try {
+      received = connection.settingsReceived.await(config.getHandshakeTimeoutMillis(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!received || connection.closed) {
+      connection.close();
+      throw new IOException("No settings received from " + host + ":" + port);
+    }
+    return connection;
+  }
+
+  /**
+   * Open a WebSocket on a new stream of the connection, waiting for the response within the
+   * handshake timeout of the config.
+   *
+   * @param path
+   * @param config
+   * @return the WebSocket, closed if the server does not accept it.
+   */
+  public WebSocketHttp2 openWebSocket(String path, WebSocketConfig config) {
+    return new WebSocketHttp2(this, path, config);
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * To get the number of WebSockets open on the connection.
+   *
+   * @return
+   */
+  public int getStreamCount() {
+    return streams.size();
+  }
+
+  /**
+   * Check whether the server has enabled the extended CONNECT, without which no WebSocket can
+   * be opened.
+   *
+   * @return
+   */
+  public boolean isConnectProtocolEnabled() {
+    return connectProtocolEnabled;
+  }
+
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  /**
+   * Send GOAWAY and close the connection, with the WebSockets on it.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    writeLock.lock();
+    try {
+      ByteBuffer payload = ByteBuffer.allocate(8);
+      payload.putInt(0).putInt(NO_ERROR).flip();
+      writeFrame(GOAWAY, 0, 0, payload);
+    } catch (IOException e) {
+      // closing anyway
+    } finally {
+      writeLock.unlock();
+    }
+    shutdown();
+  }
+
+  /******************** Streams ***********************/
+  /**
+   * Open a stream for the WebSocket and send the request headers.
+   *
+   * @param webSocket
+   * @param fields the request headers.
+   * @throws IOException if the connection can not take another stream.
+   */
+  void startStream(WebSocketHttp2 webSocket, List<String[]> fields) throws IOException {
+    if (!connectProtocolEnabled) {
+      throw new IOException("The server does not support the extended CONNECT");
+    }
+    writeLock.lock();
+    try {
+      if (closed) {
+        throw new IOException("The connection is closed");
+      }
+      if (streams.size() >= maxConcurrentStreams) {
+        throw new IOException("The server allows no more than " + maxConcurrentStreams + " streams");
+      }
+      if (nextStreamId < 0 || nextStreamId > lastStreamId) {
+        throw new IOException("No stream id left on the connection");
+      }
+      int streamId = nextStreamId;
+      nextStreamId += 2;
+      webSocket.streamId = streamId;
+      webSocket.sendWindow = initialSendWindow;
+      streams.put(streamId, webSocket);
+      // The header block is written as a whole, CONTINUATION frames following right away:
+      ByteBuffer block = ByteBuffer.wrap(encoder.encode(fields));
+      int type = HEADERS;
+      do {
+        ByteBuffer fragment = block.duplicate();
+        fragment.limit(Math.min(block.limit(), block.position() + maxFrameSize));
+        block.position(fragment.limit());
+        writeFrame(type, block.hasRemaining() ? 0 : FLAG_END_HEADERS, streamId, fragment);
+        type = CONTINUATION;
+      } while (block.hasRemaining());
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Write as much of the buffer as the windows of the stream and of the connection allow.
+   *
+   * @param webSocket
+   * @param buff
+   * @return false if a window is exhausted before the end of the buffer; the WebSocket is
+   *         flushed again once the window is updated.
+   * @throws IOException
+   */
+  boolean writeData(WebSocketHttp2 webSocket, ByteBuffer buff) throws IOException {
+    writeLock.lock();
+    try {
+      while (buff.hasRemaining()) {
+        int length = Math.min(Math.min(buff.remaining(), maxFrameSize), Math.min(sendWindow, webSocket.sendWindow));
+        if (length <= 0) {
+          if (!blocked.contains(webSocket)) {
+            blocked.add(webSocket);
+          }
+          return false;
+        }
+        ByteBuffer payload = buff.duplicate();
+        payload.limit(payload.position() + length);
+        writeFrame(DATA, 0, webSocket.streamId, payload);
+        buff.position(payload.limit());
+        sendWindow -= length;
+        webSocket.sendWindow -= length;
+      }
+      return true;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Check whether the windows let the WebSocket write.
+   *
+   * @param webSocket
+   * @return
+   */
+  boolean canWrite(WebSocketHttp2 webSocket) {
+    writeLock.lock();
+    try {
+      return sendWindow > 0 && webSocket.sendWindow > 0;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Give received bytes of a stream back to the server.
+   *
+   * @param webSocket
+   * @param increment
+   * @throws IOException
+   */
+  void creditStream(WebSocketHttp2 webSocket, int increment) throws IOException {
+    writeLock.lock();
+    try {
+      if (streams.get(webSocket.streamId) == webSocket) {
+        writeWindowUpdate(webSocket.streamId, increment);
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Forget the stream of the WebSocket, ending it with an empty DATA frame after the closing
+   * handshake and with RST_STREAM otherwise. Nothing is sent if the stream is already gone.
+   *
+   * @param webSocket
+   * @param orderly
+   */
+  void endStream(WebSocketHttp2 webSocket, boolean orderly) {
+    writeLock.lock();
+    try {
+      blocked.remove(webSocket);
+      if (webSocket.streamId == 0 || !streams.remove(webSocket.streamId, webSocket) || closed) {
+        return;
+      }
+      if (orderly) {
+        writeFrame(DATA, FLAG_END_STREAM, webSocket.streamId, ByteBuffer.allocate(0));
+      } else {
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(CANCEL).flip();
+        writeFrame(RST_STREAM, 0, webSocket.streamId, payload);
+      }
+    } catch (IOException e) {
+      // the reader sees the connection fail
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /******************** Writing ***********************/
+  /**
+   * Write a frame, holding the write lock.
+   */
+  private void writeFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+    frameHeader.clear();
+    int length = payload.remaining();
+    frameHeader.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+    frameHeader.put((byte) type).put((byte) flags).putInt(streamId);
+    frameHeader.flip();
+    ByteBuffer[] buffers = { frameHeader, payload };
+    while (frameHeader.hasRemaining() || payload.hasRemaining()) {
+      channel.write(buffers);
+    }
+  }
+
+  private void writeWindowUpdate(int streamId, int increment) throws IOException {
+    ByteBuffer payload = ByteBuffer.allocate(4);
+    payload.putInt(increment).flip();
+    writeFrame(WINDOW_UPDATE, 0, streamId, payload);
+  }
+
+  /**
+   * Write a frame from the reader thread, taking the write lock.
+   */
+  private void send(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+    writeLock.lock();
+    try {
+      writeFrame(type, flags, streamId, payload);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /******************** Reading ***********************/
+  private void read() {
+    ByteBuffer in = ByteBuffer.allocate(FRAME_HEADER_LENGTH + DEFAULT_MAX_FRAME_SIZE);
+    int errorCode = NO_ERROR;
+    try {
+      while (!closed && channel.read(in) >= 0) {
+        in.flip();
+        while (in.remaining() >= FRAME_HEADER_LENGTH) {
+          int start = in.position();
+          int length = (in.get(start) & 0xff) << 16 | (in.get(start + 1) & 0xff) << 8 | (in.get(start + 2) & 0xff);
+          if (length > DEFAULT_MAX_FRAME_SIZE) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "A frame of " + length + " octets");
+          }
+          if (in.remaining() < FRAME_HEADER_LENGTH + length) {
+            break;
+          }
+          int type = in.get(start + 3) & 0xff;
+          int flags = in.get(start + 4) & 0xff;
+          int streamId = in.getInt(start + 5) & 0x7fffffff;
+          ByteBuffer payload = in.duplicate();
+          payload.limit(start + FRAME_HEADER_LENGTH + length).position(start + FRAME_HEADER_LENGTH);
+          onFrame(type, flags, streamId, payload.slice());
+          in.position(start + FRAME_HEADER_LENGTH + length);
+        }
+        in.compact();
+      }
+    } catch (Http2Exception e) {
+      log("Connection error due to " + e.getMessage());
+      errorCode = e.errorCode;
+    } catch (IOException e) {
+      if (!closed) {
+        log("Failed to read due to " + e);
+      }
+    }
+    if (errorCode != NO_ERROR && !closed) {
+      ByteBuffer payload = ByteBuffer.allocate(8);
+      // The client opens all the streams, so it has processed none of the server's:
+      payload.putInt(0).putInt(errorCode).flip();
+      try {
+        send(GOAWAY, 0, 0, payload);
+      } catch (IOException e) {
+        // closing anyway
+      }
+    }
+    shutdown();
+  }
+
+  private void onFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+    if (headerBlock != null && (type != CONTINUATION || streamId != headerBlockStream)) {
+      throw new Http2Exception(PROTOCOL_ERROR, "A frame of type " + type + " within a header block");
+    }
+    switch (type) {
+    case DATA:
+      onData(flags, streamId, payload);
+      break;
+    case HEADERS:
+      onHeaders(flags, streamId, payload);
+      break;
+    case CONTINUATION:
+      if (headerBlock == null) {
+        throw new Http2Exception(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+      }
+      headerBlock.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+      if ((flags & FLAG_END_HEADERS) != 0) {
+        ByteBuffer block = ByteBuffer.wrap(headerBlock.toByteArray());
+        headerBlock = null;
+        onHeaderBlock(headerBlockStream, block, headerBlockEndsStream);
+      }
+      break;
+    case RST_STREAM:
+      checkStream(streamId, payload, 4);
+      WebSocketHttp2 reset = streams.remove(streamId);
+      if (reset != null) {
+        reset.onReset(payload.getInt(0));
+      }
+      break;
+    case SETTINGS:
+      onSettings(flags, streamId, payload);
+      break;
+    case PUSH_PROMISE:
+      throw new Http2Exception(PROTOCOL_ERROR, "PUSH_PROMISE while push is disabled");
+    case PING:
+      if (streamId != 0 || payload.remaining() != 8) {
+        throw new Http2Exception(PROTOCOL_ERROR, "Invalid PING");
+      }
+      if ((flags & FLAG_ACK) == 0) {
+        send(PING, FLAG_ACK, 0, payload);
+      }
+      break;
+    case GOAWAY:
+      onGoAway(payload);
+      break;
+    case WINDOW_UPDATE:
+      onWindowUpdate(streamId, payload);
+      break;
+    default:
+      // PRIORITY and the unknown types are ignored
+      break;
+    }
+  }
+
+  private void onData(int flags, int streamId, ByteBuffer payload) throws IOException {
+    if (streamId == 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+    }
+    int flowLength = payload.remaining();
+    stripPadding(flags, payload);
+    // The connection window is given back right away, whatever the stream does with the data:
+    receivedUncredited += flowLength;
+    if (receivedUncredited >= CONNECTION_WINDOW / 2) {
+      ByteBuffer increment = ByteBuffer.allocate(4);
+      increment.putInt(receivedUncredited).flip();
+      send(WINDOW_UPDATE, 0, 0, increment);
+      receivedUncredited = 0;
+    }
+    WebSocketHttp2 webSocket = streams.get(streamId);
+    if (webSocket != null) {
+      webSocket.onData(payload, flowLength, (flags & FLAG_END_STREAM) != 0);
+    }
+  }
+
+  private void onHeaders(int flags, int streamId, ByteBuffer payload) throws IOException {
+    if (streamId == 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream 0");
+    }
+    stripPadding(flags, payload);
+    if ((flags & FLAG_PRIORITY) != 0) {
+      if (payload.remaining() < 5) {
+        throw new Http2Exception(FRAME_SIZE_ERROR, "HEADERS too short for its priority");
+      }
+      payload.position(payload.position() + 5);
+    }
+    boolean endStream = (flags & FLAG_END_STREAM) != 0;
+    if ((flags & FLAG_END_HEADERS) != 0) {
+      onHeaderBlock(streamId, payload, endStream);
+    } else {
+      headerBlock = new ByteArrayOutputStream(payload.remaining() * 2);
+      headerBlock.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+      headerBlockStream = streamId;
+      headerBlockEndsStream = endStream;
+    }
+  }
+
+  private void onHeaderBlock(int streamId, ByteBuffer block, boolean endStream) throws IOException {
+    Map<String, String> headers = new LinkedHashMap<String, String>();
+    try {
+      // Decoded even for a stream that is gone, to keep the dynamic table in step:
+      decoder.decode(block, headers);
+    } catch (IOException e) {
+      throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+    }
+    WebSocketHttp2 webSocket = streams.get(streamId);
+    if (webSocket != null) {
+      webSocket.onHeaders(headers, endStream);
+    }
+  }
+
+  private void onSettings(int flags, int streamId, ByteBuffer payload) throws IOException {
+    if (streamId != 0 || payload.remaining() % 6 != 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS");
+    }
+    if ((flags & FLAG_ACK) != 0) {
+      return;
+    }
+    List<WebSocketHttp2> unblocked = null;
+    writeLock.lock();
+    try {
+      while (payload.hasRemaining()) {
+        int id = payload.getShort() & 0xffff;
+        int value = payload.getInt();
+        switch (id) {
+        case SETTINGS_MAX_CONCURRENT_STREAMS:
+          maxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+          break;
+        case SETTINGS_INITIAL_WINDOW_SIZE:
+          if (value < 0) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, "Initial window size " + (value & 0xffffffffL));
+          }
+          // The windows of the open streams move by the difference:
+          int delta = value - initialSendWindow;
+          initialSendWindow = value;
+          for (WebSocketHttp2 webSocket : streams.values()) {
+            if ((long) webSocket.sendWindow + delta > MAX_WINDOW) {
+              throw new Http2Exception(FLOW_CONTROL_ERROR, "Window overflow on stream " + webSocket.streamId);
+            }
+            webSocket.sendWindow += delta;
+          }
+          if (delta > 0) {
+            unblocked = unblock();
+          }
+          break;
+        case SETTINGS_MAX_FRAME_SIZE:
+          if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Max frame size " + value);
+          }
+          maxFrameSize = value;
+          break;
+        case SETTINGS_ENABLE_CONNECT_PROTOCOL:
+          connectProtocolEnabled = value == 1;
+          break;
+        default:
+          // The header table size is not used by the encoder, the others do not apply
+          break;
+        }
+      }
+      writeFrame(SETTINGS, FLAG_ACK, 0, ByteBuffer.allocate(0));
+    } finally {
+      writeLock.unlock();
+    }
+    settingsReceived.countDown();
+    resumeWriting(unblocked);
+  }
+
+  private void onWindowUpdate(int streamId, ByteBuffer payload) throws IOException {
+    if (payload.remaining() != 4) {
+      throw new Http2Exception(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + payload.remaining() + " octets");
+    }
+    int increment = payload.getInt(0) & 0x7fffffff;
+    if (increment == 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE of 0 on stream " + streamId);
+    }
+    List<WebSocketHttp2> unblocked;
+    writeLock.lock();
+    try {
+      if (streamId == 0) {
+        if ((long) sendWindow + increment > MAX_WINDOW) {
+          throw new Http2Exception(FLOW_CONTROL_ERROR, "Window overflow on the connection");
+        }
+        sendWindow += increment;
+      } else {
+        WebSocketHttp2 webSocket = streams.get(streamId);
+        if (webSocket == null) {
+          return;
+        }
+        if ((long) webSocket.sendWindow + increment > MAX_WINDOW) {
+          // A stream error, the others go on:
+          streams.remove(streamId);
+          ByteBuffer error = ByteBuffer.allocate(4);
+          error.putInt(FLOW_CONTROL_ERROR).flip();
+          writeFrame(RST_STREAM, 0, streamId, error);
+          webSocket.onReset(FLOW_CONTROL_ERROR);
+          return;
+        }
+        webSocket.sendWindow += increment;
+      }
+      unblocked = unblock();
+    } finally {
+      writeLock.unlock();
+    }
+    resumeWriting(unblocked);
+  }
+
+  /**
+   * Take the blocked streams that can write again, holding the write lock.
+   */
+  private List<WebSocketHttp2> unblock() {
+    List<WebSocketHttp2> unblocked = null;
+    if (sendWindow <= 0) {
+      return null;
+    }
+    for (int i = blocked.size() - 1; i >= 0; i--) {
+      WebSocketHttp2 webSocket = blocked.get(i);
+      if (webSocket.sendWindow > 0) {
+        if (unblocked == null) {
+          unblocked = new ArrayList<WebSocketHttp2>();
+        }
+        unblocked.add(0, webSocket);
+        blocked.remove(i);
+      }
+    }
+    return unblocked;
+  }
+
+  /**
+   * Flush the unblocked streams, without the write lock since each takes it in turn.
+   */
+  private void resumeWriting(List<WebSocketHttp2> unblocked) {
+    if (unblocked != null) {
+      for (WebSocketHttp2 webSocket : unblocked) {
+        webSocket.resumeWriting();
+      }
+    }
+  }
+
+  private void onGoAway(ByteBuffer payload) throws IOException {
+    if (payload.remaining() < 8) {
+      throw new Http2Exception(FRAME_SIZE_ERROR, "GOAWAY of " + payload.remaining() + " octets");
+    }
+    int last = payload.getInt(0) & 0x7fffffff;
+    log("GOAWAY received, last stream " + last + ", error code " + payload.getInt(4));
+    lastStreamId = last;
+    // The streams the server has not processed are over, the others may finish:
+    for (Map.Entry<Integer, WebSocketHttp2> entry : streams.entrySet()) {
+      if (entry.getKey() > last && streams.remove(entry.getKey(), entry.getValue())) {
+        entry.getValue().onReset(payload.getInt(4));
+      }
+    }
+  }
+
+  private static void checkStream(int streamId, ByteBuffer payload, int length) throws Http2Exception {
+    if (streamId == 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, "A stream frame on stream 0");
+    }
+    if (payload.remaining() != length) {
+      throw new Http2Exception(FRAME_SIZE_ERROR, "A frame of " + payload.remaining() + " octets");
+    }
+  }
+
+  private static void stripPadding(int flags, ByteBuffer payload) throws Http2Exception {
+    if ((flags & FLAG_PADDED) == 0) {
+      return;
+    }
+    if (!payload.hasRemaining()) {
+      throw new Http2Exception(PROTOCOL_ERROR, "The padding length is missing");
+    }
+    int padding = payload.get() & 0xff;
+    if (padding > payload.remaining()) {
+      throw new Http2Exception(PROTOCOL_ERROR, "The padding is longer than the frame");
+    }
+    payload.limit(payload.limit() - padding);
+  }
+
+  /**
+   * Close the socket and the WebSockets on it.
+   */
+  private void shutdown() {
+    closed = true;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // already closed
+    }
+    settingsReceived.countDown();
+    for (WebSocketHttp2 webSocket : streams.values()) {
+      if (streams.remove(webSocket.streamId, webSocket)) {
+        webSocket.onConnectionClosed();
+      }
+    }
+  }
+
+  private void log(String msg) {
+    System.out.println("Http2Connection[" + host + ":" + port + "]:" + msg);
+  }
+
+  /**
+   * An error of the whole connection, ending it with GOAWAY.
+   */
+  private static final class Http2Exception extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    final int errorCode;
+
+    Http2Exception(int errorCode, String msg) {
+      super(msg);
+      this.errorCode = errorCode;
+    }
+
+  }
+
+}
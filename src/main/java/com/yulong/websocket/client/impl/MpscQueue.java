@@ -0,0 +1,80 @@
+package com.yulong.websocket.client.impl;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free unbounded multi-producer single-consumer queue.
+ *
+ * Producers append with a single atomic swap of the tail, so an offer never retries or blocks.
+ * Only one thread at a time may call {@link #peek()} and {@link #poll()}.
+ */
+class MpscQueue<E> {
+
+  private final AtomicReference<Node<E>> tail;
+  private volatile Node<E> head;
+
+  MpscQueue() {
+    Node<E> stub = new Node<E>(null);
+    head = stub;
+    tail = new AtomicReference<Node<E>>(stub);
+  }
+
+  /**
+   * Append an element, from any thread.
+   *
+   * @param e
+   */
+  void offer(E e) {
+    Node<E> node = new Node<E>(e);
+    Node<E> prev = tail.getAndSet(node);
+    prev.next = node;
+  }
+
+  /**
+   * Get the first element without removing it, from the consumer.
+   *
+   * @return the element, or null if the queue is empty.
+   */
+  E peek() {
+    Node<E> next = head.next;
+    return next == null ? null : next.value;
+  }
+
+  /**
+   * Remove the first element, from the consumer.
+   *
+   * @return the element, or null if the queue is empty.
+   */
+  E poll() {
+    Node<E> next = head.next;
+    if (next == null) {
+      return null;
+    }
+    E value = next.value;
+    next.value = null;
+    head = next;
+    return value;
+  }
+
+  /**
+   * Check whether the queue is empty. An element whose offer is still in progress may not
+   * be seen yet.
+   *
+   * @return
+   */
+  boolean isEmpty() {
+    return head.next == null;
+  }
+
+  private static final class Node<E> {
+
+    volatile Node<E> next;
+    E value;
+
+    Node(E value) {
+      this.value = value;
+    }
+
+  }
+
+}
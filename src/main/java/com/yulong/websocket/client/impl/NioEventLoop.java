@@ -0,0 +1,196 @@
+package com.yulong.websocket.client.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yulong.websocket.client.utils.Threads;
+
+/**
+ * One selector and one thread serving any number of NIO connections. Without a loop each
+ * connection has a selector and a thread of its own, which is what dominates the memory of a
+ * mostly idle connection; on a shared loop an idle connection only holds its socket and its
+ * small state. The listeners of the connections on a loop are called on the loop thread by the
+ * inline dispatch, so a slow listener holds back all of them; give them another dispatch
+ * unless they are quick.
+ *
+ * The other threads never touch the selector: they queue the connection for an update and
+ * wake the loop up, and the loop thread registers it, changes its interest or forgets it.
+ */
+public final class NioEventLoop implements Closeable {
+
+  // While connections wait for their handshake, the loop wakes up at least this often:
+  private static final long DEADLINE_CHECK_MILLIS = 100;
+
+  private static NioEventLoop defaultLoop = null;
+
+  private final Selector selector;
+  private final Thread thread;
+  private final ConcurrentLinkedQueue<WebSocketNio> updates = new ConcurrentLinkedQueue<WebSocketNio>();
+  // Only used by the loop thread:
+  private final List<WebSocketNio> handshaking = new ArrayList<WebSocketNio>();
+  private final AtomicInteger connections = new AtomicInteger();
+  private volatile boolean closed = false;
+
+  /**
+   * To create and start a loop on a daemon thread of the given name.
+   *
+   * @param name
+   * @throws IOException if the selector can not be opened.
+   */
+  public NioEventLoop(String name) throws IOException {
+    this.selector = Selector.open();
+    this.thread = Threads.newDaemonThread(new Runnable() {
+      @Override
+      public void run() {
+        loop();
+      }
+    }, name);
+    thread.start();
+  }
+
+  /**
+   * To get the loop shared by default, started the first time it is asked for.
+   *
+   * @return
+   */
+  public static synchronized NioEventLoop getDefault() {
+    if (defaultLoop == null || defaultLoop.closed) {
+      try {
+        defaultLoop = new NioEventLoop("WebSocketNioLoop");
+      } catch (IOException e) {
+        throw new IllegalStateException("Can not open the selector of the event loop", e);
+      }
+    }
+    return defaultLoop;
+  }
+
+  /**
+   * To get the number of connections served by the loop.
+   *
+   * @return
+   */
+  public int getConnections() {
+    return connections.get();
+  }
+
+  /**
+   * To get the selector of the loop, for tests.
+   *
+   * @return
+   */
+  Selector getSelector() {
+    return selector;
+  }
+
+  /**
+   * Check whether the current thread is the loop thread.
+   *
+   * @return
+   */
+  public boolean inLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Stop the loop and disconnect the connections it serves.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    selector.wakeup();
+  }
+
+  /**
+   * Ask the loop thread to apply the changes of the given connection: its registration, its
+   * interest or its end.
+   *
+   * @param webSocket
+   */
+  void update(WebSocketNio webSocket) {
+    updates.offer(webSocket);
+    if (!inLoop()) {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Count a connection in or out of the loop.
+   */
+  void registered(WebSocketNio webSocket) {
+    connections.incrementAndGet();
+    handshaking.add(webSocket);
+  }
+
+  void deregistered() {
+    connections.decrementAndGet();
+  }
+
+  private void loop() {
+    while (!closed) {
+      try {
+        applyUpdates();
+        if (handshaking.isEmpty()) {
+          selector.select();
+        } else {
+          selector.select(DEADLINE_CHECK_MILLIS);
+        }
+        Iterator<SelectionKey> iterSelectedKey = selector.selectedKeys().iterator();
+        while (iterSelectedKey.hasNext()) {
+          SelectionKey key = iterSelectedKey.next();
+          iterSelectedKey.remove();
+          WebSocketNio webSocket = (WebSocketNio) key.attachment();
+          webSocket.process(key);
+          if (webSocket.stopped) {
+            webSocket.applyUpdate(selector, this);
+          }
+        }
+        checkDeadlines();
+      } catch (IOException e) {
+        e.printStackTrace();
+      } catch (RuntimeException e) {
+        // One connection must not stop the others:
+        e.printStackTrace();
+      }
+    }
+    for (SelectionKey key : selector.keys()) {
+      ((WebSocketNio) key.attachment()).disconnect();
+    }
+    applyUpdates();
+    try {
+      selector.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void applyUpdates() {
+    WebSocketNio webSocket;
+    while ((webSocket = updates.poll()) != null) {
+      webSocket.applyUpdate(selector, this);
+    }
+  }
+
+  private void checkDeadlines() {
+    if (handshaking.isEmpty()) {
+      return;
+    }
+    long now = System.nanoTime();
+    for (Iterator<WebSocketNio> it = handshaking.iterator(); it.hasNext();) {
+      WebSocketNio webSocket = it.next();
+      if (!webSocket.checkHandshakeDeadline(now)) {
+        it.remove();
+        if (webSocket.stopped) {
+          webSocket.applyUpdate(selector, this);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,213 @@
+package com.yulong.websocket.client.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.yulong.websocket.client.WaitStrategy;
+import com.yulong.websocket.client.utils.Threads;
+
+/**
+ * Invoke the listeners on a dedicated consumer thread fed by a single-producer ring buffer.
+ *
+ * The reading thread is the only producer: it fills a preallocated slot with the event type,
+ * the payload reference and the time it was read, then publishes the slot by advancing its
+ * sequence. The consumer delivers the published slots in order and advances its own sequence
+ * to free them. Nothing is allocated per event and no lock is taken unless the BLOCKING wait
+ * strategy is used. When the ring is full the producer waits, which holds back the reading.
+ */
+class RingBufferDispatcher extends EventDispatcher implements Runnable {
+
+  private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  private final Slot[] slots;
+  private final int mask;
+  private final WaitStrategy waitStrategy;
+
+  // The next sequence to publish, owned by the producer:
+  private long nextSequence = 0;
+  private final Sequence published = new Sequence();
+  private final Sequence consumed = new Sequence();
+
+  // Only used by the BLOCKING wait strategy:
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private volatile boolean consumerWaiting = false;
+
+  private volatile boolean started = false;
+  private volatile boolean shutdown = false;
+
+  RingBufferDispatcher(AbstractWebSocket webSocket, int size, WaitStrategy waitStrategy) {
+    super(webSocket);
+    this.slots = new Slot[size];
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Slot();
+    }
+    this.mask = size - 1;
+    this.waitStrategy = waitStrategy;
+  }
+
+  @Override
+  void dispatch(int event, Object payload) {
+    if (!started) {
+      start();
+    }
+    long sequence = nextSequence;
+    // Wait for a free slot:
+    int idle = 0;
+    while (sequence - consumed.get() >= slots.length) {
+      idle = idle(idle);
+    }
+    Slot slot = slots[(int) sequence & mask];
+    slot.type = event;
+    slot.payload = payload;
+    slot.publishNanos = System.nanoTime();
+    nextSequence = sequence + 1;
+    if (waitStrategy == WaitStrategy.BLOCKING) {
+      // A full fence so that a consumer about to wait either sees the event or is signalled:
+      published.set(sequence + 1);
+      if (consumerWaiting) {
+        signal();
+      }
+    } else {
+      published.lazySet(sequence + 1);
+    }
+  }
+
+  @Override
+  void shutdown() {
+    shutdown = true;
+    if (waitStrategy == WaitStrategy.BLOCKING) {
+      signal();
+    }
+  }
+
+  @Override
+  public void run() {
+    long next = 0;
+    int idle = 0;
+    while (true) {
+      long available = published.get();
+      if (next < available) {
+        do {
+          Slot slot = slots[(int) next & mask];
+          int type = slot.type;
+          Object payload = slot.payload;
+          long publishNanos = slot.publishNanos;
+          // Do not keep the payload reachable from the ring once delivered:
+          slot.payload = null;
+          next++;
+          consumed.lazySet(next);
+          deliverHandedOff(type, payload, publishNanos);
+        } while (next < available);
+        idle = 0;
+      } else if (shutdown) {
+        if (published.get() == next) {
+          return;
+        }
+      } else if (waitStrategy == WaitStrategy.BLOCKING) {
+        awaitPublished(next);
+      } else {
+        idle = idle(idle);
+      }
+    }
+  }
+
+  private synchronized void start() {
+    if (!started) {
+      Thread t = Threads.newDaemonThread(this, "WebSocketRing[" + webSocket.instanceId + "]");
+      t.start();
+      started = true;
+    }
+  }
+
+  /**
+   * Wait a little according to the wait strategy.
+   *
+   * @param idle the number of times waited in a row.
+   * @return the new number of times waited in a row.
+   */
+  private int idle(int idle) {
+    switch (waitStrategy) {
+    case BUSY_SPIN:
+      break;
+    case YIELD:
+      Thread.yield();
+      break;
+    default:
+      // PARK, and BLOCKING where the producer waits for a free slot: spin a little first.
+      if (idle < 100) {
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(PARK_NANOS);
+      }
+      break;
+    }
+    return idle + 1;
+  }
+
+  private void awaitPublished(long next) {
+    lock.lock();
+    try {
+      consumerWaiting = true;
+      while (published.get() <= next && !shutdown) {
+        // The timeout is a safety net only, the producer signals:
+        notEmpty.await(1, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      shutdown = true;
+    } finally {
+      consumerWaiting = false;
+      lock.unlock();
+    }
+  }
+
+  private void signal() {
+    lock.lock();
+    try {
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * A preallocated event slot.
+   */
+  private static final class Slot {
+    int type;
+    Object payload;
+    long publishNanos;
+  }
+
+  /**
+   * A sequence padded against false sharing between the producer and the consumer.
+   */
+  @SuppressWarnings("unused")
+  private static final class Sequence {
+
+    private static final AtomicLongFieldUpdater<Sequence> VALUE = AtomicLongFieldUpdater.newUpdater(Sequence.class,
+        "value");
+
+    private long p1, p2, p3, p4, p5, p6, p7;
+    private volatile long value = 0;
+    private long p9, p10, p11, p12, p13, p14, p15;
+
+    long get() {
+      return value;
+    }
+
+    void set(long newValue) {
+      value = newValue;
+    }
+
+    void lazySet(long newValue) {
+      VALUE.lazySet(this, newValue);
+    }
+
+  }
+
+}
@@ -0,0 +1,558 @@
+package com.yulong.websocket.client.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yulong.websocket.client.HandShakeException;
+import com.yulong.websocket.client.ProtocolException;
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.utils.BufferPool;
+import com.yulong.websocket.client.utils.Threads;
+import com.yulong.websocket.client.utils.Utils;
+import com.yulong.websocket.client.utils.WebSocketKey;
+
+/**
+ * A WebSocket connection on an {@link AsynchronousSocketChannel}. The connect, the opening
+ * handshake, the reads and the writes are started without blocking and go on in completion
+ * handlers, run by the threads of a channel group shared by the connections.
+ *
+ * At most one read and one write are pending at a time. A read is only started again once the
+ * data of the previous one is processed and reading is not held, so the listeners of the inline
+ * dispatch are called on the group threads. The read buffer is held while a read is pending,
+ * that is for as long as the connection is open.
+ */
+public class WebSocketAsync extends AbstractWebSocket {
+
+  private static AsynchronousChannelGroup defaultGroup = null;
+  // Gives up the connections not established in time:
+  private static ScheduledExecutorService timer = null;
+
+  private final String remoteHost;
+  private final int remotePort;
+  private final String wsPath;
+  private final WebSocketConfig config;
+  private AsynchronousSocketChannel channel = null;
+  private volatile ScheduledFuture<?> timeout = null;
+  // Only during the opening handshake:
+  private WebSocketKey webSocketKey = null;
+  private HandshakeParser handshakeParser = null;
+  private ByteBuffer handshakeRequest = null;
+
+  // Whether a read is pending or the read buffer is being processed; whoever sets it owns the
+  // read buffer:
+  private final AtomicBoolean reading = new AtomicBoolean(false);
+  private final AtomicBoolean writePending = new AtomicBoolean(false);
+  private final BufferPool bufferPool = BufferPool.getDefault();
+  // The received bytes not processed yet, left in write mode between reads:
+  private ByteBuffer readerBuff = null;
+  private ByteBuffer readerView = null;
+  private static final int MIN_READ_BUFFER = 512;
+  private static final int MAX_READ_BUFFER = 64 * 1024;
+  private final AdaptiveReadSizer readSizer;
+  private final FrameDecoder frameDecoder = new FrameDecoder();
+  private final FragmentAssembler fragmentAssembler = new FragmentAssembler();
+  private volatile boolean closedByServer = false;
+
+  /**
+   * The constructor to create a WebSocket and start connecting. The handshake goes on in the
+   * background; {@link #handshakeFinished()} tells when it is over.
+   *
+   * @param hostname
+   * @param port
+   * @param path
+   * @param secure
+   * @param config
+   */
+  public WebSocketAsync(String hostname, int port, String path, boolean secure, WebSocketConfig config) {
+    this.remoteHost = hostname;
+    this.remotePort = port;
+    this.wsPath = path;
+    this.config = config;
+    int initial = config.getReadBufferSize();
+    this.readSizer = new AdaptiveReadSizer(Math.min(MIN_READ_BUFFER, initial), initial,
+        Math.max(MAX_READ_BUFFER, initial));
+    setListenerDispatch(config.getListenerDispatch());
+    setReadWatermarks(config.getReadLowWatermark(), config.getReadHighWatermark());
+    instanceId = ++number;
+    if (secure) {
+      log("There is no implementation in the asynchronous channel for SSL.");
+      setState(WebSocketState.CLOSED);
+      stopped = true;
+      return;
+    }
+    connect();
+  }
+
+  /**
+   * To get the channel group shared by default, a daemon thread per processor, started the
+   * first time it is asked for.
+   *
+   * @return
+   */
+  public static synchronized AsynchronousChannelGroup getDefaultGroup() {
+    if (defaultGroup == null || defaultGroup.isShutdown()) {
+      try {
+        defaultGroup = AsynchronousChannelGroup.withFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+            daemonThreads("WebSocketAsync"));
+      } catch (IOException e) {
+        throw new IllegalStateException("Can not create the channel group", e);
+      }
+    }
+    return defaultGroup;
+  }
+
+  private static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, daemonThreads("WebSocketAsyncTimer"));
+      executor.setRemoveOnCancelPolicy(true);
+      timer = executor;
+    }
+    return timer;
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable task) {
+        return Threads.newDaemonThread(task, name + "-" + count.incrementAndGet());
+      }
+    };
+  }
+
+  /**
+   * Check if the connection is closed by server.
+   *
+   * @return
+   */
+  @Override
+  public boolean hasClosedFromServer() {
+    return closedByServer;
+  }
+
+  AsynchronousSocketChannel getChannel() {
+    return channel;
+  }
+
+  /**************** connecting to remote host *******************/
+  /**
+   * Step 1: open the channel and start connecting.
+   */
+  private void connect() {
+    log("Connecting to ws://" + remoteHost + ":" + remotePort);
+    setState(WebSocketState.CONNECTING);
+    try {
+      AsynchronousChannelGroup group = config.getChannelGroup();
+      channel = AsynchronousSocketChannel.open(group != null ? group : getDefaultGroup());
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, config.isTcpNoDelay());
+      if (config.getSendBufferSize() > 0) {
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
+      }
+      // Before connecting, so that the window scaling is agreed for it:
+      if (config.getReceiveBufferSize() > 0) {
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+      }
+      scheduleTimeout(config.getConnectTimeoutMillis());
+      channel.connect(new InetSocketAddress(remoteHost, remotePort), this, CONNECTED);
+    } catch (IOException e) {
+      log("Failed to initiate the connection due to " + e);
+      e.printStackTrace();
+      disconnect();
+    }
+  }
+
+  /**
+   * Step 2: send the opening handshake.
+   */
+  private void startOpeningHandshake() {
+    log("Starting openning handshake to " + wsPath);
+    scheduleTimeout(config.getHandshakeTimeoutMillis());
+    webSocketKey = new WebSocketKey();
+    handshakeParser = new HandshakeParser(responseHeaders);
+    HandshakeTemplate template = HandshakeTemplate.get(remoteHost, remotePort, wsPath, config.getVersion(),
+        config.getSubProtocols(), config.getExtensions(), config.getOptionalHeaders());
+    if (Utils.isFrameLogging()) {
+      log("Sending ... \r\n" + template.toString(webSocketKey.getKey()));
+    }
+    handshakeRequest = ByteBuffer.wrap(template.request(webSocketKey.getKey()));
+    channel.write(handshakeRequest, this, HANDSHAKE_SENT);
+  }
+
+  /**
+   * Give up the connection if it is not established within the given time.
+   *
+   * @param millis
+   */
+  private void scheduleTimeout(int millis) {
+    cancelTimeout();
+    timeout = getTimer().schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (!handshakeFinished && !stopped) {
+          log("The connection is not established in time");
+          disconnect();
+        }
+      }
+    }, millis, TimeUnit.MILLISECONDS);
+  }
+
+  private void cancelTimeout() {
+    ScheduledFuture<?> scheduled = timeout;
+    if (scheduled != null) {
+      scheduled.cancel(false);
+      timeout = null;
+    }
+  }
+
+  /**************** reading *******************/
+  /**
+   * Step 3: start a read unless one is pending, reading is held or the connection is over.
+   */
+  private void startRead() {
+    if (stopped || !reading.compareAndSet(false, true)) {
+      return;
+    }
+    if (stopped || isReadingHeld()) {
+      // Changed meanwhile, whoever changed it saw the flag taken and starts the read instead:
+      finishRead();
+      return;
+    }
+    adaptReaderBuffer();
+    try {
+      channel.read(readerBuff, this, READ);
+    } catch (RuntimeException e) {
+      log("Failed to read due to " + e);
+      disconnect();
+      finishRead();
+    }
+  }
+
+  /**
+   * Release the read role once the data read is processed, and read again unless the
+   * connection is over or reading is held.
+   */
+  private void finishRead() {
+    if (stopped) {
+      releaseReaderBuffer();
+      return;
+    }
+    reading.set(false);
+    if (stopped) {
+      // Stopped meanwhile, whoever takes the role back releases the buffer:
+      if (reading.compareAndSet(false, true)) {
+        releaseReaderBuffer();
+      }
+    } else if (!isReadingHeld()) {
+      startRead();
+    }
+  }
+
+  /**
+   * Step 4: process what a read got, the response to the opening handshake or frames.
+   *
+   * @param numRead
+   * @param attempted
+   * @throws HandShakeException
+   * @throws ProtocolException
+   */
+  private void processRead(int numRead, int attempted) throws HandShakeException, ProtocolException {
+    metrics.recordReads(1, numRead);
+    readSizer.record(numRead, attempted);
+    if (state == WebSocketState.CONNECTING) {
+      readerBuff.flip();
+      boolean complete = handshakeParser.parse(readerBuff);
+      // Whatever follows the headers is the first frames, kept for the frame decoder:
+      readerBuff.compact();
+      if (!complete) {
+        return;
+      }
+      log("receiving ... \r\n" + handshakeParser);
+      responsStatusCode = handshakeParser.getStatusCode();
+      boolean accepted = acceptHandshake(webSocketKey);
+      handshakeParser = null;
+      webSocketKey = null;
+      cancelTimeout();
+      if (accepted) {
+        compareAndSetState(WebSocketState.CONNECTING, WebSocketState.OPEN);
+        if (readerBuff.position() > 0) {
+          proceedReaderBuffer();
+        }
+      } else {
+        log("The response status code is not 101: " + responsStatusCode);
+        disconnect();
+      }
+    } else if (state == WebSocketState.OPEN) {
+      if (Utils.isFrameLogging()) {
+        log("<<" + Utils.showPartOfTextIfTooLong(Utils.toHexString(readerBuff, readerBuff.position() - numRead,
+            numRead)));
+      }
+      proceedReaderBuffer();
+    } else {
+      readerBuff.clear();
+    }
+  }
+
+  /**
+   * Process the complete frames in the reader buffer in place and keep the rest for the
+   * next read.
+   *
+   * @throws ProtocolException
+   */
+  private void proceedReaderBuffer() throws ProtocolException {
+    readerBuff.flip();
+    try {
+      while (frameDecoder.decode(readerBuff)) {
+        int start = readerBuff.position();
+        proceedFrame(frameDecoder, readerView, start, fragmentAssembler);
+        readerBuff.position(start + frameDecoder.frameLength);
+      }
+    } finally {
+      readerBuff.compact();
+    }
+    // Make room for a frame larger than the buffer:
+    if (frameDecoder.frameLength > readerBuff.capacity()) {
+      replaceReaderBuffer(frameDecoder.frameLength);
+    }
+  }
+
+  /**
+   * Resize the reader buffer, which is in write mode, to the size predicted from the recent
+   * reads, keeping the room of a frame in progress.
+   */
+  private void adaptReaderBuffer() {
+    int target = readSizer.size();
+    if (readerBuff == null) {
+      replaceReaderBuffer(target);
+      return;
+    }
+    int capacity = readerBuff.capacity();
+    // The pool rounds the sizes up, shrink only to half the capacity or less:
+    if (target > capacity
+        || (target * 2 <= capacity && readerBuff.position() <= target / 2 && frameDecoder.frameLength <= target)) {
+      replaceReaderBuffer(target);
+    }
+  }
+
+  /**
+   * Move the content of the reader buffer to one of the given capacity from the pool.
+   *
+   * @param capacity
+   */
+  private void replaceReaderBuffer(int capacity) {
+    ByteBuffer replacement = bufferPool.acquire(capacity);
+    if (readerBuff != null) {
+      readerBuff.flip();
+      replacement.put(readerBuff);
+      bufferPool.release(readerBuff);
+    }
+    readerBuff = replacement;
+    readerView = readerBuff.asReadOnlyBuffer();
+  }
+
+  private void releaseReaderBuffer() {
+    if (readerBuff != null) {
+      bufferPool.release(readerBuff);
+      readerBuff = null;
+      readerView = null;
+    }
+  }
+
+  /**
+   * Start or stop reading. Without a pending read the socket receive buffer fills up and TCP
+   * flow control holds the server back.
+   */
+  @Override
+  protected void onReadingChanged() {
+    if (!isReadingHeld() && (state == WebSocketState.OPEN || state == WebSocketState.CLOSING)) {
+      startRead();
+    }
+  }
+
+  /**************** writing *******************/
+  /**
+   * Start writing the buffer unless a write is pending. The queue is flushed again once the
+   * write completes.
+   *
+   * @param buff
+   * @return false, the buffer is written in the background.
+   */
+  @Override
+  protected boolean write(ByteBuffer buff) throws IOException {
+    if (writePending.compareAndSet(false, true)) {
+      try {
+        channel.write(buff, this, WRITTEN);
+      } catch (RuntimeException e) {
+        writePending.set(false);
+        throw new IOException("Can not write to the channel", e);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The writer gave up the queue while a write was pending; if the write completed meanwhile
+   * its handler could not take the queue over, so flush here.
+   */
+  @Override
+  protected void onWriteBlocked() {
+    if (!writePending.get() && !stopped) {
+      try {
+        flush();
+      } catch (IOException e) {
+        log("Failed to write due to " + e);
+        disconnect();
+      }
+    }
+  }
+
+  /**
+   * Disconnect from server.
+   */
+  @Override
+  protected void disconnect() {
+    log("Disconnecting from client side");
+    setState(WebSocketState.CLOSED);
+    stopped = true;
+    cancelTimeout();
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    discardOutbound();
+    // A pending read fails once the channel is closed and releases the buffer:
+    if (reading.compareAndSet(false, true)) {
+      releaseReaderBuffer();
+    }
+    stopDispatching();
+  }
+
+  /**
+   * To get the capacity of the reader buffer, for tests.
+   *
+   * @return
+   */
+  int getReaderCapacity() {
+    ByteBuffer buff = readerBuff;
+    return buff == null ? 0 : buff.capacity();
+  }
+
+  /**************** completion handlers *******************/
+  // Stateless, the connection is the attachment:
+
+  private static final CompletionHandler<Void, WebSocketAsync> CONNECTED = new CompletionHandler<Void, WebSocketAsync>() {
+
+    @Override
+    public void completed(Void result, WebSocketAsync webSocket) {
+      if (!webSocket.stopped) {
+        webSocket.startOpeningHandshake();
+      }
+    }
+
+    @Override
+    public void failed(Throwable e, WebSocketAsync webSocket) {
+      webSocket.log("Failed to connect due to " + e);
+      webSocket.disconnect();
+    }
+
+  };
+
+  private static final CompletionHandler<Integer, WebSocketAsync> HANDSHAKE_SENT = new CompletionHandler<Integer, WebSocketAsync>() {
+
+    @Override
+    public void completed(Integer result, WebSocketAsync webSocket) {
+      if (webSocket.handshakeRequest.hasRemaining()) {
+        webSocket.channel.write(webSocket.handshakeRequest, webSocket, this);
+        return;
+      }
+      webSocket.handshakeRequest = null;
+      webSocket.startRead();
+    }
+
+    @Override
+    public void failed(Throwable e, WebSocketAsync webSocket) {
+      webSocket.log("Failed to send opening handshake due to " + e);
+      webSocket.disconnect();
+    }
+
+  };
+
+  private static final CompletionHandler<Integer, WebSocketAsync> READ = new CompletionHandler<Integer, WebSocketAsync>() {
+
+    @Override
+    public void completed(Integer result, WebSocketAsync webSocket) {
+      int numRead = result.intValue();
+      if (numRead == -1) {
+        webSocket.closedByServer = true;
+        webSocket.log("the channel has reached end-of-stream when reading data.");
+        webSocket.disconnect();
+      } else {
+        try {
+          webSocket.processRead(numRead, numRead + webSocket.readerBuff.remaining());
+        } catch (HandShakeException e) {
+          webSocket.log("Handshake failed due to " + e);
+          e.printStackTrace(System.out);
+          webSocket.disconnect();
+        } catch (ProtocolException e) {
+          webSocket.log("Error occurs when reading data due to " + e);
+          e.printStackTrace();
+          webSocket.fireError(e);
+          webSocket.disconnect();
+        }
+      }
+      webSocket.finishRead();
+    }
+
+    @Override
+    public void failed(Throwable e, WebSocketAsync webSocket) {
+      if (!webSocket.stopped && !(e instanceof AsynchronousCloseException)) {
+        webSocket.closedByServer = true;
+        webSocket.log("failing to read due to: " + e);
+      }
+      webSocket.disconnect();
+      webSocket.finishRead();
+    }
+
+  };
+
+  private static final CompletionHandler<Integer, WebSocketAsync> WRITTEN = new CompletionHandler<Integer, WebSocketAsync>() {
+
+    @Override
+    public void completed(Integer result, WebSocketAsync webSocket) {
+      webSocket.writePending.set(false);
+      try {
+        webSocket.flush();
+      } catch (IOException e) {
+        webSocket.log("Failed to write due to " + e);
+        webSocket.disconnect();
+      }
+    }
+
+    @Override
+    public void failed(Throwable e, WebSocketAsync webSocket) {
+      webSocket.writePending.set(false);
+      if (!webSocket.stopped) {
+        webSocket.log("Failed to write due to " + e);
+        webSocket.disconnect();
+      }
+    }
+
+  };
+
+}
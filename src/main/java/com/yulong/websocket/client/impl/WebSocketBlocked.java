@@ -1,22 +1,26 @@
 package com.yulong.websocket.client.impl;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-import javax.net.SocketFactory;
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.SSLSocket;
 
 import com.yulong.websocket.client.HandShakeException;
 import com.yulong.websocket.client.ProtocolException;
-import com.yulong.websocket.client.WebSocketListener;
+import com.yulong.websocket.client.TlsContext;
+import com.yulong.websocket.client.WebSocketConfig;
 import com.yulong.websocket.client.WebSocketState;
 import com.yulong.websocket.client.frames.CloseFrame;
 import com.yulong.websocket.client.frames.DataFrame;
@@ -27,14 +31,24 @@ import com.yulong.websocket.client.utils.WebSocketKey;
 
 /**
  * A blocked WebSocket connection to the remote host/port.
+ *
+ * The connection is opened and the handshake read on the calling thread, then {@link #run()}
+ * reads the frames on a thread of the caller's choice, which may be a virtual thread: the
+ * waits use a {@link ReentrantLock} rather than a monitor, so that a virtual thread blocked on
+ * the socket or waiting for reading to be released does not pin its carrier.
  */
 public class WebSocketBlocked extends AbstractWebSocket implements Runnable {
 
 	private Socket sock = null;
-	private BufferedReader reader = null;
 	private InputStream in = null;
 	private OutputStream out = null;
+	// Direct buffers are written through this, only by the thread holding the writer role:
+	private byte[] writeChunk = null;
 	private StringBuilder receivedBytes = null;
+	private final FrameDecoder frameDecoder = new FrameDecoder();
+	private final ReentrantLock readLock = new ReentrantLock();
+	private final Condition readingReleased = readLock.newCondition();
+	private boolean sessionResumed = false;
 
 	/**
 	 * Try to open a WebSocket connection with the given version, sub protocols and extensions.
@@ -50,7 +64,24 @@ public class WebSocketBlocked extends AbstractWebSocket implements Runnable {
 	public WebSocketBlocked(String remoteHost, int remotePort, String wsPath, boolean secure, String wsVersion,
 			String[] subProtocols, String[] extensions, Map<String, String[]> optionalHeaders) {
 
-		connect(remoteHost, remotePort, wsPath, secure, wsVersion, subProtocols, extensions, optionalHeaders);
+		this(remoteHost, remotePort, wsPath, secure, WebSocketConfig.builder().version(wsVersion)
+				.subProtocols(subProtocols).extensions(extensions).optionalHeaders(optionalHeaders).build());
+	}
+
+	/**
+	 * Try to open a WebSocket connection with the given settings.
+	 * 
+	 * @param remoteHost
+	 * @param remotePort
+	 * @param wsPath
+	 * @param secure
+	 * @param config
+	 */
+	public WebSocketBlocked(String remoteHost, int remotePort, String wsPath, boolean secure, WebSocketConfig config) {
+
+		setListenerDispatch(config.getListenerDispatch());
+		setReadWatermarks(config.getReadLowWatermark(), config.getReadHighWatermark());
+		connect(remoteHost, remotePort, wsPath, secure, config);
 	}
 
 	/**
@@ -68,12 +99,16 @@ public class WebSocketBlocked extends AbstractWebSocket implements Runnable {
 						break;
 					}
 
+					awaitReading();
 					DataFrame dataFrame = readDataFrame(in);
-
-					for (WebSocketListener listener : listeners) {
-						listener.onDataFrame(dataFrame);
+					if (dataFrame == null) {
+						// The connection has been closed:
+						disconnect();
+						break;
 					}
 
+					fireDataFrame(dataFrame);
+
 					dataFrame.validate();
 
 					int opcode = dataFrame.getOpcode();
@@ -81,15 +116,11 @@ public class WebSocketBlocked extends AbstractWebSocket implements Runnable {
 					if (opcode == 1) {
 						// textual message:
 						String msg = readTextMessage(dataFrame, in);
-						for (WebSocketListener listener : listeners) {
-							listener.onMessage(msg);
-						}
+						fireMessage(msg);
 					} else if (opcode == 2) {
 						// binary message:
 						byte[] payload = readBinaryMessage(dataFrame, in);
-						for (WebSocketListener listener : listeners) {
-							listener.onMessage(payload);
-						}
+						fireMessage(payload);
 					} else if (opcode >= 8) {
 						processControlFrame(dataFrame);
 						if (opcode == 8) {
@@ -101,9 +132,7 @@ public class WebSocketBlocked extends AbstractWebSocket implements Runnable {
 			} catch (ProtocolException e) {
 				log("Failed to read data frame from server due to " + e.getMessage());
 				e.printStackTrace(System.out);
-				for (WebSocketListener listener : listeners) {
-					listener.onError(e);
-				}
+				fireError(e);
 				disconnect();
 			}
 
@@ -127,14 +156,58 @@ public class WebSocketBlocked extends AbstractWebSocket implements Runnable {
 	}
 
 	/**
-	 * Send the data to server.
+	 * Write the data to server, blocking until it is all written.
 	 * 
-	 * @param data
+	 * @param buff
 	 */
-	protected void sendData(byte[] data) throws IOException {
-		log(">>" + Utils.showPartOfTextIfTooLong(Utils.toHexString(data)));
-		out.write(data);
+	@Override
+	protected boolean write(ByteBuffer buff) throws IOException {
+		if (buff.hasArray()) {
+			out.write(buff.array(), buff.arrayOffset() + buff.position(), buff.remaining());
+			buff.position(buff.limit());
+		} else {
+			// A stream takes arrays only, copy a direct buffer through a chunk:
+			if (writeChunk == null) {
+				writeChunk = new byte[8192];
+			}
+			while (buff.hasRemaining()) {
+				int length = Math.min(writeChunk.length, buff.remaining());
+				buff.get(writeChunk, 0, length);
+				out.write(writeChunk, 0, length);
+			}
+		}
 		out.flush();
+		return true;
+	}
+
+	/**
+	 * Wake up the reading thread if it waits for reading to be released. While it waits, the
+	 * socket receive buffer fills up and TCP flow control holds the server back.
+	 */
+	@Override
+	protected void onReadingChanged() {
+		readLock.lock();
+		try {
+			readingReleased.signalAll();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Wait while reading is held.
+	 */
+	private void awaitReading() {
+		readLock.lock();
+		try {
+			while (isReadingHeld() && !stopped) {
+				readingReleased.await(100, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			readLock.unlock();
+		}
 	}
 
 	/**
@@ -150,20 +223,31 @@ public class WebSocketBlocked extends AbstractWebSocket implements Runnable {
 				ex.printStackTrace(System.out);
 			}
 		}
-		state = WebSocketState.CLOSED;
+		discardOutbound();
+		setState(WebSocketState.CLOSED);
+		stopDispatching();
+	}
+
+	Socket getSocket() {
+		return sock;
+	}
+
+	/**
+	 * Check if the TLS handshake of a wss connection resumed a cached session.
+	 * 
+	 * @return
+	 */
+	public boolean isSessionResumed() {
+		return sessionResumed;
 	}
 
 	/******************** Opening handshake **************************/
 	/**
-	 * Connect to the remote host and initiate the opening handshake with the given WebSocket version,
-	 * sub protocols and extensions.
+	 * Connect to the remote host and initiate the opening handshake with the given settings.
 	 * 
-	 * @param wsVersion
-	 * @param subProtocols
-	 * @param extensions
+	 * @param config
 	 */
-	private void connect(String host, int port, String path, boolean secure, String wsVersion, String[] subProtocols,
-			String[] extensions, Map<String, String[]> optionalHeaders) {
+	private void connect(String host, int port, String path, boolean secure, WebSocketConfig config) {
 
 		String protocol = "ws";
 		if (secure) {
@@ -173,139 +257,61 @@ public class WebSocketBlocked extends AbstractWebSocket implements Runnable {
 
 		// Generate the value for Sec-WebSocket-Key header:
 		WebSocketKey webSocketKey = new WebSocketKey();
-		state = WebSocketState.CONNECTING;
+		setState(WebSocketState.CONNECTING);
 		try {
+			TlsContext tlsContext = null;
 			if (secure) {
-				String wlHome = System.getProperty("WL_HOME");
-				System.setProperty("javax.net.ssl.trustStore", wlHome + "/server/lib/cacerts");
-				System.setProperty("javax.net.ssl.trustStorePassword", "changeit");
-				SocketFactory sf = SSLSocketFactory.getDefault();
-				sock = sf.createSocket(host, port);
+				tlsContext = config.getTlsContext() != null ? config.getTlsContext() : TlsContext.getDefault();
+				sock = tlsContext.createSocket();
 			} else {
-				sock = new Socket(host, port);
+				sock = new Socket();
 			}
-			in = sock.getInputStream();
-			reader = new BufferedReader(new InputStreamReader(in));
-			out = sock.getOutputStream();
-
-			// Start the openning hankshake from client:
-			sendString(out, "GET " + path + " HTTP/1.1");
-			sendString(out, "Host: " + host + ":" + port);
-			sendString(out, "Upgrade: websocket");
-			sendString(out, "Connection: Upgrade");
-			sendString(out, "Origin: http://" + host + ":" + port);
-			sendString(out, "Sec-WebSocket-Key: " + webSocketKey.getKey());
-			if (wsVersion != null) {
-				sendString(out, "Sec-WebSocket-Version: " + wsVersion);
+			sock.setTcpNoDelay(config.isTcpNoDelay());
+			if (config.getSendBufferSize() > 0) {
+				sock.setSendBufferSize(config.getSendBufferSize());
 			}
-			if (subProtocols != null) {
-				sendString(out, "Sec-WebSocket-Protocol: " + Utils.array2String(subProtocols));
+			// Before connecting, so that the window scaling is agreed for it:
+			if (config.getReceiveBufferSize() > 0) {
+				sock.setReceiveBufferSize(config.getReceiveBufferSize());
 			}
-			if (extensions != null) {
-				sendString(out, "Sec-WebSocket-Extensions: " + Utils.array2String(extensions));
+			// Connected by host name, so that the session cached for the host and port is offered:
+			sock.connect(new InetSocketAddress(host, port), config.getConnectTimeoutMillis());
+			if (tlsContext != null) {
+				sessionResumed = tlsContext.handshake((SSLSocket) sock, config.getHandshakeTimeoutMillis());
+				log("The TLS session is " + (sessionResumed ? "resumed" : "new"));
 			}
-			if (optionalHeaders != null && !optionalHeaders.isEmpty()) {
-				for (Map.Entry<String, String[]> optionalHeaderEntry : optionalHeaders.entrySet()) {
-					sendString(out, optionalHeaderEntry.getKey() + ": " + Utils.array2String(optionalHeaderEntry.getValue()));
-				}
+			// Buffered for the frames as well, so that those read ahead with the headers are kept:
+			in = new BufferedInputStream(sock.getInputStream(), config.getReadBufferSize());
+			out = sock.getOutputStream();
+
+			// Start the openning hankshake from client:
+			HandshakeTemplate template = HandshakeTemplate.get(host, port, path, config.getVersion(),
+					config.getSubProtocols(), config.getExtensions(), config.getOptionalHeaders());
+			if (Utils.isFrameLogging()) {
+				log("Sending ... \r\n" + template.toString(webSocketKey.getKey()));
 			}
-			sendString(out, "");
+			out.write(template.request(webSocketKey.getKey()));
 			out.flush();
 
-			// Read the Client's openning handshake:
-			new Thread(new Runnable() {
-
-				@Override
-				public void run() {
-					String statusLine = null;
-					String line = null;
-					try {
-						while ((line = reader.readLine()) != null) {
-
-							if ("".equals(line)) {
-								log("");
-							} else {
-								log("Received ... " + line);
-							}
-
-							if (line.trim().equals("")) {
-								// End of reading headers:
-								break;
-							}
-
-							// Get the status line:
-							if (statusLine == null) {
-								statusLine = line;
-								continue;
-							}
-
-							// Get all the response headers:
-							int index = line.indexOf(":");
-							String headerName = line.substring(0, index);
-							String headerValue = line.substring(index + 1).trim();
-							responseHeaders.put(headerName.toLowerCase(), headerValue);
-
-						}
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-					// Check the status line:
-					if (statusLine != null) {
-						String[] statusParts = statusLine.split(" ");
-						responsStatusCode = Integer.parseInt(statusParts[1].trim());
-					} else {
-						responsStatusCode = -2;
-					}
-				}
-			}).start();
-
-			// Check the response code periodically:
-			long start = System.currentTimeMillis();
-			int waitingSeconds = 5;
-			while ((System.currentTimeMillis() - start) / 1000 < waitingSeconds) {
-				if (responsStatusCode > 0) {
-					break;
-				} else {
-					Utils.sleepSecs(1);
-				}
-			}
+			// Read the server's opening handshake on this thread, within the handshake timeout:
+			readHandshake(config.getHandshakeTimeoutMillis());
 
 			handshakeFinished = true;
 
 			if (responsStatusCode < 0) {
 				// The connection is not established, close it and reconnect:
-				throw new HandShakeException("The connection is not established in 5 seconds");
+				throw new HandShakeException("The connection is not established in "
+						+ config.getHandshakeTimeoutMillis() + " ms");
 			}
 
-			if (responsStatusCode != 101) {
+			if (!acceptHandshake(webSocketKey)) {
 
 				log("The response status code is not 101: " + responsStatusCode);
 				disconnect();
 
 			} else {
 
-				// Check the 'Upgrade' header:
-				String upgradeHeader = responseHeaders.get("upgrade").toLowerCase();
-				if (upgradeHeader == null || !upgradeHeader.equalsIgnoreCase("websocket")) {
-					throw new HandShakeException(
-							"Lack the Upgrade header or the header value is not websocket: " + upgradeHeader);
-				}
-
-				// Check the 'Connection' header:
-				String connectionHeader = responseHeaders.get("connection").toLowerCase();
-				if (connectionHeader == null || !connectionHeader.contains("upgrade")) {
-					throw new HandShakeException(
-							"Lack the Connection header or the header value does not contain 'Upgrade': " + connectionHeader);
-				}
-
-				// Check the 'Sec-WebSocket-Accept' header:
-				String acceptHeader = responseHeaders.get("Sec-WebSocket-Accept".toLowerCase());
-				if (acceptHeader == null || !acceptHeader.equals(webSocketKey.getAccept())) {
-					throw new HandShakeException("Lack the Sec-WebSocket-Accept header or the header value is not "
-							+ webSocketKey.getAccept() + ": " + acceptHeader);
-				}
-
-				state = WebSocketState.OPEN;
+				compareAndSetState(WebSocketState.CONNECTING, WebSocketState.OPEN);
 				instanceId = ++number;
 
 			}
@@ -320,6 +326,42 @@ public class WebSocketBlocked extends AbstractWebSocket implements Runnable {
 
 	}
 
+	/**
+	 * Read the response to the opening handshake, one byte at a time from the buffer so that
+	 * nothing after the headers is consumed. The socket timeout is set to what is left of the
+	 * handshake timeout before each read, and cleared at the end.
+	 * 
+	 * @param timeoutMillis
+	 * @throws IOException
+	 */
+	private void readHandshake(int timeoutMillis) throws IOException {
+		HandshakeParser parser = new HandshakeParser(responseHeaders);
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try {
+			int b;
+			do {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					break;
+				}
+				sock.setSoTimeout((int) remaining);
+				b = in.read();
+			} while (b != -1 && !parser.update((byte) b));
+		} catch (SocketTimeoutException e) {
+			// Not complete, reported below
+		} catch (HandShakeException e) {
+			log(e.getMessage());
+		}
+		sock.setSoTimeout(0);
+		// Check the status line:
+		if (parser.isComplete()) {
+			log("Received ... \r\n" + parser);
+			responsStatusCode = parser.getStatusCode();
+		} else {
+			responsStatusCode = -2;
+		}
+	}
+
 	/******************** Read data from socket ***********************/
 	/**
 	 * Read a WebSocket text message which may be fragmented into several fragmentations.
@@ -392,21 +434,16 @@ public class WebSocketBlocked extends AbstractWebSocket implements Runnable {
 	private void processControlFrame(DataFrame dataFrame) {
 		int opcode = dataFrame.getOpcode();
 		if (opcode == 8) {
+			compareAndSetState(WebSocketState.OPEN, WebSocketState.CLOSING);
 			CloseFrame closeFrame = new CloseFrame(dataFrame);
 			hasReceivedCloseHandshake = true;
-			for (WebSocketListener listener : listeners) {
-				listener.onClose(closeFrame);
-			}
+			fireClose(closeFrame);
 		} else if (opcode == 9) {
 			PingFrame pingFrame = new PingFrame(dataFrame);
-			for (WebSocketListener listener : listeners) {
-				listener.onPing(pingFrame);
-			}
+			firePing(pingFrame);
 		} else if (opcode == 10) {
 			PongFrame pongFrame = new PongFrame(dataFrame);
-			for (WebSocketListener listener : listeners) {
-				listener.onPong(pongFrame);
-			}
+			firePong(pongFrame);
 		}
 	}
 
@@ -424,7 +461,7 @@ public class WebSocketBlocked extends AbstractWebSocket implements Runnable {
 
 		ByteBuffer basicBuff = ByteBuffer.allocate(14);
 		ByteBuffer rawDataBuff = null;
-		receivedBytes = new StringBuilder();
+		receivedBytes = Utils.isFrameLogging() ? new StringBuilder() : null;
 
 		try {
 
@@ -474,10 +511,23 @@ public class WebSocketBlocked extends AbstractWebSocket implements Runnable {
 			e.printStackTrace();
 		}
 
-		log("<<" + Utils.showPartOfTextIfTooLong(receivedBytes.toString()));
+		if (receivedBytes != null) {
+			log("<<" + Utils.showPartOfTextIfTooLong(receivedBytes.toString()));
+		}
 		if (rawDataBuff != null) {
+			if (frameListeners.length > 0) {
+				rawDataBuff.flip();
+				if (frameDecoder.decode(rawDataBuff) && frameDecoder.isValid()) {
+					ByteBuffer payload = rawDataBuff.asReadOnlyBuffer();
+					payload.limit(frameDecoder.payloadEnd);
+					payload.position(frameDecoder.payloadStart);
+					fireFrame(frameDecoder.opcode, frameDecoder.fin, frameDecoder.rsv, payload);
+				}
+			}
 			dataFrame = new DataFrame(rawDataBuff.array());
-			log("<<" + dataFrame.toString());
+			if (Utils.isFrameLogging()) {
+				log("<<" + dataFrame.toString());
+			}
 		}
 
 		return dataFrame;
@@ -496,27 +546,10 @@ public class WebSocketBlocked extends AbstractWebSocket implements Runnable {
 			throw new IOException("the channel has reached end-of-stream when reading data.");
 		}
 		byte b = (byte) i;
-		receivedBytes.append((Utils.toHexString(b)));
-		return b;
-	}
-
-	/***************************** common private method ***************************************/
-	/**
-	 * Send headers to server.
-	 * 
-	 * @param out
-	 * @param s
-	 * @throws IOException
-	 */
-	private void sendString(OutputStream out, String s) throws IOException {
-		if (s.equals("")) {
-			log("");
-		} else {
-			log("Sending  ... " + s);
+		if (receivedBytes != null) {
+			receivedBytes.append((Utils.toHexString(b)));
 		}
-		String terminated = s + "\r\n";
-		byte[] sBytes = terminated.getBytes("UTF-8");
-		out.write(sBytes);
+		return b;
 	}
 
 }
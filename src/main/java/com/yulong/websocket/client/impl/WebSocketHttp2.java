@@ -0,0 +1,457 @@
+package com.yulong.websocket.client.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.yulong.websocket.client.ProtocolException;
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.utils.BufferPool;
+import com.yulong.websocket.client.utils.Utils;
+
+/**
+ * A WebSocket on a stream of an {@link Http2Connection}, bootstrapped with the extended CONNECT
+ * of RFC 8441. The frames are the same as on a socket, masked by the client, and travel in the
+ * DATA frames of the stream.
+ *
+ * The DATA received is kept in a buffer until it makes complete frames, which are processed on
+ * the reader thread of the connection unless reading is held. While it is held the data stays in
+ * the buffer and the stream window is not given back, so the server stops once it has sent a
+ * window's worth. The buffer goes back to the pool whenever it is empty, so that an idle stream
+ * holds none.
+ */
+public class WebSocketHttp2 extends AbstractWebSocket {
+
+  private final Http2Connection connection;
+  // Whether the connection was opened for this WebSocket alone, and is closed with it:
+  private final boolean ownsConnection;
+  private final String wsPath;
+  private final WebSocketConfig config;
+  private final CountDownLatch responded = new CountDownLatch(1);
+  private volatile boolean closedByServer = false;
+
+  // The stream, guarded by the write lock of the connection:
+  int streamId = 0;
+  int sendWindow = 0;
+
+  // The receive side, guarded by inbound:
+  private final Object inbound = new Object();
+  private final BufferPool bufferPool = BufferPool.getDefault();
+  private ByteBuffer readerBuff = null;
+  private ByteBuffer readerView = null;
+  private boolean processing = false;
+  // The bytes received and not yet given back to the server:
+  private int uncredited = 0;
+  private final FrameDecoder frameDecoder = new FrameDecoder();
+  private final FragmentAssembler fragmentAssembler = new FragmentAssembler();
+
+  /**
+   * The constructor to open a WebSocket on a connection of its own, which is closed with it.
+   * It returns once the server has responded or the handshake timeout has expired.
+   *
+   * @param hostname
+   * @param port
+   * @param path
+   * @param config
+   */
+  public WebSocketHttp2(String hostname, int port, String path, WebSocketConfig config) {
+    this(openConnection(hostname, port, config), true, path, config);
+  }
+
+  /**
+   * The constructor to open a WebSocket on a new stream of the connection. It returns once the
+   * server has responded or the handshake timeout has expired.
+   *
+   * @param connection
+   * @param path
+   * @param config
+   */
+  public WebSocketHttp2(Http2Connection connection, String path, WebSocketConfig config) {
+    this(connection, false, path, config);
+  }
+
+  private WebSocketHttp2(Http2Connection connection, boolean ownsConnection, String path, WebSocketConfig config) {
+    this.connection = connection;
+    this.ownsConnection = ownsConnection;
+    this.wsPath = path;
+    this.config = config;
+    setListenerDispatch(config.getListenerDispatch());
+    setReadWatermarks(config.getReadLowWatermark(), config.getReadHighWatermark());
+    instanceId = ++number;
+    if (connection == null) {
+      log("Failed to open the HTTP/2 connection");
+      setState(WebSocketState.CLOSED);
+      stopped = true;
+      return;
+    }
+    startOpeningHandshake();
+  }
+
+  private static Http2Connection openConnection(String hostname, int port, WebSocketConfig config) {
+    try {
+      return Http2Connection.open(hostname, port, config);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Check if the connection is closed by server.
+   *
+   * @return
+   */
+  @Override
+  public boolean hasClosedFromServer() {
+    return closedByServer;
+  }
+
+  /**
+   * To get the HTTP/2 connection the WebSocket is on.
+   *
+   * @return
+   */
+  public Http2Connection getConnection() {
+    return connection;
+  }
+
+  /**
+   * To get the id of the stream, 0 before the request is sent.
+   *
+   * @return
+   */
+  public int getStreamId() {
+    return streamId;
+  }
+
+  /**************** opening handshake *******************/
+  /**
+   * Send the extended CONNECT on a new stream and wait for the response.
+   */
+  private void startOpeningHandshake() {
+    log("Starting openning handshake to " + wsPath + " over HTTP/2");
+    setState(WebSocketState.CONNECTING);
+    List<String[]> fields = requestFields();
+    if (Utils.isFrameLogging()) {
+      StringBuilder sb = new StringBuilder();
+      for (String[] field : fields) {
+        sb.append(field[0]).append(": ").append(field[1]).append("\r\n");
+      }
+      log("Sending ... \r\n" + sb);
+    }
+    try {
+      connection.startStream(this, fields);
+      if (!responded.await(config.getHandshakeTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+        log("The response is not received in time");
+        disconnect();
+      }
+    } catch (IOException e) {
+      log("Failed to send opening handshake due to " + e);
+      disconnect();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      disconnect();
+    }
+  }
+
+  private List<String[]> requestFields() {
+    String authority = connection.getHost() + ":" + connection.getPort();
+    List<String[]> fields = new ArrayList<String[]>();
+    fields.add(new String[] { ":method", "CONNECT" });
+    fields.add(new String[] { ":protocol", "websocket" });
+    fields.add(new String[] { ":scheme", "http" });
+    fields.add(new String[] { ":path", wsPath });
+    fields.add(new String[] { ":authority", authority });
+    fields.add(new String[] { "origin", "http://" + authority });
+    if (config.getVersion() != null) {
+      fields.add(new String[] { "sec-websocket-version", config.getVersion() });
+    }
+    if (config.getSubProtocols() != null) {
+      fields.add(new String[] { "sec-websocket-protocol", Utils.array2String(config.getSubProtocols()) });
+    }
+    if (config.getExtensions() != null) {
+      fields.add(new String[] { "sec-websocket-extensions", Utils.array2String(config.getExtensions()) });
+    }
+    Map<String, String[]> optionalHeaders = config.getOptionalHeaders();
+    if (optionalHeaders != null) {
+      for (Map.Entry<String, String[]> entry : optionalHeaders.entrySet()) {
+        // The field names are lower case in HTTP/2:
+        fields.add(new String[] { entry.getKey().toLowerCase(), Utils.array2String(entry.getValue()) });
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * The response headers, or trailers once open. A 2xx status accepts the WebSocket.
+   *
+   * @param headers
+   * @param endStream
+   */
+  void onHeaders(Map<String, String> headers, boolean endStream) {
+    if (!handshakeFinished) {
+      String status = headers.remove(":status");
+      try {
+        responsStatusCode = status == null ? -1 : Integer.parseInt(status);
+      } catch (NumberFormatException e) {
+        responsStatusCode = -1;
+      }
+      responseHeaders.putAll(headers);
+      log("receiving ... \r\n:status: " + status + "\r\n" + headers);
+      handshakeFinished = true;
+      if (responsStatusCode / 100 == 2 && !endStream) {
+        compareAndSetState(WebSocketState.CONNECTING, WebSocketState.OPEN);
+        responded.countDown();
+        return;
+      }
+      log("The response status code is not 2xx: " + responsStatusCode);
+      disconnect();
+      responded.countDown();
+      return;
+    }
+    if (endStream) {
+      onEndStream();
+    }
+  }
+
+  /**************** reading *******************/
+  /**
+   * The payload of a DATA frame of the stream, called on the reader thread of the connection.
+   *
+   * @param data
+   * @param flowLength the length counted against the window, padding included.
+   * @param endStream
+   */
+  void onData(ByteBuffer data, int flowLength, boolean endStream) {
+    metrics.recordReads(1, data.remaining());
+    if (Utils.isFrameLogging()) {
+      log("<<" + Utils.showPartOfTextIfTooLong(Utils.toHexString(data, data.position(), data.remaining())));
+    }
+    if (state == WebSocketState.OPEN || state == WebSocketState.CLOSING) {
+      synchronized (inbound) {
+        ensureReaderRoom(data.remaining());
+        readerBuff.put(data);
+        uncredited += flowLength;
+      }
+      proceedInbound();
+    } else {
+      synchronized (inbound) {
+        uncredited += flowLength;
+      }
+    }
+    creditReceived(false);
+    if (endStream) {
+      onEndStream();
+    }
+  }
+
+  /**
+   * Process the complete frames in the reader buffer, as long as reading is not held. A
+   * listener resuming reading from within only lets the loop go on.
+   */
+  private void proceedInbound() {
+    synchronized (inbound) {
+      if (processing || readerBuff == null) {
+        return;
+      }
+      processing = true;
+      try {
+        readerBuff.flip();
+        try {
+          while (!isReadingHeld() && frameDecoder.decode(readerBuff)) {
+            int start = readerBuff.position();
+            proceedFrame(frameDecoder, readerView, start, fragmentAssembler);
+            readerBuff.position(start + frameDecoder.frameLength);
+          }
+        } finally {
+          readerBuff.compact();
+        }
+        if (stopped || readerBuff.position() == 0) {
+          releaseReaderBuffer();
+        }
+      } catch (ProtocolException e) {
+        log("Error occurs when reading data due to " + e);
+        e.printStackTrace();
+        fireError(e);
+        releaseReaderBuffer();
+        disconnect();
+      } finally {
+        processing = false;
+      }
+    }
+  }
+
+  /**
+   * Make room in the reader buffer, which is in write mode, for the given bytes.
+   */
+  private void ensureReaderRoom(int length) {
+    if (readerBuff != null && readerBuff.remaining() >= length) {
+      return;
+    }
+    int needed = (readerBuff == null ? 0 : readerBuff.position()) + length;
+    ByteBuffer replacement = bufferPool.acquire(Math.max(needed, frameDecoder.frameLength));
+    if (readerBuff != null) {
+      readerBuff.flip();
+      replacement.put(readerBuff);
+      bufferPool.release(readerBuff);
+    }
+    readerBuff = replacement;
+    readerView = readerBuff.asReadOnlyBuffer();
+  }
+
+  private void releaseReaderBuffer() {
+    if (readerBuff != null) {
+      bufferPool.release(readerBuff);
+      readerBuff = null;
+      readerView = null;
+    }
+  }
+
+  /**
+   * Give the received bytes back to the server unless reading is held, once they are half the
+   * window or, if all is true, whatever their number.
+   *
+   * @param all
+   */
+  private void creditReceived(boolean all) {
+    int credit;
+    synchronized (inbound) {
+      if (isReadingHeld() || uncredited == 0 || (!all && uncredited < Http2Connection.DEFAULT_WINDOW / 2)) {
+        return;
+      }
+      credit = uncredited;
+      uncredited = 0;
+    }
+    try {
+      connection.creditStream(this, credit);
+    } catch (IOException e) {
+      log("Failed to update the window due to " + e);
+    }
+  }
+
+  /**
+   * Process what was held back and give the window back once reading is released.
+   */
+  @Override
+  protected void onReadingChanged() {
+    if (!isReadingHeld() && (state == WebSocketState.OPEN || state == WebSocketState.CLOSING)) {
+      proceedInbound();
+      creditReceived(true);
+    }
+  }
+
+  private void onEndStream() {
+    if (!stopped) {
+      closedByServer = true;
+      log("The server has ended the stream");
+      disconnect();
+    }
+  }
+
+  /**
+   * The stream was reset by the server, or refused with GOAWAY.
+   *
+   * @param errorCode
+   */
+  void onReset(int errorCode) {
+    if (!stopped) {
+      closedByServer = true;
+      log("The stream is reset with error code " + errorCode);
+    }
+    disconnect();
+    responded.countDown();
+  }
+
+  /**
+   * The connection is over.
+   */
+  void onConnectionClosed() {
+    if (!stopped) {
+      closedByServer = true;
+      log("The HTTP/2 connection is closed");
+    }
+    disconnect();
+    responded.countDown();
+  }
+
+  /**************** writing *******************/
+  /**
+   * Write DATA frames as far as the windows allow.
+   *
+   * @param buff
+   * @return false if a window is exhausted, the rest is written once it is updated.
+   */
+  @Override
+  protected boolean write(ByteBuffer buff) throws IOException {
+    return connection.writeData(this, buff);
+  }
+
+  /**
+   * The window may have been updated between the failed write and the writer giving up the
+   * queue, in which case the update could not flush it.
+   */
+  @Override
+  protected void onWriteBlocked() {
+    if (!stopped && connection.canWrite(this)) {
+      resumeWriting();
+    }
+  }
+
+  /**
+   * Flush the queue once the window is updated.
+   */
+  void resumeWriting() {
+    if (stopped) {
+      return;
+    }
+    try {
+      flush();
+    } catch (IOException e) {
+      log("Failed to write due to " + e);
+      disconnect();
+    }
+  }
+
+  /**
+   * Disconnect from server: end the stream, and close the connection if it is this
+   * WebSocket's own.
+   */
+  @Override
+  protected void disconnect() {
+    log("Disconnecting from client side");
+    setState(WebSocketState.CLOSED);
+    stopped = true;
+    discardOutbound();
+    if (connection == null) {
+      return;
+    }
+    connection.endStream(this, hasSentCloseHandshake() && hasReceivedCloseHandshake);
+    synchronized (inbound) {
+      // Released by the loop if it is processing:
+      if (!processing) {
+        releaseReaderBuffer();
+      }
+    }
+    stopDispatching();
+    if (ownsConnection) {
+      connection.close();
+    }
+  }
+
+  /**
+   * To get the capacity of the reader buffer, for tests.
+   *
+   * @return
+   */
+  int getReaderCapacity() {
+    synchronized (inbound) {
+      return readerBuff == null ? 0 : readerBuff.capacity();
+    }
+  }
+
+}
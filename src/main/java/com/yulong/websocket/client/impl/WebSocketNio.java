@@ -1,55 +1,80 @@
 package com.yulong.websocket.client.impl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.StringReader;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 
 import com.yulong.websocket.client.HandShakeException;
 import com.yulong.websocket.client.ProtocolException;
-import com.yulong.websocket.client.WebSocketListener;
+import com.yulong.websocket.client.WebSocketConfig;
 import com.yulong.websocket.client.WebSocketState;
-import com.yulong.websocket.client.frames.CloseFrame;
-import com.yulong.websocket.client.frames.DataFrame;
-import com.yulong.websocket.client.frames.PingFrame;
-import com.yulong.websocket.client.frames.PongFrame;
+import com.yulong.websocket.client.utils.BufferPool;
+import com.yulong.websocket.client.utils.UnixDomainSockets;
 import com.yulong.websocket.client.utils.Utils;
 import com.yulong.websocket.client.utils.WebSocketKey;
 
 /**
  * A non-blocked WebSocket connection to the remote host/port.
+ *
+ * Without an event loop in its config the connection selects on a selector of its own, on the
+ * thread that runs it. With one, the loop does the selecting and {@link #run()} has nothing to
+ * do. Either way the state needed while data is in flight - the read buffer, the handshake
+ * parser, the fragments of a message - is only held while it is used, so that an idle
+ * connection on a shared loop stays within {@link #IDLE_HEAP_BUDGET} bytes of heap.
  */
 public class WebSocketNio extends AbstractWebSocket implements Runnable {
 
+  /**
+   * The heap an open, idle connection on a shared event loop takes at most, socket channel
+   * included; checked by the tests and measured by the footprint benchmark.
+   */
+  public static final int IDLE_HEAP_BUDGET = 3072;
+
   // The variables regarding remote host and websocket path:
   private String remoteHost = null;
   private int remotePort;
   private String wsPath = null;
   private boolean secure = false;
-  private String version = "13";
-  private String[] subProtocols = null;
-  private String[] extensions = null;
-  private Map<String, String[]> optionalHeaders;
+  private final WebSocketConfig config;
+  // Only during the opening handshake:
   private WebSocketKey webSocketKey = null;
+  private HandshakeParser handshakeParser = null;
+  // Until the handshake is finished, when to give up connecting, as of System.nanoTime():
+  private long deadline = 0;
 
   // The socket:
   private SocketChannel socketChannel = null;
-  private Selector selector;
-  private ByteBuffer readerBuff = ByteBuffer.allocate(8192);
-  private DataFrameBuilder dataFrameBuilder = new DataFrameBuilder();
+  // Either the shared loop or a selector of its own:
+  private final NioEventLoop eventLoop;
+  private Selector selector = null;
+  private SelectionKey selectionKey = null;
+  // On the loop: whether the connection has been registered, then forgotten:
+  private boolean loopRegistered = false;
+  private boolean loopReleased = false;
+  // Requested by the other threads, applied to the key by the selecting thread:
+  private volatile boolean writeInterest = false;
+  private int appliedInterestOps = 0;
+  // The received bytes not processed yet, left in write mode between reads. It is a direct
+  // buffer from the pool, taken for a read and given back once everything read is processed:
+  private final BufferPool bufferPool = BufferPool.getDefault();
+  private ByteBuffer readerBuff = null;
+  // A read-only view of readerBuff handed to the frame listeners:
+  private ByteBuffer readerView = null;
+  // The reader buffer follows the size of the reads between these:
+  private static final int MIN_READ_BUFFER = 512;
+  private static final int MAX_READ_BUFFER = 64 * 1024;
+  private final AdaptiveReadSizer readSizer;
+  private final FrameDecoder frameDecoder = new FrameDecoder();
   private boolean closedByServer = false;
 
-  private List<DataFrame> textDataFrameList = new LinkedList<DataFrame>();
-  private List<DataFrame> binaryDataFrameList = new LinkedList<DataFrame>();
+  private FragmentAssembler fragmentAssembler = new FragmentAssembler();
 
   /**
    * The constructor to create a WebSocket.
@@ -69,28 +94,67 @@ public class WebSocketNio extends AbstractWebSocket implements Runnable {
                       String[] subProtocols,
                       String[] extensions,
                       Map<String, String[]> optionalHeaders) {
+    this(hostname, port, path, secure, WebSocketConfig.builder().version(version).subProtocols(subProtocols)
+        .extensions(extensions).optionalHeaders(optionalHeaders).build());
+  }
+
+  /**
+   * The constructor to create a WebSocket with the given settings.
+   * 
+   * @param hostname
+   * @param port
+   * @param path
+   * @param secure
+   * @param config
+   */
+  public WebSocketNio(String hostname, int port, String path, boolean secure, WebSocketConfig config) {
     this.remoteHost = hostname;
     this.remotePort = port;
     this.wsPath = path;
     this.secure = secure;
-    this.version = version;
-    this.subProtocols = subProtocols;
-    this.extensions = extensions;
-    this.optionalHeaders = optionalHeaders;
-    try {
-      selector = Selector.open();
-    } catch (IOException e) {
-      e.printStackTrace();
+    this.config = config;
+    this.eventLoop = config.getEventLoop();
+    int initial = config.getReadBufferSize();
+    this.readSizer = new AdaptiveReadSizer(Math.min(MIN_READ_BUFFER, initial), initial,
+        Math.max(MAX_READ_BUFFER, initial));
+    setListenerDispatch(config.getListenerDispatch());
+    setReadWatermarks(config.getReadLowWatermark(), config.getReadHighWatermark());
+    if (eventLoop == null) {
+      try {
+        selector = Selector.open();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
     }
     instanceId = ++number;
     initConnection();
   }
 
   /**
-   * Start to connect and read data.
+   * Start to connect and read data. On an event loop there is nothing to do here.
    */
   @Override
   public void run() {
+    if (eventLoop != null) {
+      return;
+    }
+    try {
+      select();
+    } finally {
+      // Nothing reads any more, the buffer goes back to the pool:
+      releaseReaderBuffer();
+      try {
+        selector.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * The selecting loop, until the connection is stopped.
+   */
+  private void select() {
 
     while (true) {
 
@@ -104,57 +168,139 @@ public class WebSocketNio extends AbstractWebSocket implements Runnable {
         //          System.out.println("selecting ... " + key.interestOps() + ":" + key.readyOps());
         //        }
 
-        selector.select();
+        updateInterestOps();
+        if (handshakeFinished) {
+          selector.select();
+        } else {
+          long remaining = (deadline - System.nanoTime()) / 1000000;
+          if (remaining <= 0) {
+            log("The connection is not established in time");
+            disconnect(null);
+            break;
+          }
+          selector.select(remaining);
+        }
 
         //        System.out.println("-->" + selector.selectedKeys().size());
 
         Iterator<SelectionKey> iterSelectedKey = selector.selectedKeys().iterator();
         while (iterSelectedKey.hasNext()) {
-
           SelectionKey key = iterSelectedKey.next();
           iterSelectedKey.remove();
-
-          if (!key.isValid()) {
-            continue;
-          }
-
-          if (key.isConnectable()) {
-            finishConnection(key);
-          } else if (key.isReadable()) {
-            if (state == WebSocketState.CLOSED) {
-              stopped = true;
-            }
-            read(key);
-          } else if (key.isWritable()) {
-            if (state == WebSocketState.CONNECTING) {
-              startOpeningHandshake(key);
-            } else {
-              log("can not read as connection is in the state " + state);
-            }
-          }
-
+          process(key);
         }
 
       } catch (IOException e) {
         log("Error occurs due to " + e);
         e.printStackTrace();
         disconnect(null);
-      } catch (HandShakeException e) {
-        log("Handshake failed due to " + e);
-        e.printStackTrace(System.out);
-        disconnect(null);
-        break;
-      } catch (ProtocolException e) {
-        log("Error occurs when reading data due to " + e);
-        e.printStackTrace();
-        for (WebSocketListener listener : listeners) {
-          listener.onError(e);
+      }
+
+    }
+
+  }
+
+  /**
+   * Handle a selected key, on the selecting thread.
+   * 
+   * @param key
+   */
+  void process(SelectionKey key) {
+
+    try {
+
+      if (!key.isValid()) {
+        return;
+      }
+
+      if (key.isConnectable()) {
+        finishConnection(key);
+      } else if (key.isReadable()) {
+        if (state == WebSocketState.CLOSED) {
+          stopped = true;
         }
+        read(key);
+      } else if (key.isWritable() && state == WebSocketState.CONNECTING) {
+        startOpeningHandshake(key);
+      }
+
+      // The queued data the socket could not take earlier:
+      if (key.isValid() && state != WebSocketState.CONNECTING && key.isWritable()) {
+        writeInterest = false;
+        flush();
+      }
+
+    } catch (IOException e) {
+      log("Error occurs due to " + e);
+      e.printStackTrace();
+      disconnect(null);
+    } catch (HandShakeException e) {
+      log("Handshake failed due to " + e);
+      e.printStackTrace(System.out);
+      disconnect(null);
+    } catch (ProtocolException e) {
+      log("Error occurs when reading data due to " + e);
+      e.printStackTrace();
+      fireError(e);
+      disconnect(null);
+    }
+
+  }
+
+  /**
+   * Apply on the loop thread what the connection asked the loop for: its registration, the
+   * change of its interest or, once stopped, its release.
+   * 
+   * @param loopSelector
+   * @param loop
+   */
+  void applyUpdate(Selector loopSelector, NioEventLoop loop) {
+    if (loopReleased) {
+      return;
+    }
+    if (stopped) {
+      loopReleased = true;
+      if (loopRegistered) {
+        loop.deregistered();
+      }
+      releaseReaderBuffer();
+      return;
+    }
+    if (!loopRegistered) {
+      try {
+        selectionKey = socketChannel.register(loopSelector, connectOps(), this);
+        loopRegistered = true;
+        loop.registered(this);
+      } catch (IOException e) {
+        log("Failed to register the connection due to " + e);
         disconnect(null);
+        applyUpdate(loopSelector, loop);
       }
+      return;
+    }
+    updateInterestOps();
+  }
 
+  /**
+   * Give up the handshake if its deadline has passed.
+   * 
+   * @param now as of System.nanoTime().
+   * @return whether the handshake is still awaited.
+   */
+  boolean checkHandshakeDeadline(long now) {
+    if (handshakeFinished || stopped) {
+      return false;
     }
+    if (now - deadline >= 0) {
+      log("The connection is not established in time");
+      disconnect(null);
+      return false;
+    }
+    return true;
+  }
 
+  SocketChannel getSocketChannel() {
+    return socketChannel;
   }
 
   /**
@@ -168,22 +314,61 @@ public class WebSocketNio extends AbstractWebSocket implements Runnable {
   }
 
   /**
-   * Send data to server.
+   * Write data to server without blocking.
    * 
-   * @param data 
+   * @param buff
    */
-  protected void sendData(byte[] data) throws IOException {
-    log(">>" + Utils.showPartOfTextIfTooLong(Utils.toHexString(data)));
-    ByteBuffer buff = ByteBuffer.wrap(data);
+  @Override
+  protected boolean write(ByteBuffer buff) throws IOException {
     socketChannel.write(buff);
-    long start = System.currentTimeMillis();
-    while (buff.hasRemaining()) {
-      log("remaining is " + buff.remaining() + ", will continue to send ...");
-      socketChannel.write(buff);
-      long end = System.currentTimeMillis();
-      if ((end - start) / 1000 > 5) {
-        break;
-      }
+    if (buff.hasRemaining()) {
+      log("remaining is " + buff.remaining() + ", will continue to send once the socket is writable ...");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Ask the selecting thread to flush once the socket is writable.
+   */
+  @Override
+  protected void onWriteBlocked() {
+    writeInterest = true;
+    requestUpdate();
+  }
+
+  /**
+   * Ask the selecting thread to stop or start reading. Once OP_READ is removed the socket
+   * receive buffer fills up and TCP flow control holds the server back.
+   */
+  @Override
+  protected void onReadingChanged() {
+    requestUpdate();
+  }
+
+  /**
+   * Have the selecting thread look at the connection again.
+   */
+  private void requestUpdate() {
+    if (eventLoop != null) {
+      eventLoop.update(this);
+    } else {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Apply the interest requested by the other threads, on the selecting thread.
+   */
+  private void updateInterestOps() {
+    SelectionKey key = selectionKey;
+    if (key == null || !key.isValid() || (state != WebSocketState.OPEN && state != WebSocketState.CLOSING)) {
+      return;
+    }
+    int ops = (isReadingHeld() ? 0 : SelectionKey.OP_READ) | (writeInterest ? SelectionKey.OP_WRITE : 0);
+    if (ops != appliedInterestOps) {
+      key.interestOps(ops);
+      appliedInterestOps = ops;
     }
   }
 
@@ -199,23 +384,50 @@ public class WebSocketNio extends AbstractWebSocket implements Runnable {
    * Step 1: initialize the connection.
    */
   private void initConnection() {
-    log("Connecting to ws://" + remoteHost + ":" + remotePort);
-    SocketAddress remote = new InetSocketAddress(remoteHost, remotePort);
+    boolean unix = UnixDomainSockets.isUnixAddress(remoteHost);
+    log("Connecting to ws://" + remoteHost + (unix ? "" : ":" + remotePort));
+    setState(WebSocketState.CONNECTING);
+    deadline = System.nanoTime() + config.getConnectTimeoutMillis() * 1000000L;
     SelectionKey key = null;
     try {
-      if (!secure) {
-        socketChannel = SocketChannel.open();
-      } else {
+      if (secure) {
         //TODO how to implement something like SSLSocketChannel?
         throw new IOException("There is not implementation in NIO for SSL channel.");
+      } else if (unix) {
+        socketChannel = UnixDomainSockets.openSocketChannel();
+      } else {
+        socketChannel = SocketChannel.open();
       }
       socketChannel.configureBlocking(false);
-      socketChannel.connect(remote);
-      key = socketChannel.register(selector, SelectionKey.OP_CONNECT);
-      selector.wakeup();
+      // Nagle's algorithm is TCP only:
+      if (!unix) {
+        socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, config.isTcpNoDelay());
+      }
+      if (config.getSendBufferSize() > 0) {
+        socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
+      }
+      // Before connecting, so that the window scaling is agreed for it:
+      if (config.getReceiveBufferSize() > 0) {
+        socketChannel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+      }
+      SocketAddress remote = unix ? UnixDomainSockets.address(remoteHost) : new InetSocketAddress(remoteHost,
+          remotePort);
+      if (socketChannel.connect(remote)) {
+        // Connected at once, as a Unix domain socket usually is: no OP_CONNECT will come.
+        deadline = System.nanoTime() + config.getHandshakeTimeoutMillis() * 1000000L;
+      }
+      if (eventLoop != null) {
+        eventLoop.update(this);
+      } else {
+        key = socketChannel.register(selector, connectOps());
+        selectionKey = key;
+        selector.wakeup();
+      }
     } catch (IOException e) {
       log("Failed to initiate the connection due to " + e);
       e.printStackTrace();
+      setState(WebSocketState.CLOSED);
+      stopped = true;
       if (key != null) {
         key.cancel();
       }
@@ -228,6 +440,16 @@ public class WebSocketNio extends AbstractWebSocket implements Runnable {
     }
   }
 
+  /**
+   * To get the interest of a channel being connected: the end of the connection, or the
+   * opening handshake once connected.
+   * 
+   * @return
+   */
+  private int connectOps() {
+    return socketChannel.isConnected() ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT;
+  }
+
   /**
    * Step 2: finish the connection.
    * 
@@ -238,11 +460,12 @@ public class WebSocketNio extends AbstractWebSocket implements Runnable {
     try {
       socketChannel.finishConnect();
       key.interestOps(SelectionKey.OP_WRITE);
-      state = WebSocketState.CONNECTING;
+      deadline = System.nanoTime() + config.getHandshakeTimeoutMillis() * 1000000L;
     } catch (IOException e) {
       e.printStackTrace(System.out);
       key.cancel();
-      state = WebSocketState.CLOSED;
+      setState(WebSocketState.CLOSED);
+      stopped = true;
     }
   }
 
@@ -257,34 +480,16 @@ public class WebSocketNio extends AbstractWebSocket implements Runnable {
     SocketChannel socketChannel = (SocketChannel) key.channel();
 
     webSocketKey = new WebSocketKey();
-
-    StringBuilder sb = new StringBuilder();
-    sb.append("GET " + wsPath + " HTTP/1.1\r\n");
-    sb.append("Host: " + remoteHost + ":" + remotePort + "\r\n");
-    sb.append("Upgrade: websocket\r\n");
-    sb.append("Connection: Upgrade\r\n");
-    sb.append("Origin: http://" + remoteHost + ":" + remotePort + "\r\n");
-    sb.append("Sec-WebSocket-Key: " + webSocketKey.getKey() + "\r\n");
-    if (version != null) {
-      sb.append("Sec-WebSocket-Version: " + version + "\r\n");
+    handshakeParser = new HandshakeParser(responseHeaders);
+
+    // The socket file is no host name, the other end of a Unix domain socket is the local host:
+    String host = UnixDomainSockets.isUnixAddress(remoteHost) ? "localhost" : remoteHost;
+    HandshakeTemplate template = HandshakeTemplate.get(host, remotePort, wsPath, config.getVersion(),
+        config.getSubProtocols(), config.getExtensions(), config.getOptionalHeaders());
+    if (Utils.isFrameLogging()) {
+      log("Sending ... \r\n" + template.toString(webSocketKey.getKey()));
     }
-    if (subProtocols != null) {
-      sb.append("Sec-WebSocket-Protocol: " + Utils.array2String(subProtocols) + "\r\n");
-    }
-    if (extensions != null) {
-      sb.append("Sec-WebSocket-Extensions: " + Utils.array2String(extensions) + "\r\n");
-    }
-    if (optionalHeaders != null && !optionalHeaders.isEmpty()) {
-      for (Map.Entry<String, String[]> optionalHeaderEntry : optionalHeaders.entrySet()) {
-        sb.append(optionalHeaderEntry.getKey() + ": " + Utils.array2String(optionalHeaderEntry.getValue()) + "\r\n");
-      }
-    }
-
-    sb.append("\r\n");
-
-    String request = sb.toString();
-    log("Sending ... \r\n" + request);
-    ByteBuffer buff = ByteBuffer.wrap(Utils.string2Bytes(request));
+    ByteBuffer buff = ByteBuffer.wrap(template.request(webSocketKey.getKey()));
     try {
       socketChannel.write(buff);
       key.interestOps(SelectionKey.OP_READ);
@@ -297,7 +502,9 @@ public class WebSocketNio extends AbstractWebSocket implements Runnable {
   }
 
   /**
-   * Step 4: read data from the WebSocket connection.
+   * Step 4: read data from the WebSocket connection. As long as the reads fill the buffer the
+   * socket is read again, up to the budget of reads per wakeup, so that a bulk transfer does
+   * not go back to the selector for every buffer full.
    * 
    * @param key
    * @throws HandShakeException 
@@ -306,246 +513,198 @@ public class WebSocketNio extends AbstractWebSocket implements Runnable {
   private void read(SelectionKey key) throws HandShakeException, ProtocolException {
 
     SocketChannel socketChannel = (SocketChannel) key.channel();
-
-    readerBuff.clear();
-    int numRead = 0;
+    int maxReads = config.getMaxReadsPerWakeup();
+    int reads = 0;
+    long bytesRead = 0;
 
     try {
-      numRead = socketChannel.read(readerBuff);
-    } catch (IOException e) {
-      closedByServer = true;
-      log("failing to read due to: " + e);
-      disconnect(key);
-      return;
-    }
+      while (true) {
 
-    if (numRead == -1) {
-      closedByServer = true;
-      log("the channel has reached end-of-stream when reading data.");
-      disconnect(key);
-      return;
-    }
+        adaptReaderBuffer();
+        int position = readerBuff.position();
+        int attempted = readerBuff.remaining();
+        int numRead = 0;
 
-    byte[] data = new byte[numRead];
-    System.arraycopy(readerBuff.array(), 0, data, 0, numRead);
+        try {
+          numRead = socketChannel.read(readerBuff);
+        } catch (IOException e) {
+          closedByServer = true;
+          log("failing to read due to: " + e);
+          disconnect(key);
+          return;
+        }
 
-    // Process the data according to the state:
-    if (state == WebSocketState.CONNECTING) {
-      if (proceedOpeningHandshake(data)) {
-        state = WebSocketState.OPEN;
-        key.interestOps(SelectionKey.OP_READ);
-      } else {
-        state = WebSocketState.CLOSED;
+        if (numRead == -1) {
+          closedByServer = true;
+          log("the channel has reached end-of-stream when reading data.");
+          disconnect(key);
+          return;
+        }
+
+        reads++;
+        bytesRead += numRead;
+        readSizer.record(numRead, attempted);
+
+        // Process the data according to the state:
+        if (state == WebSocketState.CONNECTING) {
+          readerBuff.flip();
+          boolean complete = handshakeParser.parse(readerBuff);
+          // Whatever follows the headers is the first frames, kept for the frame decoder:
+          readerBuff.compact();
+          if (!complete) {
+            return;
+          }
+          log("receiving ... \r\n" + handshakeParser);
+          responsStatusCode = handshakeParser.getStatusCode();
+          boolean accepted = acceptHandshake(webSocketKey);
+          handshakeParser = null;
+          webSocketKey = null;
+          if (accepted) {
+            key.interestOps(SelectionKey.OP_READ);
+            appliedInterestOps = SelectionKey.OP_READ;
+            compareAndSetState(WebSocketState.CONNECTING, WebSocketState.OPEN);
+            if (readerBuff.position() > 0) {
+              proceedReaderBuffer();
+            }
+          } else {
+            setState(WebSocketState.CLOSED);
+          }
+        } else if (state == WebSocketState.OPEN) {
+          if (Utils.isFrameLogging()) {
+            log("<<" + Utils.showPartOfTextIfTooLong(Utils.toHexString(readerBuff, position, numRead)));
+          }
+          proceedReaderBuffer();
+        } else {
+          readerBuff.clear();
+        }
+
+        // A short read means the socket is drained:
+        if (!AdaptiveReadSizer.mayHaveMore(numRead, attempted) || reads >= maxReads
+            || state != WebSocketState.OPEN || isReadingHeld() || stopped) {
+          return;
+        }
+
+      }
+    } finally {
+      if (reads > 0) {
+        metrics.recordReads(reads, bytesRead);
+      }
+      // Idle, the buffer goes back to the pool until the next read:
+      if (readerBuff != null && readerBuff.position() == 0) {
+        releaseReaderBuffer();
       }
-    } else if (state == WebSocketState.OPEN) {
-      log("<<" + Utils.showPartOfTextIfTooLong(Utils.toHexString(data)));
-      proceedMessage(data);
     }
 
   }
 
   /**
-   * Process the response data.
+   * process the data received from WebSocket connection after handshake.
    * 
    * @param data
-   * @return
-   * @throws HandShakeException
+   * @throws ProtocolException 
    */
-  private boolean proceedOpeningHandshake(byte[] data) throws HandShakeException {
-
-    String responseAsText = Utils.bytes2String(data);
-    log("receiving ... \r\n" + responseAsText);
+  private void proceedMessage(byte[] data) throws ProtocolException {
+    ensureReaderCapacity(readerBuff.position() + data.length);
+    readerBuff.put(data);
+    proceedReaderBuffer();
+  }
 
-    // Read the response of the opening handshake:
-    List<String> list = new LinkedList<String>();
-    BufferedReader reader = new BufferedReader(new StringReader(responseAsText));
-    String line = null;
+  /**
+   * Process the complete frames in the reader buffer in place and keep the rest for the
+   * next read.
+   * 
+   * @throws ProtocolException
+   */
+  private void proceedReaderBuffer() throws ProtocolException {
+    readerBuff.flip();
     try {
-      while ((line = reader.readLine()) != null) {
-        list.add(line);
+      while (frameDecoder.decode(readerBuff)) {
+        int start = readerBuff.position();
+        proceedFrame(frameDecoder, readerView, start, fragmentAssembler);
+        readerBuff.position(start + frameDecoder.frameLength);
       }
-    } catch (IOException e) {
-      e.printStackTrace();
+    } finally {
+      readerBuff.compact();
     }
+    // Make room for a frame larger than the buffer:
+    ensureReaderCapacity(frameDecoder.frameLength);
+  }
 
-    // If we have not got the response status code, we asume that the first line is the status line:
-    if (responsStatusCode == -1) {
-      try {
-        String statusLine = list.remove(0);
-        String[] statusParts = statusLine.split(" ");
-        responsStatusCode = Integer.parseInt(statusParts[1].trim());
-      } catch (Exception e) {
-        throw new HandShakeException("Can not get the response status line due to " + e);
-      }
+  /**
+   * Grow the reader buffer, which is in write mode, to hold at least the given bytes.
+   * 
+   * @param capacity
+   */
+  private void ensureReaderCapacity(int capacity) {
+    int current = readerBuff == null ? 0 : readerBuff.capacity();
+    if (capacity > current) {
+      replaceReaderBuffer(Math.max(capacity, current * 2));
     }
+  }
 
-    for (String headerLine : list) {
-      if (headerLine.trim().length() == 0) {
-        // End of response headers:
-        return proccedHandshake();
-      }
-      int index = headerLine.indexOf(":");
-      String headerName = headerLine.substring(0, index);
-      String headerValue = headerLine.substring(index + 1).trim();
-      responseHeaders.put(headerName.toLowerCase(), headerValue);
-
+  /**
+   * Resize the reader buffer, which is in write mode, to the size predicted from the recent
+   * reads: it grows while the reads fill it and shrinks back when the connection is quiet.
+   * A frame in progress that is larger than the prediction keeps its room.
+   */
+  private void adaptReaderBuffer() {
+    int target = readSizer.size();
+    if (readerBuff == null) {
+      replaceReaderBuffer(target);
+      return;
+    }
+    int capacity = readerBuff.capacity();
+    // The pool rounds the sizes up, shrink only to half the capacity or less:
+    if (target > capacity
+        || (target * 2 <= capacity && readerBuff.position() <= target / 2 && frameDecoder.frameLength <= target)) {
+      replaceReaderBuffer(target);
     }
-
-    return false;
-
   }
 
   /**
-   * Check the response headers.
+   * Move the content of the reader buffer to one of the given capacity from the pool.
    * 
-   * @return
-   * @throws HandShakeException
+   * @param capacity
    */
-  private boolean proccedHandshake() throws HandShakeException {
-
-    handshakeFinished = true;
-    boolean handshakeSucceed = false;
-
-    if (responsStatusCode == 101) {
-
-      // Check the 'Upgrade' header:
-      String upgradeHeader = responseHeaders.get("upgrade").toLowerCase();
-      if (upgradeHeader == null || !upgradeHeader.equalsIgnoreCase("websocket")) {
-        throw new HandShakeException("Lack the Upgrade header or the header value is not websocket: " + upgradeHeader);
-      }
-
-      // Check the 'Connection' header:
-      String connectionHeader = responseHeaders.get("connection").toLowerCase();
-      if (connectionHeader == null || !connectionHeader.contains("upgrade")) {
-        throw new HandShakeException("Lack the Connection header or the header value does not contain 'Upgrade': "
-            + connectionHeader);
-      }
-
-      // Check the 'Sec-WebSocket-Accept' header:
-      String acceptHeader = responseHeaders.get("Sec-WebSocket-Accept".toLowerCase());
-      if (acceptHeader == null || !acceptHeader.equals(webSocketKey.getAccept())) {
-        throw new HandShakeException("Lack the Sec-WebSocket-Accept header or the header value is not "
-            + webSocketKey.getAccept() + ": " + acceptHeader);
-      }
-      handshakeSucceed = true;
-
+  private void replaceReaderBuffer(int capacity) {
+    ByteBuffer replacement = bufferPool.acquire(capacity);
+    if (readerBuff != null) {
+      readerBuff.flip();
+      replacement.put(readerBuff);
+      bufferPool.release(readerBuff);
     }
-
-    return handshakeSucceed;
-
+    readerBuff = replacement;
+    readerView = readerBuff.asReadOnlyBuffer();
   }
 
   /**
-   * process the data received from WebSocket connection after handshake.
-   * 
-   * @param data
-   * @throws ProtocolException 
+   * Give the reader buffer back to the pool, dropping what it holds.
    */
-  private void proceedMessage(byte[] data) throws ProtocolException {
-
-    //log("<<~~~~~~ " + Utils.toHexString(data));
-    ByteBuffer dataBuff = ByteBuffer.wrap(data);
-    DataFrame dataFrame = dataFrameBuilder.build(dataBuff);
-
-    if (dataFrame != null) {
-
-      log("<<" + dataFrame);
-
-      for (WebSocketListener listener : listeners) {
-        listener.onDataFrame(dataFrame);
-      }
-
-      dataFrame.validate();
-
-      dataFrameBuilder = new DataFrameBuilder();
-
-      boolean isFinal = dataFrame.isFin();
-      int opcode = dataFrame.getOpcode();
-
-      if (opcode == 0x08) {
-        // If close frame:
-        state = WebSocketState.CLOSING;
-        CloseFrame closeFrame = new CloseFrame(dataFrame);
-        hasReceivedCloseHandshake = true;
-        for (WebSocketListener listener : listeners) {
-          listener.onClose(closeFrame);
-        }
-      } else if (opcode == 0x09) {
-        // If ping frame:
-        PingFrame pingFrame = new PingFrame(dataFrame);
-        for (WebSocketListener listener : listeners) {
-          listener.onPing(pingFrame);
-        }
-      } else if (opcode == 0x0A) {
-        // If pong frame:
-        PongFrame pongFrame = new PongFrame(dataFrame);
-        for (WebSocketListener listener : listeners) {
-          listener.onPong(pongFrame);
-        }
-      } else if (opcode <= 0x02) {
-        // Text frame:
-        if (opcode == 0x01) {
-          textDataFrameList.add(dataFrame);
-        } else if (opcode == 0x02) {
-          binaryDataFrameList.add(dataFrame);
-        } else {
-          if (textDataFrameList.size() != 0) {
-            textDataFrameList.add(dataFrame);
-          } else if (binaryDataFrameList.size() != 0) {
-            binaryDataFrameList.add(dataFrame);
-          }
-        }
-        if (isFinal) {
-          if (textDataFrameList.size() != 0) {
-            processTextMessage();
-          } else if (binaryDataFrameList.size() != 0) {
-            processBinaryMessage();
-          }
-        }
-      } else {
-        // Reserved opcodes:
-
-      }
-
-      // If there are remaining in dataBuff, continue to process the remaining data:
-      if (dataBuff.hasRemaining()) {
-        int remainingCount = dataBuff.remaining();
-        log("Will continue to process the remaining data: " + remainingCount);
-        byte[] remaining = new byte[remainingCount];
-        dataBuff.get(remaining);
-        proceedMessage(remaining);
-      }
-
+  private void releaseReaderBuffer() {
+    if (readerBuff != null) {
+      bufferPool.release(readerBuff);
+      readerBuff = null;
+      readerView = null;
     }
-
   }
 
   /**
-   * Compose the text messages:
+   * To get the capacity of the reader buffer, for tests.
+   * 
+   * @return
    */
-  private void processTextMessage() {
-    StringBuilder sb = new StringBuilder();
-    for (DataFrame dataFrame : textDataFrameList) {
-      sb.append(dataFrame.getTextMessage());
-    }
-    textDataFrameList.clear();
-    for (WebSocketListener listener : listeners) {
-      listener.onMessage(sb.toString());
-    }
+  int getReaderCapacity() {
+    ByteBuffer buff = readerBuff;
+    return buff == null ? 0 : buff.capacity();
   }
 
   /**
-   * Compose the binary messages:
+   * To get the predicted size of the reads, for tests.
+   * 
+   * @return
    */
-  private void processBinaryMessage() {
-    byte[] composed = new byte[0];
-    for (DataFrame dataFrame : binaryDataFrameList) {
-      composed = Utils.combine(composed, dataFrame.getApplicationData());
-    }
-    binaryDataFrameList.clear();
-    for (WebSocketListener listener : listeners) {
-      listener.onMessage(composed);
-    }
+  int getReadSize() {
+    return readSizer.size();
   }
 
   /**
@@ -555,7 +714,7 @@ public class WebSocketNio extends AbstractWebSocket implements Runnable {
    */
   private void disconnect(SelectionKey key) {
     log("Disconnecting from client side");
-    state = WebSocketState.CLOSED;
+    setState(WebSocketState.CLOSED);
     stopped = true;
     if (key != null) {
       key.cancel();
@@ -573,99 +732,11 @@ public class WebSocketNio extends AbstractWebSocket implements Runnable {
         }
       }
     }
-  }
-
-  /**
-   * A private class to compose a data frame with the received data.
-   * 
-   * @author @author Yulong Shi(yu.long.shi@oracle.com)
-   * @since 4/20/2012 12c
-   *
-   */
-  private class DataFrameBuilder {
-
-    private boolean mask = false;
-    private int payloadLength = -1;
-
-    ByteBuffer basicBuff = ByteBuffer.allocate(14);
-    ByteBuffer rawDataBuff = null;
-    int rawDataLength = -1;
-
-    public DataFrame build(ByteBuffer dataBuff) {
-
-      DataFrame dataFrame = null;
-
-      while (dataBuff.hasRemaining()) {
-
-        byte b = dataBuff.get();
-        //log("processing byte: " + Utils.toHexString(b));
-
-        if (basicBuff.position() == 0) {
-          basicBuff.put(b);
-          continue;
-        }
-
-        if (basicBuff.position() == 1) {
-          basicBuff.put(b);
-          mask = ((b & 0x80) == 0x80);
-          payloadLength = (b & 0x7f);
-          if (payloadLength <= 125) {
-            basicBuff.limit(2);
-          } else if (payloadLength == 126) {
-            basicBuff.limit(2 + 2);
-          } else if (payloadLength == 127) {
-            basicBuff.limit(2 + 8);
-          }
-          if (mask) {
-            basicBuff.limit(basicBuff.limit() + 4);
-          }
-          if (payloadLength == 0 && !mask) {
-            byte[] rawData = new byte[2];
-            basicBuff.clear();
-            basicBuff.get(rawData);
-            return new DataFrame(rawData);
-          }
-          continue;
-        }
-
-        if (basicBuff.remaining() > 0) {
-          basicBuff.put(b);
-        }
-        if (basicBuff.remaining() == 0) {
-          if (rawDataLength == -1) {
-            // calculate the data length that needs to be read:
-            long dataLength = payloadLength;
-            if (payloadLength == 126) {
-              dataLength = Utils.toInt(basicBuff, 2, 2);
-            } else if (payloadLength == 127) {
-              dataLength = Utils.toLong(basicBuff, 2, 8);
-            }
-            if (dataLength < 0 || dataLength > Integer.MAX_VALUE) {
-              dataLength = 0;
-            }
-            rawDataLength = basicBuff.limit() + (int) dataLength;
-            rawDataBuff = ByteBuffer.allocate(rawDataLength);
-            basicBuff.position(0);
-            rawDataBuff.put(basicBuff);
-            basicBuff.position(basicBuff.limit());
-            if (dataLength != 0 && basicBuff.limit() > 2) {
-              // in this case, as we have read 'b' in basicBuff and we may need to read it again,
-              // set the new position to 'position-1':
-              rawDataBuff.position(rawDataBuff.position() - 1);
-            }
-          }
-          if (rawDataBuff.remaining() > 0) {
-            rawDataBuff.put(b);
-          }
-          if (rawDataBuff.remaining() == 0) {
-            dataFrame = new DataFrame(rawDataBuff.array());
-            break;
-          }
-        }
-      }
-
-      return dataFrame;
-
+    discardOutbound();
+    stopDispatching();
+    if (eventLoop != null) {
+      // For the loop to forget the connection:
+      eventLoop.update(this);
     }
   }
 
@@ -0,0 +1,114 @@
+package com.yulong.websocket.client.load;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of latencies in nanoseconds. Values are kept in log-linear buckets,
+ * i.e. each power of two is split into 128 linear sub-buckets, so that any reported
+ * percentile is within 1% of the recorded value while the memory stays fixed.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = 64 - SUB_BUCKET_BITS + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT * SUB_BUCKET_COUNT);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong maxValue = new AtomicLong();
+
+	/**
+	 * To record a latency.
+	 *
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(indexOf(nanos));
+		totalCount.incrementAndGet();
+		long max = maxValue.get();
+		while (nanos > max && !maxValue.compareAndSet(max, nanos)) {
+			max = maxValue.get();
+		}
+	}
+
+	/**
+	 * To get the number of recorded values.
+	 *
+	 * @return
+	 */
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	/**
+	 * To get the maximum recorded value.
+	 *
+	 * @return
+	 */
+	public long getMax() {
+		return maxValue.get();
+	}
+
+	/**
+	 * To get the value at the given percentile, e.g. 99.9.
+	 *
+	 * @param percentile
+	 * @return the value in nanoseconds, or 0 if nothing has been recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = totalCount.get();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile / 100.0 * count);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValueOf(i), maxValue.get());
+			}
+		}
+		return maxValue.get();
+	}
+
+	/**
+	 * To get the index of the bucket holding the given value.
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int bucket = magnitude - SUB_BUCKET_BITS + 1;
+		int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+		return bucket * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	/**
+	 * To get the highest value that falls into the bucket with the given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	private static long highestValueOf(int index) {
+		int bucket = index / SUB_BUCKET_COUNT;
+		int subBucket = index % SUB_BUCKET_COUNT;
+		if (bucket == 0) {
+			return subBucket;
+		}
+		int shift = bucket - 1;
+		long lowest = ((long) (SUB_BUCKET_COUNT + subBucket)) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+}
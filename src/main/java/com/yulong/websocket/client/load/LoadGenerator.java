@@ -0,0 +1,438 @@
+package com.yulong.websocket.client.load;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.yulong.websocket.client.ProtocolException;
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.WebSocketFactory;
+import com.yulong.websocket.client.WebSocketListener;
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.frames.CloseFrame;
+import com.yulong.websocket.client.frames.DataFrame;
+import com.yulong.websocket.client.frames.PingFrame;
+import com.yulong.websocket.client.frames.PongFrame;
+import com.yulong.websocket.client.utils.Utils;
+
+/**
+ * A load generator that opens a number of connections to an echo endpoint, sends text
+ * messages on each of them at a fixed target rate and measures the echo latency.
+ *
+ * Each message is scheduled at a fixed interval from the start of the run and its latency
+ * is measured from that scheduled time rather than from the time it was actually sent, so
+ * that a stalled connection or server is charged for every message it delayed
+ * (coordinated omission correction).
+ */
+public class LoadGenerator {
+
+	private static final String MESSAGE_PREFIX = "lg:";
+
+	private final String host;
+	private final int port;
+	private final String path;
+	private final boolean secure;
+
+	private int connections = 1;
+	private int ratePerConnection = 100;
+	private int durationSeconds = 10;
+	private int messageSize = 64;
+	private int drainSeconds = 5;
+	private WebSocketConfig.Engine engine = null;
+
+	private final AtomicLong messagesSent = new AtomicLong();
+	private final AtomicLong messagesReceived = new AtomicLong();
+	private final AtomicLong sendErrors = new AtomicLong();
+	private final AtomicLong protocolErrors = new AtomicLong();
+	// Read directly by the tests of the package:
+	final LatencyHistogram latency = new LatencyHistogram();
+	final LatencyHistogram serviceTime = new LatencyHistogram();
+
+	/**
+	 * To create a load generator for the given endpoint, which must echo text messages.
+	 *
+	 * @param host
+	 * @param port
+	 * @param path
+	 * @param secure
+	 */
+	public LoadGenerator(String host, int port, String path, boolean secure) {
+		this.host = host;
+		this.port = port;
+		this.path = path;
+		this.secure = secure;
+	}
+
+	public void setConnections(int connections) {
+		this.connections = connections;
+	}
+
+	/**
+	 * To set the target number of messages per second sent on each connection.
+	 *
+	 * @param ratePerConnection
+	 */
+	public void setRatePerConnection(int ratePerConnection) {
+		this.ratePerConnection = ratePerConnection;
+	}
+
+	public void setDurationSeconds(int durationSeconds) {
+		this.durationSeconds = durationSeconds;
+	}
+
+	/**
+	 * To set the size of each message in characters. Messages are never shorter than the
+	 * header used to match an echo with its send time.
+	 *
+	 * @param messageSize
+	 */
+	public void setMessageSize(int messageSize) {
+		this.messageSize = messageSize;
+	}
+
+	/**
+	 * To set how long to wait for outstanding echoes once sending has stopped.
+	 *
+	 * @param drainSeconds
+	 */
+	public void setDrainSeconds(int drainSeconds) {
+		this.drainSeconds = drainSeconds;
+	}
+
+	/**
+	 * To set the engine of the connections, so that the engines can be compared under the same
+	 * load. Null, the default, leaves the choice to the factory.
+	 *
+	 * @param engine
+	 */
+	public void setEngine(WebSocketConfig.Engine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Open the connections, run the load and return the report.
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public LoadReport run() throws InterruptedException {
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections, 32));
+		try {
+
+			// Open the connections in parallel as each opening handshake may take a while:
+			List<Future<LoadConnection>> futures = new ArrayList<Future<LoadConnection>>();
+			for (int i = 0; i < connections; i++) {
+				final int id = i;
+				futures.add(executor.submit(new Callable<LoadConnection>() {
+					@Override
+					public LoadConnection call() {
+						WebSocketFactory factory = WebSocketFactory.getInstance(secure);
+						if (engine != null) {
+							return new LoadConnection(id, factory.openWebSocket(host, port, path,
+									WebSocketConfig.builder().engine(engine).build()));
+						}
+						return new LoadConnection(id, factory.openWebSocket(host, port, path, null, null, null, null));
+					}
+				}));
+			}
+			List<LoadConnection> opened = new ArrayList<LoadConnection>();
+			for (Future<LoadConnection> future : futures) {
+				try {
+					LoadConnection connection = future.get();
+					if (connection.webSocket.getState() == WebSocketState.OPEN) {
+						opened.add(connection);
+					}
+				} catch (Exception e) {
+					// counted as not opened
+				}
+			}
+
+			// Drive the load, one sender thread per connection:
+			long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, ratePerConnection);
+			long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+			long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+			List<Thread> senders = new ArrayList<Thread>();
+			for (final LoadConnection connection : opened) {
+				Thread t = new Thread(new Sender(connection, startNanos, endNanos, intervalNanos), "LoadSender-" + connection.id);
+				t.setDaemon(true);
+				t.start();
+				senders.add(t);
+			}
+			for (Thread t : senders) {
+				t.join();
+			}
+			long sendEndNanos = System.nanoTime();
+
+			// Wait for the outstanding echoes:
+			long drainDeadline = sendEndNanos + TimeUnit.SECONDS.toNanos(drainSeconds);
+			while (messagesReceived.get() < messagesSent.get() && System.nanoTime() < drainDeadline) {
+				Thread.sleep(10);
+			}
+			long durationNanos = Math.max(sendEndNanos, Math.min(System.nanoTime(), drainDeadline)) - startNanos;
+
+			// Close the connections in parallel as each close waits for the server's response:
+			List<Future<?>> closing = new ArrayList<Future<?>>();
+			for (final LoadConnection connection : opened) {
+				closing.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							connection.webSocket.close();
+						} catch (IOException e) {
+							// the connection is gone already
+						}
+					}
+				}));
+			}
+			for (Future<?> future : closing) {
+				try {
+					future.get();
+				} catch (Exception e) {
+					// ignore
+				}
+			}
+
+			return new LoadReport(connections, opened.size(), messagesSent.get(), messagesReceived.get(), sendErrors.get(),
+					protocolErrors.get(), durationNanos, latency, serviceTime);
+
+		} finally {
+			executor.shutdownNow();
+		}
+
+	}
+
+	/**
+	 * Build a message carrying the times needed to compute its latency on echo.
+	 *
+	 * @param connectionId
+	 * @param seq
+	 * @param intendedNanos
+	 * @param sentNanos
+	 * @return
+	 */
+	String createMessage(int connectionId, long seq, long intendedNanos, long sentNanos) {
+		StringBuilder sb = new StringBuilder(Math.max(messageSize, 64));
+		sb.append(MESSAGE_PREFIX).append(connectionId).append(':').append(seq).append(':').append(intendedNanos).append(':')
+				.append(sentNanos).append(':');
+		while (sb.length() < messageSize) {
+			sb.append('x');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Record the latency of an echoed message.
+	 *
+	 * @param msg
+	 * @param receivedNanos
+	 */
+	void onEcho(String msg, long receivedNanos) {
+		if (msg == null || !msg.startsWith(MESSAGE_PREFIX)) {
+			return;
+		}
+		String[] parts = msg.split(":", 6);
+		if (parts.length < 5) {
+			return;
+		}
+		try {
+			long intendedNanos = Long.parseLong(parts[3]);
+			long sentNanos = Long.parseLong(parts[4]);
+			latency.record(receivedNanos - intendedNanos);
+			serviceTime.record(receivedNanos - sentNanos);
+			messagesReceived.incrementAndGet();
+		} catch (NumberFormatException e) {
+			// not one of ours
+		}
+	}
+
+	/**
+	 * Sends messages on one connection at the scheduled times.
+	 */
+	private class Sender implements Runnable {
+
+		private final LoadConnection connection;
+		private final long startNanos;
+		private final long endNanos;
+		private final long intervalNanos;
+
+		Sender(LoadConnection connection, long startNanos, long endNanos, long intervalNanos) {
+			this.connection = connection;
+			this.startNanos = startNanos;
+			this.endNanos = endNanos;
+			this.intervalNanos = intervalNanos;
+		}
+
+		@Override
+		public void run() {
+			for (long seq = 0;; seq++) {
+				long intendedNanos = startNanos + seq * intervalNanos;
+				if (intendedNanos >= endNanos) {
+					break;
+				}
+				// If we are behind schedule, send immediately; the delay is charged to the latency:
+				long now = System.nanoTime();
+				while (now < intendedNanos) {
+					LockSupport.parkNanos(intendedNanos - now);
+					now = System.nanoTime();
+				}
+				if (connection.webSocket.getState() != WebSocketState.OPEN) {
+					sendErrors.incrementAndGet();
+					continue;
+				}
+				try {
+					connection.webSocket.send(createMessage(connection.id, seq, intendedNanos, System.nanoTime()));
+					messagesSent.incrementAndGet();
+				} catch (IOException e) {
+					sendErrors.incrementAndGet();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * A connection under load that records the echoes it receives.
+	 */
+	private class LoadConnection implements WebSocketListener {
+
+		private final int id;
+		private final WebSocket webSocket;
+
+		LoadConnection(int id, WebSocket webSocket) {
+			this.id = id;
+			this.webSocket = webSocket;
+			webSocket.addListener(this);
+		}
+
+		@Override
+		public void onDataFrame(DataFrame dataFrame) {
+		}
+
+		@Override
+		public void onMessage(String msg) {
+			onEcho(msg, System.nanoTime());
+		}
+
+		@Override
+		public void onMessage(byte[] binaryData) {
+			onEcho(Utils.bytes2String(binaryData), System.nanoTime());
+		}
+
+		@Override
+		public void onClose(CloseFrame closeFrame) {
+		}
+
+		@Override
+		public void onPing(PingFrame pingFrame) {
+			try {
+				webSocket.pong(pingFrame.getApplicationData());
+			} catch (IOException e) {
+				sendErrors.incrementAndGet();
+			}
+		}
+
+		@Override
+		public void onPong(PongFrame pongFrame) {
+		}
+
+		@Override
+		public void onError(ProtocolException e) {
+			protocolErrors.incrementAndGet();
+		}
+
+	}
+
+	/**
+	 * Run the load generator from the command line, e.g.
+	 *
+	 * <pre>
+	 * LoadGenerator --host localhost --port 8080 --path /echo --connections 10 --rate 1000 --duration 30 --size 64
+	 * </pre>
+	 *
+	 * @param args
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+
+		String host = "localhost";
+		int port = 8080;
+		String path = "/";
+		boolean secure = false;
+		int connections = 1;
+		int rate = 100;
+		int duration = 10;
+		int size = 64;
+		int drain = 5;
+		WebSocketConfig.Engine engine = null;
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if ("--secure".equals(arg)) {
+				secure = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				usage("Missing value for " + arg);
+				return;
+			}
+			String value = args[++i];
+			try {
+				if ("--host".equals(arg)) {
+					host = value;
+				} else if ("--port".equals(arg)) {
+					port = Integer.parseInt(value);
+				} else if ("--path".equals(arg)) {
+					path = value;
+				} else if ("--connections".equals(arg)) {
+					connections = Integer.parseInt(value);
+				} else if ("--rate".equals(arg)) {
+					rate = Integer.parseInt(value);
+				} else if ("--duration".equals(arg)) {
+					duration = Integer.parseInt(value);
+				} else if ("--size".equals(arg)) {
+					size = Integer.parseInt(value);
+				} else if ("--drain".equals(arg)) {
+					drain = Integer.parseInt(value);
+				} else if ("--engine".equals(arg)) {
+					engine = WebSocketConfig.Engine.valueOf(value.toUpperCase());
+				} else {
+					usage("Unknown option " + arg);
+					return;
+				}
+			} catch (NumberFormatException e) {
+				usage("Not a number for " + arg + ": " + value);
+				return;
+			} catch (IllegalArgumentException e) {
+				usage("Unknown engine: " + value);
+				return;
+			}
+		}
+
+		LoadGenerator generator = new LoadGenerator(host, port, path, secure);
+		generator.setConnections(connections);
+		generator.setRatePerConnection(rate);
+		generator.setDurationSeconds(duration);
+		generator.setMessageSize(size);
+		generator.setDrainSeconds(drain);
+		generator.setEngine(engine);
+		generator.run().print(System.out);
+
+	}
+
+	private static void usage(String error) {
+		System.err.println(error);
+		System.err.println("Usage: LoadGenerator [--host localhost] [--port 8080] [--path /] [--secure]"
+				+ " [--connections 1] [--rate 100 (msg/s per connection)] [--duration 10 (s)] [--size 64 (chars)]"
+				+ " [--drain 5 (s)] [--engine NIO|BLOCKING|VIRTUAL_THREAD|ASYNC]");
+	}
+
+}
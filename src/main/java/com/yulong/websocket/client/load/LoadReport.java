@@ -0,0 +1,129 @@
+package com.yulong.websocket.client.load;
+
+import java.io.PrintStream;
+
+/**
+ * The result of a load generator run.
+ */
+public class LoadReport {
+
+	private final int connectionsRequested;
+	private final int connectionsOpened;
+	private final long messagesSent;
+	private final long messagesReceived;
+	private final long sendErrors;
+	private final long protocolErrors;
+	private final long durationNanos;
+	private final LatencyHistogram latency;
+	private final LatencyHistogram serviceTime;
+
+	LoadReport(int connectionsRequested, int connectionsOpened, long messagesSent, long messagesReceived, long sendErrors,
+			long protocolErrors, long durationNanos, LatencyHistogram latency, LatencyHistogram serviceTime) {
+		this.connectionsRequested = connectionsRequested;
+		this.connectionsOpened = connectionsOpened;
+		this.messagesSent = messagesSent;
+		this.messagesReceived = messagesReceived;
+		this.sendErrors = sendErrors;
+		this.protocolErrors = protocolErrors;
+		this.durationNanos = durationNanos;
+		this.latency = latency;
+		this.serviceTime = serviceTime;
+	}
+
+	public int getConnectionsRequested() {
+		return connectionsRequested;
+	}
+
+	public int getConnectionsOpened() {
+		return connectionsOpened;
+	}
+
+	public long getMessagesSent() {
+		return messagesSent;
+	}
+
+	public long getMessagesReceived() {
+		return messagesReceived;
+	}
+
+	/**
+	 * To get the number of messages whose echo never arrived.
+	 *
+	 * @return
+	 */
+	public long getMessagesLost() {
+		return Math.max(0, messagesSent - messagesReceived);
+	}
+
+	public long getSendErrors() {
+		return sendErrors;
+	}
+
+	public long getProtocolErrors() {
+		return protocolErrors;
+	}
+
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	/**
+	 * To get the echo throughput in messages per second.
+	 *
+	 * @return
+	 */
+	public double getThroughput() {
+		if (durationNanos <= 0) {
+			return 0;
+		}
+		return messagesReceived * 1e9 / durationNanos;
+	}
+
+	/**
+	 * To get the echo latency measured from the time each message was scheduled to be sent,
+	 * which accounts for coordinated omission.
+	 *
+	 * @return
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * To get the echo latency measured from the time each message was actually sent.
+	 *
+	 * @return
+	 */
+	public LatencyHistogram getServiceTime() {
+		return serviceTime;
+	}
+
+	/**
+	 * To print the report.
+	 *
+	 * @param out
+	 */
+	public void print(PrintStream out) {
+		out.println("========== Load Report ==========");
+		out.println(String.format("Connections:      %d opened / %d requested", connectionsOpened, connectionsRequested));
+		out.println(String.format("Duration:         %.3f s", durationNanos / 1e9));
+		out.println(String.format("Messages sent:    %d", messagesSent));
+		out.println(String.format("Messages echoed:  %d", messagesReceived));
+		out.println(String.format("Messages lost:    %d", getMessagesLost()));
+		out.println(String.format("Send errors:      %d", sendErrors));
+		out.println(String.format("Protocol errors:  %d", protocolErrors));
+		out.println(String.format("Throughput:       %.1f msg/s", getThroughput()));
+		printHistogram(out, "Latency (us, corrected for coordinated omission)", latency);
+		printHistogram(out, "Service time (us, from actual send)", serviceTime);
+	}
+
+	private static void printHistogram(PrintStream out, String title, LatencyHistogram histogram) {
+		out.println(title + ":");
+		double[] percentiles = { 50, 90, 99, 99.9, 99.99 };
+		for (double percentile : percentiles) {
+			out.println(String.format("  p%-6s %12.1f", percentile, histogram.getValueAtPercentile(percentile) / 1e3));
+		}
+		out.println(String.format("  max     %12.1f", histogram.getMax() / 1e3));
+	}
+
+}
@@ -0,0 +1,448 @@
+package com.yulong.websocket.client.utils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct buffers shared by all the connections. Writing a heap buffer to a channel
+ * makes the JDK copy it into a temporary direct buffer first; reading and writing pooled
+ * direct buffers avoids that copy without paying for a direct allocation per connection.
+ *
+ * The buffers come in power-of-two size classes from {@value #MIN_CAPACITY} bytes to
+ * {@value #MAX_CAPACITY} bytes, cut from slabs of {@value #SLAB_SIZE} bytes. The slabs are
+ * never freed, and once they add up to the maximum memory of the pool, or for larger sizes,
+ * plain heap buffers are handed out instead. Each thread keeps a few released buffers of each
+ * class for itself, so that a connection thread taking and giving back buffers does not touch
+ * the shared lists; the buffers kept by threads that have ended are taken back when a shared
+ * list runs empty.
+ *
+ * With leak detection on, each buffer handed out remembers where it was acquired, and a buffer
+ * that is garbage collected without being released is reported. This costs a stack trace per
+ * acquire and is meant for debugging. The default pool is configured by the system properties
+ * ws.buffer.pool.maxMemory, 32MB by default, and ws.buffer.leakDetection.
+ */
+public final class BufferPool {
+
+	public static final int MIN_CAPACITY = 512;
+	public static final int MAX_CAPACITY = 64 * 1024;
+	static final int SLAB_SIZE = 256 * 1024;
+	// The number of size classes, from MIN_CAPACITY to MAX_CAPACITY:
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_CAPACITY)
+			- Integer.numberOfTrailingZeros(MIN_CAPACITY) + 1;
+	// The bytes of each class a thread keeps for itself:
+	private static final int THREAD_CACHE_BYTES = 32 * 1024;
+	// Further threads use the shared lists only:
+	private static final int MAX_THREAD_CACHES = 256;
+
+	private static final BufferPool DEFAULT = new BufferPool(Long.getLong("ws.buffer.pool.maxMemory", 32L << 20),
+			Boolean.getBoolean("ws.buffer.leakDetection"));
+
+	private final long maxMemory;
+	private final boolean leakDetection;
+	private final SizeClass[] classes = new SizeClass[CLASSES];
+	private final AtomicLong slabMemory = new AtomicLong();
+	private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>();
+	private final List<ThreadCache> threadCaches = new CopyOnWriteArrayList<ThreadCache>();
+
+	private final LongAdder acquired = new LongAdder();
+	private final LongAdder released = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder unpooled = new LongAdder();
+	private final AtomicLong leaks = new AtomicLong();
+
+	// Leak detection: the buffers handed out, by identity hash code, and the collected ones:
+	private final ConcurrentHashMap<Integer, List<LeakRecord>> tracked = new ConcurrentHashMap<Integer, List<LeakRecord>>();
+	private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+	/**
+	 * To create a pool.
+	 *
+	 * @param maxMemory the most direct memory the slabs may take.
+	 * @param leakDetection whether to report the buffers never released.
+	 */
+	public BufferPool(long maxMemory, boolean leakDetection) {
+		if (maxMemory < 0) {
+			throw new IllegalArgumentException("The maximum memory must not be negative: " + maxMemory);
+		}
+		this.maxMemory = maxMemory;
+		this.leakDetection = leakDetection;
+		for (int i = 0; i < CLASSES; i++) {
+			classes[i] = new SizeClass(MIN_CAPACITY << i);
+		}
+	}
+
+	/**
+	 * To get the pool shared by all the connections.
+	 *
+	 * @return
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * To get a cleared buffer of at least the given capacity. A direct buffer must be given back
+	 * with {@link #release(ByteBuffer)} and not be used afterwards; releasing a heap buffer,
+	 * handed out beyond the limits of the pool, does nothing.
+	 *
+	 * @param capacity
+	 * @return
+	 */
+	public ByteBuffer acquire(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("The capacity must not be negative: " + capacity);
+		}
+		if (capacity > MAX_CAPACITY) {
+			unpooled.increment();
+			return ByteBuffer.allocate(capacity);
+		}
+		int index = classIndex(capacity);
+		ByteBuffer buffer = null;
+		ThreadCache cache = threadCache();
+		if (cache != null) {
+			buffer = cache.poll(index);
+		}
+		if (buffer != null) {
+			cacheHits.increment();
+		} else {
+			buffer = classes[index].poll();
+			if (buffer == null && reclaimThreadCaches()) {
+				buffer = classes[index].poll();
+			}
+			if (buffer == null) {
+				buffer = classes[index].allocate();
+			}
+			if (buffer == null) {
+				unpooled.increment();
+				return ByteBuffer.allocate(MIN_CAPACITY << index);
+			}
+		}
+		acquired.increment();
+		buffer.clear();
+		if (leakDetection) {
+			track(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back to the pool.
+	 *
+	 * @param buffer
+	 * @throws IllegalStateException if leak detection is on and the buffer is not in use.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+		int capacity = buffer.capacity();
+		if (capacity < MIN_CAPACITY || capacity > MAX_CAPACITY || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("The buffer does not come from the pool: " + buffer);
+		}
+		if (leakDetection) {
+			untrack(buffer);
+		}
+		released.increment();
+		int index = classIndex(capacity);
+		ThreadCache cache = threadCache();
+		if (cache == null || !cache.offer(index, buffer)) {
+			classes[index].offer(buffer);
+		}
+	}
+
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+
+	/**
+	 * To get the direct memory taken by the slabs so far.
+	 *
+	 * @return
+	 */
+	public long getSlabMemory() {
+		return slabMemory.get();
+	}
+
+	/**
+	 * To get the number of pooled buffers handed out.
+	 *
+	 * @return
+	 */
+	public long getAcquired() {
+		return acquired.sum();
+	}
+
+	/**
+	 * To get the number of pooled buffers given back.
+	 *
+	 * @return
+	 */
+	public long getReleased() {
+		return released.sum();
+	}
+
+	/**
+	 * To get the number of pooled buffers handed out and not given back yet.
+	 *
+	 * @return
+	 */
+	public long getInUse() {
+		return acquired.sum() - released.sum();
+	}
+
+	/**
+	 * To get the number of buffers taken from the cache of the acquiring thread.
+	 *
+	 * @return
+	 */
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	/**
+	 * To get the number of heap buffers handed out because the size was too large or the pool
+	 * was full.
+	 *
+	 * @return
+	 */
+	public long getUnpooled() {
+		return unpooled.sum();
+	}
+
+	/**
+	 * To get the number of buffers found garbage collected without having been released. This
+	 * is only counted with leak detection on.
+	 *
+	 * @return
+	 */
+	public long getLeaks() {
+		return leaks.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BufferPool[slabMemory=" + getSlabMemory() + "/" + maxMemory + ", acquired=" + getAcquired()
+				+ ", released=" + getReleased() + ", cacheHits=" + getCacheHits() + ", unpooled=" + getUnpooled()
+				+ ", leaks=" + getLeaks() + "]";
+	}
+
+	/**
+	 * To get the index of the smallest class holding the given capacity.
+	 */
+	static int classIndex(int capacity) {
+		if (capacity <= MIN_CAPACITY) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(MIN_CAPACITY);
+	}
+
+	/**
+	 * To get the cache of the current thread, registering a new one unless there are too many.
+	 */
+	private ThreadCache threadCache() {
+		ThreadCache cache = threadCache.get();
+		if (cache == null && threadCaches.size() < MAX_THREAD_CACHES) {
+			cache = new ThreadCache(Thread.currentThread());
+			threadCache.set(cache);
+			threadCaches.add(cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Move the buffers kept by the threads that have ended to the shared lists. Once a thread is
+	 * seen ended, all it did is visible here.
+	 *
+	 * @return whether any buffer was taken back.
+	 */
+	private boolean reclaimThreadCaches() {
+		boolean reclaimed = false;
+		for (ThreadCache cache : threadCaches) {
+			Thread owner = cache.owner.get();
+			if (owner == null || !owner.isAlive()) {
+				if (threadCaches.remove(cache)) {
+					reclaimed |= cache.drainTo(classes);
+				}
+			}
+		}
+		return reclaimed;
+	}
+
+	private void track(ByteBuffer buffer) {
+		reportLeaks();
+		LeakRecord record = new LeakRecord(buffer, collected);
+		List<LeakRecord> records = tracked.get(record.identity);
+		if (records == null) {
+			List<LeakRecord> created = new ArrayList<LeakRecord>(1);
+			records = tracked.putIfAbsent(record.identity, created);
+			if (records == null) {
+				records = created;
+			}
+		}
+		synchronized (records) {
+			records.add(record);
+		}
+	}
+
+	private void untrack(ByteBuffer buffer) {
+		List<LeakRecord> records = tracked.get(System.identityHashCode(buffer));
+		if (records != null) {
+			synchronized (records) {
+				for (Iterator<LeakRecord> it = records.iterator(); it.hasNext();) {
+					LeakRecord record = it.next();
+					if (record.get() == buffer) {
+						it.remove();
+						record.clear();
+						return;
+					}
+				}
+			}
+		}
+		throw new IllegalStateException("The buffer is not in use, it has been released already: " + buffer);
+	}
+
+	/**
+	 * Report the buffers collected while still tracked, that is never released.
+	 */
+	private void reportLeaks() {
+		LeakRecord record;
+		while ((record = (LeakRecord) collected.poll()) != null) {
+			List<LeakRecord> records = tracked.get(record.identity);
+			if (records == null) {
+				continue;
+			}
+			boolean leaked;
+			synchronized (records) {
+				leaked = records.remove(record);
+			}
+			if (leaked) {
+				leaks.incrementAndGet();
+				System.err.println("A pooled buffer of " + record.capacity
+						+ " bytes was garbage collected without being released, it was acquired at:");
+				record.acquiredAt.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * The shared list of released buffers of one size, and the slab the new ones are cut from.
+	 */
+	private final class SizeClass {
+
+		private final int capacity;
+		private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+		private ByteBuffer slab = null;
+
+		SizeClass(int capacity) {
+			this.capacity = capacity;
+		}
+
+		synchronized ByteBuffer poll() {
+			return free.poll();
+		}
+
+		synchronized void offer(ByteBuffer buffer) {
+			free.push(buffer);
+		}
+
+		/**
+		 * Cut a new buffer from the slab, taking a new slab if needed and allowed.
+		 */
+		synchronized ByteBuffer allocate() {
+			if (slab == null || slab.remaining() < capacity) {
+				long memory;
+				do {
+					memory = slabMemory.get();
+					if (memory + SLAB_SIZE > maxMemory) {
+						return null;
+					}
+				} while (!slabMemory.compareAndSet(memory, memory + SLAB_SIZE));
+				slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+			}
+			slab.limit(slab.position() + capacity);
+			ByteBuffer buffer = slab.slice();
+			slab.position(slab.limit());
+			slab.limit(slab.capacity());
+			return buffer;
+		}
+
+	}
+
+	/**
+	 * The released buffers kept by one thread, used by that thread only until it ends.
+	 */
+	private static final class ThreadCache {
+
+		private final WeakReference<Thread> owner;
+		private final ByteBuffer[][] buffers = new ByteBuffer[CLASSES][];
+		private final int[] sizes = new int[CLASSES];
+
+		ThreadCache(Thread owner) {
+			this.owner = new WeakReference<Thread>(owner);
+			for (int i = 0; i < CLASSES; i++) {
+				buffers[i] = new ByteBuffer[Math.max(1, Math.min(16, THREAD_CACHE_BYTES / (MIN_CAPACITY << i)))];
+			}
+		}
+
+		ByteBuffer poll(int index) {
+			if (sizes[index] == 0) {
+				return null;
+			}
+			ByteBuffer buffer = buffers[index][--sizes[index]];
+			buffers[index][sizes[index]] = null;
+			return buffer;
+		}
+
+		boolean offer(int index, ByteBuffer buffer) {
+			if (sizes[index] == buffers[index].length) {
+				return false;
+			}
+			buffers[index][sizes[index]++] = buffer;
+			return true;
+		}
+
+		boolean drainTo(SizeClass[] classes) {
+			boolean drained = false;
+			for (int i = 0; i < CLASSES; i++) {
+				ByteBuffer buffer;
+				while ((buffer = poll(i)) != null) {
+					classes[i].offer(buffer);
+					drained = true;
+				}
+			}
+			return drained;
+		}
+
+	}
+
+	/**
+	 * Where a tracked buffer was acquired.
+	 */
+	private static final class LeakRecord extends WeakReference<ByteBuffer> {
+
+		private static final AtomicInteger sequence = new AtomicInteger();
+
+		private final Integer identity;
+		private final int capacity;
+		private final Throwable acquiredAt;
+
+		LeakRecord(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+			this.identity = System.identityHashCode(buffer);
+			this.capacity = buffer.capacity();
+			this.acquiredAt = new Throwable("Buffer #" + sequence.incrementAndGet());
+		}
+
+	}
+
+}
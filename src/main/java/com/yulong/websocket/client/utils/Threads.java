@@ -0,0 +1,78 @@
+package com.yulong.websocket.client.utils;
+
+import java.lang.reflect.Method;
+
+/**
+ * Thread utilities. Virtual threads are created reflectively so that the library still runs
+ * on Java 8; where they are not available, a daemon platform thread is used instead.
+ */
+public final class Threads {
+
+	// Thread.ofVirtual(), Thread.Builder.name(String) and Thread.Builder.unstarted(Runnable):
+	private static final Method[] OF_VIRTUAL = findOfVirtual();
+
+	private Threads() {
+	}
+
+	/**
+	 * Check whether this JVM supports virtual threads.
+	 * 
+	 * @return
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * To create an unstarted virtual thread, or a daemon platform thread if virtual threads are
+	 * not supported.
+	 * 
+	 * @param task
+	 * @param name
+	 * @return
+	 */
+	public static Thread newVirtualThread(Runnable task, String name) {
+		if (OF_VIRTUAL != null) {
+			try {
+				Object builder = OF_VIRTUAL[1].invoke(OF_VIRTUAL[0].invoke(null), name);
+				return (Thread) OF_VIRTUAL[2].invoke(builder, task);
+			} catch (Exception e) {
+				// fall back to a platform thread
+			}
+		}
+		return newDaemonThread(task, name);
+	}
+
+	/**
+	 * To create an unstarted daemon platform thread.
+	 * 
+	 * @param task
+	 * @param name
+	 * @return
+	 */
+	public static Thread newDaemonThread(Runnable task, String name) {
+		Thread t = new Thread(task, name);
+		t.setDaemon(true);
+		return t;
+	}
+
+	private static Method[] findOfVirtual() {
+		try {
+			// The builder's class is not public, so its methods are looked up on the public interface:
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method[] methods = { Thread.class.getMethod("ofVirtual"), builderClass.getMethod("name", String.class),
+					builderClass.getMethod("unstarted", Runnable.class) };
+			// Make sure virtual threads can really be created, e.g. they are not a disabled preview:
+			Object builder = methods[1].invoke(methods[0].invoke(null), "probe");
+			methods[2].invoke(builder, new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+			return methods;
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.yulong.websocket.client.utils;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix domain socket utilities. A host given as "unix:" followed by the path of a socket file
+ * names a Unix domain socket instead of a TCP endpoint. The channels are opened reflectively,
+ * so that the library still runs on Java 8; they are only available from Java 16.
+ */
+public final class UnixDomainSockets {
+
+	/**
+	 * The prefix of a host naming a Unix domain socket, e.g. "unix:/var/run/gateway.sock".
+	 */
+	public static final String PREFIX = "unix:";
+
+	private static final ProtocolFamily UNIX = findUnixFamily();
+	private static final Method ADDRESS_OF = findAddressOf();
+
+	private UnixDomainSockets() {
+	}
+
+	/**
+	 * Check whether this JVM supports Unix domain socket channels.
+	 *
+	 * @return
+	 */
+	public static boolean isSupported() {
+		return UNIX != null && ADDRESS_OF != null;
+	}
+
+	/**
+	 * Check whether the host names a Unix domain socket.
+	 *
+	 * @param host
+	 * @return
+	 */
+	public static boolean isUnixAddress(String host) {
+		return host != null && host.startsWith(PREFIX);
+	}
+
+	/**
+	 * To get the address of the socket file named by the host.
+	 *
+	 * @param host "unix:" followed by the path of the socket file.
+	 * @return
+	 * @throws IOException if Unix domain sockets are not supported.
+	 */
+	public static SocketAddress address(String host) throws IOException {
+		checkSupported();
+		try {
+			return (SocketAddress) ADDRESS_OF.invoke(null, host.substring(PREFIX.length()));
+		} catch (IllegalAccessException e) {
+			throw new IOException("Can not create the address of " + host, e);
+		} catch (InvocationTargetException e) {
+			throw new IOException("Can not create the address of " + host, e.getCause());
+		}
+	}
+
+	/**
+	 * To open an unconnected Unix domain socket channel.
+	 *
+	 * @return
+	 * @throws IOException if Unix domain sockets are not supported.
+	 */
+	public static SocketChannel openSocketChannel() throws IOException {
+		checkSupported();
+		return (SocketChannel) open(SocketChannel.class);
+	}
+
+	/**
+	 * To open an unbound Unix domain server socket channel.
+	 *
+	 * @return
+	 * @throws IOException if Unix domain sockets are not supported.
+	 */
+	public static ServerSocketChannel openServerSocketChannel() throws IOException {
+		checkSupported();
+		return (ServerSocketChannel) open(ServerSocketChannel.class);
+	}
+
+	private static Object open(Class<?> channelClass) throws IOException {
+		try {
+			return channelClass.getMethod("open", ProtocolFamily.class).invoke(null, UNIX);
+		} catch (NoSuchMethodException e) {
+			throw new IOException("Unix domain sockets are not supported", e);
+		} catch (IllegalAccessException e) {
+			throw new IOException("Unix domain sockets are not supported", e);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Can not open a Unix domain socket channel", cause);
+		}
+	}
+
+	private static void checkSupported() throws IOException {
+		if (!isSupported()) {
+			throw new IOException("Unix domain sockets are not supported before Java 16");
+		}
+	}
+
+	private static ProtocolFamily findUnixFamily() {
+		try {
+			return StandardProtocolFamily.valueOf("UNIX");
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static Method findAddressOf() {
+		try {
+			return Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+
+}
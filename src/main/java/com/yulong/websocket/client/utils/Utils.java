@@ -11,6 +11,27 @@ import java.util.List;
  */
 public final class Utils {
 
+	private static volatile boolean frameLogging = !"false".equalsIgnoreCase(System.getProperty("ws.log.frames"));
+
+	/**
+	 * To check whether each frame sent or received is logged. It is on unless the system
+	 * property ws.log.frames is false.
+	 * 
+	 * @return
+	 */
+	public static boolean isFrameLogging() {
+		return frameLogging;
+	}
+
+	/**
+	 * To turn the logging of each frame on or off.
+	 * 
+	 * @param enabled
+	 */
+	public static void setFrameLogging(boolean enabled) {
+		frameLogging = enabled;
+	}
+
 	/**
 	 * To convert a byte to hex code representation.
 	 * 
@@ -39,6 +60,39 @@ public final class Utils {
 		return sb.toString();
 	}
 
+	/**
+	 * To convert a part of a byte array to hex code representation.
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static String toHexString(byte[] bytes, int offset, int length) {
+		StringBuilder sb = new StringBuilder(length * 2);
+		for (int i = offset; i < offset + length; i++) {
+			sb.append(toHexString(bytes[i]));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * To convert a part of a buffer, heap or direct, to hex code representation. The position
+	 * of the buffer is not changed.
+	 *
+	 * @param buff
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static String toHexString(ByteBuffer buff, int offset, int length) {
+		StringBuilder sb = new StringBuilder(length * 2);
+		for (int i = offset; i < offset + length; i++) {
+			sb.append(toHexString(buff.get(i)));
+		}
+		return sb.toString();
+	}
+
 	/**
 	 * To convert the specified byte array into a UTF-8 encoded text representation.
 	 * 
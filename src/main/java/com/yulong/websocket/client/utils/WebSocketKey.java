@@ -1,10 +1,9 @@
 package com.yulong.websocket.client.utils;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * WebSocket key that is used during openning handshake.
@@ -12,16 +11,41 @@ import java.util.Random;
 public class WebSocketKey {
 
 	public final static String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
-	private static final Random random = new Random(System.currentTimeMillis());
+	private static final byte[] GUID_BYTES = GUID.getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.getBytes(StandardCharsets.ISO_8859_1);
+
+	// A digest per thread, since getting one from the providers is costly:
+	private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-1 is not available", e);
+			}
+		}
+	};
 
 	private String key = null;
+	// The key as ASCII, for the digest:
+	private byte[] keyBytes = null;
 	private String accept = null;
 
 	/**
 	 * To generate a WebSocket key that is available for others.
 	 */
 	public WebSocketKey() {
-		key = genKey();
+		this(null);
+	}
+
+	/**
+	 * To use the given key, or a random one if it is null.
+	 * 
+	 * @param key
+	 */
+	WebSocketKey(String key) {
+		this.key = key != null ? key : genKey();
 		accept = genAccepted();
 	}
 
@@ -62,8 +86,9 @@ public class WebSocketKey {
 	private String genKey() {
 		//return "wqSdZUp5iYE/5OR7krU4LQ==";
 		byte[] bytes = new byte[16];
-		random.nextBytes(bytes);
-		return encode(bytes);
+		ThreadLocalRandom.current().nextBytes(bytes);
+		keyBytes = encodeToAscii(bytes);
+		return new String(keyBytes, StandardCharsets.ISO_8859_1);
 	}
 
 	/**
@@ -72,19 +97,13 @@ public class WebSocketKey {
 	 * @return
 	 */
 	private byte[] getSha1Hash() {
-		String concatenatedString = key + GUID;
-		byte[] result = null;
-		MessageDigest md;
-		try {
-			md = MessageDigest.getInstance("SHA-1");
-			md.update(concatenatedString.getBytes("iso-8859-1"), 0, concatenatedString.length());
-			result = md.digest();
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
+		MessageDigest md = SHA1.get();
+		if (keyBytes == null) {
+			keyBytes = key.getBytes(StandardCharsets.ISO_8859_1);
 		}
-		return result;
+		md.update(keyBytes);
+		md.update(GUID_BYTES);
+		return md.digest();
 	}
 
 	/**
@@ -93,8 +112,36 @@ public class WebSocketKey {
 	 * @param bytes
 	 * @return
 	 */
-	private String encode(byte[] bytes) {
-		return Utils.bytes2String(Base64.getEncoder().encode(bytes), "iso-8859-1");
+	static String encode(byte[] bytes) {
+		return new String(encodeToAscii(bytes), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * To encode the given byte array into base-64 encoded ASCII bytes.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	private static byte[] encodeToAscii(byte[] bytes) {
+		byte[] encoded = new byte[(bytes.length + 2) / 3 * 4];
+		int c = 0;
+		int i = 0;
+		for (; i + 3 <= bytes.length; i += 3) {
+			int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+			encoded[c++] = BASE64[bits >>> 18];
+			encoded[c++] = BASE64[(bits >>> 12) & 0x3f];
+			encoded[c++] = BASE64[(bits >>> 6) & 0x3f];
+			encoded[c++] = BASE64[bits & 0x3f];
+		}
+		int rest = bytes.length - i;
+		if (rest > 0) {
+			int bits = (bytes[i] & 0xff) << 16 | (rest == 2 ? (bytes[i + 1] & 0xff) << 8 : 0);
+			encoded[c++] = BASE64[bits >>> 18];
+			encoded[c++] = BASE64[(bits >>> 12) & 0x3f];
+			encoded[c++] = rest == 2 ? BASE64[(bits >>> 6) & 0x3f] : (byte) '=';
+			encoded[c++] = '=';
+		}
+		return encoded;
 	}
 
 	public static void main(String[] args) {
@@ -0,0 +1,240 @@
+package com.yulong.websocket.client.flow;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.yulong.websocket.client.Message;
+import com.yulong.websocket.client.ProtocolException;
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.WebSocketListener;
+import com.yulong.websocket.client.frames.CloseFrame;
+import com.yulong.websocket.client.frames.DataFrame;
+import com.yulong.websocket.client.frames.PingFrame;
+import com.yulong.websocket.client.frames.PongFrame;
+
+/**
+ * A {@link Flow.Publisher} of the messages received on a WebSocket.
+ *
+ * The connection is only read while the subscriber has outstanding demand: reading is paused
+ * from the subscription until the first request and whenever the demand is used up, so that
+ * the server is held back by TCP flow control. Messages decoded from data already read when
+ * reading pauses are kept until they are requested. The publisher completes when a close frame
+ * is received and fails on a protocol error, or with an IOException when the connection is
+ * closed without a close frame, e.g. dropped, or is closed already. A WebSocket has a single
+ * subscriber.
+ */
+public class WebSocketPublisher implements Flow.Publisher<Message> {
+
+	private final WebSocket webSocket;
+	private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+	public WebSocketPublisher(WebSocket webSocket) {
+		this.webSocket = webSocket;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super Message> subscriber) {
+		Objects.requireNonNull(subscriber, "subscriber");
+		if (!subscribed.compareAndSet(false, true)) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("The WebSocket already has a subscriber"));
+			return;
+		}
+		MessageSubscription subscription = new MessageSubscription(subscriber);
+		webSocket.pauseReading();
+		webSocket.addListener(subscription);
+		subscriber.onSubscribe(subscription);
+		webSocket.whenClosed(subscription);
+	}
+
+	/**
+	 * Delivers the messages to the subscriber within its demand. All the signals are emitted
+	 * from one drain loop at a time.
+	 */
+	private class MessageSubscription implements Flow.Subscription, WebSocketListener, Runnable {
+
+		private final Flow.Subscriber<? super Message> subscriber;
+		private final Queue<Message> queue = new ConcurrentLinkedQueue<Message>();
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+
+		private volatile boolean cancelled = false;
+		private volatile boolean done = false;
+		private volatile Throwable error = null;
+		private volatile IllegalArgumentException badRequest = null;
+
+		// Only changed in the drain loop:
+		private boolean terminated = false;
+		private boolean readingPaused = true;
+
+		MessageSubscription(Flow.Subscriber<? super Message> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				badRequest = new IllegalArgumentException("The number of messages requested must be positive: " + n);
+			} else {
+				long current;
+				long next;
+				do {
+					current = requested.get();
+					if (current == Long.MAX_VALUE) {
+						break;
+					}
+					next = current + n;
+					if (next < 0) {
+						next = Long.MAX_VALUE;
+					}
+				} while (!requested.compareAndSet(current, next));
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			drain();
+		}
+
+		private void drain() {
+			if (wip.getAndIncrement() != 0) {
+				return;
+			}
+			int missed = 1;
+			do {
+				if (terminated) {
+					// Messages that arrived after the end:
+					queue.clear();
+				} else {
+					if (badRequest != null) {
+						terminate();
+						subscriber.onError(badRequest);
+					} else if (cancelled) {
+						terminate();
+					} else {
+						emit();
+					}
+				}
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void emit() {
+			long r = requested.get();
+			long emitted = 0;
+			while (emitted != r && !cancelled) {
+				Message message = queue.poll();
+				if (message == null) {
+					break;
+				}
+				subscriber.onNext(message);
+				emitted++;
+			}
+			if (emitted > 0 && r != Long.MAX_VALUE) {
+				r = requested.addAndGet(-emitted);
+			}
+			if (cancelled) {
+				return;
+			}
+			if (done && queue.isEmpty()) {
+				terminate();
+				if (error != null) {
+					subscriber.onError(error);
+				} else {
+					subscriber.onComplete();
+				}
+				return;
+			}
+			setReadingPaused(r == 0);
+		}
+
+		private void terminate() {
+			terminated = true;
+			queue.clear();
+			setReadingPaused(false);
+		}
+
+		private void setReadingPaused(boolean paused) {
+			if (paused != readingPaused) {
+				readingPaused = paused;
+				if (paused) {
+					webSocket.pauseReading();
+				} else {
+					webSocket.resumeReading();
+				}
+			}
+		}
+
+		/******************** Listener events ***********************/
+		@Override
+		public void onMessage(String msg) {
+			if (!cancelled) {
+				queue.offer(Message.text(msg));
+				drain();
+			}
+		}
+
+		@Override
+		public void onMessage(byte[] binaryData) {
+			if (!cancelled) {
+				queue.offer(Message.binary(binaryData));
+				drain();
+			}
+		}
+
+		@Override
+		public void onClose(CloseFrame closeFrame) {
+			done = true;
+			drain();
+		}
+
+		@Override
+		public void onError(ProtocolException e) {
+			error = e;
+			done = true;
+			drain();
+		}
+
+		/**
+		 * Run once the connection is closed, after the close frame if there was one.
+		 */
+		@Override
+		public void run() {
+			if (!done) {
+				error = new IOException("The connection is closed without a close frame");
+				done = true;
+				drain();
+			}
+		}
+
+		@Override
+		public void onDataFrame(DataFrame dataFrame) {
+		}
+
+		@Override
+		public void onPing(PingFrame pingFrame) {
+		}
+
+		@Override
+		public void onPong(PongFrame pongFrame) {
+		}
+
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.yulong.websocket.client.flow;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+import com.yulong.websocket.client.Message;
+import com.yulong.websocket.client.WebSocket;
+
+/**
+ * A {@link Flow.Subscriber} that sends the messages it receives on a WebSocket.
+ *
+ * One message is requested at a time, and only while the data queued on the connection but not
+ * yet written stays below the given capacity. Past the capacity the next message is requested
+ * once the queue has been written, so a slow server holds the upstream back. The connection is
+ * not closed when the stream ends; {@link #getCompletion()} tells when and how it ended.
+ */
+public class WebSocketSubscriber implements Flow.Subscriber<Message> {
+
+	private final WebSocket webSocket;
+	private final long maxPendingBytes;
+	private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+	private volatile Flow.Subscription subscription;
+
+	/**
+	 * To create a subscriber sending on the given WebSocket.
+	 *
+	 * @param webSocket
+	 * @param maxPendingBytes the bytes that may be queued on the connection before demand stops.
+	 */
+	public WebSocketSubscriber(WebSocket webSocket, long maxPendingBytes) {
+		if (maxPendingBytes <= 0) {
+			throw new IllegalArgumentException("The capacity must be positive: " + maxPendingBytes);
+		}
+		this.webSocket = webSocket;
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	/**
+	 * To get a future completed when the stream ends, exceptionally if it failed or a message
+	 * could not be sent.
+	 *
+	 * @return
+	 */
+	public CompletableFuture<Void> getCompletion() {
+		return completion;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		Objects.requireNonNull(subscription, "subscription");
+		if (this.subscription != null) {
+			subscription.cancel();
+			return;
+		}
+		this.subscription = subscription;
+		requestNext();
+	}
+
+	@Override
+	public void onNext(Message message) {
+		Objects.requireNonNull(message, "message");
+		if (completion.isDone()) {
+			return;
+		}
+		try {
+			if (message.isText()) {
+				webSocket.send(message.getText());
+			} else {
+				webSocket.send(message.getBinary());
+			}
+		} catch (IOException e) {
+			subscription.cancel();
+			completion.completeExceptionally(e);
+			return;
+		}
+		requestNext();
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		completion.completeExceptionally(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		completion.complete(null);
+	}
+
+	/**
+	 * Request one more message now if the queue has room, otherwise once it has been written.
+	 */
+	private void requestNext() {
+		if (webSocket.getMetrics().getPendingBytes() < maxPendingBytes) {
+			subscription.request(1);
+		} else {
+			webSocket.whenWritable(new Runnable() {
+				@Override
+				public void run() {
+					if (!completion.isDone()) {
+						subscription.request(1);
+					}
+				}
+			});
+		}
+	}
+
+}
@@ -0,0 +1,236 @@
+package com.yulong.websocket.client;
+
+import static com.yulong.websocket.client.server.RecordingListener.poll;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yulong.websocket.client.frames.PooledFrame;
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.server.RecordingListener;
+
+public class ReconnectingWebSocketTest {
+
+	private LoopbackServer server;
+	private ReconnectingWebSocket webSocket;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new LoopbackServer();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (webSocket != null) {
+			webSocket.close(1000, "");
+		}
+		server.close();
+	}
+
+	private ReconnectingWebSocket.Builder builder() {
+		return ReconnectingWebSocket.builder(server.getHost(), server.getPort(), "/echo").backoff(10, 200, 2);
+	}
+
+	private static void await(Condition condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.holds() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(condition.holds());
+	}
+
+	private interface Condition {
+		boolean holds();
+	}
+
+	@Test
+	public void testReconnectsAndCallsTheHook() throws Exception {
+		final List<Boolean> hooks = new CopyOnWriteArrayList<Boolean>();
+		RecordingListener listener = new RecordingListener();
+		webSocket = builder().listener(listener).connectHook(new ReconnectingWebSocket.ConnectHook() {
+
+			@Override
+			public void onConnect(WebSocket connection, boolean reconnect) throws IOException {
+				connection.send("subscribe-" + reconnect);
+				hooks.add(reconnect);
+			}
+		}).build();
+		assertEquals(WebSocketState.OPEN, webSocket.getState());
+		assertEquals("subscribe-false", server.awaitConnections(1, 5000).get(0).pollText(5000));
+		assertEquals("subscribe-false", poll(listener.texts));
+
+		server.getConnections().get(0).closeChannel();
+		await(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return hooks.size() == 2;
+			}
+		});
+		assertEquals(1, webSocket.getReconnects());
+		assertFalse(hooks.get(0));
+		assertTrue(hooks.get(1));
+		assertEquals(1, webSocket.getDisconnects());
+		assertEquals(0, webSocket.getFailovers());
+		assertTrue(webSocket.getLastGapNanos() > 0);
+		assertEquals(webSocket.getLastGapNanos(), webSocket.getMaxGapNanos());
+
+		// The listener follows the new connection:
+		webSocket.send("hello");
+		assertEquals("subscribe-true", poll(listener.texts));
+		assertEquals("hello", poll(listener.texts));
+		assertTrue(listener.texts.isEmpty());
+	}
+
+	@Test
+	public void testReconnectsWhenTheServerCloses() throws Exception {
+		webSocket = builder().build();
+		server.awaitConnections(1, 5000).get(0).sendClose(1001, "going away");
+		await(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return webSocket.getReconnects() == 1;
+			}
+		});
+		assertEquals(WebSocketState.OPEN, webSocket.getState());
+		assertEquals(1, server.awaitConnections(1, 5000).size());
+	}
+
+	@Test
+	public void testBackoff() throws Exception {
+		ReconnectingWebSocket.Builder builder = ReconnectingWebSocket.builder(server.getHost(), server.getPort(), "/echo")
+				.backoff(100, 1000, 2).jitter(0.5);
+		webSocket = builder.build();
+		for (int i = 0; i < 100; i++) {
+			long first = webSocket.backoffMillis(0);
+			assertTrue(first >= 50 && first <= 100);
+			long third = webSocket.backoffMillis(2);
+			assertTrue(third >= 200 && third <= 400);
+			long capped = webSocket.backoffMillis(20);
+			assertTrue(capped >= 500 && capped <= 1000);
+		}
+		webSocket.close(1000, "");
+		webSocket = builder.jitter(0).build();
+		assertEquals(800, webSocket.backoffMillis(3));
+	}
+
+	@Test
+	public void testGivesUp() throws Exception {
+		final CountDownLatch closed = new CountDownLatch(1);
+		webSocket = builder().maxAttempts(3).config(WebSocketConfig.builder().connectTimeoutMillis(500)
+				.handshakeTimeoutMillis(500).build()).build();
+		webSocket.whenClosed(new Runnable() {
+
+			@Override
+			public void run() {
+				closed.countDown();
+			}
+		});
+		server.close();
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		assertEquals(WebSocketState.CLOSED, webSocket.getState());
+		assertEquals(3, webSocket.getFailedAttempts());
+		try {
+			webSocket.send("lost");
+			fail("Sent on a closed WebSocket");
+		} catch (IOException e) {
+			// expected
+		}
+		PooledFrame frame = webSocket.acquireFrame().setText("lost");
+		try {
+			webSocket.send(frame);
+			fail("Sent on a closed WebSocket");
+		} catch (IOException e) {
+			// expected
+		}
+		// Released back to the pool:
+		assertSame(frame, webSocket.acquireFrame());
+	}
+
+	@Test
+	public void testStandbyTakesOver() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		webSocket = builder().standby(true).build();
+		webSocket.addListener(listener);
+		assertEquals(2, server.awaitConnections(2, 5000).size());
+		await(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return webSocket.hasStandby();
+			}
+		});
+		WebSocket first = webSocket.getConnection();
+
+		first.send("first");
+		LoopbackServer.Connection active = null;
+		for (LoopbackServer.Connection connection : server.getConnections()) {
+			if ("first".equals(connection.pollText(200))) {
+				active = connection;
+			}
+		}
+		active.closeChannel();
+		await(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return webSocket.getFailovers() == 1;
+			}
+		});
+		assertEquals(1, webSocket.getReconnects());
+		assertTrue(webSocket.getConnection() != first);
+		webSocket.send("hello");
+		assertEquals("first", poll(listener.texts));
+		assertEquals("hello", poll(listener.texts));
+
+		// A new standby is opened:
+		await(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return webSocket.hasStandby();
+			}
+		});
+		assertEquals(2, server.awaitConnections(2, 5000).size());
+	}
+
+	@Test
+	public void testCloseStopsReconnecting() throws Exception {
+		final CountDownLatch closed = new CountDownLatch(1);
+		webSocket = builder().standby(true).build();
+		webSocket.whenClosed(new Runnable() {
+
+			@Override
+			public void run() {
+				closed.countDown();
+			}
+		});
+		server.awaitConnections(2, 5000);
+		webSocket.close(1000, "");
+		assertEquals(0, closed.getCount());
+		assertTrue(webSocket.hasSentCloseHandshake());
+		Thread.sleep(100);
+		assertEquals(0, webSocket.getReconnects());
+		await(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return server.getConnections().isEmpty();
+			}
+		});
+	}
+
+}
@@ -0,0 +1,49 @@
+package com.yulong.websocket.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RecordingBufferTest {
+
+	@Test
+	public void testKeepLastDropsOldest() {
+		RecordingBuffer<Integer> buffer = new RecordingBuffer<Integer>(Recording.keepLast(3));
+		for (int i = 1; i <= 5; i++) {
+			buffer.add(i);
+		}
+		assertEquals(Arrays.asList(3, 4, 5), buffer.snapshot());
+	}
+
+	@Test
+	public void testOffKeepsNothing() {
+		RecordingBuffer<Integer> buffer = new RecordingBuffer<Integer>(Recording.off());
+		buffer.add(1);
+		assertTrue(buffer.snapshot().isEmpty());
+	}
+
+	@Test
+	public void testUnboundedKeepsEverything() {
+		RecordingBuffer<Integer> buffer = new RecordingBuffer<Integer>(Recording.unbounded());
+		for (int i = 0; i < 1000; i++) {
+			buffer.add(i);
+		}
+		assertEquals(1000, buffer.snapshot().size());
+	}
+
+	@Test
+	public void testChangingPolicyKeepsMostRecent() {
+		RecordingBuffer<Integer> buffer = new RecordingBuffer<Integer>(Recording.unbounded());
+		for (int i = 1; i <= 5; i++) {
+			buffer.add(i);
+		}
+		buffer.setRecording(Recording.keepLast(2));
+		assertEquals(Arrays.asList(4, 5), buffer.snapshot());
+		buffer.add(6);
+		assertEquals(Arrays.asList(5, 6), buffer.snapshot());
+	}
+
+}
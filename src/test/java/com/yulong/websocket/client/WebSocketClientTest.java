@@ -0,0 +1,213 @@
+package com.yulong.websocket.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yulong.websocket.client.server.LoopbackServer;
+
+public class WebSocketClientTest {
+
+	private LoopbackServer server;
+	private WebSocketClient client;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new LoopbackServer();
+		client = new WebSocketClient(server.getHost(), server.getPort(), "/echo");
+		assertEquals(WebSocketState.OPEN, client.getWebSocket().getState());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+	}
+
+	@Test
+	public void testReceiveTextAndBinaryInOrder() throws Exception {
+		client.setReceiveQueueCapacity(16);
+		client.getWebSocket().send("first");
+		client.getWebSocket().send(new byte[] { 1, 2, 3 });
+		assertEquals("first", client.poll(5, TimeUnit.SECONDS).getText());
+		Message message = client.poll(5, TimeUnit.SECONDS);
+		assertFalse(message.isText());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, message.getBinary());
+	}
+
+	@Test
+	public void testTypedReceiveLeavesOtherTypeQueued() throws Exception {
+		client.setReceiveQueueCapacity(16);
+		client.getWebSocket().send(new byte[] { 1, 2, 3 });
+		client.getWebSocket().send("text");
+		assertEquals("text", client.receiveText(5, TimeUnit.SECONDS));
+		assertNull(client.receiveText(50, TimeUnit.MILLISECONDS));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, client.receiveBinary(5, TimeUnit.SECONDS));
+		assertNull(client.poll());
+	}
+
+	@Test
+	public void testConcurrentTypedConsumers() throws Exception {
+		final int count = 200;
+		// Small, so that delivery waits for the consumers:
+		client.setReceiveQueueCapacity(4);
+		final List<String> texts = new CopyOnWriteArrayList<String>();
+		final List<Integer> binaries = new CopyOnWriteArrayList<Integer>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread textConsumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < count; i++) {
+						texts.add(client.receiveText(5, TimeUnit.SECONDS));
+					}
+				} catch (Throwable e) {
+					failure.set(e);
+				}
+			}
+		});
+		Thread binaryConsumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < count; i++) {
+						byte[] binary = client.receiveBinary(5, TimeUnit.SECONDS);
+						binaries.add(binary == null ? null : binary[0] & 0xff);
+					}
+				} catch (Throwable e) {
+					failure.set(e);
+				}
+			}
+		});
+		textConsumer.start();
+		binaryConsumer.start();
+		for (int i = 0; i < count; i++) {
+			client.getWebSocket().send("text " + i);
+			client.getWebSocket().send(new byte[] { (byte) i });
+		}
+		textConsumer.join(30000);
+		binaryConsumer.join(30000);
+		assertNull(failure.get());
+		for (int i = 0; i < count; i++) {
+			assertEquals("text " + i, texts.get(i));
+			assertEquals(Integer.valueOf(i), binaries.get(i));
+		}
+		assertNull(client.poll());
+	}
+
+	@Test
+	public void testReceiveTimesOut() throws Exception {
+		client.setReceiveQueueCapacity(16);
+		assertNull(client.poll(50, TimeUnit.MILLISECONDS));
+		assertNull(client.poll());
+	}
+
+	@Test
+	public void testFullQueueHoldsBackDeliveryWithoutLoss() throws Exception {
+		client.setReceiveQueueCapacity(2);
+		client.getWebSocket().send("!burst 20 tick");
+		for (int i = 0; i < 20; i++) {
+			assertEquals("tick", client.take().getText());
+		}
+		assertNull(client.poll());
+	}
+
+	@Test
+	public void testInterruptedDeliveryIsCounted() throws Exception {
+		client.setReceiveQueueCapacity(16);
+		Thread.currentThread().interrupt();
+		client.onMessage("lost");
+		// The interrupt is kept for the delivering thread:
+		assertTrue(Thread.interrupted());
+		assertEquals(1, client.getDroppedMessages());
+		assertNull(client.poll());
+	}
+
+	@Test
+	public void testCapacityChangeWakesBlockedDelivery() throws Exception {
+		client.setReceiveQueueCapacity(1);
+		client.onMessage("first");
+		Thread delivering = deliver("second");
+		delivering.join(100);
+		assertTrue(delivering.isAlive());
+
+		client.setReceiveQueueCapacity(2);
+		delivering.join(5000);
+		assertFalse(delivering.isAlive());
+		assertEquals("first", client.poll().getText());
+		assertEquals("second", client.poll().getText());
+	}
+
+	@Test
+	public void testDisablingFailsWaitingConsumer() throws Exception {
+		client.setReceiveQueueCapacity(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch waiting = new CountDownLatch(1);
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					waiting.countDown();
+					client.take();
+				} catch (Throwable e) {
+					failure.set(e);
+				}
+			}
+		});
+		consumer.start();
+		assertTrue(waiting.await(5, TimeUnit.SECONDS));
+		consumer.join(100);
+		assertTrue(consumer.isAlive());
+
+		client.setReceiveQueueCapacity(0);
+		consumer.join(5000);
+		assertFalse(consumer.isAlive());
+		assertTrue(String.valueOf(failure.get()), failure.get() instanceof IllegalStateException);
+	}
+
+	@Test
+	public void testDisablingReleasesBlockedDelivery() throws Exception {
+		client.setReceiveQueueCapacity(1);
+		client.onMessage("first");
+		Thread delivering = deliver("second");
+		delivering.join(100);
+		assertTrue(delivering.isAlive());
+
+		client.setReceiveQueueCapacity(0);
+		delivering.join(5000);
+		assertFalse(delivering.isAlive());
+		assertEquals(0, client.getDroppedMessages());
+		// The messages queued before are gone:
+		client.setReceiveQueueCapacity(1);
+		assertNull(client.poll());
+	}
+
+	private Thread deliver(final String text) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				client.onMessage(text);
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReceiveRequiresQueue() throws Exception {
+		client.take();
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.yulong.websocket.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class WebSocketConfigTest {
+
+	@Test
+	public void testDefaults() {
+		WebSocketConfig config = WebSocketConfig.builder().build();
+		assertEquals(WebSocketConfig.Engine.NIO, config.getEngine());
+		assertTrue(config.isTcpNoDelay());
+		assertEquals(0, config.getSendBufferSize());
+		assertEquals(0, config.getReceiveBufferSize());
+		assertEquals(8192, config.getReadBufferSize());
+		assertEquals(5000, config.getConnectTimeoutMillis());
+		assertEquals(5000, config.getHandshakeTimeoutMillis());
+		assertEquals("13", config.getVersion());
+		assertNull(config.getSubProtocols());
+		assertSame(ListenerDispatch.inline(), config.getListenerDispatch());
+		assertEquals(0, config.getReadHighWatermark());
+	}
+
+	@Test
+	public void testImmutable() {
+		String[] protocols = { "chat" };
+		Map<String, String[]> headers = new HashMap<String, String[]>();
+		headers.put("Cookie", new String[] { "a=1" });
+		WebSocketConfig config = WebSocketConfig.builder().subProtocols(protocols).optionalHeaders(headers).build();
+
+		protocols[0] = "changed";
+		headers.get("Cookie")[0] = "changed";
+		headers.put("Other", new String[] { "x" });
+		config.getSubProtocols()[0] = "changed";
+
+		assertArrayEquals(new String[] { "chat" }, config.getSubProtocols());
+		assertEquals(1, config.getOptionalHeaders().size());
+		assertArrayEquals(new String[] { "a=1" }, config.getOptionalHeaders().get("Cookie"));
+	}
+
+	@Test
+	public void testToBuilder() {
+		WebSocketConfig config = WebSocketConfig.builder().engine(WebSocketConfig.Engine.BLOCKING).tcpNoDelay(false)
+				.sendBufferSize(65536).readWatermarks(10, 20).build();
+		WebSocketConfig derived = config.toBuilder().handshakeTimeoutMillis(100).build();
+		assertEquals(WebSocketConfig.Engine.BLOCKING, derived.getEngine());
+		assertEquals(false, derived.isTcpNoDelay());
+		assertEquals(65536, derived.getSendBufferSize());
+		assertEquals(20, derived.getReadHighWatermark());
+		assertEquals(100, derived.getHandshakeTimeoutMillis());
+		assertEquals(5000, config.getHandshakeTimeoutMillis());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeBufferSize() {
+		WebSocketConfig.builder().receiveBufferSize(-1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroTimeout() {
+		WebSocketConfig.builder().connectTimeoutMillis(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalWatermarks() {
+		WebSocketConfig.builder().readWatermarks(20, 10);
+	}
+
+}
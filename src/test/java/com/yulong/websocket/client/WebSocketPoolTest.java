@@ -0,0 +1,207 @@
+package com.yulong.websocket.client;
+
+import static com.yulong.websocket.client.server.RecordingListener.poll;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.server.RecordingListener;
+
+public class WebSocketPoolTest {
+
+	private LoopbackServer server;
+	private WebSocketPool pool;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new LoopbackServer();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (pool != null) {
+			pool.close();
+		}
+		server.close();
+	}
+
+	@Test
+	public void testReleasedConnectionIsBorrowedAgain() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		pool = WebSocketPool.builder().listener(listener).build();
+		WebSocket first = pool.borrow(server.getHost(), server.getPort(), "/echo");
+		first.send("hello");
+		assertEquals("hello", poll(listener.texts));
+		assertEquals(1, pool.getBorrowedConnections());
+		pool.release(first);
+		assertEquals(1, pool.getIdleConnections());
+
+		WebSocket second = pool.borrow(server.getHost(), server.getPort(), "/echo");
+		assertSame(first, second);
+		pool.release(second);
+		assertEquals(1, pool.getCreatedConnections());
+		assertEquals(1, pool.getColdBorrows());
+		assertEquals(1, pool.getWarmBorrows());
+	}
+
+	@Test
+	public void testBorrowWaitsForARelease() throws Exception {
+		pool = WebSocketPool.builder().maxPerEndpoint(2).borrowTimeoutMillis(200).build();
+		final WebSocket first = pool.borrow(server.getHost(), server.getPort(), "/echo");
+		WebSocket second = pool.borrow(server.getHost(), server.getPort(), "/echo");
+		assertNotSame(first, second);
+		try {
+			pool.borrow(server.getHost(), server.getPort(), "/echo");
+			fail("Borrowed more than the maximum");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(1, pool.getBorrowTimeouts());
+
+		final AtomicReference<WebSocket> third = new AtomicReference<WebSocket>();
+		final CountDownLatch borrowed = new CountDownLatch(1);
+		Thread borrower = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					third.set(pool.borrow(server.getHost(), server.getPort(), "/echo"));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				borrowed.countDown();
+			}
+		});
+		borrower.start();
+		Thread.sleep(50);
+		pool.release(first);
+		assertTrue(borrowed.await(5, TimeUnit.SECONDS));
+		assertSame(first, third.get());
+		assertEquals(2, pool.getOpenConnections());
+		assertEquals(2, server.getConnections().size());
+	}
+
+	@Test
+	public void testPrewarm() throws Exception {
+		pool = WebSocketPool.builder().maxPerEndpoint(4).build();
+		assertEquals(3, pool.prewarm(server.getHost(), server.getPort(), "/echo", 3));
+		assertEquals(3, server.awaitConnections(3, 5000).size());
+		// Not beyond the maximum:
+		assertEquals(4, pool.prewarm(server.getHost(), server.getPort(), "/echo", 10));
+		WebSocket webSocket = pool.borrow(server.getHost(), server.getPort(), "/echo");
+		assertEquals(WebSocketState.OPEN, webSocket.getState());
+		assertEquals(0, pool.getColdBorrows());
+		assertEquals(1, pool.getWarmBorrows());
+		assertEquals(3, pool.getIdleConnections(server.getHost(), server.getPort(), "/echo"));
+	}
+
+	@Test
+	public void testIdleConnectionsAreEvicted() throws Exception {
+		pool = WebSocketPool.builder().idleTimeoutMillis(100).evictionIntervalMillis(20).minIdlePerEndpoint(1).build();
+		pool.prewarm(server.getHost(), server.getPort(), "/echo", 3);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pool.getIdleConnections() > 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, pool.getIdleConnections());
+		assertEquals(1, pool.getOpenConnections());
+		assertEquals(2, pool.getEvictedConnections());
+		// The server is asked to close them:
+		deadline = System.currentTimeMillis() + 5000;
+		while (server.getConnections().size() > 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, server.getConnections().size());
+	}
+
+	@Test
+	public void testClosedConnectionsAreDropped() throws Exception {
+		pool = WebSocketPool.builder().build();
+		WebSocket first = pool.borrow(server.getHost(), server.getPort(), "/echo");
+		pool.release(first);
+		server.awaitConnections(1, 5000).get(0).closeChannel();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (first.getState() != WebSocketState.CLOSED && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		WebSocket second = pool.borrow(server.getHost(), server.getPort(), "/echo");
+		assertNotSame(first, second);
+		assertEquals(WebSocketState.OPEN, second.getState());
+		assertEquals(1, pool.getDroppedConnections());
+		assertEquals(1, pool.getOpenConnections());
+
+		// Closed while borrowed:
+		second.close(1000, "");
+		pool.release(second);
+		assertEquals(2, pool.getDroppedConnections());
+		assertEquals(0, pool.getOpenConnections());
+	}
+
+	@Test
+	public void testSeveralEndpoints() throws Exception {
+		LoopbackServer other = new LoopbackServer();
+		try {
+			pool = WebSocketPool.builder().maxPerEndpoint(1).borrowTimeoutMillis(0).build();
+			WebSocket first = pool.borrow(server.getHost(), server.getPort(), "/echo");
+			WebSocket second = pool.borrow(other.getHost(), other.getPort(), "/echo");
+			WebSocket third = pool.borrow(server.getHost(), server.getPort(), "/other");
+			assertEquals(3, pool.getEndpoints());
+			assertEquals(3, pool.getOpenConnections());
+			pool.release(first);
+			pool.release(second);
+			pool.release(third);
+			assertEquals(1, other.getConnections().size());
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void testConnectFailure() throws Exception {
+		pool = WebSocketPool.builder().config(WebSocketConfig.builder().connectTimeoutMillis(500)
+				.handshakeTimeoutMillis(500).build()).build();
+		int port = server.getPort();
+		server.close();
+		try {
+			pool.borrow(server.getHost(), port, "/echo");
+			fail("Connected to a closed server");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(1, pool.getFailedConnects());
+		assertEquals(0, pool.getOpenConnections());
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		pool = WebSocketPool.builder().build();
+		WebSocket idle = pool.borrow(server.getHost(), server.getPort(), "/echo");
+		WebSocket borrowed = pool.borrow(server.getHost(), server.getPort(), "/echo");
+		pool.release(idle);
+		pool.close();
+		assertTrue(idle.hasSentCloseHandshake());
+		assertEquals(WebSocketState.OPEN, borrowed.getState());
+		pool.release(borrowed);
+		assertTrue(borrowed.hasSentCloseHandshake());
+		assertEquals(0, pool.getOpenConnections());
+		try {
+			pool.borrow(server.getHost(), server.getPort(), "/echo");
+			fail("Borrowed from a closed pool");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
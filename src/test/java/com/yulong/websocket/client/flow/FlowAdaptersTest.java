@@ -0,0 +1,167 @@
+package com.yulong.websocket.client.flow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yulong.websocket.client.Message;
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.WebSocketFactory;
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.server.LoopbackServer;
+
+public class FlowAdaptersTest {
+
+	private LoopbackServer server;
+	private WebSocket webSocket;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new LoopbackServer();
+		webSocket = WebSocketFactory.getInstance(false).openWebSocket(server.getHost(), server.getPort(), "/echo", null,
+				null, null, null);
+		assertEquals(WebSocketState.OPEN, webSocket.getState());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+	}
+
+	@Test
+	public void testPublisherHonoursDemand() throws Exception {
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		new WebSocketPublisher(webSocket).subscribe(subscriber);
+		subscriber.subscribed.await(5, TimeUnit.SECONDS);
+
+		webSocket.send("!burst 50 tick");
+		subscriber.subscription.request(5);
+		for (int i = 0; i < 5; i++) {
+			assertEquals("tick", subscriber.messages.poll(5, TimeUnit.SECONDS).getText());
+		}
+		// Nothing more until requested:
+		assertEquals(null, subscriber.messages.poll(300, TimeUnit.MILLISECONDS));
+
+		subscriber.subscription.request(Long.MAX_VALUE);
+		for (int i = 5; i < 50; i++) {
+			assertEquals("tick", subscriber.messages.poll(5, TimeUnit.SECONDS).getText());
+		}
+	}
+
+	@Test
+	public void testPublisherCompletesOnClose() throws Exception {
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		new WebSocketPublisher(webSocket).subscribe(subscriber);
+		subscriber.subscribed.await(5, TimeUnit.SECONDS);
+		subscriber.subscription.request(10);
+
+		webSocket.send("last words");
+		webSocket.send("!close 1000 done");
+		assertEquals("last words", subscriber.messages.poll(5, TimeUnit.SECONDS).getText());
+		assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testPublisherFailsWhenTheConnectionDrops() throws Exception {
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		new WebSocketPublisher(webSocket).subscribe(subscriber);
+		subscriber.subscribed.await(5, TimeUnit.SECONDS);
+		subscriber.subscription.request(10);
+
+		webSocket.send("before");
+		assertEquals("before", subscriber.messages.poll(5, TimeUnit.SECONDS).getText());
+		server.awaitConnections(1, 5000).get(0).closeChannel();
+		assertTrue(subscriber.failed.await(5, TimeUnit.SECONDS));
+		assertTrue(subscriber.error instanceof IOException);
+		assertEquals(1, subscriber.completed.getCount());
+	}
+
+	@Test
+	public void testPublisherOfAClosedWebSocketFails() throws Exception {
+		server.awaitConnections(1, 5000).get(0).closeChannel();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (webSocket.getState() != WebSocketState.CLOSED && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		new WebSocketPublisher(webSocket).subscribe(subscriber);
+		assertTrue(subscriber.failed.await(5, TimeUnit.SECONDS));
+		assertTrue(subscriber.error instanceof IOException);
+	}
+
+	@Test
+	public void testSecondSubscriberIsRejected() throws Exception {
+		WebSocketPublisher publisher = new WebSocketPublisher(webSocket);
+		publisher.subscribe(new CollectingSubscriber());
+		CollectingSubscriber second = new CollectingSubscriber();
+		publisher.subscribe(second);
+		assertTrue(second.error instanceof IllegalStateException);
+	}
+
+	@Test
+	public void testSubscriberSendsInOrder() throws Exception {
+		LoopbackServer.Connection connection = server.awaitConnections(1, 5000).get(0);
+		connection.setEcho(false);
+
+		WebSocketSubscriber subscriber = new WebSocketSubscriber(webSocket, 1024);
+		SubmissionPublisher<Message> upstream = new SubmissionPublisher<Message>();
+		upstream.subscribe(subscriber);
+		for (int i = 0; i < 100; i++) {
+			upstream.submit(Message.text("item-" + i));
+		}
+		upstream.close();
+
+		subscriber.getCompletion().get(5, TimeUnit.SECONDS);
+		for (int i = 0; i < 100; i++) {
+			assertEquals("item-" + i, connection.pollText(5000));
+		}
+	}
+
+	/**
+	 * Collects the signals of a publisher.
+	 */
+	private static class CollectingSubscriber implements Flow.Subscriber<Message> {
+
+		final BlockingQueue<Message> messages = new LinkedBlockingQueue<Message>();
+		final CountDownLatch subscribed = new CountDownLatch(1);
+		final CountDownLatch completed = new CountDownLatch(1);
+		final CountDownLatch failed = new CountDownLatch(1);
+		volatile Flow.Subscription subscription;
+		volatile Throwable error;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscribed.countDown();
+		}
+
+		@Override
+		public void onNext(Message item) {
+			messages.add(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+			failed.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			completed.countDown();
+		}
+
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.yulong.websocket.client.frames;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.yulong.websocket.client.utils.BufferPool;
+import com.yulong.websocket.client.utils.Utils;
+
+/**
+ * Checks that pooled frames encode exactly as DataFrame does and are reused once released.
+ */
+public class PooledFrameTest {
+
+	private final FramePool pool = new FramePool(4);
+
+	@Test
+	public void testTextMatchesDataFrame() {
+		assertSameEncoding(pool.acquire().setText("hello"), true, 0, 1, Utils.string2Bytes("hello"));
+	}
+
+	@Test
+	public void testUtf8MatchesStringEncoding() {
+		String text = "aé中😀\ud800z";
+		assertSameEncoding(pool.acquire().setText(text), true, 0, 1, Utils.string2Bytes(text));
+	}
+
+	@Test
+	public void testPayloadLengthForms() {
+		for (int length : new int[] { 0, 3, 125, 126, 65535, 65536, 200000 }) {
+			byte[] payload = Utils.createBinaryData(length, new byte[] { 1, 2, 3, 4, 5, 6, 7 });
+			assertSameEncoding(pool.acquire().setBinary(payload, 0, length), true, 0, 2, payload);
+		}
+	}
+
+	@Test
+	public void testFragmentHeader() {
+		PooledFrame frame = pool.acquire().setOpcode(0).setFin(false).setRsv(4);
+		frame.append(ByteBuffer.wrap(new byte[] { 9, 8, 7 }));
+		assertSameEncoding(frame, false, 4, 0, new byte[] { 9, 8, 7 });
+	}
+
+	@Test
+	public void testReleasedFrameIsReused() {
+		PooledFrame frame = pool.acquire().setText("first");
+		frame.encode();
+		frame.release();
+		PooledFrame again = pool.acquire();
+		assertSame(frame, again);
+		assertEquals(0, again.getPayloadLength());
+		assertEquals(1, pool.getCreated());
+		assertSameEncoding(again.setBinary(new byte[] { 1 }, 0, 1), true, 0, 2, new byte[] { 1 });
+	}
+
+	@Test
+	public void testReleasedFrameCannotBeUsed() {
+		PooledFrame frame = pool.acquire();
+		frame.release();
+		try {
+			frame.setText("too late");
+			fail("A released frame must not be written");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			frame.release();
+			fail("A frame must not be released twice");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Encode the frame and compare it with a DataFrame built with the same mask key.
+	 */
+	private void assertSameEncoding(PooledFrame frame, boolean fin, int rsv, int opcode, byte[] payload) {
+		ByteBuffer[] buffers = frame.encode();
+		assertEquals(1, buffers.length);
+		ByteBuffer encoded = buffers[0];
+		// Pooled direct buffers, unless too large for the buffer pool:
+		assertEquals(encoded.capacity() <= BufferPool.MAX_CAPACITY, encoded.isDirect());
+		byte[] raw = new byte[encoded.remaining()];
+		encoded.duplicate().get(raw);
+
+		int lengthField = raw[1] & 0x7f;
+		int maskOffset = lengthField == 127 ? 10 : lengthField == 126 ? 4 : 2;
+		byte[] maskKey = Arrays.copyOfRange(raw, maskOffset, maskOffset + 4);
+		DataFrame expected = new DataFrame(fin, rsv, opcode, true, maskKey, new byte[0], payload);
+		assertArrayEquals(expected.getRawData(), raw);
+		frame.release();
+	}
+
+}
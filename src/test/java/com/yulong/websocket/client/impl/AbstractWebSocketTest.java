@@ -0,0 +1,242 @@
+package com.yulong.websocket.client.impl;
+
+import static com.yulong.websocket.client.server.RecordingListener.poll;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.frames.CloseFrame;
+import com.yulong.websocket.client.frames.DataFrame;
+import com.yulong.websocket.client.frames.PooledFrame;
+import com.yulong.websocket.client.load.LoadGenerator;
+import com.yulong.websocket.client.load.LoadReport;
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.server.RecordingListener;
+import com.yulong.websocket.client.utils.Utils;
+
+/**
+ * Correctness tests run against the loopback server for each WebSocket implementation.
+ */
+public abstract class AbstractWebSocketTest {
+
+	protected LoopbackServer server;
+	protected WebSocket webSocket;
+	protected RecordingListener listener;
+
+	/**
+	 * Open a WebSocket to the given server with the implementation under test.
+	 *
+	 * @param server
+	 * @return
+	 */
+	protected abstract WebSocket openWebSocket(LoopbackServer server);
+
+	/**
+	 * Start the server the tests run against, on the loopback interface by default.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	protected LoopbackServer createServer() throws IOException {
+		return new LoopbackServer();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = createServer();
+		webSocket = openWebSocket(server);
+		assertEquals(WebSocketState.OPEN, webSocket.getState());
+		listener = new RecordingListener();
+		webSocket.addListener(listener);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+	}
+
+	@Test
+	public void testEchoText() throws Exception {
+		webSocket.send("hello");
+		assertEquals("hello", poll(listener.texts));
+	}
+
+	@Test
+	public void testEchoOrder() throws Exception {
+		for (int i = 0; i < 200; i++) {
+			webSocket.send("message-" + i);
+		}
+		for (int i = 0; i < 200; i++) {
+			assertEquals("message-" + i, poll(listener.texts));
+		}
+	}
+
+	@Test
+	public void testEchoLargeText() throws Exception {
+		String text = Utils.createLongMessage(70000, "abcdefghijklmnopqrstuvwxyz");
+		webSocket.send(text);
+		assertEquals(text, poll(listener.texts));
+	}
+
+	@Test
+	public void testEchoBinary() throws Exception {
+		byte[] data = new byte[300];
+		new Random(1).nextBytes(data);
+		webSocket.send(data);
+		assertArrayEquals(data, poll(listener.binaries));
+	}
+
+	@Test
+	public void testFragmentedSendIsReassembledByServer() throws Exception {
+		server.awaitConnections(1, 5000).get(0).setEcho(false);
+		webSocket.send("This message has been split into several parts", 10);
+		assertEquals("This message has been split into several parts",
+				server.getConnections().get(0).pollText(5000));
+	}
+
+	@Test
+	public void testFragmentedMessageFromServer() throws Exception {
+		webSocket.send("!fragment 3 one two three");
+		assertEquals("one two three", poll(listener.texts));
+	}
+
+	@Test
+	public void testPingBetweenFragments() throws Exception {
+		webSocket.send("!interleave split around a ping");
+		assertEquals("in-between", poll(listener.pings).getTextData());
+		assertEquals("split around a ping", poll(listener.texts));
+	}
+
+	@Test
+	public void testServerPing() throws Exception {
+		webSocket.send("!ping are you there");
+		assertEquals("are you there", poll(listener.pings).getTextData());
+	}
+
+	@Test
+	public void testPongFromServer() throws Exception {
+		webSocket.ping("marco");
+		assertEquals("marco", poll(listener.pongs).getTextData());
+	}
+
+	@Test
+	public void testServerClose() throws Exception {
+		webSocket.send("!close 1001 going away");
+		CloseFrame closeFrame = poll(listener.closes);
+		assertNotNull(closeFrame);
+		assertEquals(1001, closeFrame.getCode());
+		assertEquals("going away", Utils.bytes2String(closeFrame.getReason()));
+	}
+
+	@Test
+	public void testBurst() throws Exception {
+		webSocket.send("!burst 100 tick");
+		for (int i = 0; i < 100; i++) {
+			assertEquals("tick", poll(listener.texts));
+		}
+	}
+
+	@Test
+	public void testEchoPooledFrames() throws Exception {
+		List<PooledFrame> used = new ArrayList<PooledFrame>();
+		for (int i = 0; i < 100; i++) {
+			PooledFrame frame = webSocket.acquireFrame();
+			if (!used.contains(frame)) {
+				used.add(frame);
+			}
+			if (i % 2 == 0) {
+				webSocket.send(frame.setText("pooled-" + i));
+			} else {
+				webSocket.send(frame.setText("pooled-").appendText(String.valueOf(i)).setFin(true));
+			}
+		}
+		for (int i = 0; i < 100; i++) {
+			assertEquals("pooled-" + i, poll(listener.texts));
+		}
+		// Written frames go back to the pool and are reused:
+		assertTrue("used " + used.size() + " frames", used.size() < 10);
+	}
+
+	@Test
+	public void testConcurrentProducers() throws Exception {
+		final int producers = 8;
+		final int messages = 200;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < messages; i++) {
+							String text = "producer-" + producer + "-message-" + i;
+							// Whole, fragmented and chopped frames must all stay contiguous:
+							if (i % 3 == 0) {
+								webSocket.send(text);
+							} else if (i % 3 == 1) {
+								webSocket.send(text, 7);
+							} else {
+								webSocket.send(new DataFrame(true, 1, true, text), 5);
+							}
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			});
+			t.start();
+			threads.add(t);
+		}
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		// Each producer's messages are echoed intact and in its own order:
+		int[] next = new int[producers];
+		for (int i = 0; i < producers * messages; i++) {
+			String echo = poll(listener.texts);
+			assertNotNull(echo);
+			String[] parts = echo.split("-");
+			int producer = Integer.parseInt(parts[1]);
+			assertEquals("producer-" + producer + "-message-" + next[producer], echo);
+			next[producer]++;
+		}
+		assertEquals(0, webSocket.getMetrics().getPendingBytes());
+	}
+
+	@Test
+	public void testLoadGeneratorAgainstLoopback() throws Exception {
+		LoadGenerator generator = new LoadGenerator(server.getHost(), server.getPort(), "/echo", false);
+		generator.setConnections(2);
+		generator.setRatePerConnection(200);
+		generator.setDurationSeconds(1);
+		generator.setDrainSeconds(5);
+		LoadReport report = generator.run();
+		assertEquals(2, report.getConnectionsOpened());
+		assertEquals(400, report.getMessagesSent());
+		assertEquals(0, report.getMessagesLost());
+		assertEquals(0, report.getSendErrors());
+	}
+
+}
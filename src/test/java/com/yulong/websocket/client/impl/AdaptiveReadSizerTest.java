@@ -0,0 +1,61 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks how the predicted read size follows the reads.
+ */
+public class AdaptiveReadSizerTest {
+
+	@Test
+	public void testGrowsWhenReadsFillTheBuffer() {
+		AdaptiveReadSizer sizer = new AdaptiveReadSizer(512, 8192, 65536);
+		sizer.record(8192, 8192);
+		assertEquals(16384, sizer.size());
+		sizer.record(16384, 16384);
+		sizer.record(32768, 32768);
+		sizer.record(65536, 65536);
+		assertEquals(65536, sizer.size());
+	}
+
+	@Test
+	public void testShrinksAfterSmallReads() {
+		AdaptiveReadSizer sizer = new AdaptiveReadSizer(512, 8192, 65536);
+		for (int i = 0; i < AdaptiveReadSizer.SHRINK_AFTER - 1; i++) {
+			sizer.record(100, 8192);
+		}
+		assertEquals(8192, sizer.size());
+		sizer.record(100, 8192);
+		assertEquals(4096, sizer.size());
+		for (int i = 0; i < 100; i++) {
+			sizer.record(100, sizer.size());
+		}
+		assertEquals(512, sizer.size());
+	}
+
+	@Test
+	public void testMediumReadsKeepTheSize() {
+		AdaptiveReadSizer sizer = new AdaptiveReadSizer(512, 8192, 65536);
+		for (int i = 0; i < 100; i++) {
+			sizer.record(i % 2 == 0 ? 100 : 5000, 8192);
+		}
+		assertEquals(8192, sizer.size());
+	}
+
+	@Test
+	public void testMayHaveMore() {
+		assertTrue(AdaptiveReadSizer.mayHaveMore(8192, 8192));
+		assertFalse(AdaptiveReadSizer.mayHaveMore(8191, 8192));
+		assertFalse(AdaptiveReadSizer.mayHaveMore(0, 0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInitialMustBeWithinBounds() {
+		new AdaptiveReadSizer(512, 100, 65536);
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yulong.websocket.client.ConnectionMetrics;
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.server.RecordingListener;
+
+/**
+ * Checks that the NIO reads grow during a bulk transfer, which is read several times per
+ * wakeup, and shrink back once the connection is quiet.
+ */
+public class AdaptiveReadTest {
+
+	private static final int MESSAGES = 300;
+	private static final int MESSAGE_SIZE = 4000;
+
+	private LoopbackServer server;
+	private WebSocketNio webSocket;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new LoopbackServer();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (webSocket != null) {
+			webSocket.close();
+		}
+		server.close();
+	}
+
+	@Test
+	public void testGrowsThenShrinks() throws Exception {
+		webSocket = new WebSocketNio(server.getHost(), server.getPort(), "/echo", false,
+				WebSocketConfig.builder().readBufferSize(4096).build());
+		RecordingListener listener = new RecordingListener();
+		webSocket.addListener(listener);
+		start();
+		assertEquals("hello", echo(listener, "hello"));
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < MESSAGE_SIZE; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		String message = sb.toString();
+		webSocket.send("!burst " + MESSAGES + " " + message);
+		int maxSize = 0;
+		for (int i = 0; i < MESSAGES; i++) {
+			assertEquals(message, listener.texts.poll(10, TimeUnit.SECONDS));
+			maxSize = Math.max(maxSize, webSocket.getReadSize());
+		}
+		assertTrue("size " + maxSize, maxSize > 4096);
+		ConnectionMetrics metrics = webSocket.getMetrics();
+		assertTrue(metrics.toString(), metrics.getReads() > metrics.getReadWakeups());
+
+		// Small messages one at a time:
+		for (int i = 0; i < 32; i++) {
+			assertEquals("small " + i, echo(listener, "small " + i));
+		}
+		assertTrue(metrics.getReadBytes() > (long) MESSAGES * MESSAGE_SIZE);
+		assertTrue("size " + webSocket.getReadSize(), webSocket.getReadSize() < maxSize);
+		assertTrue(webSocket.getReadSize() <= 4096);
+		// Everything read is processed, the buffer goes back to the pool:
+		long deadline = System.currentTimeMillis() + 5000;
+		while (webSocket.getReaderCapacity() != 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, webSocket.getReaderCapacity());
+	}
+
+	@Test
+	public void testOneReadPerWakeup() throws Exception {
+		webSocket = new WebSocketNio(server.getHost(), server.getPort(), "/echo", false,
+				WebSocketConfig.builder().maxReadsPerWakeup(1).build());
+		RecordingListener listener = new RecordingListener();
+		webSocket.addListener(listener);
+		start();
+		assertEquals("hello", echo(listener, "hello"));
+		webSocket.send("!burst 50 " + new String(new char[MESSAGE_SIZE]).replace('\0', 'x'));
+		for (int i = 0; i < 50; i++) {
+			assertEquals(MESSAGE_SIZE, listener.texts.poll(10, TimeUnit.SECONDS).length());
+		}
+		ConnectionMetrics metrics = webSocket.getMetrics();
+		assertEquals(metrics.getReadWakeups(), metrics.getReads());
+	}
+
+	private void start() {
+		Thread t = new Thread(webSocket);
+		t.setDaemon(true);
+		t.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!webSocket.handshakeFinished() && System.currentTimeMillis() < deadline) {
+			Thread.yield();
+		}
+	}
+
+	private String echo(RecordingListener listener, String text) throws Exception {
+		webSocket.send(text);
+		return RecordingListener.poll(listener.texts);
+	}
+
+}
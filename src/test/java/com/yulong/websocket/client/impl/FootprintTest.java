@@ -0,0 +1,192 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjdk.jol.util.ObjectUtils;
+import org.openjdk.jol.vm.VM;
+
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.utils.BufferPool;
+
+/**
+ * Checks that an idle connection on a shared event loop holds no buffers and stays within its
+ * heap budget. The footprint of a connection is what is reachable from it but not from another
+ * connection, so that the loop, the config, the pools and the constants are left out.
+ */
+public class FootprintTest {
+
+	private LoopbackServer server;
+	private NioEventLoop loop;
+	private WebSocketConfig config;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new LoopbackServer();
+		loop = new NioEventLoop("FootprintTestLoop");
+		config = WebSocketConfig.builder().eventLoop(loop).build();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		loop.close();
+		server.close();
+	}
+
+	@Test
+	public void testIdleConnectionWithinBudget() throws Exception {
+		WebSocketNio webSocket = open();
+		WebSocketNio other = open();
+		// Some traffic, including a fragmented message, then idle:
+		webSocket.send("hello");
+		server.awaitConnections(2, 5000).get(0).sendFragmentedText("a fragmented message", 3);
+		awaitIdle(webSocket);
+
+		Map<Class<?>, Long> sizes = footprint(webSocket, other);
+		long total = 0;
+		for (long size : sizes.values()) {
+			total += size;
+		}
+		assertTrue(total + " bytes: " + sizes, total <= WebSocketNio.IDLE_HEAP_BUDGET);
+		webSocket.close();
+		other.close();
+	}
+
+	@Test
+	public void testInFlightStateIsReleased() throws Exception {
+		WebSocketNio webSocket = open();
+		WebSocketNio other = open();
+		webSocket.send("hello");
+		awaitIdle(webSocket);
+		Map<Class<?>, Long> sizes = footprint(webSocket, other);
+		assertNull(sizes.get(HandshakeParser.class));
+		assertNull(sizes.get(com.yulong.websocket.client.utils.WebSocketKey.class));
+		assertNull(sizes.get(java.util.LinkedList.class));
+		// No selector of its own, whatever its implementation class:
+		for (Class<?> c : sizes.keySet()) {
+			assertFalse(c.getName(), Selector.class.isAssignableFrom(c));
+		}
+		assertEquals(0, webSocket.getReaderCapacity());
+		webSocket.close();
+		other.close();
+	}
+
+	@Test
+	public void testConnectionsShareTheLoop() throws Exception {
+		WebSocketNio first = open();
+		WebSocketNio second = open();
+		assertEquals(2, loop.getConnections());
+		first.close();
+		second.close();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (loop.getConnections() != 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, loop.getConnections());
+	}
+
+	private WebSocketNio open() throws Exception {
+		WebSocketNio webSocket = new WebSocketNio(server.getHost(), server.getPort(), "/echo", false, config);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!webSocket.handshakeFinished() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(WebSocketState.OPEN, webSocket.getState());
+		return webSocket;
+	}
+
+	/**
+	 * Wait until what was sent has been read and the reader buffer has gone back to the pool.
+	 */
+	private void awaitIdle(WebSocketNio webSocket) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((webSocket.getMetrics().getReads() < 2 || webSocket.getReaderCapacity() != 0)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, webSocket.getReaderCapacity());
+	}
+
+	/**
+	 * The sizes by class of the objects reachable from the connection and not from the other.
+	 */
+	private Map<Class<?>, Long> footprint(WebSocketNio webSocket, WebSocketNio other) {
+		Set<Object> shared = reachable(other, webSocket);
+		Map<Class<?>, Long> sizes = new TreeMap<Class<?>, Long>(new java.util.Comparator<Class<?>>() {
+			@Override
+			public int compare(Class<?> a, Class<?> b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		for (Object o : reachable(webSocket, other)) {
+			if (!shared.contains(o)) {
+				Long size = sizes.get(o.getClass());
+				sizes.put(o.getClass(), (size == null ? 0 : size) + VM.current().sizeOf(o));
+			}
+		}
+		return sizes;
+	}
+
+	/**
+	 * The objects reachable from the root without going through the other connection, the
+	 * shared objects, classes or threads. The loop's selector is shared too, so that the keys
+	 * of the other connections are left out.
+	 */
+	private Set<Object> reachable(Object root, Object other) {
+		Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		Set<Object> stops = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		Collections.addAll(stops, other, loop, loop.getSelector(), config, BufferPool.getDefault(),
+				SelectorProvider.provider());
+		Deque<Object> stack = new ArrayDeque<Object>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Object o = stack.pop();
+			if (stops.contains(o) || o instanceof Class || o instanceof Thread || o instanceof ClassLoader
+					|| !seen.add(o)) {
+				continue;
+			}
+			Class<?> c = o.getClass();
+			if (c.isArray()) {
+				if (!c.getComponentType().isPrimitive()) {
+					for (Object element : (Object[]) o) {
+						if (element != null) {
+							stack.push(element);
+						}
+					}
+				}
+				continue;
+			}
+			for (; c != null; c = c.getSuperclass()) {
+				for (Field f : c.getDeclaredFields()) {
+					if (!Modifier.isStatic(f.getModifiers()) && !f.getType().isPrimitive()) {
+						Object value = ObjectUtils.value(o, f);
+						if (value != null) {
+							stack.push(value);
+						}
+					}
+				}
+			}
+		}
+		return seen;
+	}
+
+}
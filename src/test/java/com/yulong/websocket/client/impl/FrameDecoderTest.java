@@ -0,0 +1,75 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.yulong.websocket.client.ProtocolException;
+import com.yulong.websocket.client.server.LoopbackServer;
+
+public class FrameDecoderTest {
+
+	private final FrameDecoder decoder = new FrameDecoder();
+
+	@Test
+	public void testPayloadLengths() throws Exception {
+		for (int length : new int[] { 0, 125, 126, 65535, 65536 }) {
+			byte[] frame = LoopbackServer.frame(true, 2, new byte[length]);
+			ByteBuffer buff = ByteBuffer.wrap(frame);
+			assertTrue(decoder.decode(buff));
+			assertEquals(frame.length, decoder.frameLength);
+			assertEquals(frame.length - length, decoder.payloadStart);
+			assertEquals(frame.length, decoder.payloadEnd);
+			assertEquals(2, decoder.opcode);
+			assertTrue(decoder.fin);
+			assertTrue(decoder.isValid());
+			// The buffer is not moved:
+			assertEquals(0, buff.position());
+		}
+	}
+
+	@Test
+	public void testIncompleteFrame() throws Exception {
+		byte[] frame = LoopbackServer.frame(false, 1, new byte[300]);
+
+		assertFalse(decoder.decode(ByteBuffer.wrap(frame, 0, 3)));
+		assertEquals(0, decoder.frameLength);
+
+		assertFalse(decoder.decode(ByteBuffer.wrap(frame, 0, 100)));
+		assertEquals(frame.length, decoder.frameLength);
+		assertFalse(decoder.fin);
+	}
+
+	@Test
+	public void testDecodeAtPosition() throws Exception {
+		byte[] first = LoopbackServer.frame(true, 1, LoopbackServer.utf8("one"));
+		byte[] second = LoopbackServer.frame(true, 9, LoopbackServer.utf8("ping"));
+		ByteBuffer buff = ByteBuffer.allocate(first.length + second.length);
+		buff.put(first).put(second).flip();
+		buff.position(first.length);
+		assertTrue(decoder.decode(buff));
+		assertEquals(9, decoder.opcode);
+		assertEquals(first.length + 2, decoder.payloadStart);
+		assertEquals(4, decoder.payloadEnd - decoder.payloadStart);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testMaskedFrameIsInvalid() throws Exception {
+		byte[] frame = new byte[] { (byte) 0x81, (byte) 0x81, 1, 2, 3, 4, 5 };
+		assertTrue(decoder.decode(ByteBuffer.wrap(frame)));
+		assertFalse(decoder.isValid());
+		decoder.validate();
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testPayloadTooLarge() throws Exception {
+		ByteBuffer buff = ByteBuffer.allocate(10);
+		buff.put((byte) 0x82).put((byte) 127).putLong(Long.MAX_VALUE).flip();
+		decoder.decode(buff);
+	}
+
+}
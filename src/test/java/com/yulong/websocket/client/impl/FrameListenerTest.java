@@ -0,0 +1,118 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yulong.websocket.client.FrameListener;
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.server.RecordingListener;
+import com.yulong.websocket.client.utils.Utils;
+
+/**
+ * Checks the low-level frame callback of WebSocketNio.
+ */
+public class FrameListenerTest {
+
+	private LoopbackServer server;
+	private WebSocketNio webSocket;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new LoopbackServer();
+		webSocket = new WebSocketNio(server.getHost(), server.getPort(), "/echo", false, "13", null, null, null);
+		Thread t = new Thread(webSocket);
+		t.setDaemon(true);
+		t.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!webSocket.handshakeFinished() && System.currentTimeMillis() < deadline) {
+			Thread.yield();
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+	}
+
+	@Test
+	public void testFrameListenerSeesReadOnlyPayload() throws Exception {
+		final CountDownLatch received = new CountDownLatch(1);
+		final StringBuilder seen = new StringBuilder();
+		webSocket.addFrameListener(new FrameListener() {
+			@Override
+			public void onFrame(int opcode, boolean fin, int rsv, ByteBuffer payload) {
+				byte[] copy = new byte[payload.remaining()];
+				payload.get(copy);
+				seen.append(opcode).append(fin).append(rsv).append(payload.isReadOnly()).append(Utils.bytes2String(copy));
+				received.countDown();
+			}
+		});
+		webSocket.send("in place");
+		assertTrue(received.await(5, TimeUnit.SECONDS));
+		assertEquals("1true0truein place", seen.toString());
+	}
+
+	@Test
+	public void testBothListenersSeeFragments() throws Exception {
+		final StringBuffer frames = new StringBuffer();
+		webSocket.addFrameListener(new FrameListener() {
+			@Override
+			public void onFrame(int opcode, boolean fin, int rsv, ByteBuffer payload) {
+				frames.append(opcode).append(fin ? "F" : "-").append(' ');
+			}
+		});
+		RecordingListener listener = new RecordingListener();
+		webSocket.addListener(listener);
+		webSocket.send("!fragment 3 one two three");
+		assertEquals("one two three", RecordingListener.poll(listener.texts));
+		assertEquals("1- 0- 0F ", frames.toString());
+	}
+
+	@Test
+	public void testNoAllocationPerFrame() throws Exception {
+		final int warmup = 200;
+		final int measured = 2000;
+		final long[] allocated = new long[2];
+		final CountDownLatch done = new CountDownLatch(1);
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		webSocket.addFrameListener(new FrameListener() {
+			int count = 0;
+			long sum = 0;
+
+			@Override
+			public void onFrame(int opcode, boolean fin, int rsv, ByteBuffer payload) {
+				sum += payload.get(payload.position());
+				count++;
+				if (count == warmup) {
+					allocated[0] = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+				} else if (count == warmup + measured) {
+					allocated[1] = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+					done.countDown();
+				}
+			}
+		});
+
+		boolean frameLogging = Utils.isFrameLogging();
+		Utils.setFrameLogging(false);
+		try {
+			webSocket.send("!burst " + (warmup + measured) + " " + Utils.createLongMessage(200, "0123456789"));
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+		} finally {
+			Utils.setFrameLogging(frameLogging);
+		}
+		// Only the per-select bookkeeping of the selector remains, shared by the frames of each read:
+		long perFrame = (allocated[1] - allocated[0]) / measured;
+		assertTrue("allocated " + perFrame + " bytes per frame", perFrame < 64);
+	}
+
+}
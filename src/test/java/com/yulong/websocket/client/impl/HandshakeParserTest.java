@@ -0,0 +1,88 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.yulong.websocket.client.HandShakeException;
+import com.yulong.websocket.client.server.LoopbackServer;
+
+public class HandshakeParserTest {
+
+	private static final String RESPONSE = "HTTP/1.1 101 Switching Protocols\r\n" + "Upgrade: websocket\r\n"
+			+ "CONNECTION:Upgrade \r\n" + "Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n\r\n";
+
+	private final Map<String, String> headers = new HashMap<String, String>();
+	private final HandshakeParser parser = new HandshakeParser(headers);
+
+	@Test
+	public void testCompleteResponse() throws Exception {
+		ByteBuffer buff = ByteBuffer.wrap(LoopbackServer.utf8(RESPONSE));
+		assertTrue(parser.parse(buff));
+		assertFalse(buff.hasRemaining());
+		assertEquals(101, parser.getStatusCode());
+		assertEquals("websocket", headers.get("upgrade"));
+		assertEquals("Upgrade", headers.get("connection"));
+		assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", headers.get("sec-websocket-accept"));
+	}
+
+	@Test
+	public void testSplitAtEveryPosition() throws Exception {
+		byte[] response = LoopbackServer.utf8(RESPONSE);
+		for (int split = 1; split < response.length; split++) {
+			Map<String, String> parsed = new HashMap<String, String>();
+			HandshakeParser p = new HandshakeParser(parsed);
+			assertFalse(p.parse(ByteBuffer.wrap(response, 0, split)));
+			assertEquals(-1, p.getStatusCode());
+			assertTrue(p.parse(ByteBuffer.wrap(response, split, response.length - split)));
+			assertEquals(101, p.getStatusCode());
+			assertEquals(headers(), parsed);
+		}
+	}
+
+	@Test
+	public void testLeftoverIsNotConsumed() throws Exception {
+		byte[] response = LoopbackServer.utf8(RESPONSE);
+		byte[] frame = LoopbackServer.frame(true, 1, LoopbackServer.utf8("first"));
+		ByteBuffer buff = ByteBuffer.allocate(response.length + frame.length);
+		buff.put(response).put(frame).flip();
+		assertTrue(parser.parse(buff));
+		assertEquals(response.length, buff.position());
+		assertEquals(frame.length, buff.remaining());
+	}
+
+	@Test
+	public void testStatusOtherThan101() throws Exception {
+		assertTrue(parser.parse(ByteBuffer.wrap(LoopbackServer.utf8("HTTP/1.1 404 Not Found\r\n\r\n"))));
+		assertEquals(404, parser.getStatusCode());
+		assertTrue(headers.isEmpty());
+	}
+
+	@Test(expected = HandShakeException.class)
+	public void testMalformedStatusLine() throws Exception {
+		parser.parse(ByteBuffer.wrap(LoopbackServer.utf8("HTTP/1.1 1O1 Switching\r\n\r\n")));
+	}
+
+	@Test(expected = HandShakeException.class)
+	public void testHeadersTooLarge() throws Exception {
+		ByteBuffer buff = ByteBuffer.allocate(HandshakeParser.MAX_HEADER_SIZE + 1);
+		while (buff.hasRemaining()) {
+			buff.put((byte) 'a');
+		}
+		buff.flip();
+		parser.parse(buff);
+	}
+
+	private Map<String, String> headers() throws HandShakeException {
+		Map<String, String> expected = new HashMap<String, String>();
+		new HandshakeParser(expected).parse(ByteBuffer.wrap(LoopbackServer.utf8(RESPONSE)));
+		return expected;
+	}
+
+}
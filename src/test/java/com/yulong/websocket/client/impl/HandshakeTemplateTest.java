@@ -0,0 +1,64 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.yulong.websocket.client.server.LoopbackServer;
+
+public class HandshakeTemplateTest {
+
+	private static final String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+
+	@Test
+	public void testRequest() {
+		Map<String, String[]> headers = new LinkedHashMap<String, String[]>();
+		headers.put("Cookie", new String[] { "a=1", "b=2" });
+		HandshakeTemplate template = HandshakeTemplate.get("example.com", 8080, "/chat", "13",
+				new String[] { "chat", "superchat" }, null, headers);
+		String expected = "GET /chat HTTP/1.1\r\n" + "Host: example.com:8080\r\n" + "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n" + "Origin: http://example.com:8080\r\n" + "Sec-WebSocket-Key: " + KEY + "\r\n"
+				+ "Sec-WebSocket-Version: 13\r\n" + "Sec-WebSocket-Protocol: chat, superchat\r\n" + "Cookie: a=1, b=2\r\n"
+				+ "\r\n";
+		assertArrayEquals(LoopbackServer.utf8(expected), template.request(KEY));
+		assertEquals(expected, template.toString(KEY));
+	}
+
+	@Test
+	public void testCachedPerEndpoint() {
+		String[] protocols = { "chat" };
+		HandshakeTemplate first = HandshakeTemplate.get("example.com", 80, "/a", "13", protocols, null, null);
+		assertSame(first, HandshakeTemplate.get("example.com", 80, "/a", "13", new String[] { "chat" }, null, null));
+		assertNotSame(first, HandshakeTemplate.get("example.com", 80, "/b", "13", protocols, null, null));
+
+		// Changing the array given before does not change the cached request:
+		protocols[0] = "other";
+		HandshakeTemplate changed = HandshakeTemplate.get("example.com", 80, "/a", "13", protocols, null, null);
+		assertNotSame(first, changed);
+		assertTrue(changed.toString(KEY).contains("Sec-WebSocket-Protocol: other\r\n"));
+	}
+
+	@Test
+	public void testOptionalHeadersAreNotCached() {
+		Map<String, String[]> headers = new LinkedHashMap<String, String[]>();
+		headers.put("Authorization", new String[] { "Bearer secret" });
+		HandshakeTemplate withToken = HandshakeTemplate.get("example.com", 80, "/private", "13", null, null, headers);
+		assertTrue(withToken.toString(KEY).endsWith("Sec-WebSocket-Version: 13\r\nAuthorization: Bearer secret\r\n\r\n"));
+		assertNotSame(withToken, HandshakeTemplate.get("example.com", 80, "/private", "13", null, null, headers));
+
+		// The cached part of the endpoint does not have them:
+		HandshakeTemplate cached = HandshakeTemplate.get("example.com", 80, "/private", "13", null, null, null);
+		assertSame(cached, HandshakeTemplate.get("example.com", 80, "/private", "13", null, null, null));
+		assertFalse(cached.toString(KEY).contains("Authorization"));
+		assertTrue(cached.toString(KEY).endsWith("Sec-WebSocket-Version: 13\r\n\r\n"));
+	}
+
+}
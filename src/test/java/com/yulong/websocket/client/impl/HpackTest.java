@@ -0,0 +1,158 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks HPACK against the examples of RFC 7541 Appendix C.
+ */
+public class HpackTest {
+
+	@Test
+	public void testIntegers() throws Exception {
+		// C.1.1 to C.1.3:
+		assertArrayEquals(bytes("0a"), encodeInteger(5, 10));
+		assertArrayEquals(bytes("1f9a0a"), encodeInteger(5, 1337));
+		assertArrayEquals(bytes("2a"), encodeInteger(8, 42));
+		assertEquals(1337, Hpack.decodeInteger(ByteBuffer.wrap(bytes("1f9a0a")), 5));
+		assertEquals(Integer.MAX_VALUE, Hpack.decodeInteger(ByteBuffer.wrap(bytes("7f80ffffff07")), 7));
+		try {
+			Hpack.decodeInteger(ByteBuffer.wrap(bytes("7f80ffffff08")), 7);
+			fail("Overflow not detected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testRequestsWithoutHuffman() throws Exception {
+		// C.3, decoded by one decoder in a row:
+		Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+		Map<String, String> first = decode(decoder, "828684410f7777772e6578616d706c652e636f6d");
+		assertEquals("{:method=GET, :scheme=http, :path=/, :authority=www.example.com}", first.toString());
+		assertEquals(57, decoder.getTableSize());
+		Map<String, String> second = decode(decoder, "828684be58086e6f2d6361636865");
+		assertEquals("{:method=GET, :scheme=http, :path=/, :authority=www.example.com, cache-control=no-cache}",
+				second.toString());
+		assertEquals(110, decoder.getTableSize());
+		Map<String, String> third = decode(decoder,
+				"828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565");
+		assertEquals("{:method=GET, :scheme=https, :path=/index.html, :authority=www.example.com, custom-key=custom-value}",
+				third.toString());
+		assertEquals(164, decoder.getTableSize());
+	}
+
+	@Test
+	public void testRequestsWithHuffman() throws Exception {
+		// C.4:
+		Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+		assertEquals("{:method=GET, :scheme=http, :path=/, :authority=www.example.com}",
+				decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff").toString());
+		assertEquals("{:method=GET, :scheme=http, :path=/, :authority=www.example.com, cache-control=no-cache}",
+				decode(decoder, "828684be5886a8eb10649cbf").toString());
+		assertEquals("{:method=GET, :scheme=https, :path=/index.html, :authority=www.example.com, custom-key=custom-value}",
+				decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf").toString());
+		assertEquals(164, decoder.getTableSize());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		Hpack.Decoder decoder = new Hpack.Decoder(100);
+		decode(decoder, "828684410f7777772e6578616d706c652e636f6d");
+		assertEquals(57, decoder.getTableSize());
+		// cache-control: no-cache does not fit next to the authority, which goes:
+		assertEquals("no-cache", decode(decoder, "828684be58086e6f2d6361636865").get("cache-control"));
+		assertEquals(53, decoder.getTableSize());
+		// A size update to 0 empties the table:
+		decode(decoder, "20");
+		assertEquals(0, decoder.getTableSize());
+	}
+
+	@Test
+	public void testHuffmanEncoding() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Hpack.encodeString(out, "www.example.com");
+		assertArrayEquals(bytes("8cf1e3c2e5f23a6ba0ab90f4ff"), out.toByteArray());
+		// Not shorter with Huffman, left as is:
+		out.reset();
+		Hpack.encodeString(out, "{}");
+		assertArrayEquals(bytes("027b7d"), out.toByteArray());
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		List<String[]> fields = new ArrayList<String[]>();
+		fields.add(new String[] { ":method", "CONNECT" });
+		fields.add(new String[] { ":protocol", "websocket" });
+		fields.add(new String[] { ":scheme", "http" });
+		fields.add(new String[] { ":path", "/chat?room=1&user=%E4" });
+		fields.add(new String[] { ":authority", "127.0.0.1:8080" });
+		fields.add(new String[] { "sec-websocket-protocol", "chat, superchat" });
+		fields.add(new String[] { "x-binary", "\u0000\u00ff~|" });
+		Hpack.Encoder encoder = new Hpack.Encoder();
+		byte[] first = encoder.encode(fields);
+		// The table size update comes first, once:
+		assertEquals(0x20, first[0]);
+		byte[] second = encoder.encode(fields);
+		assertEquals(first.length - 1, second.length);
+		// A field of the static table is indexed:
+		assertArrayEquals(bytes("86"), encoder.encode(fields.subList(2, 3)));
+
+		Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+		for (byte[] block : new byte[][] { first, second }) {
+			Map<String, String> headers = new LinkedHashMap<String, String>();
+			decoder.decode(ByteBuffer.wrap(block), headers);
+			assertEquals(fields.size(), headers.size());
+			for (String[] field : fields) {
+				assertEquals(field[1], headers.get(field[0]));
+			}
+		}
+		assertEquals(0, decoder.getTableSize());
+	}
+
+	@Test
+	public void testMalformedBlocks() throws Exception {
+		// An index past the tables, a string longer than the block, padding that is not EOS,
+		// and a table size update after a field:
+		for (String block : new String[] { "be", "0f2e05616263", "418100", "8220" }) {
+			try {
+				decode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), block);
+				fail("Malformed block accepted: " + block);
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	private static Map<String, String> decode(Hpack.Decoder decoder, String hex) throws IOException {
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		decoder.decode(ByteBuffer.wrap(bytes(hex)), headers);
+		return headers;
+	}
+
+	private static byte[] encodeInteger(int prefixBits, int value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Hpack.encodeInteger(out, 0, prefixBits, value);
+		return out.toByteArray();
+	}
+
+	private static byte[] bytes(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
+}
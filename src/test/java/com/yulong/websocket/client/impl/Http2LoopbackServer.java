@@ -0,0 +1,557 @@
+package com.yulong.websocket.client.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.yulong.websocket.client.server.LoopbackServer;
+
+/**
+ * An in-process HTTP/2 server on the loopback interface standing in for one that bootstraps
+ * WebSockets with the extended CONNECT of RFC 8441, for hermetic tests.
+ *
+ * It speaks cleartext HTTP/2 with prior knowledge, answers a CONNECT with the websocket protocol
+ * with status 200, or 404 on the path "/reject", and echoes every text and binary message of
+ * each stream back as a single frame. It honours the windows of the client, queueing what they do
+ * not let it send, and gives back the data it receives right away. Text commands:
+ * <ul>
+ * <li>"!burst &lt;n&gt; &lt;text&gt;" - send the text n times</li>
+ * <li>"!ping &lt;payload&gt;" - send a ping with the payload</li>
+ * <li>"!close &lt;code&gt; &lt;reason&gt;" - start the closing handshake</li>
+ * <li>"!reset" - reset the stream</li>
+ * </ul>
+ * HPACK is the one of the library, tested on its own against the examples of RFC 7541.
+ */
+public class Http2LoopbackServer implements Closeable, Runnable {
+
+	private static final byte[] PREFACE = LoopbackServer.utf8("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+
+	private final ServerSocket serverSocket;
+	private final Thread thread;
+	private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+	private final BlockingQueue<String> receivedTexts = new LinkedBlockingQueue<String>();
+	private final AtomicInteger openStreams = new AtomicInteger();
+	private final AtomicLong pendingBytes = new AtomicLong();
+	private volatile boolean stopped = false;
+	private volatile int initialWindowSize = Http2Connection.DEFAULT_WINDOW;
+	private volatile int maxConcurrentStreams = 1000;
+	private volatile boolean connectProtocolEnabled = true;
+
+	public Http2LoopbackServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		thread = new Thread(this, "Http2LoopbackServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public String getHost() {
+		return InetAddress.getLoopbackAddress().getHostAddress();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * To set the initial window of the streams announced to the connections from now on.
+	 *
+	 * @param initialWindowSize
+	 */
+	public void setInitialWindowSize(int initialWindowSize) {
+		this.initialWindowSize = initialWindowSize;
+	}
+
+	public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+		this.maxConcurrentStreams = maxConcurrentStreams;
+	}
+
+	/**
+	 * To announce SETTINGS_ENABLE_CONNECT_PROTOCOL or not to the connections from now on.
+	 *
+	 * @param connectProtocolEnabled
+	 */
+	public void setConnectProtocolEnabled(boolean connectProtocolEnabled) {
+		this.connectProtocolEnabled = connectProtocolEnabled;
+	}
+
+	/**
+	 * To get the number of connections accepted and not closed.
+	 *
+	 * @return
+	 */
+	public int getConnectionCount() {
+		int count = 0;
+		for (Connection connection : connections) {
+			if (!connection.closed) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * To get the number of WebSocket streams accepted and not ended.
+	 *
+	 * @return
+	 */
+	public int getOpenStreams() {
+		return openStreams.get();
+	}
+
+	/**
+	 * To get the bytes queued for the streams that the windows of the client hold back.
+	 *
+	 * @return
+	 */
+	public long getPendingBytes() {
+		return pendingBytes.get();
+	}
+
+	/**
+	 * To get the next text message received on any stream.
+	 *
+	 * @param timeoutMillis
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public String pollText(long timeoutMillis) throws InterruptedException {
+		return receivedTexts.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Wait until the given number of streams are open.
+	 *
+	 * @param count
+	 * @param timeoutMillis
+	 * @return the number of open streams.
+	 * @throws InterruptedException
+	 */
+	public int awaitStreams(int count, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (openStreams.get() != count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		return openStreams.get();
+	}
+
+	@Override
+	public void run() {
+		while (!stopped) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Connection connection = new Connection(socket);
+				connections.add(connection);
+				Thread t = new Thread(connection, "Http2LoopbackConnection");
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				if (!stopped) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		stopped = true;
+		serverSocket.close();
+		for (Connection connection : connections) {
+			connection.closeSocket();
+		}
+	}
+
+	/**
+	 * A connection accepted by the server, read and written by a thread of its own.
+	 */
+	private class Connection implements Runnable {
+
+		private final Socket socket;
+		private final DataInputStream in;
+		private final OutputStream out;
+		private final Hpack.Encoder encoder = new Hpack.Encoder();
+		private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+		private final Map<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+		private int sendWindow = Http2Connection.DEFAULT_WINDOW;
+		private int initialSendWindow = Http2Connection.DEFAULT_WINDOW;
+		private ByteArrayOutputStream headerBlock = null;
+		private volatile boolean closed = false;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(socket.getInputStream());
+			this.out = socket.getOutputStream();
+		}
+
+		@Override
+		public void run() {
+			try {
+				byte[] preface = new byte[PREFACE.length];
+				in.readFully(preface);
+				if (!Arrays.equals(PREFACE, preface)) {
+					throw new IOException("Invalid preface");
+				}
+				ByteBuffer settings = ByteBuffer.allocate(18);
+				settings.putShort((short) Http2Connection.SETTINGS_MAX_CONCURRENT_STREAMS).putInt(maxConcurrentStreams);
+				settings.putShort((short) Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE).putInt(initialWindowSize);
+				settings.putShort((short) Http2Connection.SETTINGS_ENABLE_CONNECT_PROTOCOL).putInt(
+						connectProtocolEnabled ? 1 : 0);
+				writeFrame(Http2Connection.SETTINGS, 0, 0, settings.array());
+				byte[] header = new byte[9];
+				while (!closed) {
+					in.readFully(header);
+					int length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | (header[2] & 0xff);
+					int type = header[3] & 0xff;
+					int flags = header[4] & 0xff;
+					int streamId = ByteBuffer.wrap(header, 5, 4).getInt() & 0x7fffffff;
+					byte[] payload = new byte[length];
+					in.readFully(payload);
+					onFrame(type, flags, streamId, payload);
+				}
+			} catch (IOException e) {
+				// the client is gone
+			} finally {
+				closeSocket();
+			}
+		}
+
+		void closeSocket() {
+			if (!closed) {
+				closed = true;
+				for (Stream stream : streams.values()) {
+					stream.forget();
+				}
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+		}
+
+		private void onFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+			switch (type) {
+			case Http2Connection.SETTINGS:
+				if ((flags & Http2Connection.FLAG_ACK) == 0) {
+					ByteBuffer settings = ByteBuffer.wrap(payload);
+					while (settings.hasRemaining()) {
+						int id = settings.getShort() & 0xffff;
+						int value = settings.getInt();
+						if (id == Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE) {
+							for (Stream stream : streams.values()) {
+								stream.sendWindow += value - initialSendWindow;
+							}
+							initialSendWindow = value;
+						}
+					}
+					writeFrame(Http2Connection.SETTINGS, Http2Connection.FLAG_ACK, 0, new byte[0]);
+				}
+				break;
+			case Http2Connection.PING:
+				if ((flags & Http2Connection.FLAG_ACK) == 0) {
+					writeFrame(Http2Connection.PING, Http2Connection.FLAG_ACK, 0, payload);
+				}
+				break;
+			case Http2Connection.WINDOW_UPDATE:
+				int increment = ByteBuffer.wrap(payload).getInt() & 0x7fffffff;
+				if (streamId == 0) {
+					sendWindow += increment;
+				} else if (streams.containsKey(streamId)) {
+					streams.get(streamId).sendWindow += increment;
+				}
+				for (Stream stream : streams.values().toArray(new Stream[0])) {
+					stream.flush();
+				}
+				break;
+			case Http2Connection.HEADERS:
+				headerBlock = new ByteArrayOutputStream();
+				headerBlock.write(payload);
+				if ((flags & Http2Connection.FLAG_END_HEADERS) != 0) {
+					onRequest(streamId);
+				}
+				break;
+			case Http2Connection.CONTINUATION:
+				headerBlock.write(payload);
+				if ((flags & Http2Connection.FLAG_END_HEADERS) != 0) {
+					onRequest(streamId);
+				}
+				break;
+			case Http2Connection.DATA:
+				if (payload.length > 0) {
+					writeWindowUpdate(0, payload.length);
+				}
+				Stream stream = streams.get(streamId);
+				if (stream != null) {
+					if (payload.length > 0) {
+						writeWindowUpdate(streamId, payload.length);
+					}
+					stream.onData(payload);
+					if ((flags & Http2Connection.FLAG_END_STREAM) != 0) {
+						stream.onEnd();
+					}
+				}
+				break;
+			case Http2Connection.RST_STREAM:
+				Stream reset = streams.get(streamId);
+				if (reset != null) {
+					reset.forget();
+				}
+				break;
+			case Http2Connection.GOAWAY:
+				closeSocket();
+				break;
+			default:
+				break;
+			}
+		}
+
+		private void onRequest(int streamId) throws IOException {
+			Map<String, String> headers = new LinkedHashMap<String, String>();
+			decoder.decode(ByteBuffer.wrap(headerBlock.toByteArray()), headers);
+			headerBlock = null;
+			if (!"CONNECT".equals(headers.get(":method")) || !"websocket".equals(headers.get(":protocol"))) {
+				writeHeaders(streamId, "400", true);
+			} else if ("/reject".equals(headers.get(":path"))) {
+				writeHeaders(streamId, "404", true);
+			} else {
+				streams.put(streamId, new Stream(streamId));
+				openStreams.incrementAndGet();
+				writeHeaders(streamId, "200", false);
+			}
+		}
+
+		private void writeHeaders(int streamId, String status, boolean endStream) throws IOException {
+			byte[] block = encoder.encode(Collections.singletonList(new String[] { ":status", status }));
+			writeFrame(Http2Connection.HEADERS, Http2Connection.FLAG_END_HEADERS
+					| (endStream ? Http2Connection.FLAG_END_STREAM : 0), streamId, block);
+		}
+
+		private void writeWindowUpdate(int streamId, int increment) throws IOException {
+			writeFrame(Http2Connection.WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+		}
+
+		private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+			writeFrame(type, flags, streamId, payload, 0, payload.length);
+		}
+
+		private synchronized void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+				throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(9);
+			header.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+			header.put((byte) type).put((byte) flags).putInt(streamId);
+			out.write(header.array());
+			out.write(payload, offset, length);
+			out.flush();
+		}
+
+		/**
+		 * A WebSocket on a stream.
+		 */
+		private class Stream {
+
+			private final int id;
+			private int sendWindow = initialSendWindow;
+			private ByteBuffer inbound = ByteBuffer.allocate(1024);
+			private int messageOpcode = -1;
+			private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+			// The frames the windows hold back, and whether the stream ends after them:
+			private final Deque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+			private boolean endAfterPending = false;
+			private boolean closeSent = false;
+			private boolean open = true;
+
+			Stream(int id) {
+				this.id = id;
+			}
+
+			void onData(byte[] data) throws IOException {
+				if (inbound.remaining() < data.length) {
+					ByteBuffer bigger = ByteBuffer.allocate(Math.max(inbound.capacity() * 2, inbound.position() + data.length));
+					inbound.flip();
+					bigger.put(inbound);
+					inbound = bigger;
+				}
+				inbound.put(data);
+				inbound.flip();
+				while (open && readFrame()) {
+					// continue with the next frame
+				}
+				inbound.compact();
+			}
+
+			/**
+			 * The client ended the stream: end it too unless done already.
+			 */
+			void onEnd() throws IOException {
+				if (open) {
+					endAfterPending = true;
+					flush();
+				}
+				forget();
+			}
+
+			void forget() {
+				if (streams.remove(id) != null) {
+					open = false;
+					openStreams.decrementAndGet();
+					for (ByteBuffer buff : pending) {
+						pendingBytes.addAndGet(-buff.remaining());
+					}
+					pending.clear();
+				}
+			}
+
+			private boolean readFrame() throws IOException {
+				int start = inbound.position();
+				int available = inbound.remaining();
+				if (available < 2) {
+					return false;
+				}
+				int b0 = inbound.get(start) & 0xff;
+				int b1 = inbound.get(start + 1) & 0xff;
+				long length = b1 & 0x7f;
+				int headerLength = 2;
+				if (length == 126) {
+					if (available < 4) {
+						return false;
+					}
+					length = inbound.getShort(start + 2) & 0xffff;
+					headerLength = 4;
+				} else if (length == 127) {
+					if (available < 10) {
+						return false;
+					}
+					length = inbound.getLong(start + 2);
+					headerLength = 10;
+				}
+				boolean masked = (b1 & 0x80) != 0;
+				if (masked) {
+					headerLength += 4;
+				}
+				if (available < headerLength + length) {
+					return false;
+				}
+				byte[] payload = new byte[(int) length];
+				for (int i = 0; i < payload.length; i++) {
+					byte b = inbound.get(start + headerLength + i);
+					if (masked) {
+						b ^= inbound.get(start + headerLength - 4 + (i % 4));
+					}
+					payload[i] = b;
+				}
+				inbound.position(start + headerLength + (int) length);
+				onFrame((b0 & 0x80) != 0, b0 & 0x0f, payload);
+				return true;
+			}
+
+			private void onFrame(boolean fin, int opcode, byte[] payload) throws IOException {
+				if (opcode == 8) {
+					// The reply to a close frame, unless the server started the closing handshake:
+					if (!closeSent) {
+						send(LoopbackServer.frame(true, 8, payload));
+					}
+					endAfterPending = true;
+					flush();
+				} else if (opcode == 9) {
+					send(LoopbackServer.frame(true, 10, payload));
+				} else if (opcode == 0 || opcode == 1 || opcode == 2) {
+					if (opcode != 0) {
+						messageOpcode = opcode;
+						message.reset();
+					}
+					message.write(payload);
+					if (fin) {
+						onMessage(messageOpcode, message.toByteArray());
+					}
+				}
+			}
+
+			private void onMessage(int opcode, byte[] data) throws IOException {
+				if (opcode == 2) {
+					send(LoopbackServer.frame(true, 2, data));
+					return;
+				}
+				String text = LoopbackServer.utf8(data);
+				receivedTexts.add(text);
+				String[] parts = text.split(" ", 3);
+				if ("!burst".equals(parts[0])) {
+					for (int i = Integer.parseInt(parts[1]); i > 0; i--) {
+						send(LoopbackServer.frame(true, 1, LoopbackServer.utf8(parts[2])));
+					}
+				} else if ("!ping".equals(parts[0])) {
+					send(LoopbackServer.frame(true, 9, LoopbackServer.utf8(text.substring(parts[0].length()).trim())));
+				} else if ("!close".equals(parts[0])) {
+					byte[] reason = LoopbackServer.utf8(parts.length > 2 ? parts[2] : "");
+					closeSent = true;
+					send(LoopbackServer.frame(true, 8,
+							ByteBuffer.allocate(2 + reason.length).putShort(Short.parseShort(parts[1])).put(reason).array()));
+				} else if ("!reset".equals(parts[0])) {
+					forget();
+					writeFrame(Http2Connection.RST_STREAM, 0, id, ByteBuffer.allocate(4).putInt(Http2Connection.CANCEL)
+							.array());
+				} else {
+					send(LoopbackServer.frame(true, 1, data));
+				}
+			}
+
+			private void send(byte[] frame) throws IOException {
+				if (endAfterPending) {
+					return;
+				}
+				pending.add(ByteBuffer.wrap(frame));
+				pendingBytes.addAndGet(frame.length);
+				flush();
+			}
+
+			/**
+			 * Write the pending frames as far as the windows allow.
+			 */
+			void flush() throws IOException {
+				while (open && !pending.isEmpty()) {
+					ByteBuffer buff = pending.peek();
+					int length = Math.min(Math.min(buff.remaining(), Http2Connection.DEFAULT_MAX_FRAME_SIZE),
+							Math.min(sendWindow, Connection.this.sendWindow));
+					if (length <= 0) {
+						return;
+					}
+					writeFrame(Http2Connection.DATA, 0, id, buff.array(), buff.position(), length);
+					buff.position(buff.position() + length);
+					sendWindow -= length;
+					Connection.this.sendWindow -= length;
+					pendingBytes.addAndGet(-length);
+					if (!buff.hasRemaining()) {
+						pending.poll();
+					}
+				}
+				if (open && endAfterPending) {
+					writeFrame(Http2Connection.DATA, Http2Connection.FLAG_END_STREAM, id, new byte[0]);
+					open = false;
+				}
+			}
+
+		}
+
+	}
+
+}
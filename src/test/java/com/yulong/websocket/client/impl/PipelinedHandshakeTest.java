@@ -0,0 +1,85 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.server.RecordingListener;
+
+/**
+ * Checks that a response to the opening handshake read in pieces is understood, and that a
+ * message sent in the same packet as the response is not lost.
+ */
+public class PipelinedHandshakeTest {
+
+	private LoopbackServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new LoopbackServer();
+		server.setGreeting("welcome");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+	}
+
+	@Test
+	public void testNioGreeting() throws Exception {
+		assertNioGreeting();
+	}
+
+	@Test
+	public void testNioResponseInPieces() throws Exception {
+		server.setHandshakeChunkSize(7);
+		assertNioGreeting();
+	}
+
+	@Test
+	public void testBlockedGreeting() throws Exception {
+		assertBlockedGreeting();
+	}
+
+	@Test
+	public void testBlockedResponseInPieces() throws Exception {
+		server.setHandshakeChunkSize(7);
+		assertBlockedGreeting();
+	}
+
+	private void assertNioGreeting() throws Exception {
+		WebSocketNio webSocket = new WebSocketNio(server.getHost(), server.getPort(), "/echo", false, "13", null, null,
+				null);
+		RecordingListener listener = new RecordingListener();
+		webSocket.addListener(listener);
+		Thread t = new Thread(webSocket);
+		t.setDaemon(true);
+		t.start();
+		assertEquals("welcome", RecordingListener.poll(listener.texts));
+		assertEquals(WebSocketState.OPEN, webSocket.getState());
+		assertEcho(webSocket, listener);
+	}
+
+	private void assertBlockedGreeting() throws Exception {
+		WebSocketBlocked webSocket = new WebSocketBlocked(server.getHost(), server.getPort(), "/echo", false, "13", null,
+				null, null);
+		assertEquals(WebSocketState.OPEN, webSocket.getState());
+		RecordingListener listener = new RecordingListener();
+		webSocket.addListener(listener);
+		Thread t = new Thread(webSocket);
+		t.setDaemon(true);
+		t.start();
+		assertEquals("welcome", RecordingListener.poll(listener.texts));
+		assertEcho(webSocket, listener);
+	}
+
+	private void assertEcho(AbstractWebSocket webSocket, RecordingListener listener) throws Exception {
+		webSocket.send("after the greeting");
+		assertEquals("after the greeting", RecordingListener.poll(listener.texts));
+	}
+
+}
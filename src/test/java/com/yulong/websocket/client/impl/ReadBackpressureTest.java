@@ -0,0 +1,138 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yulong.websocket.client.ConnectionMetrics;
+import com.yulong.websocket.client.ListenerDispatch;
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.server.RecordingListener;
+
+/**
+ * Checks that reading stops at the high watermark while the listeners are stalled and starts
+ * again once they catch up.
+ */
+public class ReadBackpressureTest {
+
+	private static final int LOW = 4096;
+	private static final int HIGH = 16384;
+	private static final int MESSAGES = 200;
+	private static final int MESSAGE_SIZE = 1000;
+
+	private LoopbackServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new LoopbackServer();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+	}
+
+	@Test
+	public void testNioPausesAndResumes() throws Exception {
+		WebSocketNio webSocket = new WebSocketNio(server.getHost(), server.getPort(), "/echo", false, "13", null, null,
+				null);
+		webSocket.setListenerDispatch(ListenerDispatch.virtualThread());
+		webSocket.setReadWatermarks(LOW, HIGH);
+		Thread t = new Thread(webSocket);
+		t.setDaemon(true);
+		t.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!webSocket.handshakeFinished() && System.currentTimeMillis() < deadline) {
+			Thread.yield();
+		}
+		checkPausesAndResumes(webSocket);
+	}
+
+	@Test
+	public void testBlockedPausesAndResumes() throws Exception {
+		WebSocketBlocked webSocket = new WebSocketBlocked(server.getHost(), server.getPort(), "/echo", false, "13", null,
+				null, null);
+		webSocket.setListenerDispatch(ListenerDispatch.virtualThread());
+		webSocket.setReadWatermarks(LOW, HIGH);
+		Thread t = new Thread(webSocket);
+		t.setDaemon(true);
+		t.start();
+		checkPausesAndResumes(webSocket);
+	}
+
+	@Test
+	public void testAsyncPausesAndResumes() throws Exception {
+		WebSocketAsync webSocket = new WebSocketAsync(server.getHost(), server.getPort(), "/echo", false,
+				WebSocketConfig.builder().listenerDispatch(ListenerDispatch.virtualThread()).readWatermarks(LOW, HIGH)
+						.build());
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!webSocket.handshakeFinished() && System.currentTimeMillis() < deadline) {
+			Thread.yield();
+		}
+		checkPausesAndResumes(webSocket);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLowWatermarkMustBeBelowHigh() {
+		new WebSocketBlocked(server.getHost(), server.getPort(), "/echo", false, "13", null, null, null)
+				.setReadWatermarks(HIGH, LOW);
+	}
+
+	private void checkPausesAndResumes(AbstractWebSocket webSocket) throws Exception {
+
+		final CountDownLatch gate = new CountDownLatch(1);
+		final AtomicInteger received = new AtomicInteger();
+		webSocket.addListener(new RecordingListener() {
+			@Override
+			public void onMessage(String msg) {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				received.incrementAndGet();
+			}
+		});
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < MESSAGE_SIZE; i++) {
+			sb.append('x');
+		}
+		webSocket.send("!burst " + MESSAGES + " " + sb);
+
+		// The listener is stalled, so reading must stop:
+		ConnectionMetrics metrics = webSocket.getMetrics();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!metrics.isReadPaused() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(metrics.isReadPaused());
+		Thread.sleep(200);
+		long pending = metrics.getInboundPendingBytes();
+		// At most what was decoded from the last read on top of the high watermark:
+		assertTrue("pending " + pending, pending < HIGH + 2 * 8192);
+		assertTrue(received.get() == 0);
+
+		// Once the listener catches up, the rest is read:
+		gate.countDown();
+		deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (received.get() < MESSAGES && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(MESSAGES, received.get());
+		assertFalse(metrics.isReadPaused());
+		assertTrue(metrics.getReadPauses() >= 1);
+		assertEquals(metrics.getReadPauses(), metrics.getReadResumes());
+		assertEquals(0, metrics.getInboundPendingBytes());
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.yulong.websocket.client.ListenerDispatch;
+import com.yulong.websocket.client.WaitStrategy;
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.server.RecordingListener;
+
+/**
+ * Runs the engine tests with the listeners of a WebSocketNio fed through a small ring buffer,
+ * so that the ring wraps and fills up, with each of the wait strategies.
+ */
+@RunWith(Parameterized.class)
+public class RingBufferDispatchTest extends AbstractWebSocketTest {
+
+	private final WaitStrategy waitStrategy;
+
+	public RingBufferDispatchTest(WaitStrategy waitStrategy) {
+		this.waitStrategy = waitStrategy;
+	}
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> waitStrategies() {
+		return Arrays.asList(new Object[][] { { WaitStrategy.BUSY_SPIN }, { WaitStrategy.YIELD }, { WaitStrategy.PARK },
+				{ WaitStrategy.BLOCKING } });
+	}
+
+	@Override
+	protected WebSocket openWebSocket(LoopbackServer server) {
+		WebSocketNio webSocket = new WebSocketNio(server.getHost(), server.getPort(), "/echo", false, "13", null, null,
+				null);
+		webSocket.setListenerDispatch(ListenerDispatch.ringBuffer(16, waitStrategy));
+		Thread t = new Thread(webSocket);
+		t.setDaemon(true);
+		t.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!webSocket.handshakeFinished() && System.currentTimeMillis() < deadline) {
+			Thread.yield();
+		}
+		return webSocket;
+	}
+
+	@Test
+	public void testConsumerStopsOnDisconnect() throws Exception {
+		webSocket.send("started");
+		assertEquals("started", RecordingListener.poll(listener.texts));
+		String name = "WebSocketRing[" + ((AbstractWebSocket) webSocket).instanceId + "]";
+		server.awaitConnections(1, 5000).get(0).closeChannel();
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((webSocket.getState() != WebSocketState.CLOSED || isRunning(name))
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(WebSocketState.CLOSED, webSocket.getState());
+		assertFalse(name + " still running", isRunning(name));
+	}
+
+	private static boolean isRunning(String name) {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals(name) && thread.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,41 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.yulong.websocket.client.ListenerDispatch;
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.server.RecordingListener;
+
+/**
+ * Runs the engine tests with the listeners of a WebSocketNio invoked on the shared pool.
+ */
+public class SerialDispatchTest extends AbstractWebSocketTest {
+
+	@Override
+	protected WebSocket openWebSocket(LoopbackServer server) {
+		WebSocketNio webSocket = new WebSocketNio(server.getHost(), server.getPort(), "/echo", false, "13", null, null,
+				null);
+		webSocket.setListenerDispatch(ListenerDispatch.serial());
+		Thread t = new Thread(webSocket);
+		t.setDaemon(true);
+		t.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!webSocket.handshakeFinished() && System.currentTimeMillis() < deadline) {
+			Thread.yield();
+		}
+		return webSocket;
+	}
+
+	@Test
+	public void testHandoffIsMeasured() throws Exception {
+		webSocket.send("measured");
+		assertEquals("measured", RecordingListener.poll(listener.texts));
+		assertTrue(webSocket.getMetrics().getHandoffCount() > 0);
+		assertTrue(webSocket.getMetrics().getMaxHandoffNanos() > 0);
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.WebSocketFactory;
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.server.RecordingListener;
+import com.yulong.websocket.client.utils.Utils;
+
+/**
+ * Checks that the settings of a WebSocketConfig reach the socket of each engine.
+ */
+public class SocketOptionsTest {
+
+	private LoopbackServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new LoopbackServer();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+	}
+
+	@Test
+	public void testNioOptions() throws Exception {
+		WebSocketNio webSocket = (WebSocketNio) open(WebSocketConfig.builder().engine(WebSocketConfig.Engine.NIO)
+				.tcpNoDelay(true).sendBufferSize(32768).readBufferSize(256).build());
+		assertTrue(webSocket.getSocketChannel().getOption(StandardSocketOptions.TCP_NODELAY));
+		assertTrue(webSocket.getSocketChannel().getOption(StandardSocketOptions.SO_SNDBUF) >= 32768);
+		assertEcho(webSocket);
+
+		webSocket = (WebSocketNio) open(WebSocketConfig.builder().engine(WebSocketConfig.Engine.NIO).tcpNoDelay(false)
+				.build());
+		assertFalse(webSocket.getSocketChannel().getOption(StandardSocketOptions.TCP_NODELAY));
+	}
+
+	@Test
+	public void testBlockedOptions() throws Exception {
+		WebSocketBlocked webSocket = (WebSocketBlocked) open(WebSocketConfig.builder()
+				.engine(WebSocketConfig.Engine.BLOCKING).tcpNoDelay(true).sendBufferSize(32768).readBufferSize(256).build());
+		assertTrue(webSocket.getSocket().getTcpNoDelay());
+		assertTrue(webSocket.getSocket().getSendBufferSize() >= 32768);
+		assertEcho(webSocket);
+	}
+
+	@Test
+	public void testAsyncOptions() throws Exception {
+		WebSocketAsync webSocket = (WebSocketAsync) open(WebSocketConfig.builder().engine(WebSocketConfig.Engine.ASYNC)
+				.tcpNoDelay(true).sendBufferSize(32768).readBufferSize(256).build());
+		assertTrue(webSocket.getChannel().getOption(StandardSocketOptions.TCP_NODELAY));
+		assertTrue(webSocket.getChannel().getOption(StandardSocketOptions.SO_SNDBUF) >= 32768);
+		assertEcho(webSocket);
+	}
+
+	@Test
+	public void testNioHandshakeTimeout() throws Exception {
+		assertHandshakeTimeout(WebSocketConfig.Engine.NIO);
+	}
+
+	@Test
+	public void testBlockedHandshakeTimeout() throws Exception {
+		assertHandshakeTimeout(WebSocketConfig.Engine.BLOCKING);
+	}
+
+	@Test
+	public void testAsyncHandshakeTimeout() throws Exception {
+		assertHandshakeTimeout(WebSocketConfig.Engine.ASYNC);
+	}
+
+	private WebSocket open(WebSocketConfig config) {
+		WebSocket webSocket = WebSocketFactory.getInstance(false).openWebSocket(server.getHost(), server.getPort(),
+				"/echo", config);
+		assertEquals(WebSocketState.OPEN, webSocket.getState());
+		return webSocket;
+	}
+
+	private void assertEcho(WebSocket webSocket) throws Exception {
+		RecordingListener listener = new RecordingListener();
+		webSocket.addListener(listener);
+		// Larger than the read buffer, which grows for it:
+		String text = Utils.createLongMessage(1000, "0123456789");
+		webSocket.send(text);
+		assertEquals(text, RecordingListener.poll(listener.texts));
+	}
+
+	/**
+	 * A server that accepts the connection but never answers the opening handshake.
+	 */
+	private void assertHandshakeTimeout(WebSocketConfig.Engine engine) throws Exception {
+		ServerSocket silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		try {
+			long start = System.currentTimeMillis();
+			WebSocket webSocket = WebSocketFactory.getInstance(false).openWebSocket(
+					InetAddress.getLoopbackAddress().getHostAddress(), silent.getLocalPort(), "/echo",
+					WebSocketConfig.builder().engine(engine).handshakeTimeoutMillis(300).build());
+			Socket accepted = silent.accept();
+			long deadline = System.currentTimeMillis() + 3000;
+			while (webSocket.getState() != WebSocketState.CLOSED && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(WebSocketState.CLOSED, webSocket.getState());
+			long elapsed = System.currentTimeMillis() - start;
+			assertTrue("gave up after " + elapsed + " ms", elapsed < 2000);
+			accepted.close();
+		} finally {
+			silent.close();
+		}
+	}
+
+}
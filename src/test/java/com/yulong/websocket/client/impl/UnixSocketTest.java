@@ -0,0 +1,60 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.WebSocketFactory;
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.utils.UnixDomainSockets;
+
+/**
+ * Runs the engine tests over a Unix domain socket, skipped before Java 16.
+ */
+public class UnixSocketTest extends AbstractWebSocketTest {
+
+	private File socketFile;
+
+	@Override
+	protected LoopbackServer createServer() throws IOException {
+		Assume.assumeTrue(UnixDomainSockets.isSupported());
+		socketFile = File.createTempFile("ws-", ".sock");
+		socketFile.delete();
+		return LoopbackServer.unix(UnixDomainSockets.PREFIX + socketFile.getPath());
+	}
+
+	@Override
+	protected WebSocket openWebSocket(LoopbackServer server) {
+		return WebSocketFactory.getInstance(false).openWebSocket(server.getHost(), server.getPort(), "/echo", null, null,
+				null, null);
+	}
+
+	@After
+	public void deleteSocketFile() {
+		if (socketFile != null) {
+			socketFile.delete();
+		}
+	}
+
+	@Test
+	public void testOtherEnginesUseNio() throws Exception {
+		WebSocket blocking = WebSocketFactory.getInstance(false).openWebSocket(server.getHost(), server.getPort(),
+				"/echo", WebSocketConfig.builder().engine(WebSocketConfig.Engine.BLOCKING).build());
+		assertTrue(blocking instanceof WebSocketNio);
+		blocking.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSecureIsRejected() throws Exception {
+		WebSocketFactory.getInstance(true).openWebSocket(server.getHost(), server.getPort(), "/echo",
+				WebSocketConfig.builder().build());
+	}
+
+}
@@ -0,0 +1,24 @@
+package com.yulong.websocket.client.impl;
+
+import com.yulong.websocket.client.ListenerDispatch;
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.server.LoopbackServer;
+
+/**
+ * Runs the engine tests with the listeners of a WebSocketBlocked invoked on a thread of
+ * their own.
+ */
+public class VirtualThreadDispatchTest extends AbstractWebSocketTest {
+
+	@Override
+	protected WebSocket openWebSocket(LoopbackServer server) {
+		WebSocketBlocked webSocket = new WebSocketBlocked(server.getHost(), server.getPort(), "/echo", false, "13", null,
+				null, null);
+		webSocket.setListenerDispatch(ListenerDispatch.virtualThread());
+		Thread t = new Thread(webSocket);
+		t.setDaemon(true);
+		t.start();
+		return webSocket;
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.WebSocketFactory;
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.server.RecordingListener;
+import com.yulong.websocket.client.utils.Threads;
+import com.yulong.websocket.client.utils.ThreadsTest;
+
+/**
+ * Runs the engine tests with a WebSocketBlocked read on a virtual thread, or on a platform
+ * thread before Java 21.
+ */
+public class VirtualThreadEngineTest extends AbstractWebSocketTest {
+
+	@Override
+	protected WebSocket openWebSocket(LoopbackServer server) {
+		return WebSocketFactory.getInstance(false).openWebSocket(server.getHost(), server.getPort(), "/echo",
+				WebSocketConfig.builder().engine(WebSocketConfig.Engine.VIRTUAL_THREAD).build());
+	}
+
+	@Test
+	public void testSocketTimeoutClearedAfterHandshake() throws Exception {
+		assertEquals(0, ((WebSocketBlocked) webSocket).getSocket().getSoTimeout());
+	}
+
+	@Test
+	public void testListenerRunsOnVirtualReader() throws Exception {
+		Assume.assumeTrue(Threads.isVirtualThreadSupported());
+		final BlockingQueue<Thread> threads = new LinkedBlockingQueue<Thread>();
+		// Listeners are dispatched inline, on the thread that reads:
+		webSocket.addListener(new RecordingListener() {
+			@Override
+			public void onMessage(String msg) {
+				threads.add(Thread.currentThread());
+			}
+		});
+		webSocket.send("which thread");
+		Thread reader = threads.poll(5, TimeUnit.SECONDS);
+		assertTrue(reader != null && ThreadsTest.isVirtual(reader));
+	}
+
+	@Test
+	public void testHandshakeTimeout() throws Exception {
+		// A server that accepts and never answers:
+		ServerSocket silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		try {
+			long start = System.currentTimeMillis();
+			WebSocket timedOut = WebSocketFactory.getInstance(false).openWebSocket(
+					silent.getInetAddress().getHostAddress(), silent.getLocalPort(), "/echo", WebSocketConfig.builder()
+							.engine(WebSocketConfig.Engine.VIRTUAL_THREAD).handshakeTimeoutMillis(300).build());
+			long elapsed = System.currentTimeMillis() - start;
+			assertEquals(WebSocketState.CLOSED, timedOut.getState());
+			assertTrue("Took " + elapsed + " ms", elapsed >= 300 && elapsed < 3000);
+		} finally {
+			silent.close();
+		}
+	}
+
+}
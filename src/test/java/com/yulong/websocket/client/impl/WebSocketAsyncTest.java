@@ -0,0 +1,60 @@
+package com.yulong.websocket.client.impl;
+
+import static com.yulong.websocket.client.server.RecordingListener.poll;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.WebSocketFactory;
+import com.yulong.websocket.client.frames.PooledFrame;
+import com.yulong.websocket.client.server.LoopbackServer;
+
+/**
+ * Runs the engine tests with a WebSocketAsync on the default channel group.
+ */
+public class WebSocketAsyncTest extends AbstractWebSocketTest {
+
+	@Override
+	protected WebSocket openWebSocket(LoopbackServer server) {
+		return WebSocketFactory.getInstance(false).openWebSocket(server.getHost(), server.getPort(), "/echo",
+				WebSocketConfig.builder().engine(WebSocketConfig.Engine.ASYNC).build());
+	}
+
+	/**
+	 * The writes complete in the background, so frames sent in a burst are all queued at once;
+	 * sent one at a time, each goes back to the pool once written and is used again.
+	 */
+	@Override
+	@Test
+	public void testEchoPooledFrames() throws Exception {
+		List<PooledFrame> used = new ArrayList<PooledFrame>();
+		for (int i = 0; i < 100; i++) {
+			PooledFrame frame = webSocket.acquireFrame();
+			if (!used.contains(frame)) {
+				used.add(frame);
+			}
+			webSocket.send(frame.setText("pooled-" + i));
+			final CountDownLatch written = new CountDownLatch(1);
+			webSocket.whenWritable(new Runnable() {
+				@Override
+				public void run() {
+					written.countDown();
+				}
+			});
+			assertTrue(written.await(5, TimeUnit.SECONDS));
+		}
+		for (int i = 0; i < 100; i++) {
+			assertEquals("pooled-" + i, poll(listener.texts));
+		}
+		assertTrue("used " + used.size() + " frames", used.size() < 10);
+	}
+
+}
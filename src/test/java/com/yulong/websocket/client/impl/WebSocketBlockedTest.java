@@ -0,0 +1,18 @@
+package com.yulong.websocket.client.impl;
+
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.server.LoopbackServer;
+
+public class WebSocketBlockedTest extends AbstractWebSocketTest {
+
+	@Override
+	protected WebSocket openWebSocket(LoopbackServer server) {
+		WebSocketBlocked webSocket = new WebSocketBlocked(server.getHost(), server.getPort(), "/echo", false, "13", null,
+				null, null);
+		Thread t = new Thread(webSocket);
+		t.setDaemon(true);
+		t.start();
+		return webSocket;
+	}
+
+}
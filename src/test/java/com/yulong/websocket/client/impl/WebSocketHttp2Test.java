@@ -0,0 +1,321 @@
+package com.yulong.websocket.client.impl;
+
+import static com.yulong.websocket.client.server.RecordingListener.poll;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.WebSocketFactory;
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.frames.CloseFrame;
+import com.yulong.websocket.client.server.RecordingListener;
+import com.yulong.websocket.client.utils.Utils;
+
+/**
+ * Checks WebSockets over HTTP/2 against the stand-in server: many of them on one connection,
+ * the flow control in both directions and the end of the streams.
+ */
+public class WebSocketHttp2Test {
+
+	private Http2LoopbackServer server;
+	private Http2Connection connection;
+	private WebSocketConfig config;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new Http2LoopbackServer();
+		config = WebSocketConfig.builder().engine(WebSocketConfig.Engine.HTTP2).build();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (connection != null) {
+			connection.close();
+		}
+		server.close();
+	}
+
+	@Test
+	public void testEcho() throws Exception {
+		WebSocketHttp2 webSocket = open();
+		assertEquals(200, webSocket.getResponsStatusCode());
+		assertEquals(1, webSocket.getStreamId());
+		RecordingListener listener = listen(webSocket);
+		webSocket.send("hello");
+		assertEquals("hello", poll(listener.texts));
+		byte[] data = new byte[300];
+		new Random(1).nextBytes(data);
+		webSocket.send(data);
+		assertArrayEquals(data, poll(listener.binaries));
+		webSocket.send("This message has been split into several parts", 10);
+		assertEquals("This message has been split into several parts", poll(listener.texts));
+		webSocket.ping("marco");
+		assertEquals("marco", poll(listener.pongs).getTextData());
+		webSocket.send("!ping are you there");
+		assertEquals("are you there", poll(listener.pings).getTextData());
+	}
+
+	@Test
+	public void testManyWebSocketsShareOneConnection() throws Exception {
+		connection = Http2Connection.open(server.getHost(), server.getPort(), config);
+		List<WebSocketHttp2> webSockets = new ArrayList<WebSocketHttp2>();
+		List<RecordingListener> listeners = new ArrayList<RecordingListener>();
+		Set<Integer> streamIds = new HashSet<Integer>();
+		for (int i = 0; i < 200; i++) {
+			WebSocketHttp2 webSocket = connection.openWebSocket("/echo", config);
+			assertEquals(WebSocketState.OPEN, webSocket.getState());
+			assertTrue(streamIds.add(webSocket.getStreamId()));
+			webSockets.add(webSocket);
+			listeners.add(listen(webSocket));
+		}
+		assertEquals(200, connection.getStreamCount());
+		assertEquals(200, server.awaitStreams(200, 5000));
+		assertEquals(1, server.getConnectionCount());
+
+		for (int i = 0; i < webSockets.size(); i++) {
+			webSockets.get(i).send("session-" + i);
+		}
+		for (int i = 0; i < webSockets.size(); i++) {
+			assertEquals("session-" + i, poll(listeners.get(i).texts));
+		}
+
+		// Ending some streams leaves the others and the connection as they are:
+		for (int i = 0; i < 100; i++) {
+			webSockets.get(i).disconnect();
+		}
+		assertEquals(100, connection.getStreamCount());
+		assertEquals(100, server.awaitStreams(100, 5000));
+		webSockets.get(150).send("still here");
+		assertEquals("still here", poll(listeners.get(150).texts));
+		assertTrue(connection.isOpen());
+	}
+
+	@Test
+	public void testLargeMessagesBeyondTheWindows() throws Exception {
+		// Both ways a message is larger than the stream and the frame sizes:
+		WebSocketHttp2 webSocket = open();
+		RecordingListener listener = listen(webSocket);
+		String text = Utils.createLongMessage(200000, "abcdefghijklmnopqrstuvwxyz");
+		webSocket.send(text);
+		assertEquals(text, poll(listener.texts));
+		webSocket.send(text);
+		assertEquals(text, poll(listener.texts));
+		assertEquals(0, webSocket.getMetrics().getPendingBytes());
+	}
+
+	@Test
+	public void testSmallSendWindow() throws Exception {
+		server.setInitialWindowSize(1000);
+		WebSocketHttp2 webSocket = open();
+		RecordingListener listener = listen(webSocket);
+		String text = Utils.createLongMessage(10000, "0123456789");
+		for (int i = 0; i < 5; i++) {
+			webSocket.send(text + i);
+		}
+		for (int i = 0; i < 5; i++) {
+			assertEquals(text + i, poll(listener.texts));
+		}
+	}
+
+	@Test
+	public void testPausedStreamHoldsOnlyItsServerBack() throws Exception {
+		connection = Http2Connection.open(server.getHost(), server.getPort(), config);
+		WebSocketHttp2 paused = connection.openWebSocket("/echo", config);
+		WebSocketHttp2 other = connection.openWebSocket("/echo", config);
+		RecordingListener pausedListener = listen(paused);
+		RecordingListener otherListener = listen(other);
+
+		paused.pauseReading();
+		String text = Utils.createLongMessage(1000, "x");
+		paused.send("!burst 200 " + text);
+		// 200 KB do not fit in the 64 KB window, the server keeps the rest:
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getPendingBytes() <= 100000 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(server.getPendingBytes() > 100000);
+		assertNull(pausedListener.texts.poll(200, TimeUnit.MILLISECONDS));
+
+		other.send("not held back");
+		assertEquals("not held back", poll(otherListener.texts));
+
+		paused.resumeReading();
+		for (int i = 0; i < 200; i++) {
+			assertEquals(text, poll(pausedListener.texts));
+		}
+		assertEquals(0, server.getPendingBytes());
+		// The buffer goes back to the pool once the last frame is processed:
+		deadline = System.currentTimeMillis() + 5000;
+		while (paused.getReaderCapacity() != 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, paused.getReaderCapacity());
+	}
+
+	@Test
+	public void testServerCloseEndsTheStream() throws Exception {
+		WebSocketHttp2 webSocket = open();
+		RecordingListener listener = listen(webSocket);
+		webSocket.send("!close 1001 going away");
+		CloseFrame closeFrame = poll(listener.closes);
+		assertNotNull(closeFrame);
+		assertEquals(1001, closeFrame.getCode());
+		// The server ends the stream once the client has answered:
+		webSocket.close(1000, "");
+		awaitClosed(webSocket);
+		assertTrue(webSocket.hasClosedFromServer());
+		assertEquals(0, server.awaitStreams(0, 5000));
+	}
+
+	@Test
+	public void testClientClose() throws Exception {
+		connection = Http2Connection.open(server.getHost(), server.getPort(), config);
+		WebSocketHttp2 webSocket = connection.openWebSocket("/echo", config);
+		RecordingListener listener = listen(webSocket);
+		webSocket.close(1000, "bye");
+		assertEquals(1000, poll(listener.closes).getCode());
+		awaitClosed(webSocket);
+		assertEquals(0, server.awaitStreams(0, 5000));
+		assertEquals(0, connection.getStreamCount());
+		assertTrue(connection.isOpen());
+	}
+
+	@Test
+	public void testStreamReset() throws Exception {
+		connection = Http2Connection.open(server.getHost(), server.getPort(), config);
+		WebSocketHttp2 reset = connection.openWebSocket("/echo", config);
+		WebSocketHttp2 other = connection.openWebSocket("/echo", config);
+		RecordingListener otherListener = listen(other);
+		reset.send("!reset");
+		awaitClosed(reset);
+		assertTrue(reset.hasClosedFromServer());
+		other.send("unaffected");
+		assertEquals("unaffected", poll(otherListener.texts));
+	}
+
+	@Test
+	public void testRejectedRequest() throws Exception {
+		connection = Http2Connection.open(server.getHost(), server.getPort(), config);
+		WebSocketHttp2 webSocket = connection.openWebSocket("/reject", config);
+		assertEquals(WebSocketState.CLOSED, webSocket.getState());
+		assertEquals(404, webSocket.getResponsStatusCode());
+		assertEquals(0, connection.getStreamCount());
+	}
+
+	@Test
+	public void testConnectProtocolNotEnabled() throws Exception {
+		server.setConnectProtocolEnabled(false);
+		connection = Http2Connection.open(server.getHost(), server.getPort(), config);
+		assertFalse(connection.isConnectProtocolEnabled());
+		WebSocketHttp2 webSocket = connection.openWebSocket("/echo", config);
+		assertEquals(WebSocketState.CLOSED, webSocket.getState());
+		assertFalse(webSocket.handshakeFinished());
+	}
+
+	@Test
+	public void testMaxConcurrentStreams() throws Exception {
+		server.setMaxConcurrentStreams(2);
+		connection = Http2Connection.open(server.getHost(), server.getPort(), config);
+		assertEquals(WebSocketState.OPEN, connection.openWebSocket("/echo", config).getState());
+		assertEquals(WebSocketState.OPEN, connection.openWebSocket("/echo", config).getState());
+		assertEquals(WebSocketState.CLOSED, connection.openWebSocket("/echo", config).getState());
+	}
+
+	@Test
+	public void testFactoryWithSharedConnection() throws Exception {
+		connection = Http2Connection.open(server.getHost(), server.getPort(), config);
+		WebSocketConfig shared = config.toBuilder().http2Connection(connection).build();
+		WebSocket first = WebSocketFactory.getInstance(false).openWebSocket("ignored", 0, "/echo", shared);
+		WebSocket second = WebSocketFactory.getInstance(false).openWebSocket("ignored", 0, "/echo", shared);
+		assertEquals(WebSocketState.OPEN, first.getState());
+		assertEquals(WebSocketState.OPEN, second.getState());
+		assertEquals(2, connection.getStreamCount());
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test
+	public void testFactoryWithOwnConnection() throws Exception {
+		WebSocket webSocket = WebSocketFactory.getInstance(false).openWebSocket(server.getHost(), server.getPort(),
+				"/echo", config);
+		assertEquals(WebSocketState.OPEN, webSocket.getState());
+		RecordingListener listener = listen(webSocket);
+		webSocket.send("hello");
+		assertEquals("hello", poll(listener.texts));
+		// The connection goes with the WebSocket:
+		Http2Connection own = ((WebSocketHttp2) webSocket).getConnection();
+		((WebSocketHttp2) webSocket).disconnect();
+		assertFalse(own.isOpen());
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getConnectionCount() != 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, server.getConnectionCount());
+	}
+
+	@Test
+	public void testServerGoneClosesTheStreams() throws Exception {
+		connection = Http2Connection.open(server.getHost(), server.getPort(), config);
+		WebSocketHttp2 first = connection.openWebSocket("/echo", config);
+		WebSocketHttp2 second = connection.openWebSocket("/echo", config);
+		server.close();
+		awaitClosed(first);
+		awaitClosed(second);
+		assertTrue(first.hasClosedFromServer());
+		assertFalse(connection.isOpen());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNoSettings() throws Exception {
+		// A server that accepts and never answers:
+		ServerSocket silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		try {
+			Http2Connection.open(silent.getInetAddress().getHostAddress(), silent.getLocalPort(),
+					config.toBuilder().handshakeTimeoutMillis(300).build());
+		} finally {
+			silent.close();
+		}
+	}
+
+	private WebSocketHttp2 open() throws Exception {
+		if (connection == null) {
+			connection = Http2Connection.open(server.getHost(), server.getPort(), config);
+		}
+		WebSocketHttp2 webSocket = connection.openWebSocket("/echo", config);
+		assertEquals(WebSocketState.OPEN, webSocket.getState());
+		return webSocket;
+	}
+
+	private static RecordingListener listen(WebSocket webSocket) {
+		RecordingListener listener = new RecordingListener();
+		webSocket.addListener(listener);
+		return listener;
+	}
+
+	private static void awaitClosed(WebSocket webSocket) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (webSocket.getState() != WebSocketState.CLOSED && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(WebSocketState.CLOSED, webSocket.getState());
+	}
+
+}
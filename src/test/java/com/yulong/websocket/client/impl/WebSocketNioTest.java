@@ -0,0 +1,15 @@
+package com.yulong.websocket.client.impl;
+
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.WebSocketFactory;
+import com.yulong.websocket.client.server.LoopbackServer;
+
+public class WebSocketNioTest extends AbstractWebSocketTest {
+
+	@Override
+	protected WebSocket openWebSocket(LoopbackServer server) {
+		return WebSocketFactory.getInstance(false).openWebSocket(server.getHost(), server.getPort(), "/echo", null, null,
+				null, null);
+	}
+
+}
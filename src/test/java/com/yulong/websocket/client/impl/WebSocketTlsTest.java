@@ -0,0 +1,127 @@
+package com.yulong.websocket.client.impl;
+
+import static com.yulong.websocket.client.server.RecordingListener.poll;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.yulong.websocket.client.TlsContext;
+import com.yulong.websocket.client.WebSocket;
+import com.yulong.websocket.client.WebSocketConfig;
+import com.yulong.websocket.client.WebSocketFactory;
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.server.LoopbackServer;
+import com.yulong.websocket.client.server.RecordingListener;
+import com.yulong.websocket.client.server.TlsProxy;
+
+/**
+ * Runs the engine tests over wss, through a TLS proxy in front of the loopback server, and
+ * checks that reconnects resume the TLS session.
+ */
+public class WebSocketTlsTest extends AbstractWebSocketTest {
+
+	private TlsProxy proxy;
+	private TlsContext tlsContext;
+
+	@Override
+	protected WebSocket openWebSocket(LoopbackServer server) {
+		try {
+			proxy = new TlsProxy(server.getHost(), server.getPort());
+			tlsContext = new TlsContext(TlsProxy.clientContext());
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		return open(tlsContext);
+	}
+
+	private WebSocket open(TlsContext context) {
+		return WebSocketFactory.getInstance(true).openWebSocket(proxy.getHost(), proxy.getPort(), "/echo",
+				WebSocketConfig.builder().tlsContext(context).build());
+	}
+
+	@After
+	public void closeProxy() throws IOException {
+		if (proxy != null) {
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testReconnectResumesTheSession() throws Exception {
+		assertFalse(((WebSocketBlocked) webSocket).isSessionResumed());
+		webSocket.close(1000, "");
+		for (int i = 0; i < 3; i++) {
+			WebSocket reconnected = open(tlsContext);
+			assertEquals(WebSocketState.OPEN, reconnected.getState());
+			assertTrue(((WebSocketBlocked) reconnected).isSessionResumed());
+			RecordingListener recording = new RecordingListener();
+			reconnected.addListener(recording);
+			reconnected.send("again-" + i);
+			assertEquals("again-" + i, poll(recording.texts));
+			reconnected.close(1000, "");
+		}
+		assertEquals(1, tlsContext.getFullHandshakes());
+		assertEquals(3, tlsContext.getResumedHandshakes());
+	}
+
+	@Test
+	public void testAnotherContextHasItsOwnSessions() throws Exception {
+		TlsContext other = new TlsContext(TlsProxy.clientContext(), 16, 60);
+		WebSocket second = open(other);
+		assertEquals(WebSocketState.OPEN, second.getState());
+		assertFalse(((WebSocketBlocked) second).isSessionResumed());
+		assertEquals(1, other.getFullHandshakes());
+		assertEquals(0, other.getResumedHandshakes());
+		assertTrue(other.getCachedSessions() > 0);
+		second.close(1000, "");
+	}
+
+	@Test
+	public void testFactoryContext() throws Exception {
+		WebSocketFactory factory = WebSocketFactory.getInstance(true);
+		factory.setTlsContext(tlsContext);
+		try {
+			WebSocket second = factory.openWebSocket(proxy.getHost(), proxy.getPort(), "/echo", null, null, null, null);
+			assertEquals(WebSocketState.OPEN, second.getState());
+			assertEquals(1, tlsContext.getResumedHandshakes());
+			second.close(1000, "");
+		} finally {
+			factory.setTlsContext(null);
+		}
+	}
+
+	@Test
+	public void testHandshakeKeepsTheSocketTimeout() throws Exception {
+		SSLSocket socket = tlsContext.createSocket();
+		try {
+			socket.connect(new InetSocketAddress(proxy.getHost(), proxy.getPort()), 5000);
+			socket.setSoTimeout(1234);
+			assertTrue(tlsContext.handshake(socket, 5000));
+			assertEquals(1234, socket.getSoTimeout());
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testUntrustedServer() throws Exception {
+		// Trusts nothing the proxy presents:
+		SSLContext untrusting = SSLContext.getInstance("TLS");
+		untrusting.init(null, null, null);
+		TlsContext context = new TlsContext(untrusting);
+		WebSocket rejected = open(context);
+		assertEquals(WebSocketState.CLOSED, rejected.getState());
+		assertEquals(1, context.getFailedHandshakes());
+		assertEquals(0, context.getFullHandshakes());
+	}
+
+}
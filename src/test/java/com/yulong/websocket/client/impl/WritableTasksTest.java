@@ -0,0 +1,140 @@
+package com.yulong.websocket.client.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import com.yulong.websocket.client.WebSocketState;
+import com.yulong.websocket.client.frames.FramePool;
+
+/**
+ * Checks when the tasks given to {@link AbstractWebSocket#whenWritable(Runnable)} run, on a
+ * transport that takes data only while it is open.
+ */
+public class WritableTasksTest {
+
+	@Test
+	public void testTaskAfterMoreDataWaitsForIt() throws Exception {
+		final GatedWebSocket webSocket = new GatedWebSocket();
+		final List<String> ran = new CopyOnWriteArrayList<String>();
+		webSocket.gateOpen = false;
+		webSocket.whenWritable(new Runnable() {
+
+			@Override
+			public void run() {
+				ran.add("first");
+				try {
+					// Stays queued, the transport is closed:
+					webSocket.send("more");
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				webSocket.whenWritable(new Runnable() {
+
+					@Override
+					public void run() {
+						ran.add("second");
+					}
+				});
+			}
+		});
+		// Not run by the loop running the first one:
+		assertEquals("[first]", ran.toString());
+		assertTrue(webSocket.getMetrics().getPendingBytes() > 0);
+
+		webSocket.gateOpen = true;
+		webSocket.flush();
+		assertEquals("[first, second]", ran.toString());
+		assertEquals(0, webSocket.getMetrics().getPendingBytes());
+	}
+
+	@Test
+	public void testTaskRunsAtOnceWithNothingQueued() throws Exception {
+		GatedWebSocket webSocket = new GatedWebSocket();
+		final List<String> ran = new CopyOnWriteArrayList<String>();
+		webSocket.whenWritable(new Runnable() {
+
+			@Override
+			public void run() {
+				ran.add("now");
+			}
+		});
+		assertEquals("[now]", ran.toString());
+	}
+
+	@Test
+	public void testDisconnectReleasesQueuedFrames() throws Exception {
+		GatedWebSocket webSocket = new GatedWebSocket();
+		FramePool pool = new FramePool(4);
+		final List<String> ran = new CopyOnWriteArrayList<String>();
+		webSocket.gateOpen = false;
+		for (int i = 0; i < 3; i++) {
+			webSocket.send(pool.acquire().setText("queued " + i));
+		}
+		webSocket.whenWritable(new Runnable() {
+
+			@Override
+			public void run() {
+				ran.add("writable");
+			}
+		});
+		assertEquals(0, pool.getPooled());
+		long pending = webSocket.getMetrics().getPendingBytes();
+		assertTrue(pending > 0);
+
+		webSocket.disconnect();
+		assertEquals(WebSocketState.CLOSED, webSocket.getState());
+		assertEquals(3, pool.getPooled());
+		assertEquals(0, webSocket.getMetrics().getPendingBytes());
+		assertEquals(pending, webSocket.getMetrics().getDroppedBytes());
+		assertEquals(0, webSocket.getMetrics().getWrittenBytes());
+		// Would otherwise wait for data that is never written:
+		assertEquals("[writable]", ran.toString());
+		try {
+			webSocket.send(pool.acquire().setText("too late"));
+			fail();
+		} catch (IOException e) {
+			// expected, and the frame is released
+		}
+		assertEquals(3, pool.getPooled());
+	}
+
+	private static class GatedWebSocket extends AbstractWebSocket {
+
+		volatile boolean gateOpen = true;
+
+		@Override
+		protected boolean write(ByteBuffer buff) throws IOException {
+			if (!gateOpen) {
+				return false;
+			}
+			buff.position(buff.limit());
+			return true;
+		}
+
+		@Override
+		protected void onReadingChanged() {
+		}
+
+		@Override
+		protected void disconnect() {
+			stopped = true;
+			discardOutbound();
+			setState(WebSocketState.CLOSED);
+		}
+
+		@Override
+		public boolean hasClosedFromServer() {
+			return false;
+		}
+
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.yulong.websocket.client.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long US = TimeUnit.MICROSECONDS.toNanos(1);
+
+	private static void assertWithinOnePercent(long expected, long actual) {
+		assertTrue("expected " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 100);
+	}
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(99));
+	}
+
+	@Test
+	public void testSmallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 100; i >= 1; i--) {
+			histogram.record(i);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(1, histogram.getValueAtPercentile(0));
+		assertEquals(50, histogram.getValueAtPercentile(50));
+		assertEquals(99, histogram.getValueAtPercentile(99));
+		assertEquals(100, histogram.getValueAtPercentile(100));
+		assertEquals(100, histogram.getMax());
+	}
+
+	@Test
+	public void testLargeValuesWithinOnePercent() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		long[] values = { 1234, 56789, 3 * MS + 17, 987654321L, 12 * TimeUnit.SECONDS.toNanos(1) };
+		for (long value : values) {
+			histogram.record(value);
+		}
+		assertWithinOnePercent(1234, histogram.getValueAtPercentile(20));
+		assertWithinOnePercent(56789, histogram.getValueAtPercentile(40));
+		assertWithinOnePercent(3 * MS + 17, histogram.getValueAtPercentile(60));
+		assertWithinOnePercent(987654321L, histogram.getValueAtPercentile(80));
+		// Never above the largest value recorded:
+		assertEquals(12 * TimeUnit.SECONDS.toNanos(1), histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void testNegativeIsRecordedAsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		assertEquals(0, histogram.getValueAtPercentile(100));
+		assertEquals(0, histogram.getMax());
+	}
+
+	/**
+	 * A message is scheduled every millisecond and echoed 100 us after it is sent, but the sender
+	 * stalls for 500 ms: the 500 messages scheduled during the stall all go out at its end. The
+	 * service time does not see the stall, the latency charges each message for its wait.
+	 */
+	@Test
+	public void testStallIsChargedToTheLatency() {
+		LoadGenerator generator = new LoadGenerator("localhost", 0, "/echo", false);
+		long start = 1000 * MS;
+		for (int seq = 0; seq < 1000; seq++) {
+			long intended = start + seq * MS;
+			long sent = seq >= 100 && seq < 600 ? start + 600 * MS : intended;
+			generator.onEcho(generator.createMessage(0, seq, intended, sent), sent + 100 * US);
+		}
+		LatencyHistogram serviceTime = generator.serviceTime;
+		assertEquals(1000, serviceTime.getCount());
+		assertWithinOnePercent(100 * US, serviceTime.getValueAtPercentile(99.9));
+
+		LatencyHistogram latency = generator.latency;
+		assertEquals(1000, latency.getCount());
+		// Half the messages were not delayed:
+		assertWithinOnePercent(100 * US, latency.getValueAtPercentile(50));
+		// The delayed ones waited 1 to 500 ms, evenly:
+		assertWithinOnePercent(250 * MS + 100 * US, latency.getValueAtPercentile(75));
+		assertWithinOnePercent(490 * MS + 100 * US, latency.getValueAtPercentile(99));
+		assertEquals(500 * MS + 100 * US, latency.getMax());
+	}
+
+	@Test
+	public void testForeignMessagesAreIgnored() {
+		LoadGenerator generator = new LoadGenerator("localhost", 0, "/echo", false);
+		generator.onEcho("hello", 10);
+		generator.onEcho("lg:0:1:not-a-number:2:", 10);
+		assertEquals(0, generator.latency.getCount());
+	}
+
+}
@@ -0,0 +1,590 @@
+package com.yulong.websocket.client.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.yulong.websocket.client.utils.UnixDomainSockets;
+
+/**
+ * An in-process WebSocket server on the loopback interface for hermetic tests.
+ *
+ * It accepts the opening handshake and echoes every text and binary message back as a single
+ * frame. Tests can script it either through the API of a {@link Connection} or by sending text
+ * commands from the client:
+ * <ul>
+ * <li>"!fragment &lt;n&gt; &lt;text&gt;" - send the text back in n fragments</li>
+ * <li>"!ping &lt;payload&gt;" - send a ping with the payload</li>
+ * <li>"!close &lt;code&gt; &lt;reason&gt;" - start the closing handshake</li>
+ * <li>"!burst &lt;n&gt; &lt;text&gt;" - send the text n times</li>
+ * <li>"!interleave &lt;text&gt;" - send the text in two fragments with a ping in between</li>
+ * </ul>
+ * The server frames are encoded and decoded here independently of the client library.
+ */
+public class LoopbackServer implements Closeable, Runnable {
+
+	private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	private final ServerSocketChannel serverChannel;
+	// The "unix:" host of a Unix domain socket, null on the loopback interface:
+	private final String unixHost;
+	private final Selector selector;
+	private final Thread thread;
+	private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+	private volatile boolean stopped = false;
+	private volatile String greeting = null;
+	private volatile int handshakeChunkSize = -1;
+
+	/**
+	 * To start a server on an ephemeral loopback port.
+	 *
+	 * @throws IOException
+	 */
+	public LoopbackServer() throws IOException {
+		this(ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)), null);
+	}
+
+	/**
+	 * To start a server on a Unix domain socket, at the path of the given "unix:" host.
+	 *
+	 * @param host
+	 * @return
+	 * @throws IOException
+	 */
+	public static LoopbackServer unix(String host) throws IOException {
+		ServerSocketChannel channel = UnixDomainSockets.openServerSocketChannel();
+		channel.bind(UnixDomainSockets.address(host));
+		return new LoopbackServer(channel, host);
+	}
+
+	private LoopbackServer(ServerSocketChannel serverChannel, String unixHost) throws IOException {
+		this.serverChannel = serverChannel;
+		this.unixHost = unixHost;
+		selector = Selector.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		thread = new Thread(this, "LoopbackServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public String getHost() {
+		if (unixHost != null) {
+			return unixHost;
+		}
+		return InetAddress.getLoopbackAddress().getHostAddress();
+	}
+
+	public int getPort() {
+		try {
+			SocketAddress local = serverChannel.getLocalAddress();
+			return local instanceof InetSocketAddress ? ((InetSocketAddress) local).getPort() : 80;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * To get the connections that have completed the opening handshake.
+	 *
+	 * @return
+	 */
+	public List<Connection> getConnections() {
+		List<Connection> list = new ArrayList<Connection>();
+		for (Connection connection : connections) {
+			if (connection.open) {
+				list.add(connection);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Wait until the given number of connections have completed the opening handshake.
+	 *
+	 * @param count
+	 * @param timeoutMillis
+	 * @return the connections, possibly fewer than count if the timeout expires.
+	 * @throws InterruptedException
+	 */
+	public List<Connection> awaitConnections(int count, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (getConnections().size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		return getConnections();
+	}
+
+	/**
+	 * To send a text message in the same write as the response to the opening handshake.
+	 *
+	 * @param greeting
+	 */
+	public void setGreeting(String greeting) {
+		this.greeting = greeting;
+	}
+
+	/**
+	 * To send the response to the opening handshake, and the greeting, in writes of the given
+	 * size a little apart, so that the client reads them in pieces. -1 sends it at once.
+	 *
+	 * @param handshakeChunkSize
+	 */
+	public void setHandshakeChunkSize(int handshakeChunkSize) {
+		this.handshakeChunkSize = handshakeChunkSize;
+	}
+
+	@Override
+	public void run() {
+		while (!stopped) {
+			try {
+				selector.select();
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						SocketChannel channel = serverChannel.accept();
+						if (channel != null) {
+							channel.configureBlocking(false);
+							if (channel.getLocalAddress() instanceof InetSocketAddress) {
+								channel.socket().setTcpNoDelay(true);
+							}
+							Connection connection = new Connection(channel);
+							connections.add(connection);
+							channel.register(selector, SelectionKey.OP_READ, connection);
+						}
+					} else if (key.isReadable()) {
+						Connection connection = (Connection) key.attachment();
+						try {
+							connection.read();
+						} catch (IOException e) {
+							connection.closeChannel();
+						}
+					}
+				}
+			} catch (ClosedChannelException e) {
+				// the server is stopping
+			} catch (IOException e) {
+				if (!stopped) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		stopped = true;
+		selector.wakeup();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Connection connection : connections) {
+			connection.closeChannel();
+		}
+		serverChannel.close();
+		selector.close();
+	}
+
+	/**
+	 * Encode an unmasked server frame.
+	 *
+	 * @param fin
+	 * @param opcode
+	 * @param payload
+	 * @return
+	 */
+	public static byte[] frame(boolean fin, int opcode, byte[] payload) {
+		int headerLength = payload.length <= 125 ? 2 : (payload.length <= 65535 ? 4 : 10);
+		ByteBuffer buff = ByteBuffer.allocate(headerLength + payload.length);
+		buff.put((byte) ((fin ? 0x80 : 0) | (opcode & 0x0f)));
+		if (payload.length <= 125) {
+			buff.put((byte) payload.length);
+		} else if (payload.length <= 65535) {
+			buff.put((byte) 126);
+			buff.putShort((short) payload.length);
+		} else {
+			buff.put((byte) 127);
+			buff.putLong(payload.length);
+		}
+		buff.put(payload);
+		return buff.array();
+	}
+
+	public static byte[] utf8(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String utf8(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A connection accepted by the server.
+	 */
+	public class Connection {
+
+		private final SocketChannel channel;
+		private ByteBuffer in = ByteBuffer.allocate(16384);
+		private volatile boolean open = false;
+		private volatile boolean closeReceived = false;
+
+		private int messageOpcode = -1;
+		private ByteBuffer message = ByteBuffer.allocate(1024);
+
+		private final BlockingQueue<String> receivedTexts = new LinkedBlockingQueue<String>();
+		private final BlockingQueue<byte[]> receivedBinaries = new LinkedBlockingQueue<byte[]>();
+		private final BlockingQueue<byte[]> receivedPongs = new LinkedBlockingQueue<byte[]>();
+		private final BlockingQueue<byte[]> receivedCloses = new LinkedBlockingQueue<byte[]>();
+
+		private volatile boolean echo = true;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * To turn echoing of messages on or off.
+		 *
+		 * @param echo
+		 */
+		public void setEcho(boolean echo) {
+			this.echo = echo;
+		}
+
+		public String pollText(long timeoutMillis) throws InterruptedException {
+			return receivedTexts.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+
+		public byte[] pollBinary(long timeoutMillis) throws InterruptedException {
+			return receivedBinaries.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+
+		public byte[] pollPong(long timeoutMillis) throws InterruptedException {
+			return receivedPongs.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * To get the payload of the next close frame received from the client.
+		 *
+		 * @param timeoutMillis
+		 * @return
+		 * @throws InterruptedException
+		 */
+		public byte[] pollClose(long timeoutMillis) throws InterruptedException {
+			return receivedCloses.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+
+		public void sendText(String text) throws IOException {
+			write(frame(true, 1, utf8(text)));
+		}
+
+		public void sendBinary(byte[] data) throws IOException {
+			write(frame(true, 2, data));
+		}
+
+		public void sendPing(byte[] payload) throws IOException {
+			write(frame(true, 9, payload));
+		}
+
+		/**
+		 * Send the text in the given number of fragments, splitting on UTF-8 bytes.
+		 *
+		 * @param text
+		 * @param fragments
+		 * @throws IOException
+		 */
+		public void sendFragmentedText(String text, int fragments) throws IOException {
+			sendFragmented(1, utf8(text), fragments);
+		}
+
+		public void sendFragmentedBinary(byte[] data, int fragments) throws IOException {
+			sendFragmented(2, data, fragments);
+		}
+
+		public void sendClose(int code, String reason) throws IOException {
+			byte[] reasonBytes = utf8(reason);
+			ByteBuffer payload = ByteBuffer.allocate(2 + reasonBytes.length);
+			payload.putShort((short) code);
+			payload.put(reasonBytes);
+			write(frame(true, 8, payload.array()));
+		}
+
+		/**
+		 * Write the raw bytes as they are, e.g. a frame split at an arbitrary position.
+		 *
+		 * @param data
+		 * @throws IOException
+		 */
+		public synchronized void write(byte[] data) throws IOException {
+			ByteBuffer buff = ByteBuffer.wrap(data);
+			while (buff.hasRemaining()) {
+				if (channel.write(buff) == 0) {
+					Thread.yield();
+				}
+			}
+		}
+
+		/**
+		 * Close the TCP connection without a closing handshake.
+		 */
+		public void closeChannel() {
+			open = false;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+
+		public boolean isCloseReceived() {
+			return closeReceived;
+		}
+
+		private void sendFragmented(int opcode, byte[] data, int fragments) throws IOException {
+			int size = Math.max(1, (data.length + fragments - 1) / fragments);
+			int offset = 0;
+			for (int i = 0; i < fragments; i++) {
+				int end = (i == fragments - 1) ? data.length : Math.min(data.length, offset + size);
+				byte[] part = new byte[end - offset];
+				System.arraycopy(data, offset, part, 0, part.length);
+				write(frame(i == fragments - 1, i == 0 ? opcode : 0, part));
+				offset = end;
+			}
+		}
+
+		private void read() throws IOException {
+			if (!in.hasRemaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+			int n = channel.read(in);
+			if (n == -1) {
+				closeChannel();
+				return;
+			}
+			in.flip();
+			if (!open) {
+				readHandshake();
+			}
+			if (open) {
+				while (readFrame()) {
+					// continue with the next frame
+				}
+			}
+			in.compact();
+		}
+
+		private void readHandshake() throws IOException {
+			int end = -1;
+			for (int i = in.position(); i + 3 < in.limit(); i++) {
+				if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+					end = i + 4;
+					break;
+				}
+			}
+			if (end == -1) {
+				return;
+			}
+			byte[] headerBytes = new byte[end - in.position()];
+			in.get(headerBytes);
+			String key = null;
+			for (String line : utf8(headerBytes).split("\r\n")) {
+				int index = line.indexOf(':');
+				if (index > 0 && line.substring(0, index).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+					key = line.substring(index + 1).trim();
+				}
+			}
+			String accept;
+			try {
+				MessageDigest md = MessageDigest.getInstance("SHA-1");
+				accept = Base64.getEncoder().encodeToString(md.digest(utf8(key + GUID)));
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+			String response = "HTTP/1.1 101 Switching Protocols\r\n" + "Upgrade: websocket\r\n" + "Connection: Upgrade\r\n"
+					+ "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+			byte[] data = utf8(response);
+			if (greeting != null) {
+				byte[] frame = frame(true, 1, utf8(greeting));
+				byte[] both = Arrays.copyOf(data, data.length + frame.length);
+				System.arraycopy(frame, 0, both, data.length, frame.length);
+				data = both;
+			}
+			int chunk = handshakeChunkSize > 0 ? handshakeChunkSize : data.length;
+			for (int offset = 0; offset < data.length; offset += chunk) {
+				if (offset > 0) {
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				write(Arrays.copyOfRange(data, offset, Math.min(offset + chunk, data.length)));
+			}
+			open = true;
+		}
+
+		private boolean readFrame() throws IOException {
+			int start = in.position();
+			int available = in.remaining();
+			if (available < 2) {
+				return false;
+			}
+			int b0 = in.get(start) & 0xff;
+			int b1 = in.get(start + 1) & 0xff;
+			boolean fin = (b0 & 0x80) != 0;
+			int opcode = b0 & 0x0f;
+			boolean masked = (b1 & 0x80) != 0;
+			long length = b1 & 0x7f;
+			int headerLength = 2;
+			if (length == 126) {
+				if (available < 4) {
+					return false;
+				}
+				length = in.getShort(start + 2) & 0xffff;
+				headerLength = 4;
+			} else if (length == 127) {
+				if (available < 10) {
+					return false;
+				}
+				length = in.getLong(start + 2);
+				headerLength = 10;
+			}
+			if (masked) {
+				headerLength += 4;
+			}
+			if (available < headerLength + length) {
+				return false;
+			}
+			byte[] payload = new byte[(int) length];
+			for (int i = 0; i < payload.length; i++) {
+				byte b = in.get(start + headerLength + i);
+				if (masked) {
+					b ^= in.get(start + headerLength - 4 + (i % 4));
+				}
+				payload[i] = b;
+			}
+			in.position(start + headerLength + (int) length);
+			onFrame(fin, opcode, payload);
+			return true;
+		}
+
+		private void onFrame(boolean fin, int opcode, byte[] payload) throws IOException {
+			if (opcode == 8) {
+				receivedCloses.add(payload);
+				if (!closeReceived) {
+					closeReceived = true;
+					write(frame(true, 8, payload));
+				}
+				closeChannel();
+			} else if (opcode == 9) {
+				write(frame(true, 10, payload));
+			} else if (opcode == 10) {
+				receivedPongs.add(payload);
+			} else {
+				if (opcode != 0) {
+					messageOpcode = opcode;
+					message.clear();
+				}
+				if (message.remaining() < payload.length) {
+					ByteBuffer bigger = ByteBuffer.allocate(Math.max(message.capacity() * 2, message.position() + payload.length));
+					message.flip();
+					bigger.put(message);
+					message = bigger;
+				}
+				message.put(payload);
+				if (fin) {
+					byte[] data = new byte[message.position()];
+					message.flip();
+					message.get(data);
+					message.clear();
+					onMessage(messageOpcode, data);
+				}
+			}
+		}
+
+		private void onMessage(int opcode, byte[] data) throws IOException {
+			if (opcode == 1) {
+				String text = utf8(data);
+				receivedTexts.add(text);
+				if (text.startsWith("!")) {
+					runCommand(text);
+				} else if (echo) {
+					sendText(text);
+				}
+			} else {
+				receivedBinaries.add(data);
+				if (echo) {
+					sendBinary(data);
+				}
+			}
+		}
+
+		private void runCommand(String command) throws IOException {
+			String[] parts = command.split(" ", 3);
+			String name = parts[0];
+			if ("!fragment".equals(name)) {
+				sendFragmentedText(parts[2], Integer.parseInt(parts[1]));
+			} else if ("!ping".equals(name)) {
+				sendPing(utf8(parts.length > 1 ? command.substring(name.length() + 1) : ""));
+			} else if ("!close".equals(name)) {
+				sendClose(Integer.parseInt(parts[1]), parts.length > 2 ? parts[2] : "");
+			} else if ("!burst".equals(name)) {
+				int count = Integer.parseInt(parts[1]);
+				for (int i = 0; i < count; i++) {
+					sendText(parts[2]);
+				}
+			} else if ("!interleave".equals(name)) {
+				byte[] data = utf8(command.substring(name.length() + 1));
+				int half = data.length / 2;
+				byte[] first = new byte[half];
+				byte[] second = new byte[data.length - half];
+				System.arraycopy(data, 0, first, 0, half);
+				System.arraycopy(data, half, second, 0, second.length);
+				write(frame(false, 1, first));
+				write(frame(true, 9, utf8("in-between")));
+				write(frame(true, 0, second));
+			} else if (echo) {
+				sendText(command);
+			}
+		}
+
+	}
+
+}
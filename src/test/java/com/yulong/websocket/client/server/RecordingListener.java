@@ -0,0 +1,66 @@
+package com.yulong.websocket.client.server;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.yulong.websocket.client.ProtocolException;
+import com.yulong.websocket.client.WebSocketListener;
+import com.yulong.websocket.client.frames.CloseFrame;
+import com.yulong.websocket.client.frames.DataFrame;
+import com.yulong.websocket.client.frames.PingFrame;
+import com.yulong.websocket.client.frames.PongFrame;
+
+/**
+ * A listener that queues every callback so that tests can wait for them.
+ */
+public class RecordingListener implements WebSocketListener {
+
+	public final BlockingQueue<DataFrame> dataFrames = new LinkedBlockingQueue<DataFrame>();
+	public final BlockingQueue<String> texts = new LinkedBlockingQueue<String>();
+	public final BlockingQueue<byte[]> binaries = new LinkedBlockingQueue<byte[]>();
+	public final BlockingQueue<CloseFrame> closes = new LinkedBlockingQueue<CloseFrame>();
+	public final BlockingQueue<PingFrame> pings = new LinkedBlockingQueue<PingFrame>();
+	public final BlockingQueue<PongFrame> pongs = new LinkedBlockingQueue<PongFrame>();
+	public final BlockingQueue<ProtocolException> errors = new LinkedBlockingQueue<ProtocolException>();
+
+	@Override
+	public void onDataFrame(DataFrame dataFrame) {
+		dataFrames.add(dataFrame);
+	}
+
+	@Override
+	public void onMessage(String msg) {
+		texts.add(msg);
+	}
+
+	@Override
+	public void onMessage(byte[] binaryData) {
+		binaries.add(binaryData);
+	}
+
+	@Override
+	public void onClose(CloseFrame closeFrame) {
+		closes.add(closeFrame);
+	}
+
+	@Override
+	public void onPing(PingFrame pingFrame) {
+		pings.add(pingFrame);
+	}
+
+	@Override
+	public void onPong(PongFrame pongFrame) {
+		pongs.add(pongFrame);
+	}
+
+	@Override
+	public void onError(ProtocolException e) {
+		errors.add(e);
+	}
+
+	public static <T> T poll(BlockingQueue<T> queue) throws InterruptedException {
+		return queue.poll(5, TimeUnit.SECONDS);
+	}
+
+}
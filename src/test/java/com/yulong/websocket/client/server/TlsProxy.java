@@ -0,0 +1,180 @@
+package com.yulong.websocket.client.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A TLS server on the loopback interface that forwards the decrypted bytes of each connection
+ * to a plain server, such as a {@link LoopbackServer}, for wss tests.
+ *
+ * Its certificate is self-signed, generated with the keytool of the running JDK once per test
+ * run; {@link #clientContext()} trusts it.
+ */
+public class TlsProxy implements Closeable, Runnable {
+
+	private static final char[] PASSWORD = "changeit".toCharArray();
+	private static KeyStore keyStore = null;
+
+	private final ServerSocket serverSocket;
+	private final String targetHost;
+	private final int targetPort;
+	private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+	private volatile boolean stopped = false;
+
+	/**
+	 * To start a proxy on an ephemeral loopback port with a server context of its own, so that
+	 * it knows none of the sessions of another proxy.
+	 *
+	 * @param targetHost
+	 * @param targetPort
+	 * @throws Exception
+	 */
+	public TlsProxy(String targetHost, int targetPort) throws Exception {
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore(), PASSWORD);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers.getKeyManagers(), null, null);
+		this.serverSocket = context.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		this.targetHost = targetHost;
+		this.targetPort = targetPort;
+		Thread thread = new Thread(this, "TlsProxy");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * To get a new client context trusting the certificate of the proxies, with an empty session
+	 * cache.
+	 *
+	 * @return
+	 * @throws Exception
+	 */
+	public static SSLContext clientContext() throws Exception {
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keyStore());
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trustManagers.getTrustManagers(), null);
+		return context;
+	}
+
+	private static synchronized KeyStore keyStore() throws Exception {
+		if (keyStore == null) {
+			File file = File.createTempFile("tls-proxy", ".p12");
+			file.delete();
+			file.deleteOnExit();
+			String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+			Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost", "-keyalg", "EC",
+					"-groupname", "secp256r1", "-dname", "CN=localhost", "-ext", "san=ip:127.0.0.1,dns:localhost",
+					"-validity", "1", "-storetype", "PKCS12", "-keystore", file.getPath(), "-storepass",
+					new String(PASSWORD), "-keypass", new String(PASSWORD)).redirectErrorStream(true).start();
+			drain(process.getInputStream());
+			if (process.waitFor() != 0) {
+				throw new IOException("keytool failed with exit code " + process.exitValue());
+			}
+			KeyStore store = KeyStore.getInstance("PKCS12");
+			InputStream in = new FileInputStream(file);
+			try {
+				store.load(in, PASSWORD);
+			} finally {
+				in.close();
+			}
+			keyStore = store;
+		}
+		return keyStore;
+	}
+
+	private static void drain(InputStream in) throws IOException {
+		byte[] buff = new byte[1024];
+		while (in.read(buff) != -1) {
+			// discarded
+		}
+	}
+
+	public String getHost() {
+		return InetAddress.getLoopbackAddress().getHostAddress();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		while (!stopped) {
+			try {
+				final Socket client = serverSocket.accept();
+				final Socket target = new Socket(targetHost, targetPort);
+				sockets.add(client);
+				sockets.add(target);
+				pump(client, target);
+				pump(target, client);
+			} catch (IOException e) {
+				if (!stopped) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy the bytes from one socket to the other on a thread of its own, closing both at the
+	 * end of the stream or on an error. The TLS handshake is run by the first read.
+	 */
+	private void pump(final Socket from, final Socket to) {
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				byte[] buff = new byte[8192];
+				try {
+					InputStream in = from.getInputStream();
+					OutputStream out = to.getOutputStream();
+					int n;
+					while ((n = in.read(buff)) != -1) {
+						out.write(buff, 0, n);
+						out.flush();
+					}
+				} catch (IOException e) {
+					// closed
+				} finally {
+					closeQuietly(from);
+					closeQuietly(to);
+				}
+			}
+		}, "TlsProxyPump");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignored
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		stopped = true;
+		serverSocket.close();
+		for (Socket socket : sockets) {
+			closeQuietly(socket);
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+package com.yulong.websocket.client.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the size classes, the memory bound, the thread caches and the leak detection of the
+ * buffer pool.
+ */
+public class BufferPoolTest {
+
+	@Test
+	public void testSizeClasses() {
+		BufferPool pool = new BufferPool(1 << 20, false);
+		assertEquals(BufferPool.MIN_CAPACITY, pool.acquire(1).capacity());
+		assertEquals(BufferPool.MIN_CAPACITY, pool.acquire(BufferPool.MIN_CAPACITY).capacity());
+		assertEquals(1024, pool.acquire(BufferPool.MIN_CAPACITY + 1).capacity());
+		ByteBuffer buffer = pool.acquire(5000);
+		assertEquals(8192, buffer.capacity());
+		assertTrue(buffer.isDirect());
+		assertEquals(0, buffer.position());
+		assertEquals(8192, buffer.limit());
+		assertEquals(4, pool.getInUse());
+	}
+
+	@Test
+	public void testReleasedBufferIsReused() {
+		BufferPool pool = new BufferPool(1 << 20, false);
+		ByteBuffer buffer = pool.acquire(1000);
+		buffer.put((byte) 1);
+		pool.release(buffer);
+		ByteBuffer again = pool.acquire(1000);
+		assertSame(buffer, again);
+		assertEquals(0, again.position());
+		assertEquals(1, pool.getCacheHits());
+		assertEquals(BufferPool.SLAB_SIZE, pool.getSlabMemory());
+	}
+
+	@Test
+	public void testBeyondTheLimitsBuffersAreOnTheHeap() {
+		BufferPool pool = new BufferPool(BufferPool.SLAB_SIZE, false);
+		ByteBuffer large = pool.acquire(BufferPool.MAX_CAPACITY + 1);
+		assertFalse(large.isDirect());
+		pool.release(large);
+
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < BufferPool.SLAB_SIZE / BufferPool.MAX_CAPACITY; i++) {
+			buffers.add(pool.acquire(BufferPool.MAX_CAPACITY));
+			assertTrue(buffers.get(i).isDirect());
+		}
+		// The slabs have taken all the memory allowed:
+		assertFalse(pool.acquire(BufferPool.MAX_CAPACITY).isDirect());
+		assertFalse(pool.acquire(1).isDirect());
+		assertEquals(3, pool.getUnpooled());
+		assertEquals(BufferPool.SLAB_SIZE, pool.getSlabMemory());
+	}
+
+	@Test
+	public void testBuffersOfEndedThreadsAreReclaimed() throws Exception {
+		final BufferPool pool = new BufferPool(BufferPool.SLAB_SIZE, false);
+		final int count = BufferPool.SLAB_SIZE / BufferPool.MAX_CAPACITY;
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+				for (int i = 0; i < count; i++) {
+					buffers.add(pool.acquire(BufferPool.MAX_CAPACITY));
+				}
+				for (ByteBuffer buffer : buffers) {
+					pool.release(buffer);
+				}
+			}
+		});
+		t.start();
+		t.join();
+		for (int i = 0; i < count; i++) {
+			assertTrue(pool.acquire(BufferPool.MAX_CAPACITY).isDirect());
+		}
+		assertEquals(0, pool.getUnpooled());
+	}
+
+	@Test
+	public void testReleaseTwice() {
+		BufferPool pool = new BufferPool(1 << 20, true);
+		ByteBuffer buffer = pool.acquire(100);
+		pool.release(buffer);
+		try {
+			pool.release(buffer);
+			fail("A buffer must not be released twice");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testForeignBuffer() {
+		new BufferPool(1 << 20, false).release(ByteBuffer.allocateDirect(100));
+	}
+
+	@Test
+	public void testLeakIsReported() throws Exception {
+		BufferPool pool = new BufferPool(1 << 20, true);
+		pool.acquire(100);
+		for (int i = 0; i < 50 && pool.getLeaks() == 0; i++) {
+			System.gc();
+			Thread.sleep(20);
+			// Leaks are looked for when acquiring:
+			pool.release(pool.acquire(100));
+		}
+		assertEquals(1, pool.getLeaks());
+	}
+
+}
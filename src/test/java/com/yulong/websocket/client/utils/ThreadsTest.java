@@ -0,0 +1,61 @@
+package com.yulong.websocket.client.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ThreadsTest {
+
+	/**
+	 * To check whether a thread is virtual, false before Java 21.
+	 * 
+	 * @param thread
+	 * @return
+	 */
+	public static boolean isVirtual(Thread thread) {
+		try {
+			return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+		} catch (NoSuchMethodException e) {
+			return false;
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void testNewVirtualThread() throws Exception {
+		final AtomicReference<Thread> ran = new AtomicReference<Thread>();
+		Thread thread = Threads.newVirtualThread(new Runnable() {
+			@Override
+			public void run() {
+				ran.set(Thread.currentThread());
+			}
+		}, "ThreadsTest");
+		assertEquals("ThreadsTest", thread.getName());
+		assertEquals(Thread.State.NEW, thread.getState());
+		assertEquals(Threads.isVirtualThreadSupported(), isVirtual(thread));
+		if (!Threads.isVirtualThreadSupported()) {
+			assertTrue(thread.isDaemon());
+		}
+		thread.start();
+		thread.join(5000);
+		assertEquals(thread, ran.get());
+	}
+
+	@Test
+	public void testNewDaemonThread() throws Exception {
+		Thread thread = Threads.newDaemonThread(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, "ThreadsTest");
+		assertTrue(thread.isDaemon());
+		assertFalse(isVirtual(thread));
+		assertEquals(Thread.State.NEW, thread.getState());
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.yulong.websocket.client.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Base64;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class WebSocketKeyTest {
+
+	@Test
+	public void testAcceptOfRfcExample() {
+		// The example of RFC 6455, section 1.3:
+		assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", new WebSocketKey("dGhlIHNhbXBsZSBub25jZQ==").getAccept());
+	}
+
+	@Test
+	public void testEncodeMatchesBase64() {
+		Random random = new Random(7);
+		for (int length = 0; length < 40; length++) {
+			byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			assertEquals(Base64.getEncoder().encodeToString(bytes), WebSocketKey.encode(bytes));
+		}
+	}
+
+	@Test
+	public void testRandomKeys() {
+		WebSocketKey first = new WebSocketKey();
+		WebSocketKey second = new WebSocketKey();
+		assertEquals(24, first.getKey().length());
+		assertEquals(16, Base64.getDecoder().decode(first.getKey()).length);
+		assertNotEquals(first.getKey(), second.getKey());
+		assertEquals(new WebSocketKey(first.getKey()).getAccept(), first.getAccept());
+	}
+
+}